@@ -647,6 +647,8 @@ public class PartyFunctions {
 
     /**
      * Returns the account balance for a party.
+     * <p/>
+     * The balance is read from the customer's balance snapshot, if they have one.
      *
      * @param party the party. May be {@code null}.
      * @return the current account Balance
@@ -655,6 +657,7 @@ public class PartyFunctions {
         BigDecimal result = BigDecimal.ZERO;
         if (party != null) {
             BalanceCalculator calculator = new BalanceCalculator(service);
+            calculator.setSnapshotMode(BalanceCalculator.SnapshotMode.USE);
             result = calculator.getBalance(party);
         }
         return result;
@@ -16,21 +16,32 @@
 
 package org.openvpms.archetype.rules.doc;
 
+import org.apache.commons.io.IOUtils;
+import org.openvpms.component.business.domain.archetype.ArchetypeId;
+import org.openvpms.component.business.domain.im.archetype.descriptor.ArchetypeDescriptor;
+import org.openvpms.component.business.domain.im.common.IMObjectReference;
 import org.openvpms.component.business.domain.im.document.Document;
 import org.openvpms.component.business.service.archetype.ArchetypeServiceException;
 import org.openvpms.component.business.service.archetype.ArchetypeServiceHelper;
 import org.openvpms.component.business.service.archetype.IArchetypeService;
+import org.openvpms.component.business.service.archetype.helper.IMObjectBean;
+import org.openvpms.component.system.common.query.NamedQuery;
+import org.openvpms.component.system.common.query.ObjectSet;
+import org.openvpms.component.system.common.query.ObjectSetQueryIterator;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.zip.CRC32;
-import java.util.zip.DeflaterOutputStream;
-import java.util.zip.InflaterInputStream;
 
 import static org.openvpms.archetype.rules.doc.DocumentException.ErrorCode.ReadError;
+import static org.openvpms.archetype.rules.doc.DocumentException.ErrorCode.UnsupportedCodec;
 
 
 /**
@@ -51,6 +62,41 @@ public abstract class AbstractDocumentHandler implements DocumentHandler {
      */
     private final IArchetypeService service;
 
+    /**
+     * The compressed size above which content is spooled to a temporary file while it is being compressed.
+     */
+    private int spoolThreshold = DEFAULT_SPOOL_THRESHOLD;
+
+    /**
+     * Determines if documents with identical content are shared.
+     */
+    private boolean contentAddressed;
+
+    /**
+     * The codecs used to encode and decode document content.
+     */
+    private DocumentCodecs codecs = new DocumentCodecs();
+
+    /**
+     * Determines if the document archetype can record the codec used to encode its content.
+     */
+    private Boolean supportsCodecs;
+
+    /**
+     * The default spool threshold, in bytes.
+     */
+    public static final int DEFAULT_SPOOL_THRESHOLD = 1024 * 1024;
+
+    /**
+     * The buffer size used when reading content.
+     */
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * The algorithm used to hash content, when documents are shared.
+     */
+    private static final String HASH_ALGORITHM = "SHA-256";
+
 
     /**
      * Creates a new <code>AbstractDocumentHandler</code>
@@ -73,6 +119,76 @@ public abstract class AbstractDocumentHandler implements DocumentHandler {
         this.service = service;
     }
 
+    /**
+     * Sets the compressed size above which content is spooled to a temporary file while it is being compressed.
+     * <p/>
+     * Content below the threshold is compressed in memory. Content above it is written to a file and read back into
+     * a single array of the exact size, avoiding the buffer growth and copies that large documents would otherwise
+     * incur.
+     *
+     * @param threshold the threshold, in bytes
+     */
+    public void setSpoolThreshold(int threshold) {
+        spoolThreshold = threshold;
+    }
+
+    /**
+     * Returns the compressed size above which content is spooled to a temporary file while it is being compressed.
+     *
+     * @return the threshold, in bytes
+     */
+    public int getSpoolThreshold() {
+        return spoolThreshold;
+    }
+
+    /**
+     * Sets the codecs used to encode document content, based on its mime type.
+     * <p/>
+     * The name of the codec used is stored in the document's <em>codec</em> node, so that {@link #getContent} can
+     * decode it. Document archetypes without a <em>codec</em> node, and documents created prior to the introduction
+     * of codecs, are always deflated.
+     *
+     * @param codecs the codecs
+     */
+    public void setCodecs(DocumentCodecs codecs) {
+        this.codecs = codecs;
+    }
+
+    /**
+     * Returns the codecs used to encode document content.
+     *
+     * @return the codecs
+     */
+    public DocumentCodecs getCodecs() {
+        return codecs;
+    }
+
+    /**
+     * Determines if documents with identical content are shared.
+     * <p/>
+     * When enabled, {@link #create(String, InputStream, String, int)} computes a {@code SHA-256} hash of the
+     * content. If there is an existing document with the same name, mime type, size and hash, it is returned instead of
+     * a new document, so that the content is only stored once. The hash is stored in the document's <em>hash</em>
+     * node, so this only applies to document archetypes that have one.
+     * <p/>
+     * Shared documents are reference counted by {@link DocumentRules#addDocument} and must be removed via
+     * {@link DocumentRules#removeDocument}, rather than directly, to avoid removing content that is still in use.
+     *
+     * @param contentAddressed if {@code true}, share documents with identical content
+     */
+    public void setContentAddressed(boolean contentAddressed) {
+        this.contentAddressed = contentAddressed;
+    }
+
+    /**
+     * Determines if documents with identical content are shared.
+     *
+     * @return {@code true} if documents with identical content are shared
+     */
+    public boolean isContentAddressed() {
+        return contentAddressed;
+    }
+
     /**
      * Determines if this handler supports a document.
      *
@@ -110,27 +226,37 @@ public abstract class AbstractDocumentHandler implements DocumentHandler {
      */
     public Document create(String name, InputStream stream, String mimeType,
                            int size) {
-        byte[] buffer = new byte[1024];
-        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
-        DeflaterOutputStream output = new DeflaterOutputStream(bytes);
-        int read = 0;
+        byte[] buffer = new byte[BUFFER_SIZE];
+        ContentOutputStream output = new ContentOutputStream(name, mimeType);
         int length;
-        CRC32 checksum = new CRC32();
         try {
             while ((length = stream.read(buffer)) != -1) {
-                checksum.update(buffer, 0, length);
                 output.write(buffer, 0, length);
-                read += length;
             }
-            if (size != -1 && read != size) {
+            if (size != -1 && output.getSize() != size) {
                 throw new DocumentException(ReadError, name);
             }
             output.close();
         } catch (IOException exception) {
             throw new DocumentException(ReadError, exception, name);
+        } finally {
+            output.dispose();
         }
-        byte[] data = bytes.toByteArray();
-        return create(name, data, mimeType, size, checksum.getValue());
+        return output.getDocument();
+    }
+
+    /**
+     * Creates a stream to write document content to.
+     * <p/>
+     * The content is encoded as it is written, and the document is created when the stream is closed. It may then be
+     * retrieved using {@link DocumentOutputStream#getDocument()}.
+     *
+     * @param name     the document name. Any path information is removed.
+     * @param mimeType the mime type of the content. May be {@code null}
+     * @return a new stream
+     */
+    public DocumentOutputStream create(String name, String mimeType) {
+        return new ContentOutputStream(name, mimeType);
     }
 
     /**
@@ -152,9 +278,19 @@ public abstract class AbstractDocumentHandler implements DocumentHandler {
      * @throws DocumentException for any error
      */
     public InputStream getContent(Document document) {
+        IMObjectBean bean = new IMObjectBean(document, service);
+        String name = bean.hasNode(DocumentRules.CODEC) ? bean.getString(DocumentRules.CODEC) : null;
+        DocumentCodec codec = codecs.getCodec(name);
+        if (codec == null) {
+            throw new DocumentException(UnsupportedCodec, document.getName(), name);
+        }
         ByteArrayInputStream bytes
                 = new ByteArrayInputStream(document.getContents());
-        return new InflaterInputStream(bytes);
+        try {
+            return codec.decode(bytes);
+        } catch (IOException exception) {
+            throw new DocumentException(ReadError, exception, document.getName());
+        }
     }
 
     /**
@@ -186,13 +322,8 @@ public abstract class AbstractDocumentHandler implements DocumentHandler {
      */
     public Document create(String name, byte[] content, String mimeType,
                            int size, long checksum) {
-        if (name != null) {
-            // strip path information
-            File file = new File(name);
-            name = file.getName();
-        }
         Document document = (Document) service.create(shortName);
-        document.setName(name);
+        document.setName(getName(name));
         document.setMimeType(mimeType);
         document.setContents(content);
         document.setDocSize(size);
@@ -200,6 +331,75 @@ public abstract class AbstractDocumentHandler implements DocumentHandler {
         return document;
     }
 
+    /**
+     * Creates a new {@link Document}, recording the codec used to encode its content.
+     *
+     * @param name     the document name. Any path information is removed.
+     * @param content  the encoded content
+     * @param mimeType the mime type of the content. May be {@code null}
+     * @param size     the uncompressed document size
+     * @param checksum the uncompressed document CRC32 checksum
+     * @param codec    the codec used to encode the content
+     * @return a new document
+     * @throws DocumentException         if the document can't be created
+     * @throws ArchetypeServiceException for any archetype service error
+     */
+    private Document create(String name, byte[] content, String mimeType, int size, long checksum,
+                            DocumentCodec codec) {
+        Document document = create(name, content, mimeType, size, checksum);
+        IMObjectBean bean = new IMObjectBean(document, service);
+        if (bean.hasNode(DocumentRules.CODEC)) {
+            bean.setValue(DocumentRules.CODEC, codec.getName());
+        }
+        return document;
+    }
+
+    /**
+     * Returns the codec to encode a document with.
+     *
+     * @param mimeType the document mime type. May be {@code null}
+     * @return the codec
+     */
+    protected DocumentCodec getCodec(String mimeType) {
+        if (supportsCodecs == null) {
+            ArchetypeDescriptor archetype = service.getArchetypeDescriptor(shortName);
+            supportsCodecs = archetype != null && archetype.getNodeDescriptor(DocumentRules.CODEC) != null;
+        }
+        return (supportsCodecs) ? codecs.getCodecForMimeType(mimeType) : DocumentCodecs.DEFAULT;
+    }
+
+    /**
+     * Finds a persistent document with the specified content.
+     *
+     * @param name     the document name. May be {@code null}
+     * @param mimeType the mime type. May be {@code null}
+     * @param size     the uncompressed document size
+     * @param checksum the uncompressed document CRC32 checksum
+     * @param hash     the hex-encoded SHA-256 hash of the uncompressed content
+     * @return the document, or {@code null} if none is found
+     * @throws ArchetypeServiceException for any archetype service error
+     */
+    protected Document findDocument(String name, String mimeType, int size, long checksum, String hash) {
+        if (name == null || size == 0) {
+            return null;
+        }
+        // the hash is held in the document details, so can't be queried via an ArchetypeQuery
+        NamedQuery query = new NamedQuery("findDocumentByContent", Arrays.asList("id"));
+        query.setParameter("shortName", shortName);
+        query.setParameter("name", name);
+        query.setParameter("mimeType", (mimeType != null) ? mimeType : "");
+        query.setParameter("size", size);
+        query.setParameter("checksum", checksum);
+        query.setParameter("hash", hash);
+        query.setMaxResults(1);
+        Iterator<ObjectSet> iterator = new ObjectSetQueryIterator(service, query);
+        if (iterator.hasNext()) {
+            long id = iterator.next().getLong("id");
+            return (Document) service.get(new IMObjectReference(new ArchetypeId(shortName), id));
+        }
+        return null;
+    }
+
     /**
      * Calculates a CRC32 checksum for a document.
      *
@@ -211,4 +411,252 @@ public abstract class AbstractDocumentHandler implements DocumentHandler {
         checksum.update(content);
         return checksum.getValue();
     }
+
+    /**
+     * Strips any path information from a document name.
+     *
+     * @param name the document name. May be {@code null}
+     * @return the name, minus any path information. May be {@code null}
+     */
+    private String getName(String name) {
+        return (name != null) ? new File(name).getName() : null;
+    }
+
+    /**
+     * Returns a message digest to hash document content.
+     *
+     * @return a new message digest
+     */
+    private MessageDigest getDigest() {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException exception) {
+            throw new IllegalStateException("Failed to create " + HASH_ALGORITHM + " digest", exception);
+        }
+    }
+
+    /**
+     * Hex-encodes a byte array.
+     *
+     * @param bytes the bytes to encode
+     * @return the hex-encoded bytes
+     */
+    private static String toHex(byte[] bytes) {
+        StringBuilder result = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            result.append(Character.forDigit((b >> 4) & 0xF, 16));
+            result.append(Character.forDigit(b & 0xF, 16));
+        }
+        return result.toString();
+    }
+
+    /**
+     * Encodes content as it is written, creating a document when closed.
+     */
+    private class ContentOutputStream extends DocumentOutputStream {
+
+        /**
+         * The document name.
+         */
+        private final String name;
+
+        /**
+         * The document mime type. May be {@code null}
+         */
+        private final String mimeType;
+
+        /**
+         * The codec used to encode the content.
+         */
+        private final DocumentCodec codec;
+
+        /**
+         * The encoded content.
+         */
+        private final SpoolOutputStream bytes;
+
+        /**
+         * The CRC32 checksum of the uncompressed content.
+         */
+        private final CRC32 checksum = new CRC32();
+
+        /**
+         * The digest of the uncompressed content, or {@code null} if documents aren't shared.
+         */
+        private final MessageDigest digest;
+
+        /**
+         * The stream to write to. This is {@code null} until the first write, and once the stream is closed or
+         * disposed.
+         */
+        private OutputStream output;
+
+        /**
+         * Determines if the stream has been closed or disposed. Once set, the stream may not be written to.
+         */
+        private boolean closed;
+
+        /**
+         * The uncompressed content size.
+         */
+        private long size;
+
+        /**
+         * The document, once the stream is closed.
+         */
+        private Document document;
+
+        /**
+         * Constructs a {@link ContentOutputStream}.
+         *
+         * @param name     the document name
+         * @param mimeType the document mime type. May be {@code null}
+         */
+        public ContentOutputStream(String name, String mimeType) {
+            this.name = name;
+            this.mimeType = mimeType;
+            codec = getCodec(mimeType);
+            bytes = new SpoolOutputStream(spoolThreshold);
+            digest = (contentAddressed) ? getDigest() : null;
+        }
+
+        /**
+         * Writes the specified byte to this output stream.
+         *
+         * @param b the byte
+         * @throws IOException if an I/O error occurs
+         */
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        /**
+         * Writes {@code len} bytes from the specified byte array starting at offset {@code off} to this output stream.
+         *
+         * @param b   the data
+         * @param off the start offset in the data
+         * @param len the number of bytes to write
+         * @throws IOException if an I/O error occurs
+         */
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            getOutput().write(b, off, len);
+            checksum.update(b, off, len);
+            if (digest != null) {
+                digest.update(b, off, len);
+            }
+            size += len;
+        }
+
+        /**
+         * Flushes this output stream.
+         *
+         * @throws IOException if an I/O error occurs
+         */
+        @Override
+        public void flush() throws IOException {
+            if (output != null) {
+                output.flush();
+            }
+        }
+
+        /**
+         * Closes this output stream, and creates the document.
+         *
+         * @throws IOException               if an I/O error occurs
+         * @throws DocumentException         if the document can't be created
+         * @throws ArchetypeServiceException for any archetype service error
+         */
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                OutputStream stream = getOutput();
+                closed = true;
+                output = null;
+                byte[] data;
+                try {
+                    stream.close();
+                    data = bytes.toByteArray();
+                } finally {
+                    bytes.dispose();
+                }
+                if (size > Integer.MAX_VALUE) {
+                    throw new IOException("Content too large: " + size + " bytes");
+                }
+                document = createDocument(data);
+            }
+        }
+
+        /**
+         * Returns the uncompressed content size.
+         *
+         * @return the no. of bytes written
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * Returns the document.
+         *
+         * @return the document, or {@code null} if the stream hasn't been closed
+         */
+        @Override
+        public Document getDocument() {
+            return document;
+        }
+
+        /**
+         * Releases any resources held by the stream, without creating a document.
+         */
+        @Override
+        public void dispose() {
+            closed = true;
+            IOUtils.closeQuietly(output);
+            output = null;
+            bytes.dispose();
+        }
+
+        /**
+         * Returns the stream to write encoded content to, creating it if required.
+         *
+         * @return the stream
+         * @throws IOException if the stream has been closed, or cannot be created
+         */
+        private OutputStream getOutput() throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            if (output == null) {
+                output = codec.encode(bytes);
+            }
+            return output;
+        }
+
+        /**
+         * Creates the document, or returns an existing document with the same content if documents are shared.
+         *
+         * @param data the encoded content
+         * @return the document
+         */
+        private Document createDocument(byte[] data) {
+            Document result;
+            int length = (int) size;
+            if (digest != null) {
+                String hash = toHex(digest.digest());
+                result = findDocument(getName(name), mimeType, length, checksum.getValue(), hash);
+                if (result == null) {
+                    result = create(name, data, mimeType, length, checksum.getValue(), codec);
+                    IMObjectBean bean = new IMObjectBean(result, service);
+                    if (bean.hasNode(DocumentRules.HASH)) {
+                        bean.setValue(DocumentRules.HASH, hash);
+                    }
+                }
+            } else {
+                result = create(name, data, mimeType, length, checksum.getValue(), codec);
+            }
+            return result;
+        }
+    }
 }
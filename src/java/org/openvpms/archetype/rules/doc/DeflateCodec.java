@@ -0,0 +1,133 @@
+/*
+ * Version: 1.0
+ *
+ * The contents of this file are subject to the OpenVPMS License Version
+ * 1.0 (the 'License'); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.openvpms.org/license/
+ *
+ * Software distributed under the License is distributed on an 'AS IS' basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * Copyright 2014 (C) OpenVPMS Ltd. All Rights Reserved.
+ */
+
+package org.openvpms.archetype.rules.doc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A {@link DocumentCodec} that compresses content using the deflate algorithm.
+ * <p/>
+ * This is the codec used for all documents that don't have a codec recorded.
+ *
+ * @author Tim Anderson
+ */
+public class DeflateCodec implements DocumentCodec {
+
+    /**
+     * The codec name.
+     */
+    public static final String NAME = "deflate";
+
+    /**
+     * The compression level.
+     */
+    private final int level;
+
+    /**
+     * The buffer size.
+     */
+    private static final int BUFFER_SIZE = 8192;
+
+
+    /**
+     * Constructs a {@link DeflateCodec} that uses the default compression level.
+     */
+    public DeflateCodec() {
+        this(Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * Constructs a {@link DeflateCodec}.
+     *
+     * @param level the compression level, from {@code 0} to {@code 9}, or {@code -1} to use the default level.
+     *              Lower levels are faster, but compress less.
+     */
+    public DeflateCodec(int level) {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid compression level: " + level);
+        }
+        this.level = level;
+    }
+
+    /**
+     * Returns the codec name.
+     * <p/>
+     * The name is the same for all compression levels, as they are decoded the same way.
+     *
+     * @return the codec name
+     */
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    /**
+     * Returns the compression level.
+     *
+     * @return the compression level
+     */
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Returns a stream that encodes content written to it.
+     *
+     * @param stream the stream to write the encoded content to
+     * @return a stream to write the content to
+     */
+    @Override
+    public OutputStream encode(OutputStream stream) {
+        return new DeflaterOutputStream(stream, new Deflater(level), BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    def.end();
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns a stream that decodes content read from another.
+     *
+     * @param stream the stream of encoded content
+     * @return a stream of decoded content
+     */
+    @Override
+    public InputStream decode(InputStream stream) {
+        return new InflaterInputStream(stream, new Inflater(), BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    inf.end();
+                }
+            }
+        };
+    }
+
+}
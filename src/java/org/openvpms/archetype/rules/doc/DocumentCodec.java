@@ -0,0 +1,61 @@
+/*
+ * Version: 1.0
+ *
+ * The contents of this file are subject to the OpenVPMS License Version
+ * 1.0 (the 'License'); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.openvpms.org/license/
+ *
+ * Software distributed under the License is distributed on an 'AS IS' basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * Copyright 2014 (C) OpenVPMS Ltd. All Rights Reserved.
+ */
+
+package org.openvpms.archetype.rules.doc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Encodes and decodes the content of {@link org.openvpms.component.business.domain.im.document.Document}s.
+ * <p/>
+ * The name of the codec used to encode a document is stored with the document, so that it can be decoded by the
+ * same codec.
+ *
+ * @author Tim Anderson
+ * @see DocumentCodecs
+ */
+public interface DocumentCodec {
+
+    /**
+     * Returns the codec name.
+     *
+     * @return the codec name
+     */
+    String getName();
+
+    /**
+     * Returns a stream that encodes content written to it.
+     * <p/>
+     * The returned stream must be closed to complete encoding, and release any resources.
+     *
+     * @param stream the stream to write the encoded content to
+     * @return a stream to write the content to
+     * @throws IOException for any I/O error
+     */
+    OutputStream encode(OutputStream stream) throws IOException;
+
+    /**
+     * Returns a stream that decodes content read from another.
+     *
+     * @param stream the stream of encoded content
+     * @return a stream of decoded content
+     * @throws IOException for any I/O error
+     */
+    InputStream decode(InputStream stream) throws IOException;
+
+}
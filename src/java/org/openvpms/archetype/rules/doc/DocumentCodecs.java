@@ -0,0 +1,171 @@
+/*
+ * Version: 1.0
+ *
+ * The contents of this file are subject to the OpenVPMS License Version
+ * 1.0 (the 'License'); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.openvpms.org/license/
+ *
+ * Software distributed under the License is distributed on an 'AS IS' basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * Copyright 2014 (C) OpenVPMS Ltd. All Rights Reserved.
+ */
+
+package org.openvpms.archetype.rules.doc;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Determines the {@link DocumentCodec} to use to encode a document, based on its mime type.
+ * <p/>
+ * Mime types may be registered exactly (e.g. {@code image/jpeg}) or as prefixes ending in {@code *}
+ * (e.g. {@code video/*}). Where several prefixes match, the longest is used. Mime types that don't match any
+ * registration use the default codec.
+ * <p/>
+ * By default, formats that are already compressed are stored as is, and all other content is deflated.
+ *
+ * @author Tim Anderson
+ */
+public class DocumentCodecs {
+
+    /**
+     * The codecs, keyed on mime type or mime type prefix.
+     */
+    private final Map<String, DocumentCodec> mimeTypes = new LinkedHashMap<String, DocumentCodec>();
+
+    /**
+     * The codecs, keyed on name.
+     */
+    private final Map<String, DocumentCodec> names = new HashMap<String, DocumentCodec>();
+
+    /**
+     * The codec to use when no mime type matches.
+     */
+    private DocumentCodec defaultCodec;
+
+    /**
+     * The codec used to decode documents that don't have a codec recorded.
+     */
+    public static final DocumentCodec DEFAULT = new DeflateCodec();
+
+    /**
+     * Mime types of formats that are already compressed.
+     */
+    private static final String[] COMPRESSED = {"image/jpeg", "image/png", "image/gif", "application/pdf",
+                                                "application/zip", "application/x-gzip", "application/x-rar",
+                                                "application/vnd.openxmlformats-officedocument.*",
+                                                "application/vnd.oasis.opendocument.*", "audio/*", "video/*"};
+
+
+    /**
+     * Constructs a {@link DocumentCodecs} that stores compressed formats as is, and deflates all other content.
+     */
+    public DocumentCodecs() {
+        this(DEFAULT);
+        StoreCodec store = new StoreCodec();
+        for (String mimeType : COMPRESSED) {
+            addCodec(mimeType, store);
+        }
+    }
+
+    /**
+     * Constructs a {@link DocumentCodecs} with no mime type registrations.
+     *
+     * @param defaultCodec the codec to use when no mime type matches
+     */
+    public DocumentCodecs(DocumentCodec defaultCodec) {
+        setDefaultCodec(defaultCodec);
+        register(new StoreCodec());
+        register(DEFAULT);
+    }
+
+    /**
+     * Registers a codec for a mime type.
+     *
+     * @param mimeType the mime type, or a mime type prefix ending in {@code *}
+     * @param codec    the codec
+     */
+    public synchronized void addCodec(String mimeType, DocumentCodec codec) {
+        mimeTypes.put(mimeType.toLowerCase(), codec);
+        register(codec);
+    }
+
+    /**
+     * Registers codecs for mime types.
+     *
+     * @param codecs the codecs, keyed on mime type or mime type prefix
+     */
+    public void setCodecs(Map<String, DocumentCodec> codecs) {
+        for (Map.Entry<String, DocumentCodec> entry : codecs.entrySet()) {
+            addCodec(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Sets the codec to use when no mime type matches.
+     *
+     * @param codec the codec
+     */
+    public synchronized void setDefaultCodec(DocumentCodec codec) {
+        defaultCodec = codec;
+        register(codec);
+    }
+
+    /**
+     * Returns the codec to encode a document with.
+     *
+     * @param mimeType the document mime type. May be {@code null}
+     * @return the codec
+     */
+    public synchronized DocumentCodec getCodecForMimeType(String mimeType) {
+        DocumentCodec result = null;
+        if (mimeType != null) {
+            String type = mimeType.toLowerCase();
+            int index = type.indexOf(';');
+            if (index != -1) {
+                type = type.substring(0, index);
+            }
+            type = type.trim();
+            result = mimeTypes.get(type);
+            if (result == null) {
+                int length = 0;
+                for (Map.Entry<String, DocumentCodec> entry : mimeTypes.entrySet()) {
+                    String key = entry.getKey();
+                    if (key.endsWith("*") && key.length() > length
+                        && type.startsWith(key.substring(0, key.length() - 1))) {
+                        result = entry.getValue();
+                        length = key.length();
+                    }
+                }
+            }
+        }
+        return (result != null) ? result : defaultCodec;
+    }
+
+    /**
+     * Returns the codec to decode a document with.
+     *
+     * @param name the codec name. If {@code null}, the document predates codecs, and {@link #DEFAULT} is returned
+     * @return the codec, or {@code null} if there is no codec with the name
+     */
+    public synchronized DocumentCodec getCodec(String name) {
+        return (name != null) ? names.get(name) : DEFAULT;
+    }
+
+    /**
+     * Registers a codec by name.
+     *
+     * @param codec the codec
+     */
+    private void register(DocumentCodec codec) {
+        if (!names.containsKey(codec.getName())) {
+            names.put(codec.getName(), codec);
+        }
+    }
+
+}
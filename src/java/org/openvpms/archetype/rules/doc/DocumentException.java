@@ -45,7 +45,8 @@ public class DocumentException extends OpenVPMSException {
         InvalidOrientation,
         InvalidMediaTray,
         InvalidPaperSize,
-        InvalidSides
+        InvalidSides,
+        UnsupportedCodec
     }
 
     /**
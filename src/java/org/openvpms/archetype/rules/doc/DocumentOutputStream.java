@@ -0,0 +1,47 @@
+/*
+ * Version: 1.0
+ *
+ * The contents of this file are subject to the OpenVPMS License Version
+ * 1.0 (the 'License'); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.openvpms.org/license/
+ *
+ * Software distributed under the License is distributed on an 'AS IS' basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * Copyright 2014 (C) OpenVPMS Ltd. All Rights Reserved.
+ */
+
+package org.openvpms.archetype.rules.doc;
+
+import org.openvpms.component.business.domain.im.document.Document;
+
+import java.io.OutputStream;
+
+/**
+ * An output stream that encodes content as it is written, and creates a {@link Document} from it when closed.
+ * <p/>
+ * This allows large documents to be generated without first buffering their uncompressed content.
+ * <p/>
+ * If the content cannot be written, {@link #dispose()} should be invoked to release resources.
+ *
+ * @author Tim Anderson
+ * @see AbstractDocumentHandler#create(String, String)
+ */
+public abstract class DocumentOutputStream extends OutputStream {
+
+    /**
+     * Returns the document.
+     *
+     * @return the document, or {@code null} if the stream hasn't been closed
+     */
+    public abstract Document getDocument();
+
+    /**
+     * Releases any resources held by the stream, without creating a document.
+     */
+    public abstract void dispose();
+
+}
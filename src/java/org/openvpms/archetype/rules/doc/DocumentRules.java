@@ -24,6 +24,7 @@ import org.openvpms.component.business.domain.im.document.Document;
 import org.openvpms.component.business.service.archetype.ArchetypeServiceHelper;
 import org.openvpms.component.business.service.archetype.IArchetypeService;
 import org.openvpms.component.business.service.archetype.helper.ActBean;
+import org.openvpms.component.business.service.archetype.helper.IMObjectBean;
 import org.openvpms.component.business.service.archetype.helper.IMObjectCopier;
 import org.openvpms.component.system.common.query.ArchetypeQuery;
 import org.openvpms.component.system.common.query.IPage;
@@ -49,6 +50,21 @@ public class DocumentRules {
      */
     public static final String VERSIONS = "versions";
 
+    /**
+     * The document content hash node, used to share documents with identical content.
+     */
+    public static final String HASH = "hash";
+
+    /**
+     * The document reference count node, used to determine when a shared document may be removed.
+     */
+    public static final String REFERENCES = "references";
+
+    /**
+     * The document codec node, used to record how document content was encoded.
+     */
+    public static final String CODEC = "codec";
+
     /**
      * The archetype service.
      */
@@ -101,6 +117,10 @@ public class DocumentRules {
      * <p/>
      * If <tt>version</tt> is <tt>true</tt>, the act is currently has a document, and the act supports versioning,
      * the original document will be saved as a version using {@link #createVersion}.
+     * <p/>
+     * This is equivalent to {@link #addDocument(DocumentAct, Document, boolean, List)} with a <tt>null</tt>
+     * list of documents to remove, so a shared document that is no longer referenced is saved with a zero reference
+     * count rather than being removed.
      *
      * @param act      the act to add the document to
      * @param document the document to add
@@ -108,15 +128,45 @@ public class DocumentRules {
      * @return a list of objects to save
      */
     public List<IMObject> addDocument(DocumentAct act, Document document, boolean version) {
+        return addDocument(act, document, version, null);
+    }
+
+    /**
+     * Adds a document to a document act.
+     * <p/>
+     * If <tt>version</tt> is <tt>true</tt>, the act is currently has a document, and the act supports versioning,
+     * the original document will be saved as a version using {@link #createVersion}.
+     * <p/>
+     * Documents created by a content addressed {@link AbstractDocumentHandler} are reference counted. When one is
+     * added to an act that doesn't already refer to it, its count is incremented. When one is replaced and not
+     * versioned, its count is decremented and it is added to the objects to save. If no act refers to it any
+     * longer, it is instead added to <tt>remove</tt>, and should be removed once the returned objects are saved.
+     * <br/>
+     * Other documents are never removed, and only the acts returned by this method refer to a counted document.
+     * Acts that acquire a shared document by other means, e.g. via {@link IMObjectCopier}, aren't counted, so
+     * shared documents should only be added to acts using this method.
+     *
+     * @param act      the act to add the document to
+     * @param document the document to add
+     * @param version  if <tt>true</tt> version any old document if the act supports it
+     * @param remove   collects shared documents that are no longer referenced. May be <tt>null</tt>
+     * @return a list of objects to save
+     */
+    public List<IMObject> addDocument(DocumentAct act, Document document, boolean version, List<IMObject> remove) {
         List<IMObject> objects = new ArrayList<IMObject>();
         objects.add(act);
 
-        if (version && act.getDocument() != null) {
-            DocumentAct oldVersion = createVersion(act);
+        IMObjectReference existing = act.getDocument();
+        boolean changed = !document.getObjectReference().equals(existing);
+        if (changed && existing != null) {
+            DocumentAct oldVersion = (version) ? createVersion(act) : null;
             if (oldVersion != null) {
+                // the version takes over the act's reference to the old document
                 ActBean bean = new ActBean(act, service);
                 bean.addNodeRelationship(VERSIONS, oldVersion);
                 objects.add(oldVersion);
+            } else {
+                releaseDocument(existing, objects, remove);
             }
         }
         act.setDocument(document.getObjectReference());
@@ -124,12 +174,46 @@ public class DocumentRules {
         act.setMimeType(document.getMimeType());
         act.setName(document.getName());
 
-        if (document.isNew()) {
+        IMObjectBean bean = new IMObjectBean(document, service);
+        if (changed && isShared(bean)) {
+            bean.setValue(REFERENCES, bean.getInt(REFERENCES) + 1);
+            objects.add(document);
+        } else if (document.isNew()) {
             objects.add(document);
         }
         return objects;
     }
 
+    /**
+     * Removes the document associated with an act, if no other act refers to it.
+     * <p/>
+     * If the document is reference counted and another act refers to it, its reference count is decremented instead.
+     * Documents that aren't reference counted (i.e. those not created by a content addressed
+     * {@link AbstractDocumentHandler}) are removed, as there is no way to determine if other acts refer to them.
+     * See {@link #addDocument(DocumentAct, Document, boolean, List)} for the limits of reference counting.
+     * <p/>
+     * The act itself is not changed.
+     *
+     * @param act the document act
+     * @return <tt>true</tt> if the document was removed, <tt>false</tt> if it is still in use, or doesn't exist
+     */
+    public boolean removeDocument(DocumentAct act) {
+        boolean result = false;
+        Document document = (act.getDocument() != null) ? (Document) service.get(act.getDocument()) : null;
+        if (document != null) {
+            IMObjectBean bean = new IMObjectBean(document, service);
+            int references = getReferences(bean);
+            if (references > 1) {
+                bean.setValue(REFERENCES, references - 1);
+                bean.save();
+            } else {
+                service.remove(document);
+                result = true;
+            }
+        }
+        return result;
+    }
+
     /**
      * Creates a version of a document act.
      * <p/>
@@ -198,4 +282,50 @@ public class DocumentRules {
         return Collections.emptyList();
     }
 
+    /**
+     * Releases a document that is no longer referred to by an act.
+     * <p/>
+     * If the document is reference counted, its count is decremented. If other acts still refer to it, or
+     * <tt>remove</tt> is <tt>null</tt>, it is added to the objects to save, otherwise it is added to <tt>remove</tt>.
+     * Documents that aren't reference counted are left alone.
+     *
+     * @param reference the document reference
+     * @param objects   the objects to save
+     * @param remove    the objects to remove. May be <tt>null</tt>
+     */
+    private void releaseDocument(IMObjectReference reference, List<IMObject> objects, List<IMObject> remove) {
+        Document document = (Document) service.get(reference);
+        if (document != null) {
+            IMObjectBean bean = new IMObjectBean(document, service);
+            int references = getReferences(bean);
+            if (references > 1 || (references == 1 && remove == null)) {
+                bean.setValue(REFERENCES, references - 1);
+                objects.add(document);
+            } else if (references == 1) {
+                remove.add(document);
+            }
+        }
+    }
+
+    /**
+     * Determines if a document can be shared by acts, i.e. it was created by a content addressed
+     * {@link AbstractDocumentHandler}.
+     *
+     * @param bean the document bean
+     * @return <tt>true</tt> if the document is shared and reference counted
+     */
+    private boolean isShared(IMObjectBean bean) {
+        return bean.hasNode(REFERENCES) && bean.hasNode(HASH) && bean.getString(HASH) != null;
+    }
+
+    /**
+     * Returns the reference count of a document.
+     *
+     * @param bean the document bean
+     * @return the reference count, or <tt>0</tt> if the document isn't reference counted
+     */
+    private int getReferences(IMObjectBean bean) {
+        return bean.hasNode(REFERENCES) ? bean.getInt(REFERENCES) : 0;
+    }
+
 }
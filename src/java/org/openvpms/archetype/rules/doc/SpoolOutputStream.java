@@ -0,0 +1,192 @@
+/*
+ * Version: 1.0
+ *
+ * The contents of this file are subject to the OpenVPMS License Version
+ * 1.0 (the 'License'); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.openvpms.org/license/
+ *
+ * Software distributed under the License is distributed on an 'AS IS' basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * Copyright 2014 (C) OpenVPMS Ltd. All Rights Reserved.
+ */
+
+package org.openvpms.archetype.rules.doc;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An output stream that holds content in memory until it exceeds a threshold, after which it is spooled to a
+ * temporary file.
+ * <p/>
+ * This avoids the repeated buffer growth and copying of a {@code ByteArrayOutputStream} for large content; when the
+ * content is spooled, {@link #toByteArray()} allocates a single array of the exact size.
+ * <p/>
+ * The {@link #dispose()} method must be invoked to delete any temporary file.
+ *
+ * @author Tim Anderson
+ */
+class SpoolOutputStream extends OutputStream {
+
+    /**
+     * The no. of bytes to hold in memory before spooling to a file.
+     */
+    private final int threshold;
+
+    /**
+     * The in-memory content. This is {@code null} once the content is spooled.
+     */
+    private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+
+    /**
+     * The temporary file, or {@code null} if the content hasn't been spooled.
+     */
+    private File file;
+
+    /**
+     * The stream to write to.
+     */
+    private OutputStream stream;
+
+    /**
+     * The no. of bytes written.
+     */
+    private long size;
+
+
+    /**
+     * Constructs a {@link SpoolOutputStream}.
+     *
+     * @param threshold the no. of bytes to hold in memory before spooling to a file
+     */
+    public SpoolOutputStream(int threshold) {
+        this.threshold = threshold;
+        stream = memory;
+    }
+
+    /**
+     * Writes the specified byte to this output stream.
+     *
+     * @param b the byte
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    public void write(int b) throws IOException {
+        checkThreshold(1);
+        stream.write(b);
+        ++size;
+    }
+
+    /**
+     * Writes {@code len} bytes from the specified byte array starting at offset {@code off} to this output stream.
+     *
+     * @param b   the data
+     * @param off the start offset in the data
+     * @param len the number of bytes to write
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        checkThreshold(len);
+        stream.write(b, off, len);
+        size += len;
+    }
+
+    /**
+     * Flushes this output stream.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    public void flush() throws IOException {
+        stream.flush();
+    }
+
+    /**
+     * Closes this output stream. The content remains available via {@link #toByteArray()}.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    public void close() throws IOException {
+        stream.close();
+    }
+
+    /**
+     * Determines if the content has been spooled to a file.
+     *
+     * @return {@code true} if the content has been spooled to a file
+     */
+    public boolean isSpooled() {
+        return file != null;
+    }
+
+    /**
+     * Returns the content.
+     * <p/>
+     * The stream should be closed prior to invoking this.
+     *
+     * @return the content
+     * @throws IOException if the content cannot be read
+     */
+    public byte[] toByteArray() throws IOException {
+        if (memory != null) {
+            return memory.toByteArray();
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Content too large: " + size + " bytes");
+        }
+        byte[] result = new byte[(int) size];
+        DataInputStream input = new DataInputStream(new FileInputStream(file));
+        try {
+            input.readFully(result);
+        } finally {
+            input.close();
+        }
+        return result;
+    }
+
+    /**
+     * Closes the stream and deletes any temporary file.
+     */
+    public void dispose() {
+        try {
+            stream.close();
+        } catch (IOException ignore) {
+            // no-op
+        }
+        if (file != null) {
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+            file = null;
+        }
+        memory = null;
+    }
+
+    /**
+     * Spools the content to a temporary file if writing the specified no. of bytes would exceed the threshold.
+     *
+     * @param length the no. of bytes to be written
+     * @throws IOException if the file cannot be created
+     */
+    private void checkThreshold(int length) throws IOException {
+        if (memory != null && size + length > threshold) {
+            file = File.createTempFile("openvpms", ".tmp");
+            stream = new BufferedOutputStream(new FileOutputStream(file));
+            memory.writeTo(stream);
+            memory = null;
+        }
+    }
+
+}
@@ -0,0 +1,70 @@
+/*
+ * Version: 1.0
+ *
+ * The contents of this file are subject to the OpenVPMS License Version
+ * 1.0 (the 'License'); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.openvpms.org/license/
+ *
+ * Software distributed under the License is distributed on an 'AS IS' basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * Copyright 2014 (C) OpenVPMS Ltd. All Rights Reserved.
+ */
+
+package org.openvpms.archetype.rules.doc;
+
+import java.io.BufferedOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A {@link DocumentCodec} that stores content as is.
+ * <p/>
+ * This is intended for formats that are already compressed, such as JPEG images and PDFs, where compressing them
+ * again uses CPU for little or no reduction in size.
+ *
+ * @author Tim Anderson
+ */
+public class StoreCodec implements DocumentCodec {
+
+    /**
+     * The codec name.
+     */
+    public static final String NAME = "store";
+
+    /**
+     * Returns the codec name.
+     *
+     * @return the codec name
+     */
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    /**
+     * Returns a stream that encodes content written to it.
+     *
+     * @param stream the stream to write the encoded content to
+     * @return a stream to write the content to
+     */
+    @Override
+    public OutputStream encode(OutputStream stream) {
+        return new BufferedOutputStream(stream, 8192);
+    }
+
+    /**
+     * Returns a stream that decodes content read from another.
+     *
+     * @param stream the stream of encoded content
+     * @return {@code stream}
+     */
+    @Override
+    public InputStream decode(InputStream stream) {
+        return stream;
+    }
+
+}
@@ -16,8 +16,11 @@
 
 package org.openvpms.archetype.rules.finance.account;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.openvpms.archetype.rules.act.ActCalculator;
 import org.openvpms.archetype.rules.act.FinancialActStatus;
+import org.openvpms.component.business.domain.im.act.Act;
 import org.openvpms.component.business.domain.im.act.FinancialAct;
 import org.openvpms.component.business.domain.im.common.IMObjectReference;
 import org.openvpms.component.business.domain.im.party.Party;
@@ -26,6 +29,7 @@ import org.openvpms.component.business.service.archetype.IArchetypeService;
 import org.openvpms.component.business.service.archetype.helper.TypeHelper;
 import org.openvpms.component.system.common.query.ArchetypeQuery;
 import org.openvpms.component.system.common.query.Constraints;
+import org.openvpms.component.system.common.query.IMObjectQueryIterator;
 import org.openvpms.component.system.common.query.NamedQuery;
 import org.openvpms.component.system.common.query.NodeSelectConstraint;
 import org.openvpms.component.system.common.query.ObjectRefSelectConstraint;
@@ -33,11 +37,17 @@ import org.openvpms.component.system.common.query.ObjectSet;
 import org.openvpms.component.system.common.query.ObjectSetQueryIterator;
 
 import java.math.BigDecimal;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import static org.openvpms.archetype.rules.finance.account.CustomerAccountArchetypes.ACCOUNT_ACTS;
+import static org.openvpms.archetype.rules.finance.account.CustomerAccountArchetypes.BALANCE_SNAPSHOT;
 import static org.openvpms.archetype.rules.finance.account.CustomerAccountArchetypes.CLOSING_BALANCE;
 import static org.openvpms.archetype.rules.finance.account.CustomerAccountArchetypes.COUNTER;
 import static org.openvpms.archetype.rules.finance.account.CustomerAccountArchetypes.CREDIT;
@@ -57,11 +67,35 @@ import static org.openvpms.archetype.rules.finance.account.CustomerAccountRuleEx
  */
 public class BalanceCalculator {
 
+    /**
+     * Determines how customer balance snapshots are used.
+     */
+    public enum SnapshotMode {
+        IGNORE,   // always calculate balances from the customer's acts, without querying the snapshot
+        USE,      // use the snapshot if one exists, else calculate balances from the customer's acts
+        VERIFY    // calculate balances from the customer's acts, logging any difference to the snapshot
+    }
+
     /**
      * The archetype service.
      */
     private final IArchetypeService service;
 
+    /**
+     * Determines how balance snapshots are used.
+     */
+    private SnapshotMode snapshotMode = SnapshotMode.IGNORE;
+
+    /**
+     * The maximum no. of customers to query in a single {@link #getOverdueBalances} query.
+     */
+    private static final int OVERDUE_PAGE_SIZE = 500;
+
+    /**
+     * The logger.
+     */
+    private static final Log log = LogFactory.getLog(BalanceCalculator.class);
+
 
     /**
      * Creates a new <tt>BalanceCalculator</tt>.
@@ -72,17 +106,51 @@ public class BalanceCalculator {
         this.service = service;
     }
 
+    /**
+     * Determines how customer balance snapshots are used by {@link #getBalance(Party)},
+     * {@link #getOverdueBalance(Party, Date)} and {@link #getCreditBalance(Party)}.
+     * <p/>
+     * Defaults to {@link SnapshotMode#IGNORE}, as reading the snapshot costs a query, and only saves one if the
+     * customer has a snapshot. Callers that read the balances of many customers, or that read balances repeatedly,
+     * should use {@link SnapshotMode#USE}.
+     *
+     * @param mode the snapshot mode
+     */
+    public void setSnapshotMode(SnapshotMode mode) {
+        snapshotMode = mode;
+    }
+
+    /**
+     * Returns the snapshot mode.
+     *
+     * @return the snapshot mode
+     */
+    public SnapshotMode getSnapshotMode() {
+        return snapshotMode;
+    }
+
     /**
      * Calculates the outstanding balance for a customer.
+     * <p/>
+     * If the customer has a balance snapshot, and the snapshot mode is {@link SnapshotMode#USE}, the balance
+     * is read from the snapshot.
      *
      * @param customer the customer
      * @return the outstanding balance
      * @throws ArchetypeServiceException for any archetype service error
      */
     public BigDecimal getBalance(Party customer) {
+        CustomerBalanceSnapshot snapshot = getSnapshot(customer);
+        if (snapshot != null && snapshotMode == SnapshotMode.USE) {
+            return snapshot.getBalance();
+        }
         ArchetypeQuery query = CustomerAccountQueryFactory.createUnallocatedObjectSetQuery(customer, DEBITS_CREDITS);
         Iterator<ObjectSet> iterator = new ObjectSetQueryIterator(service, query);
-        return calculateBalance(iterator);
+        BigDecimal result = calculateBalance(iterator);
+        if (snapshot != null) {
+            checkSnapshot(customer, "balance", snapshot.getBalance(), result);
+        }
+        return result;
     }
 
     /**
@@ -177,6 +245,9 @@ public class BalanceCalculator {
      * Calculates the current overdue balance for a customer.
      * This is the sum of unallocated amounts in associated debits that have a
      * date less than the specified overdue date.
+     * <p/>
+     * If the customer has a balance snapshot, and the snapshot mode is {@link SnapshotMode#USE}, the acts are
+     * only queried if the snapshot indicates there are unallocated debits prior to the overdue date.
      *
      * @param customer the customer
      * @param date     the overdue date
@@ -184,6 +255,15 @@ public class BalanceCalculator {
      * @throws ArchetypeServiceException for any archetype service error
      */
     public BigDecimal getOverdueBalance(Party customer, Date date) {
+        if (snapshotMode == SnapshotMode.USE) {
+            CustomerBalanceSnapshot snapshot = getSnapshot(customer);
+            if (snapshot != null) {
+                Date oldest = snapshot.getOldestDebit();
+                if (oldest == null || !oldest.before(date)) {
+                    return BigDecimal.ZERO;
+                }
+            }
+        }
         // query all overdue debit acts
         ArchetypeQuery query = CustomerAccountQueryFactory.createUnallocatedObjectSetQuery(customer, DEBITS);
         query.add(Constraints.lt("startTime", date));
@@ -249,20 +329,168 @@ public class BalanceCalculator {
         return result;
     }
 
+    /**
+     * Calculates the overdue balances for multiple customers as of a particular date.
+     * <p/>
+     * This is equivalent to invoking {@link #getOverdueBalance(Party, Date, Date)} for each customer, but queries
+     * the balances of up to 500 customers at a time. The <em>getOverdueBalances</em> query groups each debit's
+     * allocations in the same way as the <em>getOverdueAmounts</em> query used for a single customer, so the results
+     * are the same. As the overdue date is shared by all of the customers, they should have the same account type.
+     * <p/>
+     * Customers with no overdue debits have a zero balance.
+     *
+     * @param customers   the customer identifiers
+     * @param date        the date
+     * @param overdueDate the date when amounts became overdue
+     * @return the overdue balances, keyed on customer identifier, in the order the customers were supplied
+     * @throws ArchetypeServiceException for any archetype service error
+     */
+    public Map<Long, BigDecimal> getOverdueBalances(Collection<Long> customers, Date date, Date overdueDate) {
+        Map<Long, BigDecimal> result = new LinkedHashMap<Long, BigDecimal>();
+        List<Long> page = new ArrayList<Long>();
+        for (Long customer : customers) {
+            if (result.put(customer, BigDecimal.ZERO) == null) {
+                page.add(customer);
+                if (page.size() == OVERDUE_PAGE_SIZE) {
+                    getOverdueBalances(page, date, overdueDate, result);
+                    page = new ArrayList<Long>();
+                }
+            }
+        }
+        if (!page.isEmpty()) {
+            getOverdueBalances(page, date, overdueDate, result);
+        }
+        return result;
+    }
+
     /**
      * Calculates the sum of all unallocated credits for a customer.
+     * <p/>
+     * If the customer has a balance snapshot, and the snapshot mode is {@link SnapshotMode#USE}, the credit balance
+     * is read from the snapshot.
      *
      * @param customer the customer
      * @return the credit amount
      * @throws ArchetypeServiceException for any archetype service error
      */
     public BigDecimal getCreditBalance(Party customer) {
+        CustomerBalanceSnapshot snapshot = getSnapshot(customer);
+        if (snapshot != null && snapshotMode == SnapshotMode.USE) {
+            return snapshot.getCreditBalance();
+        }
         ArchetypeQuery query
                 = CustomerAccountQueryFactory.createUnallocatedObjectSetQuery(
                 customer, CREDITS);
         Iterator<ObjectSet> iterator = new ObjectSetQueryIterator(service,
                                                                   query);
-        return calculateBalance(iterator);
+        BigDecimal result = calculateBalance(iterator);
+        if (snapshot != null) {
+            checkSnapshot(customer, "credit balance", snapshot.getCreditBalance(), result);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the start time of the oldest debit for a customer that hasn't been fully allocated.
+     *
+     * @param customer the customer
+     * @return the start time of the oldest unallocated debit, or {@code null} if there are no unallocated debits
+     * @throws ArchetypeServiceException for any archetype service error
+     */
+    public Date getOldestDebit(Party customer) {
+        ArchetypeQuery query = CustomerAccountQueryFactory.createUnallocatedObjectSetQuery(customer, DEBITS);
+        query.add(new NodeSelectConstraint("startTime"));
+        Iterator<ObjectSet> iterator = new ObjectSetQueryIterator(service, query);
+        while (iterator.hasNext()) {
+            ObjectSet set = iterator.next();
+            BigDecimal amount = set.getBigDecimal("act.amount", BigDecimal.ZERO);
+            BigDecimal allocated = set.getBigDecimal("act.allocatedAmount", BigDecimal.ZERO);
+            if (getAllocatable(amount, allocated).compareTo(BigDecimal.ZERO) > 0) {
+                return set.getDate("act.startTime");
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the balance snapshot for a customer.
+     *
+     * @param customer the customer
+     * @return the balance snapshot, or {@code null} if the customer has none, or the snapshot mode is
+     *         {@link SnapshotMode#IGNORE}
+     * @throws ArchetypeServiceException for any archetype service error
+     */
+    public CustomerBalanceSnapshot getSnapshot(Party customer) {
+        return (snapshotMode != SnapshotMode.IGNORE) ? getSnapshot(customer.getObjectReference()) : null;
+    }
+
+    /**
+     * Returns the balance snapshot for a customer, regardless of the snapshot mode.
+     * <p/>
+     * If there are multiple snapshots, the most recently updated is returned.
+     *
+     * @param customer the customer reference
+     * @return the balance snapshot, or {@code null} if the customer has none
+     * @throws ArchetypeServiceException for any archetype service error
+     */
+    public CustomerBalanceSnapshot getSnapshot(IMObjectReference customer) {
+        ArchetypeQuery query = createSnapshotQuery(customer);
+        query.setMaxResults(1);
+        IMObjectQueryIterator<Act> iterator = new IMObjectQueryIterator<Act>(service, query);
+        return (iterator.hasNext()) ? new CustomerBalanceSnapshot(iterator.next(), service) : null;
+    }
+
+    /**
+     * Returns all of the balance snapshot acts for a customer, most recently updated first.
+     * <p/>
+     * A customer should only have one snapshot, but two transactions that update the balance of a customer without
+     * one may each create a snapshot.
+     *
+     * @param customer the customer reference
+     * @return the snapshot acts
+     * @throws ArchetypeServiceException for any archetype service error
+     */
+    List<Act> getSnapshots(IMObjectReference customer) {
+        ArchetypeQuery query = createSnapshotQuery(customer);
+        query.setMaxResults(ArchetypeQuery.ALL_RESULTS);
+        List<Act> result = new ArrayList<Act>();
+        IMObjectQueryIterator<Act> iterator = new IMObjectQueryIterator<Act>(service, query);
+        while (iterator.hasNext()) {
+            result.add(iterator.next());
+        }
+        return result;
+    }
+
+    /**
+     * Verifies that a customer's balance snapshot matches the balances calculated from their acts.
+     *
+     * @param customer the customer
+     * @return {@code true} if the customer has no snapshot, or the snapshot is correct, {@code false} if it is
+     *         out of date
+     * @throws ArchetypeServiceException for any archetype service error
+     */
+    public boolean verifySnapshot(Party customer) {
+        boolean result = true;
+        CustomerBalanceSnapshot snapshot = getSnapshot(customer.getObjectReference());
+        if (snapshot != null) {
+            SnapshotMode mode = snapshotMode;
+            snapshotMode = SnapshotMode.IGNORE;
+            try {
+                result = checkSnapshot(customer, "balance", snapshot.getBalance(), getBalance(customer));
+                result &= checkSnapshot(customer, "credit balance", snapshot.getCreditBalance(),
+                                        getCreditBalance(customer));
+                Date oldest = getOldestDebit(customer);
+                Date expected = snapshot.getOldestDebit();
+                if ((oldest == null) ? expected != null : expected == null || oldest.compareTo(expected) != 0) {
+                    log.warn("Balance snapshot for customer=" + customer.getId() + " has oldest debit=" + expected
+                             + ", but acts have oldest debit=" + oldest);
+                    result = false;
+                }
+            } finally {
+                snapshotMode = mode;
+            }
+        }
+        return result;
     }
 
     /**
@@ -321,6 +549,60 @@ public class BalanceCalculator {
         return getAllocatable(act).compareTo(BigDecimal.ZERO) <= 0;
     }
 
+    /**
+     * Queries the overdue balances for a page of customers.
+     *
+     * @param customers   the customer identifiers
+     * @param date        the date
+     * @param overdueDate the date when amounts became overdue
+     * @param balances    the balances to update
+     */
+    private void getOverdueBalances(List<Long> customers, Date date, Date overdueDate,
+                                    Map<Long, BigDecimal> balances) {
+        NamedQuery query = new NamedQuery("getOverdueBalances", Arrays.asList("id", "overdue"));
+        query.setMaxResults(ArchetypeQuery.ALL_RESULTS);
+        query.setParameter("customers", customers);
+        query.setParameter("date", date);
+        query.setParameter("overdueDate", overdueDate);
+        ObjectSetQueryIterator iterator = new ObjectSetQueryIterator(service, query);
+        while (iterator.hasNext()) {
+            ObjectSet set = iterator.next();
+            balances.put(set.getLong("id"), set.getBigDecimal("overdue", BigDecimal.ZERO));
+        }
+    }
+
+    /**
+     * Creates a query for the balance snapshots of a customer, ordered most recently updated first.
+     *
+     * @param customer the customer reference
+     * @return a new query
+     */
+    private ArchetypeQuery createSnapshotQuery(IMObjectReference customer) {
+        ArchetypeQuery query = new ArchetypeQuery(Constraints.shortName("act", BALANCE_SNAPSHOT));
+        query.add(Constraints.join("customer").add(Constraints.eq("entity", customer)));
+        query.add(Constraints.sort("startTime", false));
+        query.add(Constraints.sort("id", false));
+        return query;
+    }
+
+    /**
+     * Compares a balance read from a snapshot with that calculated from a customer's acts, logging any difference.
+     *
+     * @param customer   the customer
+     * @param name       the balance name, for logging purposes
+     * @param snapshot   the snapshot balance
+     * @param calculated the calculated balance
+     * @return {@code true} if the balances are the same
+     */
+    private boolean checkSnapshot(Party customer, String name, BigDecimal snapshot, BigDecimal calculated) {
+        boolean result = snapshot.compareTo(calculated) == 0;
+        if (!result) {
+            log.warn("Balance snapshot for customer=" + customer.getId() + " has " + name + "=" + snapshot
+                     + ", but acts have " + name + "=" + calculated);
+        }
+        return result;
+    }
+
     /**
      * Calculates the oustanding balance.
      *
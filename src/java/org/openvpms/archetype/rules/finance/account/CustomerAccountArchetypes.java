@@ -255,6 +255,12 @@ public class CustomerAccountArchetypes {
     public static final String CLOSING_BALANCE
             = "act.customerAccountClosingBalance";
 
+    /**
+     * The customer account balance snapshot short name.
+     */
+    public static final String BALANCE_SNAPSHOT
+            = "act.customerAccountBalanceSnapshot";
+
     /**
      * All debit and credit acts, and the initial, opening and closing balance
      * short names.
@@ -49,6 +49,7 @@ import org.springframework.transaction.support.TransactionTemplate;
 
 import java.math.BigDecimal;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -233,6 +234,23 @@ public class CustomerAccountRules {
         return calculator.getOverdueBalance(customer, date, overdueDate);
     }
 
+    /**
+     * Calculates the overdue balances for multiple customers as of a particular date.
+     * <p/>
+     * This performs the same calculation as {@link #getOverdueBalance(Party, Date, Date)} for each customer, but
+     * requires far fewer queries, so is suited to statement and end-of-period runs. As the overdue date is shared by
+     * all of the customers, they should have the same account type.
+     *
+     * @param customers   the customer identifiers
+     * @param date        the date
+     * @param overdueDate the date when amounts became overdue
+     * @return the overdue balances, keyed on customer identifier
+     * @throws ArchetypeServiceException for any archetype service error
+     */
+    public Map<Long, BigDecimal> getOverdueBalances(Collection<Long> customers, Date date, Date overdueDate) {
+        return calculator.getOverdueBalances(customers, date, overdueDate);
+    }
+
     /**
      * Determines if a customer has an overdue balance within the nominated
      * day range past their standard terms.
@@ -33,6 +33,10 @@ import org.openvpms.component.system.common.query.CollectionNodeConstraint;
 import org.openvpms.component.system.common.query.IMObjectQueryIterator;
 import org.openvpms.component.system.common.query.NodeSortConstraint;
 import org.openvpms.component.system.common.query.ObjectRefNodeConstraint;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import java.math.BigDecimal;
 import java.util.ArrayList;
@@ -95,58 +99,67 @@ public class CustomerBalanceGenerator {
      */
     private final CustomerBalanceUpdater updater;
 
+    /**
+     * The transaction manager. May be {@code null}
+     */
+    private final PlatformTransactionManager transactionManager;
+
 
     /**
      * Constructs a new <tt>CustomerBalanceGenerator</tt>.
+     * <p/>
+     * Generation will participate in any transaction active when {@link #generate()} is invoked.
      *
      * @param customer the customer
      * @param service  the archetype service
      */
     public CustomerBalanceGenerator(Party customer, IArchetypeService service) {
+        this(customer, service, null);
+    }
+
+    /**
+     * Constructs a new <tt>CustomerBalanceGenerator</tt>.
+     * <p/>
+     * If a transaction manager is supplied, the customer's balance is generated in a single transaction, so that
+     * a failure part way through leaves the customer's acts unchanged.
+     *
+     * @param customer           the customer
+     * @param service            the archetype service
+     * @param transactionManager the transaction manager. May be {@code null}
+     */
+    public CustomerBalanceGenerator(Party customer, IArchetypeService service,
+                                    PlatformTransactionManager transactionManager) {
         this.customer = customer;
         this.service = service;
+        this.transactionManager = transactionManager;
         updater = new CustomerBalanceUpdater(service);
         iterator = getActs(customer);
     }
 
     /**
      * Generate the balance for the customer.
+     * <p/>
+     * On completion, the customer's balance snapshot is updated.
+     * <p/>
+     * If a transaction manager was supplied at construction, this is performed in a new transaction, if one isn't
+     * already active.
      *
      * @return the final balance
      * @throws ArchetypeServiceException for any archetype service error
      */
     public BigDecimal generate() {
-        FinancialAct act;
-        ActCalculator calculator = new ActCalculator(service);
-        BigDecimal runningTotal = BigDecimal.ZERO;
-        while ((act = getNext()) != null) {
-            if (TypeHelper.isA(act, OPENING_BALANCE, CLOSING_BALANCE)) {
-                BigDecimal total = calculator.getTotal(act);
-                boolean credit = TypeHelper.isA(act, CLOSING_BALANCE);
-                BigDecimal expectedTotal = runningTotal;
-                boolean expectedCredit = credit;
-                if (runningTotal.signum() == -1) {
-                    expectedTotal = runningTotal.negate();
-                    expectedCredit = !credit;
-                }
-                if (!MathRules.equals(total.abs(), expectedTotal)
-                    || act.isCredit() != expectedCredit) {
-                    act.setTotal(new Money(expectedTotal));
-                    act.setCredit(expectedCredit);
-                    modified(act);
-                    changed(act, total, runningTotal);
-                }
-            } else {
-                addToBalance(act);
-                if (ActStatus.POSTED.equals(act.getStatus())) {
-                    runningTotal = calculator.addAmount(runningTotal,
-                                                        act.getTotal(),
-                                                        act.isCredit());
+        BigDecimal result;
+        if (transactionManager != null) {
+            TransactionTemplate template = new TransactionTemplate(transactionManager);
+            result = template.execute(new TransactionCallback<BigDecimal>() {
+                public BigDecimal doInTransaction(TransactionStatus status) {
+                    return doGenerate();
                 }
-            }
+            });
+        } else {
+            result = doGenerate();
         }
-        save();
-        return runningTotal;
+        return result;
     }
 
     /**
@@ -189,6 +202,47 @@ public class CustomerBalanceGenerator {
         return acts;
     }
 
+    /**
+     * Generates the balance for the customer.
+     *
+     * @return the final balance
+     * @throws ArchetypeServiceException for any archetype service error
+     */
+    private BigDecimal doGenerate() {
+        FinancialAct act;
+        ActCalculator calculator = new ActCalculator(service);
+        BigDecimal runningTotal = BigDecimal.ZERO;
+        while ((act = getNext()) != null) {
+            if (TypeHelper.isA(act, OPENING_BALANCE, CLOSING_BALANCE)) {
+                BigDecimal total = calculator.getTotal(act);
+                boolean credit = TypeHelper.isA(act, CLOSING_BALANCE);
+                BigDecimal expectedTotal = runningTotal;
+                boolean expectedCredit = credit;
+                if (runningTotal.signum() == -1) {
+                    expectedTotal = runningTotal.negate();
+                    expectedCredit = !credit;
+                }
+                if (!MathRules.equals(total.abs(), expectedTotal)
+                    || act.isCredit() != expectedCredit) {
+                    act.setTotal(new Money(expectedTotal));
+                    act.setCredit(expectedCredit);
+                    modified(act);
+                    changed(act, total, runningTotal);
+                }
+            } else {
+                addToBalance(act);
+                if (ActStatus.POSTED.equals(act.getStatus())) {
+                    runningTotal = calculator.addAmount(runningTotal,
+                                                        act.getTotal(),
+                                                        act.isCredit());
+                }
+            }
+        }
+        save();
+        updater.updateSnapshot(customer);
+        return runningTotal;
+    }
+
     /**
      * Adds an act to the balance.
      *
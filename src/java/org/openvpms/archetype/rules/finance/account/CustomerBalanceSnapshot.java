@@ -0,0 +1,128 @@
+/*
+ * Version: 1.0
+ *
+ * The contents of this file are subject to the OpenVPMS License Version
+ * 1.0 (the 'License'); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.openvpms.org/license/
+ *
+ * Software distributed under the License is distributed on an 'AS IS' basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * Copyright 2014 (C) OpenVPMS Ltd. All Rights Reserved.
+ */
+
+package org.openvpms.archetype.rules.finance.account;
+
+import org.openvpms.component.business.domain.im.act.Act;
+import org.openvpms.component.business.service.archetype.IArchetypeService;
+import org.openvpms.component.business.service.archetype.helper.ActBean;
+
+import java.math.BigDecimal;
+import java.util.Date;
+
+/**
+ * A snapshot of a customer's account balance, stored in an <em>act.customerAccountBalanceSnapshot</em>.
+ * <p/>
+ * Snapshots are maintained by {@link CustomerBalanceUpdater} each time the customer's unallocated acts are
+ * allocated, so that the balance can be read without querying those acts. When the balance rules run in a
+ * transaction, the snapshot is updated after it commits, so it may briefly lag the customer's acts.
+ * <p/>
+ * Acts saved without the balance rules (e.g. by data imports) aren't reflected in the snapshot. Use
+ * {@link BalanceCalculator#verifySnapshot(org.openvpms.component.business.domain.im.party.Party)} to detect this,
+ * and {@link CustomerBalanceUpdater#updateSnapshot(org.openvpms.component.business.domain.im.party.Party)} or
+ * the <em>AccountBalanceTool --snapshot</em> option to correct it.
+ *
+ * @author Tim Anderson
+ */
+public class CustomerBalanceSnapshot {
+
+    /**
+     * The snapshot act.
+     */
+    private final ActBean bean;
+
+
+    /**
+     * Constructs a {@link CustomerBalanceSnapshot}.
+     *
+     * @param act     the <em>act.customerAccountBalanceSnapshot</em>
+     * @param service the archetype service
+     */
+    public CustomerBalanceSnapshot(Act act, IArchetypeService service) {
+        bean = new ActBean(act, service);
+    }
+
+    /**
+     * Returns the outstanding balance.
+     *
+     * @return the outstanding balance
+     */
+    public BigDecimal getBalance() {
+        return bean.getBigDecimal("balance", BigDecimal.ZERO);
+    }
+
+    /**
+     * Returns the sum of the unallocated credits.
+     * <p/>
+     * As per {@link BalanceCalculator#getCreditBalance}, this is negative if there are unallocated credits.
+     *
+     * @return the credit balance
+     */
+    public BigDecimal getCreditBalance() {
+        return bean.getBigDecimal("creditBalance", BigDecimal.ZERO);
+    }
+
+    /**
+     * Returns the start time of the oldest debit that hasn't been fully allocated.
+     * <p/>
+     * If this is not prior to an overdue date, the customer has no overdue balance.
+     *
+     * @return the start time of the oldest unallocated debit, or {@code null} if there are no unallocated debits
+     */
+    public Date getOldestDebit() {
+        return bean.getDate("oldestDebit");
+    }
+
+    /**
+     * Returns the time when the snapshot was last updated.
+     *
+     * @return the time when the snapshot was last updated
+     */
+    public Date getUpdated() {
+        return bean.getAct().getActivityStartTime();
+    }
+
+    /**
+     * Returns the snapshot act.
+     *
+     * @return the snapshot act
+     */
+    public Act getAct() {
+        return bean.getAct();
+    }
+
+    /**
+     * Updates the snapshot. The snapshot must be saved to make the changes persistent.
+     *
+     * @param balance       the outstanding balance
+     * @param creditBalance the credit balance
+     * @param oldestDebit   the start time of the oldest unallocated debit. May be {@code null}
+     */
+    void update(BigDecimal balance, BigDecimal creditBalance, Date oldestDebit) {
+        bean.setValue("balance", balance);
+        bean.setValue("creditBalance", creditBalance);
+        bean.setValue("oldestDebit", oldestDebit);
+        bean.getAct().setActivityStartTime(new Date());
+    }
+
+    /**
+     * Saves the snapshot.
+     */
+    void save() {
+        bean.save();
+    }
+
+}
@@ -22,13 +22,16 @@ import org.openvpms.archetype.rules.customer.CustomerArchetypes;
 import org.openvpms.archetype.rules.practice.Location;
 import org.openvpms.archetype.rules.util.DateRules;
 import org.openvpms.archetype.rules.util.DateUnits;
+import org.openvpms.component.business.domain.archetype.ArchetypeId;
 import org.openvpms.component.business.domain.im.common.IMObjectReference;
 import org.openvpms.component.business.domain.im.lookup.Lookup;
+import org.openvpms.component.business.domain.im.party.Party;
 import org.openvpms.component.business.service.archetype.IArchetypeService;
 import org.openvpms.component.business.service.archetype.helper.TypeHelper;
 import org.openvpms.component.business.service.lookup.ILookupService;
 import org.openvpms.component.system.common.query.ArchetypeQuery;
 import org.openvpms.component.system.common.query.JoinConstraint;
+import org.openvpms.component.system.common.query.NamedQuery;
 import org.openvpms.component.system.common.query.NodeSelectConstraint;
 import org.openvpms.component.system.common.query.NodeSortConstraint;
 import org.openvpms.component.system.common.query.ObjectRefSelectConstraint;
@@ -40,12 +43,17 @@ import org.openvpms.component.system.common.query.ShortNameConstraint;
 
 import java.math.BigDecimal;
 import java.sql.Timestamp;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.Date;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
@@ -75,6 +83,30 @@ import static org.openvpms.component.system.common.query.Constraints.subQuery;
  */
 public class CustomerBalanceSummaryQuery implements Iterator<ObjectSet> {
 
+    /**
+     * The engines used to calculate balance summaries.
+     */
+    public enum Engine {
+
+        /**
+         * Balances are calculated in memory. The last payment and invoice details are queried for each customer as
+         * they are accessed.
+         */
+        PER_CUSTOMER,
+
+        /**
+         * Balances are calculated in memory. The last payment and invoice details are queried for a page of
+         * customers at a time.
+         */
+        SET_BASED,
+
+        /**
+         * Balances are calculated by the database, which returns a single row per customer. The last payment and
+         * invoice details are queried for a page of customers at a time.
+         */
+        DATABASE
+    }
+
     /**
      * The customer reference.
      */
@@ -130,6 +162,31 @@ public class CustomerBalanceSummaryQuery implements Iterator<ObjectSet> {
      */
     private final Date date;
 
+    /**
+     * Restricts the range of acts to query. All acts must have a start time {@code <= startTime}.
+     */
+    private final Date startTime;
+
+    /**
+     * The customer account type. May be {@code null}.
+     */
+    private final Lookup accountType;
+
+    /**
+     * The customer name to start from. May contain wildcards or be {@code null}.
+     */
+    private final String customerFrom;
+
+    /**
+     * The customer name to end on. May contain wildcards or be {@code null}.
+     */
+    private final String customerTo;
+
+    /**
+     * The practice location(s) to query.
+     */
+    private final Location location;
+
     /**
      * Determines if accounts with non-overdue balances should be returned.
      */
@@ -176,7 +233,7 @@ public class CustomerBalanceSummaryQuery implements Iterator<ObjectSet> {
     private ObjectSet next;
 
     /**
-     * The balance iterator.
+     * The balance iterator. Created on first access.
      */
     private Iterator<ObjectSet> iterator;
 
@@ -200,6 +257,28 @@ public class CustomerBalanceSummaryQuery implements Iterator<ObjectSet> {
      */
     private final ActCalculator calculator;
 
+    /**
+     * The engine used to calculate balance summaries.
+     */
+    private Engine engine = Engine.PER_CUSTOMER;
+
+    /**
+     * The balances read ahead when using the {@link Engine#SET_BASED} engine.
+     */
+    private final Deque<ObjectSet> page = new ArrayDeque<ObjectSet>();
+
+    /**
+     * The no. of balances to read ahead when using the {@link Engine#SET_BASED} engine.
+     */
+    private static final int PAGE_SIZE = 250;
+
+    /**
+     * The columns returned by the getCustomerBalanceSummaries named query.
+     */
+    private static final List<String> SUMMARY_NAMES = Arrays.asList("id", "shortName", "linkId", "name", BALANCE,
+                                                                    OVERDUE_BALANCE, CREDIT_BALANCE,
+                                                                    UNBILLED_AMOUNT);
+
     /**
      * The customer archetypes.
      */
@@ -361,6 +440,11 @@ public class CustomerBalanceSummaryQuery implements Iterator<ObjectSet> {
         calendar.set(Calendar.SECOND, 59);
         calendar.set(Calendar.MILLISECOND, 999);
         this.date = calendar.getTime();
+        this.startTime = date;
+        this.accountType = accountType;
+        this.customerFrom = customerFrom;
+        this.customerTo = customerTo;
+        this.location = location;
         this.excludeCredit = excludeCredit;
         this.nonOverdue = nonOverdue;
         this.service = service;
@@ -369,13 +453,33 @@ public class CustomerBalanceSummaryQuery implements Iterator<ObjectSet> {
         this.from = overdueFrom;
         this.to = overdueTo;
         this.rules = rules;
-        ArchetypeQuery query = createQuery(date, accountType, customerFrom, customerTo, location);
-        query.setMaxResults(1000);
-        iterator = new ObjectSetQueryIterator(service, query);
         balanceCalc = new BalanceCalculator(service);
         calculator = new ActCalculator(service);
     }
 
+    /**
+     * Sets the engine used to calculate balance summaries.
+     * <p/>
+     * This must be invoked prior to iteration. Defaults to {@link Engine#PER_CUSTOMER}.
+     * <p/>
+     * The {@link Engine#DATABASE} engine relies on a native SQL query, and should produce the same results as the
+     * other engines.
+     *
+     * @param engine the engine
+     */
+    public void setEngine(Engine engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * Returns the engine used to calculate balance summaries.
+     *
+     * @return the engine
+     */
+    public Engine getEngine() {
+        return engine;
+    }
+
     /**
      * Returns {@code true} if the iteration has more elements.
      *
@@ -383,10 +487,17 @@ public class CustomerBalanceSummaryQuery implements Iterator<ObjectSet> {
      */
     public boolean hasNext() {
         if (next == null) {
-            while (last != null || iterator.hasNext()) {
-                next = doNext();
-                if (next != null) {
-                    break;
+            if (engine != Engine.PER_CUSTOMER) {
+                if (page.isEmpty()) {
+                    readPage();
+                }
+                next = page.poll();
+            } else {
+                while (last != null || getIterator().hasNext()) {
+                    next = doNext();
+                    if (next != null) {
+                        break;
+                    }
                 }
             }
         }
@@ -416,6 +527,46 @@ public class CustomerBalanceSummaryQuery implements Iterator<ObjectSet> {
         throw new UnsupportedOperationException();
     }
 
+    /**
+     * Returns the balance iterator, creating it if required.
+     *
+     * @return the balance iterator
+     */
+    private Iterator<ObjectSet> getIterator() {
+        if (iterator == null) {
+            if (engine == Engine.DATABASE) {
+                iterator = new ObjectSetQueryIterator(service, createSummaryQuery());
+            } else {
+                ArchetypeQuery query = createQuery(startTime, accountType, customerFrom, customerTo, location);
+                query.setMaxResults(1000);
+                iterator = new ObjectSetQueryIterator(service, query);
+            }
+        }
+        return iterator;
+    }
+
+    /**
+     * Creates a query that calculates balances in the database, returning one row per customer.
+     *
+     * @return a new query
+     */
+    private NamedQuery createSummaryQuery() {
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        Party practice = location.getLocation();
+        parameters.put("startTime", startTime);
+        parameters.put("date", date);
+        parameters.put("overdueFrom", Math.max(from, 0));
+        parameters.put("overdueTo", Math.max(to, 0));
+        parameters.put("accountTypeId", (accountType != null) ? accountType.getId() : -1);
+        parameters.put("customerFrom", !StringUtils.isEmpty(customerFrom) ? customerFrom.replace('*', '%') : "");
+        parameters.put("customerTo", !StringUtils.isEmpty(customerTo) ? customerTo.replace('*', '%') : "");
+        parameters.put("locationId", (practice != null) ? practice.getId() : -1);
+        parameters.put("noLocation", (practice == null && location.isNone()) ? 1 : 0);
+        NamedQuery query = new NamedQuery("getCustomerBalanceSummaries", SUMMARY_NAMES, parameters);
+        query.setMaxResults(1000);
+        return query;
+    }
+
     /**
      * Creates a new query.
      *
@@ -468,44 +619,70 @@ public class CustomerBalanceSummaryQuery implements Iterator<ObjectSet> {
         query.add(sort("e", "name"));
         query.add(sort("e", "id"));
         query.add(sort("a", "startTime"));
+        query.add(sort("a", "id"));
         return query;
     }
 
     /**
-     * Returns the next set in the iteration.
-     *
-     * @return the next set or {@code null} if overdue balances are being queried and the current balance is not overdue
+     * Reads ahead a page of balances, and populates their last payment and invoice details.
      */
-    private ObjectSet doNext() {
-        IMObjectReference current = null;
-        Map<IMObjectReference, ObjectSet> sets
-                = new LinkedHashMap<IMObjectReference, ObjectSet>();
-        // the sets for the current customer, keyed on act. This is necessary
-        // to filter duplicate rows, should a customer erroneously have > 1
-        // account type configured
+    private void readPage() {
+        while (page.size() < PAGE_SIZE && (last != null || getIterator().hasNext())) {
+            ObjectSet set = (engine == Engine.DATABASE) ? doNextSummary() : doNext();
+            if (set != null) {
+                page.add(set);
+            }
+        }
+        if (!page.isEmpty()) {
+            getLastPaymentsAndInvoices(page);
+        }
+    }
 
-        if (last != null) {
-            sets.put(getAct(last), last);
-            current = getEntity(last);
-            last = null;
+    /**
+     * Populates the last payment and invoice details for a set of balances.
+     * <p/>
+     * This uses a single query for all of the customers, returning only the most recent payment and invoice for each.
+     *
+     * @param sets the balances
+     */
+    private void getLastPaymentsAndInvoices(Collection<ObjectSet> sets) {
+        Map<Long, ObjectSet> customers = new HashMap<Long, ObjectSet>();
+        for (ObjectSet set : sets) {
+            customers.put(set.getReference(CUSTOMER_REFERENCE).getId(), set);
+            set.set(LAST_PAYMENT_DATE, null);
+            set.set(LAST_PAYMENT_AMOUNT, null);
+            set.set(LAST_INVOICE_DATE, null);
+            set.set(LAST_INVOICE_AMOUNT, null);
         }
+        NamedQuery query = new NamedQuery("getLastPaymentsAndInvoices",
+                                          Arrays.asList("id", "shortName", "startTime", "amount"));
+        query.setParameter("customers", new ArrayList<Long>(customers.keySet()));
+        query.setMaxResults(ArchetypeQuery.ALL_RESULTS);
+        Iterator<ObjectSet> iterator = new ObjectSetQueryIterator(service, query);
         while (iterator.hasNext()) {
-            ObjectSet set = iterator.next();
-            IMObjectReference party = getEntity(set);
-            if (party != null) {
-                if (current == null || current.equals(party)) {
-                    current = party;
-                    sets.put(getAct(set), set);
-                } else {
-                    last = set;
-                    break;
-                }
+            ObjectSet row = iterator.next();
+            ObjectSet set = customers.get(row.getLong("id"));
+            boolean invoice = INVOICE.equals(row.getString("shortName"));
+            String dateKey = (invoice) ? LAST_INVOICE_DATE : LAST_PAYMENT_DATE;
+            String amountKey = (invoice) ? LAST_INVOICE_AMOUNT : LAST_PAYMENT_AMOUNT;
+            if (set != null && set.get(dateKey) == null) {
+                // where acts have the same start time, the one with the lowest id is used
+                set.set(dateKey, row.get("startTime"));
+                set.set(amountKey, row.get("amount"));
             }
         }
-        if (sets.isEmpty()) {
-            throw new NoSuchElementException();
-        }
+    }
 
+    /**
+     * Returns the next set in the iteration.
+     * <p/>
+     * This aggregates the rows for the next customer as they are read.
+     *
+     * @return the next set or {@code null} if overdue balances are being queried and the current balance is not overdue
+     */
+    private ObjectSet doNext() {
+        IMObjectReference current = null;
+        IMObjectReference lastAct = null;
         String name = null;
         BigDecimal balance = BigDecimal.ZERO;
         BigDecimal overdueBalance = BigDecimal.ZERO;
@@ -516,7 +693,25 @@ public class CustomerBalanceSummaryQuery implements Iterator<ObjectSet> {
         Date overdueTo = null;
         String code;
         Lookup lookup = null;
-        for (ObjectSet set : sets.values()) {
+        ObjectSet set;
+        while ((set = nextRow()) != null) {
+            IMObjectReference party = getEntity(set);
+            if (party == null) {
+                continue;
+            }
+            if (current == null) {
+                current = party;
+            } else if (!current.equals(party)) {
+                last = set;
+                break;
+            }
+            IMObjectReference act = getAct(set);
+            if (act.equals(lastAct)) {
+                // rows for an act are adjacent. This filters duplicate rows, should a customer erroneously have > 1
+                // account type configured
+                continue;
+            }
+            lastAct = act;
             name = (String) set.get("e.name");
             Date startTime = (Date) set.get("a.startTime");
             if (startTime instanceof Timestamp) {
@@ -555,12 +750,45 @@ public class CustomerBalanceSummaryQuery implements Iterator<ObjectSet> {
                     creditBalance = calculator.addAmount(creditBalance, unallocated, credit);
                 }
             } else {
-                IMObjectReference act = getAct(set);
                 if (TypeHelper.isA(act, INVOICE, COUNTER, CREDIT)) {
                     unbilled = calculator.addAmount(unbilled, amount, credit);
                 }
             }
         }
+        if (current == null) {
+            throw new NoSuchElementException();
+        }
+        return createBalance(current, name, balance, overdueBalance, creditBalance, unbilled);
+    }
+
+    /**
+     * Returns the next set in the iteration, when balances are calculated by the database.
+     *
+     * @return the next set or {@code null} if overdue balances are being queried and the current balance is not overdue
+     */
+    private ObjectSet doNextSummary() {
+        ObjectSet set = getIterator().next();
+        IMObjectReference customer = new IMObjectReference(new ArchetypeId(set.getString("shortName")),
+                                                           set.getLong("id"), set.getString("linkId"));
+        return createBalance(customer, set.getString("name"), set.getBigDecimal(BALANCE, BigDecimal.ZERO),
+                             set.getBigDecimal(OVERDUE_BALANCE, BigDecimal.ZERO),
+                             set.getBigDecimal(CREDIT_BALANCE, BigDecimal.ZERO),
+                             set.getBigDecimal(UNBILLED_AMOUNT, BigDecimal.ZERO));
+    }
+
+    /**
+     * Creates a set for a customer balance, if it meets the overdue and credit criteria.
+     *
+     * @param customer       the customer reference
+     * @param name           the customer name
+     * @param balance        the balance
+     * @param overdueBalance the overdue balance
+     * @param creditBalance  the credit balance
+     * @param unbilled       the unbilled amount
+     * @return the set or {@code null} if the balance should be excluded
+     */
+    private ObjectSet createBalance(IMObjectReference customer, String name, BigDecimal balance,
+                                    BigDecimal overdueBalance, BigDecimal creditBalance, BigDecimal unbilled) {
         if (overdueBalance.signum() < 0) {
             overdueBalance = BigDecimal.ZERO;
         }
@@ -577,8 +805,8 @@ public class CustomerBalanceSummaryQuery implements Iterator<ObjectSet> {
         }
 
         if (!exclude) {
-            result = new BalanceObjectSet(current);
-            result.set(CUSTOMER_REFERENCE, current);
+            result = new BalanceObjectSet(customer);
+            result.set(CUSTOMER_REFERENCE, customer);
             result.set(CUSTOMER_NAME, name);
             result.set(BALANCE, balance);
             result.set(OVERDUE_BALANCE, overdueBalance);
@@ -588,6 +816,22 @@ public class CustomerBalanceSummaryQuery implements Iterator<ObjectSet> {
         return result;
     }
 
+    /**
+     * Returns the next row from the query.
+     *
+     * @return the next row, or {@code null} if there are no more rows
+     */
+    private ObjectSet nextRow() {
+        ObjectSet result = null;
+        if (last != null) {
+            result = last;
+            last = null;
+        } else if (getIterator().hasNext()) {
+            result = getIterator().next();
+        }
+        return result;
+    }
+
     /**
      * Returns a lookup given its code.
      *
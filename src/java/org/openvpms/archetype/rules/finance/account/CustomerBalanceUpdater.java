@@ -16,6 +16,8 @@
 
 package org.openvpms.archetype.rules.finance.account;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.openvpms.archetype.rules.act.FinancialActStatus;
 import org.openvpms.component.business.domain.im.act.Act;
 import org.openvpms.component.business.domain.im.act.ActRelationship;
@@ -28,17 +30,32 @@ import org.openvpms.component.business.service.archetype.IArchetypeService;
 import org.openvpms.component.business.service.archetype.helper.ActBean;
 import org.openvpms.component.business.service.archetype.helper.IMObjectBean;
 import org.openvpms.component.system.common.query.ArchetypeQuery;
-import org.openvpms.component.system.common.query.IMObjectQueryIterator;
+import org.openvpms.component.system.common.query.NodeSelectConstraint;
+import org.openvpms.component.system.common.query.ObjectRefSelectConstraint;
+import org.openvpms.component.system.common.query.ObjectSet;
+import org.openvpms.component.system.common.query.ObjectSetQueryIterator;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import java.math.BigDecimal;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.ListIterator;
+import java.util.Map;
+import java.util.Set;
 
 import static org.openvpms.archetype.rules.customer.CustomerArchetypes.CUSTOMER_PARTICIPATION;
 import static org.openvpms.archetype.rules.finance.account.CustomerAccountArchetypes.ACCOUNT_ALLOCATION_RELATIONSHIP;
 import static org.openvpms.archetype.rules.finance.account.CustomerAccountArchetypes.BALANCE_PARTICIPATION;
+import static org.openvpms.archetype.rules.finance.account.CustomerAccountArchetypes.BALANCE_SNAPSHOT;
 import static org.openvpms.archetype.rules.finance.account.CustomerAccountArchetypes.DEBITS_CREDITS;
 import static org.openvpms.archetype.rules.finance.account.CustomerAccountRuleException.ErrorCode.MissingCustomer;
 
@@ -61,9 +78,47 @@ public class CustomerBalanceUpdater {
      */
     private final BalanceCalculator calculator;
 
+    /**
+     * The transaction manager, used to update balance snapshots after the posting transaction commits.
+     * May be <tt>null</tt>
+     */
+    private final PlatformTransactionManager transactionManager;
+
+    /**
+     * The no. of times to attempt a snapshot update before giving up.
+     */
+    private static final int MAX_SNAPSHOT_ATTEMPTS = 3;
 
+    /**
+     * The logger.
+     */
+    private static final Log log = LogFactory.getLog(CustomerBalanceUpdater.class);
+
+
+    /**
+     * Constructs a <tt>CustomerBalanceUpdater</tt>.
+     * <p/>
+     * Balance snapshots are updated in the caller's transaction.
+     *
+     * @param service the archetype service
+     */
     public CustomerBalanceUpdater(IArchetypeService service) {
+        this(service, null);
+    }
+
+    /**
+     * Constructs a <tt>CustomerBalanceUpdater</tt>.
+     * <p/>
+     * If a transaction is active when a balance is updated, the customer's balance snapshot is recalculated in a
+     * new transaction once it commits. This keeps the snapshot out of the posting transaction, so concurrent
+     * postings for a customer don't fail on the snapshot's version check.
+     *
+     * @param service            the archetype service
+     * @param transactionManager the transaction manager. May be <tt>null</tt>
+     */
+    public CustomerBalanceUpdater(IArchetypeService service, PlatformTransactionManager transactionManager) {
         this.service = service;
+        this.transactionManager = transactionManager;
         calculator = new BalanceCalculator(service);
     }
 
@@ -140,54 +195,206 @@ public class CustomerBalanceUpdater {
         List<BalanceAct> credits = new ArrayList<BalanceAct>();
 
         if (act != null) {
-            if (act.isCredit()) {
-                credits.add(new BalanceAct(act));
-            } else {
-                debits.add(new BalanceAct(act));
-            }
+            add(new BalanceAct(act), debits, credits);
         }
         while (unallocated.hasNext()) {
-            FinancialAct a = unallocated.next();
-            if (a.isCredit()) {
-                credits.add(new BalanceAct(a));
-            } else {
-                debits.add(new BalanceAct(a));
+            add(new BalanceAct(unallocated.next()), debits, credits);
+        }
+        return allocate(debits, credits);
+    }
+
+    /**
+     * Updates the balance snapshot for a customer, calculating the balances from the customer's acts.
+     * <p/>
+     * This can be used to correct snapshots that are out of date, e.g. after acts have been saved without the
+     * balance rules.
+     *
+     * @param customer the customer
+     * @throws ArchetypeServiceException for any archetype service error
+     */
+    public void updateSnapshot(Party customer) {
+        BalanceCalculator calc = new BalanceCalculator(service);
+        calc.setSnapshotMode(BalanceCalculator.SnapshotMode.IGNORE);
+        saveSnapshot(customer.getObjectReference(), calc.getBalance(customer), calc.getCreditBalance(customer),
+                     calc.getOldestDebit(customer));
+    }
+
+    /**
+     * Calculates the balance for the supplied customer.
+     * <p/>
+     * Only the amounts of the unallocated acts are queried. Acts are only loaded if their allocation changes.
+     * <p/>
+     * The customer's balance snapshot is updated from the allocated acts, or recalculated once the transaction
+     * commits if a transaction manager was supplied.
+     *
+     * @param act      the act that triggered the update.
+     * @param customer the customer
+     * @throws ArchetypeServiceException for any archetype service error
+     */
+    private void updateBalance(FinancialAct act, Party customer) {
+        List<BalanceAct> debits = new ArrayList<BalanceAct>();
+        List<BalanceAct> credits = new ArrayList<BalanceAct>();
+        add(new BalanceAct(act), debits, credits);
+        addUnallocated(customer, act, debits, credits);
+        allocate(debits, credits);
+        if (transactionManager != null && TransactionSynchronizationManager.isSynchronizationActive()) {
+            SnapshotSynchronization.register(customer, service, transactionManager);
+        } else {
+            updateSnapshot(customer.getObjectReference(), debits, credits);
+        }
+    }
+
+    /**
+     * Recalculates the balance snapshot for a customer from their unallocated acts.
+     * <p/>
+     * This requires a single query, and relies on the customer's acts having been allocated.
+     *
+     * @param customer the customer
+     * @throws ArchetypeServiceException for any archetype service error
+     */
+    private void refreshSnapshot(Party customer) {
+        List<BalanceAct> debits = new ArrayList<BalanceAct>();
+        List<BalanceAct> credits = new ArrayList<BalanceAct>();
+        addUnallocated(customer, null, debits, credits);
+        updateSnapshot(customer.getObjectReference(), debits, credits);
+    }
+
+    /**
+     * Adds the unallocated acts for a customer to the debits or credits, depending on their type.
+     *
+     * @param customer the customer
+     * @param exclude  the act to exclude. May be <tt>null</tt>
+     * @param debits   the debits
+     * @param credits  the credits
+     * @throws ArchetypeServiceException for any archetype service error
+     */
+    private void addUnallocated(Party customer, Act exclude, List<BalanceAct> debits, List<BalanceAct> credits) {
+        Iterator<ObjectSet> iterator = getUnallocatedActs(customer, exclude);
+        while (iterator.hasNext()) {
+            ObjectSet set = iterator.next();
+            BalanceAct balanceAct = new BalanceAct(set.getReference("act.reference"),
+                                                   set.getBigDecimal("act.amount"),
+                                                   set.getBigDecimal("act.allocatedAmount"),
+                                                   set.getBoolean("act.credit"),
+                                                   set.getDate("act.startTime"));
+            add(balanceAct, debits, credits);
+        }
+    }
+
+    /**
+     * Updates the balance snapshot for a customer, from their allocated debits and credits.
+     *
+     * @param customer the customer reference
+     * @param debits   all of the customer's unallocated debits, prior to allocation
+     * @param credits  all of the customer's unallocated credits, prior to allocation
+     */
+    private void updateSnapshot(IMObjectReference customer, List<BalanceAct> debits, List<BalanceAct> credits) {
+        BigDecimal balance = BigDecimal.ZERO;
+        BigDecimal creditBalance = BigDecimal.ZERO;
+        Date oldestDebit = null;
+        for (BalanceAct debit : debits) {
+            BigDecimal allocatable = debit.getAllocatable();
+            if (allocatable.compareTo(BigDecimal.ZERO) > 0) {
+                balance = balance.add(allocatable);
+                Date startTime = debit.getStartTime();
+                if (oldestDebit == null || (startTime != null && startTime.before(oldestDebit))) {
+                    oldestDebit = startTime;
+                }
             }
         }
-        List<FinancialAct> modified = new ArrayList<FinancialAct>();
         for (BalanceAct credit : credits) {
-            for (ListIterator<BalanceAct> iter = debits.listIterator();
-                 iter.hasNext(); ) {
-                BalanceAct debit = iter.next();
-                allocate(credit, debit);
-                if (debit.isAllocated()) {
-                    iter.remove();
-                }
-                if (debit.isDirty()) {
-                    modified.add(debit.getAct());
-                }
+            BigDecimal allocatable = credit.getAllocatable();
+            if (allocatable.compareTo(BigDecimal.ZERO) > 0) {
+                creditBalance = creditBalance.subtract(allocatable);
             }
-            if (credit.isDirty()) {
-                modified.add(credit.getAct());
+        }
+        balance = balance.add(creditBalance);
+        saveSnapshot(customer, balance, creditBalance, oldestDebit);
+    }
+
+    /**
+     * Saves the balance snapshot for a customer, creating it if required.
+     * <p/>
+     * If concurrent transactions have created more than one snapshot for the customer, the most recently updated
+     * is kept, and the others removed.
+     *
+     * @param customer      the customer reference
+     * @param balance       the outstanding balance
+     * @param creditBalance the credit balance
+     * @param oldestDebit   the start time of the oldest unallocated debit. May be {@code null}
+     */
+    private void saveSnapshot(IMObjectReference customer, BigDecimal balance, BigDecimal creditBalance,
+                              Date oldestDebit) {
+        CustomerBalanceSnapshot snapshot;
+        List<Act> acts = calculator.getSnapshots(customer);
+        if (acts.isEmpty()) {
+            Act act = (Act) service.create(BALANCE_SNAPSHOT);
+            ActBean bean = new ActBean(act, service);
+            bean.addParticipation(CUSTOMER_PARTICIPATION, customer);
+            snapshot = new CustomerBalanceSnapshot(act, service);
+        } else {
+            snapshot = new CustomerBalanceSnapshot(acts.get(0), service);
+            for (Act duplicate : acts.subList(1, acts.size())) {
+                service.remove(duplicate);
             }
         }
-        if (!modified.isEmpty()) {
-            // save all updates in the one transaction
-            service.save(modified);
+        snapshot.update(balance, creditBalance, oldestDebit);
+        snapshot.save();
+    }
+
+    /**
+     * Adds an act to the debits or credits, depending on its type.
+     *
+     * @param act     the act
+     * @param debits  the debits
+     * @param credits the credits
+     */
+    private void add(BalanceAct act, List<BalanceAct> debits, List<BalanceAct> credits) {
+        if (act.isCredit()) {
+            credits.add(act);
+        } else {
+            debits.add(act);
         }
-        return modified;
     }
 
     /**
-     * Calculates the balance for the supplied customer.
+     * Allocates credits to debits, saving any acts that change.
+     * <p/>
+     * Credits are allocated to debits in the order they appear, with each credit being allocated to the oldest
+     * debits first. This steps through each list once, so takes time proportional to the total no. of acts.
      *
-     * @param act      the act that triggered the update.
-     * @param customer the customer
-     * @throws ArchetypeServiceException for any archetype service error
+     * @param debits  the debits, in the order to allocate to
+     * @param credits the credits, in the order to allocate from
+     * @return the acts that were updated
      */
-    private void updateBalance(FinancialAct act, Party customer) {
-        Iterator<FinancialAct> results = getUnallocatedActs(customer, act);
-        updateBalance(act, results);
+    private List<FinancialAct> allocate(List<BalanceAct> debits, List<BalanceAct> credits) {
+        Set<FinancialAct> modified = new LinkedHashSet<FinancialAct>();
+        int creditIndex = 0;
+        int debitIndex = 0;
+        while (creditIndex < credits.size() && debitIndex < debits.size()) {
+            BalanceAct credit = credits.get(creditIndex);
+            BalanceAct debit = debits.get(debitIndex);
+            BigDecimal creditToAlloc = credit.getAllocatable();
+            BigDecimal debitToAlloc = debit.getAllocatable();
+            if (creditToAlloc.compareTo(BigDecimal.ZERO) <= 0) {
+                ++creditIndex;
+            } else if (debitToAlloc.compareTo(BigDecimal.ZERO) <= 0) {
+                ++debitIndex;
+            } else {
+                BigDecimal allocated = creditToAlloc.min(debitToAlloc);
+                debit.addAllocated(allocated);
+                debit.addRelationship(credit, allocated);
+                credit.addAllocated(allocated);
+                modified.add(debit.getAct());
+                modified.add(credit.getAct());
+            }
+        }
+        List<FinancialAct> result = new ArrayList<FinancialAct>(modified);
+        if (!result.isEmpty()) {
+            // save all updates in the one transaction
+            service.save(result);
+        }
+        return result;
     }
 
     /**
@@ -227,41 +434,127 @@ public class CustomerBalanceUpdater {
     }
 
     /**
-     * Returns unallocated acts for a customer.
+     * Returns the reference, amount, allocated amount, credit flag and start time of the unallocated acts for a
+     * customer, ordered on start time.
      *
      * @param customer the customer
      * @param exclude  the act to exclude. May be <tt>null</tt>
      * @return unallocated acts for the customer
      * @throws ArchetypeServiceException for any archetype service error
      */
-    private Iterator<FinancialAct> getUnallocatedActs(Party customer,
-                                                      Act exclude) {
+    private Iterator<ObjectSet> getUnallocatedActs(Party customer,
+                                                   Act exclude) {
         ArchetypeQuery query = CustomerAccountQueryFactory.createUnallocatedQuery(
                 customer, DEBITS_CREDITS, exclude);
-        return new IMObjectQueryIterator<FinancialAct>(service, query);
+        query.add(new ObjectRefSelectConstraint("act"));
+        query.add(new NodeSelectConstraint("amount"));
+        query.add(new NodeSelectConstraint("allocatedAmount"));
+        query.add(new NodeSelectConstraint("credit"));
+        query.add(new NodeSelectConstraint("startTime"));
+        return new ObjectSetQueryIterator(service, query);
     }
 
     /**
-     * Allocates an amount from a credit to a debit.
-     *
-     * @param credit the credit act
-     * @param debit  the debit act
+     * Recalculates the balance snapshots of the customers whose balances were updated in a transaction, after it
+     * commits.
+     * <p/>
+     * Each snapshot is saved in its own transaction, retrying if a concurrent update wins the version check.
+     * A failure is logged rather than propagated, as the postings have already committed, and a missing or stale
+     * snapshot only costs the balance queries it would otherwise save.
      */
-    private void allocate(BalanceAct credit, BalanceAct debit) {
-        BigDecimal creditToAlloc = credit.getAllocatable();
-        if (creditToAlloc.compareTo(BigDecimal.ZERO) > 0) {
-            // have money to allocate
-            BigDecimal debitToAlloc = debit.getAllocatable();
-            if (creditToAlloc.compareTo(debitToAlloc) <= 0) {
-                // can allocate all the credit
-                debit.addAllocated(creditToAlloc);
-                debit.addRelationship(credit, creditToAlloc);
-                credit.addAllocated(creditToAlloc);
-            } else {
-                // can allocate some of the credit
-                debit.addAllocated(debitToAlloc);
-                debit.addRelationship(credit, debitToAlloc);
-                credit.addAllocated(debitToAlloc);
+    private static class SnapshotSynchronization extends TransactionSynchronizationAdapter {
+
+        /**
+         * The customers to update, keyed on reference.
+         */
+        private final Map<IMObjectReference, Party> customers = new LinkedHashMap<IMObjectReference, Party>();
+
+        /**
+         * The archetype service.
+         */
+        private final IArchetypeService service;
+
+        /**
+         * The transaction manager.
+         */
+        private final PlatformTransactionManager transactionManager;
+
+        /**
+         * Constructs a <tt>SnapshotSynchronization</tt>.
+         *
+         * @param service            the archetype service
+         * @param transactionManager the transaction manager
+         */
+        private SnapshotSynchronization(IArchetypeService service, PlatformTransactionManager transactionManager) {
+            this.service = service;
+            this.transactionManager = transactionManager;
+        }
+
+        /**
+         * Registers a customer for snapshot update when the current transaction commits.
+         * <p/>
+         * A single synchronization is registered per transaction, so a customer is only updated once, regardless of
+         * how many of their acts are posted.
+         *
+         * @param customer           the customer
+         * @param service            the archetype service
+         * @param transactionManager the transaction manager
+         */
+        public static void register(Party customer, IArchetypeService service,
+                                    PlatformTransactionManager transactionManager) {
+            SnapshotSynchronization sync = (SnapshotSynchronization) TransactionSynchronizationManager.getResource(
+                    SnapshotSynchronization.class);
+            if (sync == null) {
+                sync = new SnapshotSynchronization(service, transactionManager);
+                TransactionSynchronizationManager.bindResource(SnapshotSynchronization.class, sync);
+                TransactionSynchronizationManager.registerSynchronization(sync);
+            }
+            sync.customers.put(customer.getObjectReference(), customer);
+        }
+
+        /**
+         * Invoked after transaction commit. Updates the snapshot of each registered customer.
+         */
+        @Override
+        public void afterCommit() {
+            TransactionSynchronizationManager.unbindResourceIfPossible(SnapshotSynchronization.class);
+            for (Party customer : customers.values()) {
+                update(customer);
+            }
+        }
+
+        /**
+         * Invoked after transaction commit/rollback.
+         *
+         * @param status completion status according to the <tt>STATUS_*</tt> constants
+         */
+        @Override
+        public void afterCompletion(int status) {
+            TransactionSynchronizationManager.unbindResourceIfPossible(SnapshotSynchronization.class);
+        }
+
+        /**
+         * Updates the snapshot for a customer in a new transaction.
+         *
+         * @param customer the customer
+         */
+        private void update(final Party customer) {
+            TransactionTemplate template = new TransactionTemplate(transactionManager);
+            template.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+            for (int attempt = 1; attempt <= MAX_SNAPSHOT_ATTEMPTS; ++attempt) {
+                try {
+                    template.execute(new TransactionCallbackWithoutResult() {
+                        @Override
+                        protected void doInTransactionWithoutResult(TransactionStatus status) {
+                            new CustomerBalanceUpdater(service).refreshSnapshot(customer);
+                        }
+                    });
+                    break;
+                } catch (RuntimeException exception) {
+                    if (attempt == MAX_SNAPSHOT_ATTEMPTS) {
+                        log.warn("Failed to update the balance snapshot for customer " + customer.getId(), exception);
+                    }
+                }
             }
         }
     }
@@ -273,9 +566,29 @@ public class CustomerBalanceUpdater {
     class BalanceAct {
 
         /**
-         * The act to delegate to.
+         * The act reference.
          */
-        private final FinancialAct act;
+        private final IMObjectReference reference;
+
+        /**
+         * Determines if the act is a credit or debit.
+         */
+        private final boolean credit;
+
+        /**
+         * The act start time.
+         */
+        private final Date startTime;
+
+        /**
+         * The act to delegate to. Loaded on demand, if the act was constructed from its reference.
+         */
+        private FinancialAct act;
+
+        /**
+         * The amount of this act yet to be allocated, used until the act is loaded.
+         */
+        private BigDecimal allocatable;
 
         /**
          * Determines if the act has been modified.
@@ -284,6 +597,26 @@ public class CustomerBalanceUpdater {
 
         public BalanceAct(FinancialAct act) {
             this.act = act;
+            this.reference = act.getObjectReference();
+            this.credit = act.isCredit();
+            this.startTime = act.getActivityStartTime();
+        }
+
+        /**
+         * Constructs a {@link BalanceAct} for an act that will be loaded only if it is modified.
+         *
+         * @param reference the act reference
+         * @param amount    the act amount. May be <tt>null</tt>
+         * @param allocated the allocated amount. May be <tt>null</tt>
+         * @param credit    determines if the act is a credit or debit
+         * @param startTime the act start time
+         */
+        public BalanceAct(IMObjectReference reference, BigDecimal amount, BigDecimal allocated, boolean credit,
+                          Date startTime) {
+            this.reference = reference;
+            this.credit = credit;
+            this.startTime = startTime;
+            allocatable = calculator.getAllocatable(amount, allocated);
         }
 
         /**
@@ -292,7 +625,7 @@ public class CustomerBalanceUpdater {
          * @return the amount yet to be allocated
          */
         public BigDecimal getAllocatable() {
-            return calculator.getAllocatable(act);
+            return (act != null) ? calculator.getAllocatable(act) : allocatable;
         }
 
         /**
@@ -301,7 +634,7 @@ public class CustomerBalanceUpdater {
          * @return <tt>true</tt> if the act has been full allocated
          */
         public boolean isAllocated() {
-            return calculator.isAllocated(act);
+            return getAllocatable().compareTo(BigDecimal.ZERO) <= 0;
         }
 
         /**
@@ -312,6 +645,7 @@ public class CustomerBalanceUpdater {
          * @param allocated the allocated amount
          */
         public void addAllocated(BigDecimal allocated) {
+            FinancialAct act = getAct();
             BigDecimal value = act.getAllocatedAmount().add(allocated);
             act.setAllocatedAmount(new Money(value));
             if (isAllocated()) {
@@ -328,7 +662,7 @@ public class CustomerBalanceUpdater {
          * @param allocated the allocated amount
          */
         public void addRelationship(BalanceAct credit, BigDecimal allocated) {
-            ActBean debitBean = new ActBean(act, service);
+            ActBean debitBean = new ActBean(getAct(), service);
             ActRelationship relationship = debitBean.addRelationship(
                     ACCOUNT_ALLOCATION_RELATIONSHIP, credit.getAct());
             IMObjectBean relBean = new IMObjectBean(relationship, service);
@@ -342,15 +676,31 @@ public class CustomerBalanceUpdater {
          *         if it is a debit
          */
         public boolean isCredit() {
-            return act.isCredit();
+            return credit;
+        }
+
+        /**
+         * Returns the act start time.
+         *
+         * @return the act start time
+         */
+        public Date getStartTime() {
+            return startTime;
         }
 
         /**
-         * Returns the underlying act.
+         * Returns the underlying act, loading it if required.
          *
          * @return the underlying act
+         * @throws IllegalStateException if the act cannot be loaded
          */
         public FinancialAct getAct() {
+            if (act == null) {
+                act = (FinancialAct) service.get(reference);
+                if (act == null) {
+                    throw new IllegalStateException("Failed to retrieve " + reference);
+                }
+            }
             return act;
         }
 
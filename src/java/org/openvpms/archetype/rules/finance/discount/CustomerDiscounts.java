@@ -0,0 +1,225 @@
+/*
+ * Version: 1.0
+ *
+ * The contents of this file are subject to the OpenVPMS License Version
+ * 1.0 (the 'License'); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.openvpms.org/license/
+ *
+ * Software distributed under the License is distributed on an 'AS IS' basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * Copyright 2014 (C) OpenVPMS Ltd. All Rights Reserved.
+ */
+
+package org.openvpms.archetype.rules.finance.discount;
+
+import org.openvpms.archetype.rules.math.MathRules;
+import org.openvpms.archetype.rules.util.DateRules;
+import org.openvpms.component.business.domain.im.common.IMObjectReference;
+import org.openvpms.component.business.domain.im.party.Party;
+import org.openvpms.component.business.domain.im.product.Product;
+import org.openvpms.component.business.service.archetype.ArchetypeServiceException;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Calculates the discounts of multiple products for a customer and patient.
+ * <p/>
+ * This produces the same results as {@link DiscountRules#calculateDiscount}, but determines the customer and patient
+ * discounts, discount groups, product type discounts and discount details once, rather than for each product.
+ * <p/>
+ * Instances are not thread safe, and should be discarded once the products have been charged, as changes to
+ * discounts aren't reflected.
+ *
+ * @author Tim Anderson
+ * @see DiscountRules#getCustomerDiscounts(Party, Party)
+ */
+public class CustomerDiscounts {
+
+    /**
+     * The customer.
+     */
+    private final Party customer;
+
+    /**
+     * The patient. May be {@code null}
+     */
+    private final Party patient;
+
+    /**
+     * The discount rules.
+     */
+    private final DiscountRules rules;
+
+    /**
+     * The discounts that apply on a particular day, keyed on the day.
+     */
+    private final Map<Date, DayDiscounts> days = new HashMap<Date, DayDiscounts>();
+
+    /**
+     * The discount details, keyed on reference. Inactive discounts have {@code null} details.
+     */
+    private final Map<IMObjectReference, Discount> details = new HashMap<IMObjectReference, Discount>();
+
+
+    /**
+     * Constructs a {@link CustomerDiscounts}.
+     *
+     * @param customer the customer
+     * @param patient  the patient. May be {@code null}
+     * @param rules    the discount rules
+     */
+    CustomerDiscounts(Party customer, Party patient, DiscountRules rules) {
+        this.customer = customer;
+        this.patient = patient;
+        this.rules = rules;
+    }
+
+    /**
+     * Calculates the discount amount for a product.
+     * <p/>
+     * See {@link DiscountRules#calculateDiscount} for details.
+     *
+     * @param date                  the date, used to determine if a discount applies
+     * @param product               the product
+     * @param fixedCost             the fixed cost
+     * @param unitCost              the unit cost
+     * @param fixedPrice            the fixed amount
+     * @param unitPrice             the unit price
+     * @param quantity              the quantity
+     * @param maxFixedPriceDiscount the maximum fixed price discount percentage
+     * @param maxUnitPriceDiscount  the maximum unit price discount percentage
+     * @param taxRate               the product tax rate for the customer, expressed as a percentage
+     * @return the discount amount
+     * @throws ArchetypeServiceException for any archetype service error
+     */
+    public BigDecimal calculateDiscount(Date date, Product product, BigDecimal fixedCost, BigDecimal unitCost,
+                                        BigDecimal fixedPrice, BigDecimal unitPrice, BigDecimal quantity,
+                                        BigDecimal maxFixedPriceDiscount, BigDecimal maxUnitPriceDiscount,
+                                        BigDecimal taxRate) {
+        BigDecimal discount;
+        if (fixedPrice.compareTo(BigDecimal.ZERO) == 0
+            && (unitPrice.compareTo(BigDecimal.ZERO) == 0 || quantity.compareTo(BigDecimal.ZERO) == 0)) {
+            discount = BigDecimal.ZERO;
+        } else {
+            List<Discount> discounts = getDiscounts(date, product);
+            if (discounts.isEmpty()) {
+                discount = BigDecimal.ZERO;
+            } else {
+                discount = rules.calculateDiscount(discounts, fixedCost, unitCost, fixedPrice, unitPrice, quantity,
+                                                   maxFixedPriceDiscount, maxUnitPriceDiscount, taxRate);
+            }
+        }
+        return MathRules.round(discount);
+    }
+
+    /**
+     * Returns the discounts that apply to a product.
+     *
+     * @param date    the date, used to determine if a discount applies
+     * @param product the product
+     * @return the discounts
+     * @throws ArchetypeServiceException for any archetype service error
+     */
+    private List<Discount> getDiscounts(Date date, Product product) {
+        Date day = DateRules.getDate(date);
+        DayDiscounts discounts = days.get(day);
+        if (discounts == null) {
+            discounts = new DayDiscounts(date);
+            days.put(day, discounts);
+        }
+        return discounts.getDiscounts(date, product);
+    }
+
+    /**
+     * Returns the details of a discount.
+     *
+     * @param reference the discount reference
+     * @return the discount details, or {@code null} if the discount doesn't exist or is inactive
+     */
+    private Discount getDiscount(IMObjectReference reference) {
+        Discount result;
+        if (details.containsKey(reference)) {
+            result = details.get(reference);
+        } else {
+            result = rules.getDiscount(reference);
+            details.put(reference, result);
+        }
+        return result;
+    }
+
+    /**
+     * The discounts that apply on a particular day.
+     */
+    private class DayDiscounts {
+
+        /**
+         * The discount groups and product type discounts.
+         */
+        private final DiscountRules.DiscountGroups groups;
+
+        /**
+         * The combined customer and patient discounts.
+         */
+        private final Set<IMObjectReference> partyDiscounts;
+
+        /**
+         * The discounts for each product.
+         */
+        private final Map<IMObjectReference, List<Discount>> products
+                = new HashMap<IMObjectReference, List<Discount>>();
+
+        /**
+         * Constructs a {@link DayDiscounts}.
+         *
+         * @param date the date
+         */
+        public DayDiscounts(Date date) {
+            groups = rules.createDiscountGroups(date);
+            partyDiscounts = new HashSet<IMObjectReference>(rules.getPartyDiscounts(customer, date, groups));
+            partyDiscounts.addAll(rules.getPartyDiscounts(patient, date, groups));
+        }
+
+        /**
+         * Returns the discounts that apply to a product.
+         *
+         * @param date    the date, used to determine if a discount applies
+         * @param product the product
+         * @return the discounts
+         */
+        public List<Discount> getDiscounts(Date date, Product product) {
+            List<Discount> result = products.get(product.getObjectReference());
+            if (result == null) {
+                result = Collections.emptyList();
+                if (!partyDiscounts.isEmpty()) {
+                    Set<IMObjectReference> refs = new HashSet<IMObjectReference>(
+                            rules.getProductDiscounts(product, date, groups));
+                    refs.retainAll(partyDiscounts);
+                    if (!refs.isEmpty()) {
+                        result = new ArrayList<Discount>();
+                        for (IMObjectReference ref : refs) {
+                            Discount discount = getDiscount(ref);
+                            if (discount != null) {
+                                result.add(discount);
+                            }
+                        }
+                    }
+                }
+                products.put(product.getObjectReference(), result);
+            }
+            return result;
+        }
+    }
+
+}
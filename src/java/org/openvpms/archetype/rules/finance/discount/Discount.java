@@ -0,0 +1,107 @@
+/*
+ * Version: 1.0
+ *
+ * The contents of this file are subject to the OpenVPMS License Version
+ * 1.0 (the 'License'); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.openvpms.org/license/
+ *
+ * Software distributed under the License is distributed on an 'AS IS' basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * Copyright 2014 (C) OpenVPMS Ltd. All Rights Reserved.
+ */
+
+package org.openvpms.archetype.rules.finance.discount;
+
+import org.openvpms.component.business.domain.im.common.Entity;
+import org.openvpms.component.business.domain.im.common.IMObjectReference;
+import org.openvpms.component.business.service.archetype.IArchetypeService;
+import org.openvpms.component.business.service.archetype.helper.IMObjectBean;
+
+import java.math.BigDecimal;
+
+/**
+ * The details of an <em>entity.discountType</em> required to calculate a discount.
+ * <p/>
+ * Instances are immutable, so may be shared via the {@link DiscountCache}.
+ *
+ * @author Tim Anderson
+ */
+final class Discount {
+
+    /**
+     * The discount reference.
+     */
+    private final IMObjectReference reference;
+
+    /**
+     * The discount type. One of {@link DiscountRules#PERCENTAGE}, {@link DiscountRules#FIXED} or
+     * {@link DiscountRules#COST_RATE}.
+     */
+    private final String type;
+
+    /**
+     * The discount rate.
+     */
+    private final BigDecimal rate;
+
+    /**
+     * Determines if the discount applies to the fixed price.
+     */
+    private final boolean discountFixed;
+
+
+    /**
+     * Constructs a {@link Discount}.
+     *
+     * @param discount the <em>entity.discountType</em>
+     * @param service  the archetype service
+     */
+    public Discount(Entity discount, IArchetypeService service) {
+        IMObjectBean bean = new IMObjectBean(discount, service);
+        reference = discount.getObjectReference();
+        type = bean.getString("type");
+        rate = bean.getBigDecimal("rate", BigDecimal.ZERO);
+        discountFixed = bean.getBoolean("discountFixed");
+    }
+
+    /**
+     * Returns the discount reference.
+     *
+     * @return the discount reference
+     */
+    public IMObjectReference getReference() {
+        return reference;
+    }
+
+    /**
+     * Returns the discount type.
+     *
+     * @return the discount type
+     */
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * Returns the discount rate.
+     *
+     * @return the discount rate
+     */
+    public BigDecimal getRate() {
+        return rate;
+    }
+
+    /**
+     * Determines if the discount applies to the fixed price.
+     *
+     * @return {@code true} if the discount applies to the fixed price
+     */
+    public boolean isDiscountFixed() {
+        return discountFixed;
+    }
+
+}
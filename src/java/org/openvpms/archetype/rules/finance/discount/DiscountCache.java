@@ -0,0 +1,305 @@
+/*
+ * Version: 1.0
+ *
+ * The contents of this file are subject to the OpenVPMS License Version
+ * 1.0 (the 'License'); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.openvpms.org/license/
+ *
+ * Software distributed under the License is distributed on an 'AS IS' basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * Copyright 2014 (C) OpenVPMS Ltd. All Rights Reserved.
+ */
+
+package org.openvpms.archetype.rules.finance.discount;
+
+import org.openvpms.archetype.rules.customer.CustomerArchetypes;
+import org.openvpms.archetype.rules.patient.PatientArchetypes;
+import org.openvpms.archetype.rules.product.ProductArchetypes;
+import org.openvpms.archetype.rules.util.DateRules;
+import org.openvpms.component.business.domain.im.common.IMObject;
+import org.openvpms.component.business.domain.im.common.IMObjectReference;
+import org.openvpms.component.business.domain.im.party.Party;
+import org.openvpms.component.business.domain.im.product.Product;
+import org.openvpms.component.business.service.archetype.AbstractArchetypeServiceListener;
+import org.openvpms.component.business.service.archetype.IArchetypeService;
+import org.openvpms.component.business.service.archetype.IArchetypeServiceListener;
+import org.openvpms.component.business.service.archetype.helper.TypeHelper;
+
+import javax.annotation.PreDestroy;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Caches the discounts that apply to a product, customer and patient on a particular day, for use by
+ * {@link DiscountRules}.
+ * <p/>
+ * This avoids repeatedly walking the discount relationships of the same product, customer and patient when
+ * charging multiple items.
+ * <p/>
+ * Entries referring to a product, customer or patient are discarded when it is saved or removed. All entries are
+ * discarded when a discount, discount group or product type is saved or removed.
+ * <p/>
+ * The cache is shared, so should be disposed of via {@link #dispose()} when no longer required.
+ *
+ * @author Tim Anderson
+ */
+public class DiscountCache {
+
+    /**
+     * The archetype service.
+     */
+    private final IArchetypeService service;
+
+    /**
+     * The cached discounts, in least recently used order.
+     */
+    private final Map<Key, List<Discount>> cache;
+
+    /**
+     * Listener for changes to objects that may affect the cached discounts.
+     */
+    private final IArchetypeServiceListener listener;
+
+    /**
+     * Incremented each time the cache is invalidated. Used to prevent discounts read prior to an invalidation from
+     * being cached.
+     */
+    private long generation;
+
+    /**
+     * The default maximum no. of entries to cache.
+     */
+    public static final int DEFAULT_SIZE = 1000;
+
+    /**
+     * The archetypes whose changes affect specific cache entries.
+     */
+    private static final String[] EVICT_SHORT_NAMES = {
+            ProductArchetypes.MEDICATION, ProductArchetypes.MERCHANDISE, ProductArchetypes.SERVICE,
+            ProductArchetypes.TEMPLATE, ProductArchetypes.PRICE_TEMPLATE, CustomerArchetypes.PERSON,
+            CustomerArchetypes.OTC, PatientArchetypes.PATIENT};
+
+    /**
+     * The archetypes whose changes affect all cache entries.
+     */
+    private static final String[] CLEAR_SHORT_NAMES = {
+            "entity.discountType", "entity.discountGroupType", ProductArchetypes.PRODUCT_TYPE};
+
+
+    /**
+     * Constructs a {@link DiscountCache} that caches up to {@link #DEFAULT_SIZE} entries.
+     *
+     * @param service the archetype service
+     */
+    public DiscountCache(IArchetypeService service) {
+        this(service, DEFAULT_SIZE);
+    }
+
+    /**
+     * Constructs a {@link DiscountCache}.
+     *
+     * @param service the archetype service
+     * @param size    the maximum no. of entries to cache
+     */
+    public DiscountCache(IArchetypeService service, final int size) {
+        this.service = service;
+        cache = new LinkedHashMap<Key, List<Discount>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, List<Discount>> eldest) {
+                return size() > size;
+            }
+        };
+        listener = new AbstractArchetypeServiceListener() {
+            @Override
+            public void saved(IMObject object) {
+                changed(object);
+            }
+
+            @Override
+            public void removed(IMObject object) {
+                changed(object);
+            }
+        };
+        for (String shortName : EVICT_SHORT_NAMES) {
+            service.addListener(shortName, listener);
+        }
+        for (String shortName : CLEAR_SHORT_NAMES) {
+            service.addListener(shortName, listener);
+        }
+    }
+
+    /**
+     * Returns the discounts for a customer, patient and product.
+     *
+     * @param date     the date, used to determine if a discount applies
+     * @param customer the customer
+     * @param patient  the patient. May be {@code null}
+     * @param product  the product
+     * @param rules    the rules to determine the discounts, if they aren't cached
+     * @return the discounts
+     */
+    List<Discount> getDiscounts(Date date, Party customer, Party patient, Product product, DiscountRules rules) {
+        Key key = new Key(DateRules.getDate(date), customer, patient, product);
+        long current;
+        synchronized (this) {
+            List<Discount> result = cache.get(key);
+            if (result != null) {
+                return result;
+            }
+            current = generation;
+        }
+        List<Discount> result = rules.getDiscountDetails(date, customer, patient, product);
+        synchronized (this) {
+            if (current == generation) {
+                cache.put(key, result);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Discards all cached discounts.
+     */
+    public synchronized void clear() {
+        cache.clear();
+        ++generation;
+    }
+
+    /**
+     * Disposes of the cache.
+     */
+    @PreDestroy
+    public void dispose() {
+        for (String shortName : EVICT_SHORT_NAMES) {
+            service.removeListener(shortName, listener);
+        }
+        for (String shortName : CLEAR_SHORT_NAMES) {
+            service.removeListener(shortName, listener);
+        }
+        clear();
+    }
+
+    /**
+     * Invoked when an object that may affect the cached discounts is saved or removed.
+     *
+     * @param object the object
+     */
+    private void changed(IMObject object) {
+        if (TypeHelper.isA(object, CLEAR_SHORT_NAMES)) {
+            clear();
+        } else {
+            evict(object.getObjectReference());
+        }
+    }
+
+    /**
+     * Discards cached discounts that refer to a product, customer or patient.
+     *
+     * @param reference the product, customer or patient reference
+     */
+    private synchronized void evict(IMObjectReference reference) {
+        for (Iterator<Key> iterator = cache.keySet().iterator(); iterator.hasNext(); ) {
+            if (iterator.next().refersTo(reference)) {
+                iterator.remove();
+            }
+        }
+        ++generation;
+    }
+
+    /**
+     * Cache key.
+     */
+    private static class Key {
+
+        /**
+         * The date, with any time component removed.
+         */
+        private final Date date;
+
+        /**
+         * The customer reference.
+         */
+        private final IMObjectReference customer;
+
+        /**
+         * The patient reference. May be {@code null}
+         */
+        private final IMObjectReference patient;
+
+        /**
+         * The product reference.
+         */
+        private final IMObjectReference product;
+
+        /**
+         * The cached hash code.
+         */
+        private final int hashCode;
+
+        /**
+         * Constructs a {@link Key}.
+         *
+         * @param date     the date, with any time component removed
+         * @param customer the customer
+         * @param patient  the patient. May be {@code null}
+         * @param product  the product
+         */
+        public Key(Date date, Party customer, Party patient, Product product) {
+            this.date = date;
+            this.customer = customer.getObjectReference();
+            this.patient = (patient != null) ? patient.getObjectReference() : null;
+            this.product = product.getObjectReference();
+            int hash = date.hashCode();
+            hash = 31 * hash + this.customer.hashCode();
+            hash = 31 * hash + (this.patient != null ? this.patient.hashCode() : 0);
+            hashCode = 31 * hash + this.product.hashCode();
+        }
+
+        /**
+         * Determines if the key refers to an object.
+         *
+         * @param reference the object reference
+         * @return {@code true} if the key refers to the object
+         */
+        public boolean refersTo(IMObjectReference reference) {
+            return reference.equals(customer) || reference.equals(patient) || reference.equals(product);
+        }
+
+        /**
+         * Indicates whether some other object is "equal to" this one.
+         *
+         * @param obj the reference object with which to compare.
+         * @return {@code true} if this object is the same as the obj
+         */
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == this) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return date.equals(other.date) && customer.equals(other.customer) && product.equals(other.product)
+                   && (patient != null ? patient.equals(other.patient) : other.patient == null);
+        }
+
+        /**
+         * Returns a hash code value for the object.
+         *
+         * @return a hash code value for this object
+         */
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+}
@@ -26,7 +26,6 @@ import org.openvpms.component.business.domain.im.product.Product;
 import org.openvpms.component.business.service.archetype.ArchetypeServiceException;
 import org.openvpms.component.business.service.archetype.IArchetypeService;
 import org.openvpms.component.business.service.archetype.helper.EntityBean;
-import org.openvpms.component.business.service.archetype.helper.IMObjectBean;
 import org.openvpms.component.business.service.archetype.helper.TypeHelper;
 import org.openvpms.component.business.service.lookup.ILookupService;
 import org.openvpms.component.system.common.query.ArchetypeQuery;
@@ -89,6 +88,16 @@ public class DiscountRules {
      */
     private final ILookupService lookups;
 
+    /**
+     * The discount cache. May be {@code null}
+     */
+    private final DiscountCache cache;
+
+    /**
+     * The tax rules for the most recently used practice. May be {@code null}
+     */
+    private volatile PracticeTaxRules taxRules;
+
 
     /**
      * Constructs a {@link DiscountRules}.
@@ -97,8 +106,20 @@ public class DiscountRules {
      * @param lookups the lookup service
      */
     public DiscountRules(IArchetypeService service, ILookupService lookups) {
+        this(service, lookups, null);
+    }
+
+    /**
+     * Constructs a {@link DiscountRules}.
+     *
+     * @param service the archetype service
+     * @param lookups the lookup service
+     * @param cache   the discount cache. May be {@code null}
+     */
+    public DiscountRules(IArchetypeService service, ILookupService lookups, DiscountCache cache) {
         this.service = service;
         this.lookups = lookups;
+        this.cache = cache;
     }
 
     /**
@@ -145,32 +166,40 @@ public class DiscountRules {
                                         BigDecimal quantity,
                                         BigDecimal maxFixedPriceDiscount, BigDecimal maxUnitPriceDiscount) {
         BigDecimal discount;
-        BigDecimal taxRate = BigDecimal.ZERO;
-        if (practice != null) {
-            CustomerTaxRules taxRules = new CustomerTaxRules(practice, service, lookups);
-            taxRate = taxRules.getTaxRate(product, customer);
-        }
-
         if (fixedPrice.compareTo(BigDecimal.ZERO) == 0
             && (unitPrice.compareTo(BigDecimal.ZERO) == 0 || quantity.compareTo(BigDecimal.ZERO) == 0)) {
             discount = BigDecimal.ZERO;
         } else {
-            List<Entity> discounts = getDiscounts(date, customer, patient, product);
+            List<Discount> discounts = (cache != null) ? cache.getDiscounts(date, customer, patient, product, this)
+                                                       : getDiscountDetails(date, customer, patient, product);
             if (discounts.isEmpty()) {
                 discount = BigDecimal.ZERO;
             } else {
-                discount = calculateDiscountAmount(fixedPrice, unitPrice, fixedCost, unitCost, quantity,
-                                                   taxRate, discounts);
-                BigDecimal maxDiscount = calculateMaxDiscount(fixedPrice, unitPrice, quantity, maxFixedPriceDiscount,
-                                                              maxUnitPriceDiscount);
-                if (discount.compareTo(maxDiscount) > 0) {
-                    discount = maxDiscount;
+                BigDecimal taxRate = BigDecimal.ZERO;
+                if (practice != null) {
+                    taxRate = getTaxRules(practice).getTaxRate(product, customer);
                 }
+                discount = calculateDiscount(discounts, fixedCost, unitCost, fixedPrice, unitPrice, quantity,
+                                             maxFixedPriceDiscount, maxUnitPriceDiscount, taxRate);
             }
         }
         return MathRules.round(discount);
     }
 
+    /**
+     * Returns a {@link CustomerDiscounts} to calculate the discounts of multiple products for a customer and patient.
+     * <p/>
+     * This should be used in preference to {@link #calculateDiscount} when charging many products, as the
+     * customer and patient discounts are only determined once.
+     *
+     * @param customer the customer
+     * @param patient  the patient. May be {@code null}
+     * @return a new {@link CustomerDiscounts}
+     */
+    public CustomerDiscounts getCustomerDiscounts(Party customer, Party patient) {
+        return new CustomerDiscounts(customer, patient, this);
+    }
+
     /**
      * Returns the discounts for a customer, patient and product.
      * <p/>
@@ -210,6 +239,95 @@ public class DiscountRules {
         return result;
     }
 
+    /**
+     * Returns the details of the discounts for a customer, patient and product.
+     *
+     * @param date     the date, used to determine if a discount applies
+     * @param customer the customer
+     * @param patient  the patient. May be {@code null}
+     * @param product  the product
+     * @return the discount details
+     * @throws ArchetypeServiceException for any archetype service error
+     */
+    List<Discount> getDiscountDetails(Date date, Party customer, Party patient, Product product) {
+        List<Entity> discounts = getDiscounts(date, customer, patient, product);
+        if (discounts.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Discount> result = new ArrayList<Discount>();
+        for (Entity discount : discounts) {
+            result.add(new Discount(discount, service));
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * Calculates the discount amount, given the discounts that apply, limiting it to the maximum discount.
+     *
+     * @param discounts             the discounts
+     * @param fixedCost             the fixed cost
+     * @param unitCost              the unit cost
+     * @param fixedPrice            the fixed amount
+     * @param unitPrice             the unit price
+     * @param quantity              the quantity
+     * @param maxFixedPriceDiscount the maximum fixed price discount percentage
+     * @param maxUnitPriceDiscount  the maximum unit price discount percentage
+     * @param taxRate               the tax rate expressed as a percentage. Only applicable to COST_RATE discounts
+     * @return the discount amount, unrounded
+     */
+    BigDecimal calculateDiscount(List<Discount> discounts, BigDecimal fixedCost, BigDecimal unitCost,
+                                 BigDecimal fixedPrice, BigDecimal unitPrice, BigDecimal quantity,
+                                 BigDecimal maxFixedPriceDiscount, BigDecimal maxUnitPriceDiscount,
+                                 BigDecimal taxRate) {
+        BigDecimal discount = calculateDiscountAmount(fixedPrice, unitPrice, fixedCost, unitCost, quantity,
+                                                      taxRate, discounts);
+        BigDecimal maxDiscount = calculateMaxDiscount(fixedPrice, unitPrice, quantity, maxFixedPriceDiscount,
+                                                      maxUnitPriceDiscount);
+        if (discount.compareTo(maxDiscount) > 0) {
+            discount = maxDiscount;
+        }
+        return discount;
+    }
+
+    /**
+     * Returns the details of an <em>entity.discountType</em>.
+     *
+     * @param reference the discount reference
+     * @return the discount details, or {@code null} if the discount doesn't exist or is inactive
+     * @throws ArchetypeServiceException for any archetype service error
+     */
+    Discount getDiscount(IMObjectReference reference) {
+        Entity discount = (Entity) service.get(reference);
+        return (discount != null && discount.isActive()) ? new Discount(discount, service) : null;
+    }
+
+    /**
+     * Creates a cache of discount groups and product type discounts, for the specified date.
+     *
+     * @param date the date
+     * @return a new cache
+     */
+    DiscountGroups createDiscountGroups(Date date) {
+        return new DiscountGroups(date);
+    }
+
+    /**
+     * Returns the tax rules for a practice.
+     * <p/>
+     * The rules are re-used until a different practice, or a different version of the practice, is supplied.
+     *
+     * @param practice the practice
+     * @return the tax rules
+     */
+    private CustomerTaxRules getTaxRules(Party practice) {
+        PracticeTaxRules rules = taxRules;
+        if (rules == null || rules.practice != practice || rules.version != practice.getVersion()) {
+            rules = new PracticeTaxRules(practice, new CustomerTaxRules(practice, service, lookups));
+            taxRules = rules;
+        }
+        return rules.rules;
+    }
+
     /**
      * Calculates the discount amount for an act, given a list of discounts.
      * <p/>
@@ -221,26 +339,25 @@ public class DiscountRules {
      * @param unitCost   the unit cost price
      * @param quantity   the quantity
      * @param taxRate    the taxRate expressed as a percentage. Only applicable to COST_RATE discounts
-     * @param discounts  a set of <em>entity.discountType</em>s. This list is modified if there are multiple
-     *                   COST_RATE discounts
+     * @param discounts  the discounts
      * @return the discount amount for the act
      */
     private BigDecimal calculateDiscountAmount(BigDecimal fixedPrice, BigDecimal unitPrice, BigDecimal fixedCost,
                                                BigDecimal unitCost, BigDecimal quantity, BigDecimal taxRate,
-                                               List<Entity> discounts) {
+                                               List<Discount> discounts) {
         BigDecimal result = BigDecimal.ZERO;
-        Entity lastCostDiscount = null;
+        Discount lastCostDiscount = null;
         BigDecimal lastCostRate = null;
         boolean lastCostDiscountFixed = false;
 
         // ensure there is only one COST_RATE discount present. This selects the one with the lowest rate hence giving
         // the greatest discount
-        for (Entity discount : discounts.toArray(new Entity[discounts.size()])) {
-            IMObjectBean discountBean = new IMObjectBean(discount, service);
-            String discountType = discountBean.getString("type");
+        discounts = new ArrayList<Discount>(discounts);
+        for (Discount discount : discounts.toArray(new Discount[discounts.size()])) {
+            String discountType = discount.getType();
             if (COST_RATE.equals(discountType)) {
-                BigDecimal rate = discountBean.getBigDecimal("rate", BigDecimal.ZERO);
-                boolean discountFixed = discountBean.getBoolean("discountFixed");
+                BigDecimal rate = discount.getRate();
+                boolean discountFixed = discount.isDiscountFixed();
                 if (lastCostDiscount == null || lessThan(rate, lastCostRate, discountFixed, lastCostDiscountFixed)) {
                     if (lastCostDiscount != null) {
                         discounts.remove(lastCostDiscount);
@@ -253,11 +370,10 @@ public class DiscountRules {
                 }
             }
         }
-        for (Entity discount : discounts) {
-            IMObjectBean discountBean = new IMObjectBean(discount, service);
-            String discountType = discountBean.getString("type");
-            BigDecimal rate = discountBean.getBigDecimal("rate", BigDecimal.ZERO);
-            boolean discountFixed = discountBean.getBoolean("discountFixed");
+        for (Discount discount : discounts) {
+            String discountType = discount.getType();
+            BigDecimal rate = discount.getRate();
+            boolean discountFixed = discount.isDiscountFixed();
             BigDecimal dFixedPrice;
             if (discountFixed) {
                 BigDecimal fixedQty = new BigDecimal(quantity.compareTo(BigDecimal.ZERO)).abs();
@@ -375,7 +491,7 @@ public class DiscountRules {
      * @param discountGroups the discount group cache
      * @return a set of <em>entity.discountType</em> references for the party
      */
-    private Set<IMObjectReference> getPartyDiscounts(Party party, Date date, DiscountGroups discountGroups) {
+    Set<IMObjectReference> getPartyDiscounts(Party party, Date date, DiscountGroups discountGroups) {
         List<IMObjectReference> result = Collections.emptyList();
         if (party != null) {
             EntityBean bean = new EntityBean(party, service);
@@ -396,7 +512,7 @@ public class DiscountRules {
      * @return a set of <em>entity.discountType</em> references for the product
      * @throws ArchetypeServiceException for any archetype service error
      */
-    private Set<IMObjectReference> getProductDiscounts(Product product, Date date, DiscountGroups discountGroups) {
+    Set<IMObjectReference> getProductDiscounts(Product product, Date date, DiscountGroups discountGroups) {
         EntityBean bean = new EntityBean(product, service);
         Set<IMObjectReference> discounts = new HashSet<IMObjectReference>();
         if (bean.hasNode("discounts")) {
@@ -406,7 +522,7 @@ public class DiscountRules {
                 for (EntityRelationship relationship : types) {
                     IMObjectReference srcRef = relationship.getSource();
                     if (srcRef != null) {
-                        discounts.addAll(getProductTypeDiscounts(srcRef, date, discountGroups));
+                        discounts.addAll(discountGroups.getProductTypeDiscounts(srcRef));
                     }
                 }
             }
@@ -479,18 +595,63 @@ public class DiscountRules {
         return result;
     }
 
-    private class DiscountGroups {
+    /**
+     * The tax rules for a practice.
+     */
+    private static class PracticeTaxRules {
+
+        /**
+         * The practice.
+         */
+        private final Party practice;
+
+        /**
+         * The practice version.
+         */
+        private final long version;
+
+        /**
+         * The tax rules.
+         */
+        private final CustomerTaxRules rules;
+
+        /**
+         * Constructs a {@link PracticeTaxRules}.
+         *
+         * @param practice the practice
+         * @param rules    the tax rules
+         */
+        public PracticeTaxRules(Party practice, CustomerTaxRules rules) {
+            this.practice = practice;
+            this.version = practice.getVersion();
+            this.rules = rules;
+        }
+    }
+
+    class DiscountGroups {
 
         private final Date date;
 
         private Map<IMObjectReference, List<IMObjectReference>> groups
                 = new HashMap<IMObjectReference, List<IMObjectReference>>();
 
+        private Map<IMObjectReference, Set<IMObjectReference>> productTypes
+                = new HashMap<IMObjectReference, Set<IMObjectReference>>();
+
 
         public DiscountGroups(Date date) {
             this.date = date;
         }
 
+        public Set<IMObjectReference> getProductTypeDiscounts(IMObjectReference ref) {
+            Set<IMObjectReference> result = productTypes.get(ref);
+            if (result == null) {
+                result = DiscountRules.this.getProductTypeDiscounts(ref, date, this);
+                productTypes.put(ref, result);
+            }
+            return result;
+        }
+
         public List<IMObjectReference> getDiscountTypes(IMObjectReference ref) {
             List<IMObjectReference> result = groups.get(ref);
             if (result == null) {
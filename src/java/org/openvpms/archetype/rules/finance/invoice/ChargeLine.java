@@ -0,0 +1,87 @@
+/*
+ * Version: 1.0
+ *
+ * The contents of this file are subject to the OpenVPMS License Version
+ * 1.0 (the 'License'); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.openvpms.org/license/
+ *
+ * Software distributed under the License is distributed on an 'AS IS' basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * Copyright 2014 (C) OpenVPMS Ltd. All Rights Reserved.
+ */
+
+package org.openvpms.archetype.rules.finance.invoice;
+
+import org.openvpms.component.business.domain.im.product.Product;
+
+import java.math.BigDecimal;
+import java.util.Date;
+
+/**
+ * A product to be priced by the {@link ChargePricer}.
+ *
+ * @author Tim Anderson
+ */
+public class ChargeLine {
+
+    /**
+     * The product.
+     */
+    private final Product product;
+
+    /**
+     * The quantity.
+     */
+    private final BigDecimal quantity;
+
+    /**
+     * The date, used to determine the prices and discounts.
+     */
+    private final Date date;
+
+
+    /**
+     * Constructs a {@link ChargeLine}.
+     *
+     * @param product  the product
+     * @param quantity the quantity
+     * @param date     the date, used to determine the prices and discounts
+     */
+    public ChargeLine(Product product, BigDecimal quantity, Date date) {
+        this.product = product;
+        this.quantity = quantity;
+        this.date = date;
+    }
+
+    /**
+     * Returns the product.
+     *
+     * @return the product
+     */
+    public Product getProduct() {
+        return product;
+    }
+
+    /**
+     * Returns the quantity.
+     *
+     * @return the quantity
+     */
+    public BigDecimal getQuantity() {
+        return quantity;
+    }
+
+    /**
+     * Returns the date used to determine the prices and discounts.
+     *
+     * @return the date
+     */
+    public Date getDate() {
+        return date;
+    }
+
+}
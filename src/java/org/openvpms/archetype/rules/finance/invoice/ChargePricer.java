@@ -0,0 +1,301 @@
+/*
+ * Version: 1.0
+ *
+ * The contents of this file are subject to the OpenVPMS License Version
+ * 1.0 (the 'License'); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.openvpms.org/license/
+ *
+ * Software distributed under the License is distributed on an 'AS IS' basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * Copyright 2014 (C) OpenVPMS Ltd. All Rights Reserved.
+ */
+
+package org.openvpms.archetype.rules.finance.invoice;
+
+import org.openvpms.archetype.rules.finance.discount.CustomerDiscounts;
+import org.openvpms.archetype.rules.finance.discount.DiscountRules;
+import org.openvpms.archetype.rules.finance.tax.CustomerTaxRules;
+import org.openvpms.archetype.rules.math.MathRules;
+import org.openvpms.archetype.rules.product.ProductArchetypes;
+import org.openvpms.archetype.rules.product.ProductPriceRules;
+import org.openvpms.archetype.rules.util.DateRules;
+import org.openvpms.component.business.domain.im.common.IMObjectReference;
+import org.openvpms.component.business.domain.im.lookup.Lookup;
+import org.openvpms.component.business.domain.im.party.Party;
+import org.openvpms.component.business.domain.im.product.Product;
+import org.openvpms.component.business.domain.im.product.ProductPrice;
+import org.openvpms.component.business.service.archetype.ArchetypeServiceException;
+import org.openvpms.component.business.service.archetype.IArchetypeService;
+import org.openvpms.component.business.service.lookup.ILookupService;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Determines the prices, discounts and taxes of multiple products charged to a customer and patient.
+ * <p/>
+ * This is equivalent to calling {@link ProductPriceRules#getProductPrice}, {@link CustomerTaxRules#getTaxRate} and
+ * {@link DiscountRules#calculateDiscount} for each line, but:
+ * <ul>
+ * <li>the customer tax exemptions, and customer and patient discounts are determined once</li>
+ * <li>the prices, tax rates and discounts of a product are determined once for each day it is charged on</li>
+ * <li>product type discounts and discount groups are only queried once</li>
+ * </ul>
+ * so that the no. of queries to price a large estimate or template depends on the no. of distinct products, rather
+ * than the no. of lines.
+ * <p/>
+ * Instances are not thread safe, and should be discarded once the products have been charged, as changes to
+ * products, prices, taxes and discounts aren't reflected.
+ *
+ * @author Tim Anderson
+ */
+public class ChargePricer {
+
+    /**
+     * The pricing group. May be {@code null}
+     */
+    private final Lookup group;
+
+    /**
+     * The price rules.
+     */
+    private final ProductPriceRules priceRules;
+
+    /**
+     * The tax rules.
+     */
+    private final CustomerTaxRules taxRules;
+
+    /**
+     * The customer discounts.
+     */
+    private final CustomerDiscounts discounts;
+
+    /**
+     * The customer tax exemptions.
+     */
+    private final List<Lookup> exemptions;
+
+    /**
+     * The tax rates for each product, excluding those that the customer is exempt from.
+     */
+    private final Map<IMObjectReference, Collection<Lookup>> taxRates
+            = new HashMap<IMObjectReference, Collection<Lookup>>();
+
+    /**
+     * The prices for each product, keyed on the day the product is charged.
+     */
+    private final Map<Date, Map<IMObjectReference, Prices>> prices
+            = new HashMap<Date, Map<IMObjectReference, Prices>>();
+
+
+    /**
+     * Constructs a {@link ChargePricer}.
+     *
+     * @param customer the customer
+     * @param patient  the patient. May be {@code null}
+     * @param practice the practice, for default tax classifications
+     * @param group    the pricing group. May be {@code null}
+     * @param service  the archetype service
+     * @param lookups  the lookup service
+     */
+    public ChargePricer(Party customer, Party patient, Party practice, Lookup group, IArchetypeService service,
+                        ILookupService lookups) {
+        this(customer, patient, practice, group, new ProductPriceRules(service, lookups),
+             new DiscountRules(service, lookups), service, lookups);
+    }
+
+    /**
+     * Constructs a {@link ChargePricer}.
+     *
+     * @param customer      the customer
+     * @param patient       the patient. May be {@code null}
+     * @param practice      the practice, for default tax classifications
+     * @param group         the pricing group. May be {@code null}
+     * @param priceRules    the price rules
+     * @param discountRules the discount rules
+     * @param service       the archetype service
+     * @param lookups       the lookup service
+     */
+    public ChargePricer(Party customer, Party patient, Party practice, Lookup group, ProductPriceRules priceRules,
+                        DiscountRules discountRules, IArchetypeService service, ILookupService lookups) {
+        this.group = group;
+        this.priceRules = priceRules;
+        taxRules = new CustomerTaxRules(practice, service, lookups);
+        discounts = discountRules.getCustomerDiscounts(customer, patient);
+        exemptions = taxRules.getTaxExemptions(customer);
+    }
+
+    /**
+     * Prices a list of lines.
+     *
+     * @param lines the lines to price
+     * @return the priced lines, in the same order as {@code lines}
+     * @throws ArchetypeServiceException for any archetype service error
+     */
+    public List<PricedChargeLine> price(List<ChargeLine> lines) {
+        List<PricedChargeLine> result = new ArrayList<PricedChargeLine>();
+        for (ChargeLine line : lines) {
+            result.add(price(line));
+        }
+        return result;
+    }
+
+    /**
+     * Prices a line.
+     * <p/>
+     * The total is calculated as per the <em>total</em> node of <em>act.customerAccountInvoiceItem</em>, i.e. the
+     * fixed price is only included if the quantity is positive.
+     *
+     * @param line the line to price
+     * @return the priced line
+     * @throws ArchetypeServiceException for any archetype service error
+     */
+    public PricedChargeLine price(ChargeLine line) {
+        Product product = line.getProduct();
+        Date date = line.getDate();
+        BigDecimal quantity = line.getQuantity();
+        Prices prices = getPrices(product, date);
+        Collection<Lookup> rates = getTaxRates(product);
+        BigDecimal taxRate = taxRules.getTaxRate(rates);
+        BigDecimal discount = discounts.calculateDiscount(date, product, prices.fixedCost, prices.unitCost,
+                                                          prices.fixedAmount, prices.unitAmount, quantity,
+                                                          prices.maxFixedDiscount, prices.maxUnitDiscount, taxRate);
+        BigDecimal fixedAmount = (quantity.compareTo(BigDecimal.ZERO) > 0) ? prices.fixedAmount : BigDecimal.ZERO;
+        BigDecimal total = MathRules.round(fixedAmount.subtract(discount).add(quantity.multiply(prices.unitAmount)));
+        BigDecimal tax = taxRules.calculateTax(total, rates, true);
+        return new PricedChargeLine(line, prices.fixedPrice, prices.unitPrice, discount, taxRate, tax, total);
+    }
+
+    /**
+     * Returns the prices of a product.
+     *
+     * @param product the product
+     * @param date    the date
+     * @return the prices
+     */
+    private Prices getPrices(Product product, Date date) {
+        Date day = DateRules.getDate(date);
+        Map<IMObjectReference, Prices> map = prices.get(day);
+        if (map == null) {
+            map = new HashMap<IMObjectReference, Prices>();
+            prices.put(day, map);
+        }
+        Prices result = map.get(product.getObjectReference());
+        if (result == null) {
+            result = new Prices(product, date);
+            map.put(product.getObjectReference(), result);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the tax rates of a product, excluding those that the customer is exempt from.
+     *
+     * @param product the product
+     * @return the tax rates
+     */
+    private Collection<Lookup> getTaxRates(Product product) {
+        Collection<Lookup> result = taxRates.get(product.getObjectReference());
+        if (result == null) {
+            result = new ArrayList<Lookup>(taxRules.getProductTaxRates(product));
+            result.removeAll(exemptions);
+            taxRates.put(product.getObjectReference(), result);
+        }
+        return result;
+    }
+
+    /**
+     * The fixed and unit prices of a product.
+     */
+    private class Prices {
+
+        /**
+         * The fixed price. May be {@code null}
+         */
+        private final ProductPrice fixedPrice;
+
+        /**
+         * The unit price. May be {@code null}
+         */
+        private final ProductPrice unitPrice;
+
+        /**
+         * The fixed price amount.
+         */
+        private final BigDecimal fixedAmount;
+
+        /**
+         * The fixed price cost.
+         */
+        private final BigDecimal fixedCost;
+
+        /**
+         * The fixed price maximum discount.
+         */
+        private final BigDecimal maxFixedDiscount;
+
+        /**
+         * The unit price amount.
+         */
+        private final BigDecimal unitAmount;
+
+        /**
+         * The unit price cost.
+         */
+        private final BigDecimal unitCost;
+
+        /**
+         * The unit price maximum discount.
+         */
+        private final BigDecimal maxUnitDiscount;
+
+        /**
+         * Constructs a {@link Prices}.
+         *
+         * @param product the product
+         * @param date    the date
+         */
+        public Prices(Product product, Date date) {
+            fixedPrice = priceRules.getProductPrice(product, ProductArchetypes.FIXED_PRICE, date, group);
+            unitPrice = priceRules.getProductPrice(product, ProductArchetypes.UNIT_PRICE, date, group);
+            fixedAmount = getAmount(fixedPrice);
+            fixedCost = (fixedPrice != null) ? priceRules.getCostPrice(fixedPrice) : BigDecimal.ZERO;
+            maxFixedDiscount = getMaxDiscount(fixedPrice);
+            unitAmount = getAmount(unitPrice);
+            unitCost = (unitPrice != null) ? priceRules.getCostPrice(unitPrice) : BigDecimal.ZERO;
+            maxUnitDiscount = getMaxDiscount(unitPrice);
+        }
+
+        /**
+         * Returns the amount of a price.
+         *
+         * @param price the price. May be {@code null}
+         * @return the price amount, or {@code 0} if the price is {@code null}
+         */
+        private BigDecimal getAmount(ProductPrice price) {
+            BigDecimal result = (price != null) ? price.getPrice() : null;
+            return (result != null) ? result : BigDecimal.ZERO;
+        }
+
+        /**
+         * Returns the maximum discount of a price.
+         *
+         * @param price the price. May be {@code null}
+         * @return the maximum discount
+         */
+        private BigDecimal getMaxDiscount(ProductPrice price) {
+            return (price != null) ? priceRules.getMaxDiscount(price) : ProductPriceRules.DEFAULT_MAX_DISCOUNT;
+        }
+    }
+
+}
@@ -0,0 +1,180 @@
+/*
+ * Version: 1.0
+ *
+ * The contents of this file are subject to the OpenVPMS License Version
+ * 1.0 (the 'License'); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.openvpms.org/license/
+ *
+ * Software distributed under the License is distributed on an 'AS IS' basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * Copyright 2014 (C) OpenVPMS Ltd. All Rights Reserved.
+ */
+
+package org.openvpms.archetype.rules.finance.invoice;
+
+import org.openvpms.component.business.domain.im.product.ProductPrice;
+
+import java.math.BigDecimal;
+
+/**
+ * The prices, discount and tax of a {@link ChargeLine}, as determined by the {@link ChargePricer}.
+ *
+ * @author Tim Anderson
+ */
+public class PricedChargeLine {
+
+    /**
+     * The line.
+     */
+    private final ChargeLine line;
+
+    /**
+     * The fixed price. May be {@code null}
+     */
+    private final ProductPrice fixedPrice;
+
+    /**
+     * The unit price. May be {@code null}
+     */
+    private final ProductPrice unitPrice;
+
+    /**
+     * The discount.
+     */
+    private final BigDecimal discount;
+
+    /**
+     * The tax rate, expressed as a percentage.
+     */
+    private final BigDecimal taxRate;
+
+    /**
+     * The tax.
+     */
+    private final BigDecimal tax;
+
+    /**
+     * The total, tax inclusive.
+     */
+    private final BigDecimal total;
+
+
+    /**
+     * Constructs a {@link PricedChargeLine}.
+     *
+     * @param line       the line
+     * @param fixedPrice the fixed price. May be {@code null}
+     * @param unitPrice  the unit price. May be {@code null}
+     * @param discount   the discount
+     * @param taxRate    the tax rate, expressed as a percentage
+     * @param tax        the tax
+     * @param total      the total, tax inclusive
+     */
+    public PricedChargeLine(ChargeLine line, ProductPrice fixedPrice, ProductPrice unitPrice, BigDecimal discount,
+                            BigDecimal taxRate, BigDecimal tax, BigDecimal total) {
+        this.line = line;
+        this.fixedPrice = fixedPrice;
+        this.unitPrice = unitPrice;
+        this.discount = discount;
+        this.taxRate = taxRate;
+        this.tax = tax;
+        this.total = total;
+    }
+
+    /**
+     * Returns the line.
+     *
+     * @return the line
+     */
+    public ChargeLine getLine() {
+        return line;
+    }
+
+    /**
+     * Returns the fixed price.
+     *
+     * @return the fixed price. May be {@code null}
+     */
+    public ProductPrice getFixedPrice() {
+        return fixedPrice;
+    }
+
+    /**
+     * Returns the fixed price amount.
+     *
+     * @return the fixed price amount, or {@code 0} if the product has no fixed price
+     */
+    public BigDecimal getFixedAmount() {
+        return getAmount(fixedPrice);
+    }
+
+    /**
+     * Returns the unit price.
+     *
+     * @return the unit price. May be {@code null}
+     */
+    public ProductPrice getUnitPrice() {
+        return unitPrice;
+    }
+
+    /**
+     * Returns the unit price amount.
+     *
+     * @return the unit price amount, or {@code 0} if the product has no unit price
+     */
+    public BigDecimal getUnitAmount() {
+        return getAmount(unitPrice);
+    }
+
+    /**
+     * Returns the discount.
+     *
+     * @return the discount
+     */
+    public BigDecimal getDiscount() {
+        return discount;
+    }
+
+    /**
+     * Returns the tax rate.
+     *
+     * @return the tax rate, expressed as a percentage
+     */
+    public BigDecimal getTaxRate() {
+        return taxRate;
+    }
+
+    /**
+     * Returns the tax.
+     *
+     * @return the tax
+     */
+    public BigDecimal getTax() {
+        return tax;
+    }
+
+    /**
+     * Returns the total.
+     *
+     * @return the total, tax inclusive
+     */
+    public BigDecimal getTotal() {
+        return total;
+    }
+
+    /**
+     * Returns the amount of a price.
+     *
+     * @param price the price. May be {@code null}
+     * @return the price amount, or {@code 0} if the price is {@code null}
+     */
+    private BigDecimal getAmount(ProductPrice price) {
+        BigDecimal result = (price != null) ? price.getPrice() : null;
+        return (result != null) ? result : BigDecimal.ZERO;
+    }
+
+}
@@ -0,0 +1,111 @@
+/*
+ * Version: 1.0
+ *
+ * The contents of this file are subject to the OpenVPMS License Version
+ * 1.0 (the 'License'); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.openvpms.org/license/
+ *
+ * Software distributed under the License is distributed on an 'AS IS' basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * Copyright 2014 (C) OpenVPMS Ltd. All Rights Reserved.
+ */
+
+package org.openvpms.archetype.rules.finance.statement;
+
+import org.openvpms.archetype.rules.util.DateRules;
+import org.openvpms.component.business.service.archetype.ArchetypeServiceException;
+import org.openvpms.component.business.service.archetype.IArchetypeService;
+import org.openvpms.component.system.common.query.ArchetypeQuery;
+import org.openvpms.component.system.common.query.NamedQuery;
+import org.openvpms.component.system.common.query.ObjectSet;
+import org.openvpms.component.system.common.query.ObjectSetQueryIterator;
+
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+
+/**
+ * Determines the customers that have account activity for a statement date, using a single set-based query rather
+ * than querying each customer.
+ * <p/>
+ * A customer is active if:
+ * <ul>
+ * <li>their opening balance prior to the statement date is non-zero; or</li>
+ * <li>they have an account act between the opening balance and the end of the statement date; or</li>
+ * <li>they have a closing balance on or after the statement date</li>
+ * </ul>
+ * Customers that aren't active don't require end-of-period processing, and have no statement to print, so may be
+ * skipped by the {@link EndOfPeriodProcessor} and {@link StatementProcessor}.
+ * <p/>
+ * The latest opening balance for each customer is determined in the database, so only the ids of active customers
+ * are returned, rather than every opening balance and account act.
+ *
+ * @author Tim Anderson
+ */
+public class AccountActivityQuery {
+
+    /**
+     * The statement date timestamp.
+     */
+    private final Date timestamp;
+
+    /**
+     * The archetype service.
+     */
+    private final IArchetypeService service;
+
+
+    /**
+     * Constructs an {@link AccountActivityQuery}.
+     *
+     * @param statementDate the statement date
+     * @param service       the archetype service
+     */
+    public AccountActivityQuery(Date statementDate, IArchetypeService service) {
+        this.service = service;
+        timestamp = new StatementActHelper(service).getStatementTimestamp(statementDate);
+    }
+
+    /**
+     * Returns the ids of customers with account activity for the statement date.
+     *
+     * @return the customer ids
+     * @throws ArchetypeServiceException for any archetype service error
+     */
+    public Set<Long> query() {
+        Set<Long> result = new HashSet<Long>();
+        NamedQuery query = new NamedQuery("getActiveCustomers", Arrays.asList("id"));
+        query.setParameter("statementTime", timestamp);
+        query.setParameter("endTime", getEndTimestamp());
+        query.setParameter("statementDate", DateRules.getDate(timestamp));
+        query.setMaxResults(ArchetypeQuery.ALL_RESULTS);
+        Iterator<ObjectSet> iterator = new ObjectSetQueryIterator(service, query);
+        while (iterator.hasNext()) {
+            result.add(iterator.next().getLong("id"));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the timestamp following the statement date, up to which account activity is examined.
+     * <p/>
+     * This corresponds to the closing balance timestamp used by {@link StatementPeriod} when there is no statement.
+     *
+     * @return the timestamp
+     */
+    private Date getEndTimestamp() {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTime(timestamp);
+        calendar.add(Calendar.SECOND, 2);
+        return calendar.getTime();
+    }
+
+}
@@ -0,0 +1,500 @@
+/*
+ * Version: 1.0
+ *
+ * The contents of this file are subject to the OpenVPMS License Version
+ * 1.0 (the 'License'); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.openvpms.org/license/
+ *
+ * Software distributed under the License is distributed on an 'AS IS' basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * Copyright 2014 (C) OpenVPMS Ltd. All Rights Reserved.
+ */
+
+package org.openvpms.archetype.rules.finance.statement;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openvpms.archetype.component.processor.AbstractBatchProcessor;
+import org.openvpms.archetype.rules.finance.account.CustomerAccountRules;
+import org.openvpms.component.business.domain.im.common.IMObjectReference;
+import org.openvpms.component.business.domain.im.party.Party;
+import org.openvpms.component.business.service.archetype.IArchetypeService;
+import org.openvpms.component.business.service.lookup.ILookupService;
+import org.openvpms.component.system.common.query.ArchetypeQuery;
+import org.openvpms.component.system.common.query.IMObjectQueryIterator;
+import org.openvpms.component.system.common.query.NodeConstraint;
+import org.openvpms.component.system.common.query.NodeSortConstraint;
+import org.openvpms.component.system.common.query.ObjectRefSelectConstraint;
+import org.openvpms.component.system.common.query.ObjectSet;
+import org.openvpms.component.system.common.query.ObjectSetQueryIterator;
+import org.openvpms.component.system.common.query.RelationalOp;
+import org.openvpms.component.system.common.query.ShortNameConstraint;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import static org.openvpms.archetype.rules.finance.statement.EndOfPeriodStatistics.Stage.COMMIT;
+import static org.openvpms.archetype.rules.finance.statement.EndOfPeriodStatistics.Stage.LOAD;
+import static org.openvpms.archetype.rules.finance.statement.EndOfPeriodStatistics.Stage.PROCESS;
+import static org.openvpms.archetype.rules.finance.statement.EndOfPeriodStatistics.Stage.QUERY;
+import static org.openvpms.component.system.common.query.Constraints.gt;
+
+
+/**
+ * Performs end-of-period for multiple customers in parallel.
+ * <p/>
+ * Customers are partitioned into batches which are submitted to an {@code ExecutorService}. Each batch is processed
+ * by an {@link EndOfPeriodProcessor} in a single transaction. If a batch fails, its customers are reprocessed in
+ * separate transactions, so that a single customer can't prevent end-of-period for the others. Batches run with the
+ * authentication of the thread that invokes {@link #process()}.
+ * <p/>
+ * Customers must be supplied in ascending id order. On completion, {@link #getLastId()} returns the id of the last
+ * customer for which it, and all preceding customers, were successfully processed. This is not persisted; callers
+ * that record it can process the remaining customers via {@link #getCustomers(long, IArchetypeService)}.
+ * Reprocessing a customer is harmless, as {@link EndOfPeriodProcessor} skips customers that already have a statement
+ * for the statement date.
+ *
+ * @author Tim Anderson
+ */
+public class EndOfPeriodBatchProcessor extends AbstractBatchProcessor {
+
+    /**
+     * The customers to process.
+     */
+    private final Iterator<IMObjectReference> customers;
+
+    /**
+     * The statement date.
+     */
+    private final Date statementDate;
+
+    /**
+     * If {@code true}, post completed charges.
+     */
+    private final boolean postCompletedCharges;
+
+    /**
+     * The practice.
+     */
+    private final Party practice;
+
+    /**
+     * The archetype service.
+     */
+    private final IArchetypeService service;
+
+    /**
+     * The lookup service.
+     */
+    private final ILookupService lookups;
+
+    /**
+     * The customer account rules.
+     */
+    private final CustomerAccountRules rules;
+
+    /**
+     * The transaction manager.
+     */
+    private final PlatformTransactionManager transactionManager;
+
+    /**
+     * The executor to process batches.
+     */
+    private final ExecutorService executor;
+
+    /**
+     * The timing statistics.
+     */
+    private final EndOfPeriodStatistics statistics = new EndOfPeriodStatistics();
+
+    /**
+     * The customers that couldn't be processed, and the reason why.
+     */
+    private final Map<IMObjectReference, Throwable> failures = new LinkedHashMap<IMObjectReference, Throwable>();
+
+    /**
+     * The no. of customers to process in each transaction.
+     */
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    /**
+     * The id of the last customer for which it, and all preceding customers, were successfully processed.
+     */
+    private long lastId = -1;
+
+    /**
+     * The authentication to process batches with.
+     */
+    private Authentication authentication;
+
+    /**
+     * The default batch size.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 100;
+
+    /**
+     * The logger.
+     */
+    private static final Log log = LogFactory.getLog(EndOfPeriodBatchProcessor.class);
+
+
+    /**
+     * Constructs an {@link EndOfPeriodBatchProcessor}.
+     *
+     * @param customers            the customers to process, in ascending id order
+     * @param statementDate        the statement date. Must be a date prior to today.
+     * @param postCompletedCharges if {@code true}, post completed charges
+     * @param practice             the practice
+     * @param service              the archetype service
+     * @param lookups              the lookup service
+     * @param rules                the customer account rules
+     * @param transactionManager   the transaction manager
+     * @param executor             the executor to process batches
+     * @throws StatementProcessorException if the statement date is invalid
+     * @throws IllegalArgumentException    if a required argument is {@code null}
+     */
+    public EndOfPeriodBatchProcessor(Iterator<IMObjectReference> customers, Date statementDate,
+                                     boolean postCompletedCharges, Party practice, IArchetypeService service,
+                                     ILookupService lookups, CustomerAccountRules rules,
+                                     PlatformTransactionManager transactionManager, ExecutorService executor) {
+        if (customers == null || statementDate == null || practice == null || service == null || lookups == null
+            || rules == null || transactionManager == null || executor == null) {
+            throw new IllegalArgumentException("Arguments must be non-null");
+        }
+        // validate the statement date up front, rather than in each batch
+        EndOfPeriodProcessor.checkStatementDate(statementDate);
+        this.customers = customers;
+        this.statementDate = statementDate;
+        this.postCompletedCharges = postCompletedCharges;
+        this.practice = practice;
+        this.service = service;
+        this.lookups = lookups;
+        this.rules = rules;
+        this.transactionManager = transactionManager;
+        this.executor = executor;
+    }
+
+    /**
+     * Sets the no. of customers to process in each transaction.
+     *
+     * @param batchSize the batch size
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("Argument 'batchSize' must be > 0");
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Returns the no. of customers to process in each transaction.
+     *
+     * @return the batch size
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Processes the customers, and notifies the listener (if any) on completion.
+     * <p/>
+     * Batches are processed with the caller's authentication.
+     */
+    public void process() {
+        List<Future<BatchResult>> batches = new ArrayList<Future<BatchResult>>();
+        authentication = SecurityContextHolder.getContext().getAuthentication();
+        try {
+            List<IMObjectReference> batch = new ArrayList<IMObjectReference>();
+            long start = System.nanoTime();
+            while (customers.hasNext()) {
+                batch.add(customers.next());
+                if (batch.size() == batchSize) {
+                    start = statistics.add(QUERY, start);
+                    batches.add(executor.submit(new Batch(batch)));
+                    batch = new ArrayList<IMObjectReference>();
+                }
+            }
+            statistics.add(QUERY, start);
+            if (!batch.isEmpty()) {
+                batches.add(executor.submit(new Batch(batch)));
+            }
+            for (Future<BatchResult> future : batches) {
+                BatchResult result = future.get();
+                incProcessed(result.processed);
+                if (failures.isEmpty() && result.failures.isEmpty()) {
+                    lastId = result.lastId;
+                }
+                failures.putAll(result.failures);
+            }
+            if (log.isInfoEnabled()) {
+                log.info("End-of-period processed " + getProcessed() + " customers with " + failures.size()
+                         + " failures: " + statistics);
+            }
+            notifyCompleted();
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            cancel(batches);
+            notifyError(exception);
+        } catch (ExecutionException exception) {
+            cancel(batches);
+            notifyError(exception.getCause());
+        } catch (Throwable exception) {
+            cancel(batches);
+            notifyError(exception);
+        }
+    }
+
+    /**
+     * Returns the id of the last customer for which it, and all preceding customers, were successfully processed.
+     * <p/>
+     * This is only held in memory. To process the remaining customers after a failure, the caller must record it
+     * and supply the customers following it to a new processor.
+     *
+     * @return the customer id, or {@code -1} if no customers were successfully processed
+     */
+    public long getLastId() {
+        return lastId;
+    }
+
+    /**
+     * Returns the customers that couldn't be processed.
+     *
+     * @return the customers that couldn't be processed, and the reason why
+     */
+    public Map<IMObjectReference, Throwable> getFailures() {
+        return Collections.unmodifiableMap(failures);
+    }
+
+    /**
+     * Returns the timing statistics.
+     *
+     * @return the statistics
+     */
+    public EndOfPeriodStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Returns all customers with an id greater than that specified, in ascending id order.
+     *
+     * @param lastId  the id of the last customer processed, or {@code -1} to return all customers
+     * @param service the archetype service
+     * @return the customers
+     */
+    public static Iterator<IMObjectReference> getCustomers(long lastId, IArchetypeService service) {
+        ArchetypeQuery query = new ArchetypeQuery(new ShortNameConstraint("customer", "party.customer*", true,
+                                                                          false));
+        query.add(new ObjectRefSelectConstraint("customer"));
+        query.add(gt("id", lastId));
+        query.add(new NodeSortConstraint("id"));
+        query.setMaxResults(1000);
+        final Iterator<ObjectSet> iterator = new ObjectSetQueryIterator(service, query);
+        return new Iterator<IMObjectReference>() {
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            public IMObjectReference next() {
+                return iterator.next().getReference("customer.reference");
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Creates a processor to perform end-of-period for a batch.
+     * <p/>
+     * This is invoked by the thread processing the batch.
+     *
+     * @return a new processor
+     */
+    protected EndOfPeriodProcessor createProcessor() {
+        return new EndOfPeriodProcessor(statementDate, postCompletedCharges, practice, service, lookups, rules);
+    }
+
+    /**
+     * Cancels outstanding batches.
+     *
+     * @param batches the batches
+     */
+    private void cancel(List<Future<BatchResult>> batches) {
+        for (Future<BatchResult> batch : batches) {
+            batch.cancel(false);
+        }
+    }
+
+    /**
+     * The result of processing a batch.
+     */
+    private static class BatchResult {
+
+        /**
+         * The id of the last customer in the batch.
+         */
+        private final long lastId;
+
+        /**
+         * The no. of customers successfully processed.
+         */
+        private final int processed;
+
+        /**
+         * The customers that couldn't be processed.
+         */
+        private final Map<IMObjectReference, Throwable> failures;
+
+        /**
+         * Constructs a {@link BatchResult}.
+         *
+         * @param lastId    the id of the last customer in the batch
+         * @param processed the no. of customers successfully processed
+         * @param failures  the customers that couldn't be processed
+         */
+        public BatchResult(long lastId, int processed, Map<IMObjectReference, Throwable> failures) {
+            this.lastId = lastId;
+            this.processed = processed;
+            this.failures = failures;
+        }
+    }
+
+    /**
+     * Processes a batch of customers.
+     */
+    private class Batch implements Callable<BatchResult> {
+
+        /**
+         * The customers.
+         */
+        private final List<IMObjectReference> customers;
+
+        /**
+         * Constructs a {@link Batch}.
+         *
+         * @param customers the customers
+         */
+        public Batch(List<IMObjectReference> customers) {
+            this.customers = customers;
+        }
+
+        /**
+         * Processes the batch, using the authentication of the thread that submitted it.
+         * <p/>
+         * The security context of the executing thread is restored on completion, so that pooled threads don't
+         * retain the authentication.
+         *
+         * @return the result
+         */
+        public BatchResult call() {
+            SecurityContext previous = SecurityContextHolder.getContext();
+            SecurityContext context = SecurityContextHolder.createEmptyContext();
+            context.setAuthentication(authentication);
+            SecurityContextHolder.setContext(context);
+            try {
+                return process();
+            } finally {
+                if (previous.getAuthentication() != null) {
+                    SecurityContextHolder.setContext(previous);
+                } else {
+                    SecurityContextHolder.clearContext();
+                }
+            }
+        }
+
+        /**
+         * Processes the batch.
+         *
+         * @return the result
+         */
+        private BatchResult process() {
+            final EndOfPeriodProcessor processor = createProcessor();
+            Map<IMObjectReference, Throwable> errors = new HashMap<IMObjectReference, Throwable>();
+            int processed;
+            TransactionTemplate template = new TransactionTemplate(transactionManager);
+            try {
+                final long[] start = {System.nanoTime()};
+                template.execute(new TransactionCallbackWithoutResult() {
+                    @Override
+                    protected void doInTransactionWithoutResult(TransactionStatus status) {
+                        List<Party> list = load();
+                        start[0] = statistics.add(LOAD, start[0]);
+                        processor.process(list);
+                        start[0] = statistics.add(PROCESS, start[0]);
+                    }
+                });
+                statistics.add(COMMIT, start[0]);
+                processed = customers.size();
+            } catch (Throwable exception) {
+                log.warn("End-of-period failed for batch, processing customers individually", exception);
+                processed = 0;
+                for (final IMObjectReference reference : customers) {
+                    try {
+                        long start = System.nanoTime();
+                        template.execute(new TransactionCallbackWithoutResult() {
+                            @Override
+                            protected void doInTransactionWithoutResult(TransactionStatus status) {
+                                Party customer = (Party) service.get(reference);
+                                if (customer != null) {
+                                    processor.process(customer);
+                                }
+                            }
+                        });
+                        statistics.add(PROCESS, start);
+                        ++processed;
+                    } catch (Throwable error) {
+                        log.error("End-of-period failed for customer " + reference, error);
+                        errors.put(reference, error);
+                    }
+                }
+            }
+            return new BatchResult(customers.get(customers.size() - 1).getId(), processed, errors);
+        }
+
+        /**
+         * Loads the customers in a single query.
+         *
+         * @return the customers, in ascending id order
+         */
+        private List<Party> load() {
+            Object[] ids = new Object[customers.size()];
+            for (int i = 0; i < ids.length; ++i) {
+                ids[i] = customers.get(i).getId();
+            }
+            ArchetypeQuery query = new ArchetypeQuery("party.customer*", false, false);
+            query.add(new NodeConstraint("id", RelationalOp.IN, ids));
+            query.add(new NodeSortConstraint("id"));
+            query.setMaxResults(ArchetypeQuery.ALL_RESULTS);
+            List<Party> result = new ArrayList<Party>();
+            Iterator<Party> iterator = new IMObjectQueryIterator<Party>(service, query);
+            while (iterator.hasNext()) {
+                result.add(iterator.next());
+            }
+            return result;
+        }
+    }
+
+}
@@ -31,9 +31,13 @@ import org.openvpms.component.business.service.lookup.ILookupService;
 import org.openvpms.component.system.common.exception.OpenVPMSException;
 
 import java.math.BigDecimal;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import static org.openvpms.archetype.rules.finance.account.CustomerAccountArchetypes.CLOSING_BALANCE;
 import static org.openvpms.archetype.rules.finance.account.CustomerAccountArchetypes.OPENING_BALANCE;
@@ -95,6 +99,11 @@ public class EndOfPeriodProcessor implements Processor<Party> {
      */
     private final StatementRules statement;
 
+    /**
+     * The ids of the customers with account activity, or {@code null} if all customers should be processed.
+     */
+    private Set<Long> activeCustomers;
+
 
     /**
      * Creates a new <tt>EndOfPeriodProcessor</tt>.
@@ -111,17 +120,38 @@ public class EndOfPeriodProcessor implements Processor<Party> {
     public EndOfPeriodProcessor(Date statementDate, boolean postCompletedCharges, Party practice,
                                 IArchetypeService service, ILookupService lookups, CustomerAccountRules rules) {
         this.service = service;
+        checkStatementDate(statementDate);
+        acts = new StatementActHelper(service);
+        account = rules;
+        statement = new StatementRules(practice, service, lookups, rules);
+        timestamp = acts.getStatementTimestamp(statementDate);
+        this.postCompletedCharges = postCompletedCharges;
+    }
+
+    /**
+     * Verifies that a statement date is prior to today.
+     *
+     * @param statementDate the statement date
+     * @throws StatementProcessorException if the statement date is invalid
+     */
+    static void checkStatementDate(Date statementDate) {
         Calendar calendar = Calendar.getInstance();
         calendar.add(Calendar.DATE, -1);
         if (calendar.getTime().compareTo(statementDate) < 0) {
             throw new StatementProcessorException(InvalidStatementDate,
                                                   statementDate);
         }
-        acts = new StatementActHelper(service);
-        account = rules;
-        statement = new StatementRules(practice, service, lookups, rules);
-        timestamp = acts.getStatementTimestamp(statementDate);
-        this.postCompletedCharges = postCompletedCharges;
+    }
+
+    /**
+     * Sets the ids of the customers with account activity, as determined by {@link AccountActivityQuery}.
+     * <p/>
+     * Customers not in the set are skipped, without querying their accounts.
+     *
+     * @param customers the customer ids, or {@code null} to process all customers
+     */
+    public void setActiveCustomers(Set<Long> customers) {
+        activeCustomers = customers;
     }
 
     /**
@@ -131,8 +161,41 @@ public class EndOfPeriodProcessor implements Processor<Party> {
      * @throws OpenVPMSException for any error
      */
     public void process(Party customer) {
-        StatementPeriod period = new StatementPeriod(customer, timestamp,
-                                                     acts);
+        if (isActive(customer)) {
+            process(customer, new StatementPeriod(customer, timestamp, acts));
+        }
+    }
+
+    /**
+     * Processes a list of customers.
+     * <p/>
+     * This determines the statement periods of all of the customers in bulk,
+     * rather than querying them for each customer.
+     *
+     * @param customers the customers to process
+     * @throws OpenVPMSException for any error
+     */
+    public void process(List<Party> customers) {
+        List<Party> active = new ArrayList<Party>();
+        for (Party customer : customers) {
+            if (isActive(customer)) {
+                active.add(customer);
+            }
+        }
+        Map<Long, StatementPeriod> periods = acts.getStatementPeriods(active, timestamp);
+        for (Party customer : active) {
+            process(customer, periods.get(customer.getId()));
+        }
+    }
+
+    /**
+     * Processes a customer.
+     *
+     * @param customer the customer to process
+     * @param period   the customer's statement period
+     * @throws OpenVPMSException for any error
+     */
+    private void process(Party customer, StatementPeriod period) {
         if (!period.hasStatement()) {
             boolean needStatement = false;
             Date open = period.getOpeningBalanceTimestamp();
@@ -166,6 +229,17 @@ public class EndOfPeriodProcessor implements Processor<Party> {
         }
     }
 
+    /**
+     * Determines if a customer has account activity.
+     *
+     * @param customer the customer
+     * @return <tt>true</tt> if the customer has account activity, or no
+     *         activity filter has been set
+     */
+    private boolean isActive(Party customer) {
+        return activeCustomers == null || activeCustomers.contains(customer.getId());
+    }
+
     /**
      * Generates an <em>act.customerAccountClosingBalance</em> and
      * <em>act.customerAccountOpeningBalance</em> for the specified customer.
@@ -0,0 +1,104 @@
+/*
+ * Version: 1.0
+ *
+ * The contents of this file are subject to the OpenVPMS License Version
+ * 1.0 (the 'License'); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.openvpms.org/license/
+ *
+ * Software distributed under the License is distributed on an 'AS IS' basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * Copyright 2014 (C) OpenVPMS Ltd. All Rights Reserved.
+ */
+
+package org.openvpms.archetype.rules.finance.statement;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Timing statistics for an {@link EndOfPeriodBatchProcessor} run.
+ * <p/>
+ * Times are accumulated across all worker threads, so may exceed the elapsed time of the run.
+ * <p/>
+ * Instances are thread safe.
+ *
+ * @author Tim Anderson
+ */
+public class EndOfPeriodStatistics {
+
+    /**
+     * The stages of end-of-period processing.
+     */
+    public enum Stage {
+        QUERY,      // querying the customers to process
+        LOAD,       // loading a batch of customers
+        PROCESS,    // performing end-of-period for each customer in a batch
+        COMMIT      // committing a batch
+    }
+
+    /**
+     * The accumulated time for each stage, in nanoseconds.
+     */
+    private final AtomicLongArray times = new AtomicLongArray(Stage.values().length);
+
+    /**
+     * The no. of times each stage has been performed.
+     */
+    private final AtomicLongArray counts = new AtomicLongArray(Stage.values().length);
+
+
+    /**
+     * Returns the accumulated time for a stage.
+     *
+     * @param stage the stage
+     * @return the time, in milliseconds
+     */
+    public long getTime(Stage stage) {
+        return times.get(stage.ordinal()) / 1000000;
+    }
+
+    /**
+     * Returns the no. of times a stage has been performed.
+     *
+     * @param stage the stage
+     * @return the no. of times the stage has been performed
+     */
+    public long getCount(Stage stage) {
+        return counts.get(stage.ordinal());
+    }
+
+    /**
+     * Returns a string representation of the statistics.
+     *
+     * @return the statistics as a string
+     */
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder();
+        for (Stage stage : Stage.values()) {
+            if (result.length() != 0) {
+                result.append(", ");
+            }
+            result.append(stage).append("=").append(getTime(stage)).append("ms/").append(getCount(stage));
+        }
+        return result.toString();
+    }
+
+    /**
+     * Adds the time taken to perform a stage.
+     *
+     * @param stage the stage
+     * @param start the stage start time, as returned by {@link System#nanoTime()}
+     * @return the current time, as returned by {@link System#nanoTime()}
+     */
+    long add(Stage stage, long start) {
+        long now = System.nanoTime();
+        times.addAndGet(stage.ordinal(), now - start);
+        counts.incrementAndGet(stage.ordinal());
+        return now;
+    }
+
+}
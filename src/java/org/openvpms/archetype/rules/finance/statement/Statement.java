@@ -21,6 +21,8 @@ package org.openvpms.archetype.rules.finance.statement;
 import org.openvpms.component.business.domain.im.act.Act;
 import org.openvpms.component.business.domain.im.party.Contact;
 import org.openvpms.component.business.domain.im.party.Party;
+import org.openvpms.component.business.service.archetype.ArchetypeServiceHelper;
+import org.openvpms.component.business.service.archetype.IArchetypeService;
 
 import java.util.Date;
 import java.util.List;
@@ -70,6 +72,11 @@ public class Statement {
      */
     private final boolean printed;
 
+    /**
+     * The archetype service, used to prefetch act items. May be <tt>null</tt>
+     */
+    private final IArchetypeService service;
+
 
     /**
      * Constructs a new <tt>Statement</tt>.
@@ -89,6 +96,30 @@ public class Statement {
                      Date statementDate, Date openingBalanceTimestamp,
                      Date closingBalanceTimestamp, Iterable<Act> acts,
                      boolean printed) {
+        this(customer, contacts, statementDate, openingBalanceTimestamp,
+             closingBalanceTimestamp, acts, printed, null);
+    }
+
+    /**
+     * Constructs a new <tt>Statement</tt>.
+     *
+     * @param customer                the customer
+     * @param contacts                the preferred contacts
+     * @param statementDate           the statement date
+     * @param openingBalanceTimestamp the opening balance timestamp.
+     *                                May be <tt>null</tt>
+     * @param closingBalanceTimestamp the closing balance timestamp.
+     *                                May be <tt>null</tt>
+     * @param acts                    all statement for the statement period
+     * @param printed                 determines if the statement has already
+     *                                been printed
+     * @param service                 the archetype service. May be
+     *                                <tt>null</tt>
+     */
+    public Statement(Party customer, List<Contact> contacts,
+                     Date statementDate, Date openingBalanceTimestamp,
+                     Date closingBalanceTimestamp, Iterable<Act> acts,
+                     boolean printed, IArchetypeService service) {
         this.customer = customer;
         this.contacts = contacts;
         this.statementDate = statementDate;
@@ -96,6 +127,7 @@ public class Statement {
         this.closingBalanceTimestamp = closingBalanceTimestamp;
         this.acts = acts;
         this.printed = printed;
+        this.service = service;
     }
 
     /**
@@ -185,4 +217,19 @@ public class Statement {
         return acts;
     }
 
+    /**
+     * Returns the statement acts for the statement period, along with their
+     * items, and the products and patients that the items refer to.
+     * <p/>
+     * These are fetched in bulk a page of acts at a time, avoiding a query
+     * per item.
+     *
+     * @return the statement acts
+     */
+    public Iterable<StatementAct> getStatementActs() {
+        IArchetypeService archetypeService = (service != null) ? service
+                : ArchetypeServiceHelper.getArchetypeService();
+        return new StatementActs(acts, archetypeService);
+    }
+
 }
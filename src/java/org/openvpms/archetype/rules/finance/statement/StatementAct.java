@@ -0,0 +1,128 @@
+/*
+ * Version: 1.0
+ *
+ * The contents of this file are subject to the OpenVPMS License Version
+ * 1.0 (the 'License'); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.openvpms.org/license/
+ *
+ * Software distributed under the License is distributed on an 'AS IS' basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * Copyright 2014 (C) OpenVPMS Ltd. All Rights Reserved.
+ */
+
+package org.openvpms.archetype.rules.finance.statement;
+
+import org.openvpms.archetype.rules.patient.PatientArchetypes;
+import org.openvpms.archetype.rules.product.ProductArchetypes;
+import org.openvpms.component.business.domain.im.act.Act;
+import org.openvpms.component.business.domain.im.common.IMObject;
+import org.openvpms.component.business.domain.im.common.IMObjectReference;
+import org.openvpms.component.business.domain.im.party.Party;
+import org.openvpms.component.business.domain.im.product.Product;
+import org.openvpms.component.business.service.archetype.IArchetypeService;
+import org.openvpms.component.business.service.archetype.helper.ActBean;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A statement act, with its items and the products and patients they refer to.
+ * <p/>
+ * These are fetched in bulk by {@link StatementActs}, so that accessing them doesn't require a query per item.
+ *
+ * @author Tim Anderson
+ */
+public class StatementAct {
+
+    /**
+     * The act.
+     */
+    private final Act act;
+
+    /**
+     * The act items.
+     */
+    private final List<Act> items;
+
+    /**
+     * The prefetched products and patients, keyed on reference.
+     */
+    private final Map<IMObjectReference, IMObject> objects;
+
+    /**
+     * The archetype service.
+     */
+    private final IArchetypeService service;
+
+
+    /**
+     * Constructs a {@link StatementAct}.
+     *
+     * @param act     the act
+     * @param items   the act items
+     * @param objects the prefetched products and patients, keyed on reference
+     * @param service the archetype service
+     */
+    public StatementAct(Act act, List<Act> items, Map<IMObjectReference, IMObject> objects,
+                        IArchetypeService service) {
+        this.act = act;
+        this.items = items;
+        this.objects = objects;
+        this.service = service;
+    }
+
+    /**
+     * Returns the act.
+     *
+     * @return the act
+     */
+    public Act getAct() {
+        return act;
+    }
+
+    /**
+     * Returns the act items, ordered on id.
+     *
+     * @return the items. May be empty if the act has no items
+     */
+    public List<Act> getItems() {
+        return items;
+    }
+
+    /**
+     * Returns the product associated with an item.
+     *
+     * @param item the item
+     * @return the product, or {@code null} if the item has no product, or it cannot be found
+     */
+    public Product getProduct(Act item) {
+        return (Product) getParticipant(item, ProductArchetypes.PRODUCT_PARTICIPATION);
+    }
+
+    /**
+     * Returns the patient associated with an item.
+     *
+     * @param item the item
+     * @return the patient, or {@code null} if the item has no patient, or it cannot be found
+     */
+    public Party getPatient(Act item) {
+        return (Party) getParticipant(item, PatientArchetypes.PATIENT_PARTICIPATION);
+    }
+
+    /**
+     * Returns the participant of an item, from the prefetched objects.
+     *
+     * @param item      the item
+     * @param shortName the participation archetype short name
+     * @return the participant, or {@code null} if there is none
+     */
+    private IMObject getParticipant(Act item, String shortName) {
+        IMObjectReference reference = new ActBean(item, service).getParticipantRef(shortName);
+        return (reference != null) ? objects.get(reference) : null;
+    }
+
+}
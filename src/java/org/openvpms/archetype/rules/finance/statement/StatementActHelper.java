@@ -27,12 +27,15 @@ import org.openvpms.component.business.service.archetype.IArchetypeService;
 import org.openvpms.component.system.common.query.ArchetypeQuery;
 import org.openvpms.component.system.common.query.ArchetypeQueryException;
 import org.openvpms.component.system.common.query.CollectionNodeConstraint;
+import org.openvpms.component.system.common.query.Constraints;
 import org.openvpms.component.system.common.query.IMObjectQueryIterator;
 import org.openvpms.component.system.common.query.IterableIMObjectQuery;
+import org.openvpms.component.system.common.query.NamedQuery;
 import org.openvpms.component.system.common.query.NodeConstraint;
 import org.openvpms.component.system.common.query.NodeSelectConstraint;
 import org.openvpms.component.system.common.query.NodeSortConstraint;
 import org.openvpms.component.system.common.query.ObjectRefNodeConstraint;
+import org.openvpms.component.system.common.query.ObjectRefSelectConstraint;
 import org.openvpms.component.system.common.query.ObjectSet;
 import org.openvpms.component.system.common.query.ObjectSetQueryIterator;
 import org.openvpms.component.system.common.query.OrConstraint;
@@ -43,9 +46,14 @@ import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import static org.openvpms.archetype.rules.finance.account.CustomerAccountArchetypes.CLOSING_BALANCE;
 import static org.openvpms.archetype.rules.finance.account.CustomerAccountArchetypes.OPENING_BALANCE;
@@ -376,6 +384,76 @@ class StatementActHelper {
         return result;
     }
 
+    /**
+     * Returns the statement periods for a collection of customers.
+     * <p/>
+     * This is equivalent to constructing a {@link StatementPeriod} for each
+     * customer, but determines the opening and closing balances of all
+     * customers in four queries.
+     *
+     * @param customers     the customers
+     * @param statementDate the statement date
+     * @return the statement periods, keyed on customer id
+     * @throws ArchetypeServiceException for any archetype service error
+     */
+    public Map<Long, StatementPeriod> getStatementPeriods(
+            Collection<Party> customers, Date statementDate) {
+        Date timestamp = getStatementTimestamp(statementDate);
+        Map<Long, ActState> open = getOpeningBalanceStates(customers,
+                                                           timestamp);
+        Map<Long, ActState> close = getClosingBalanceStates(customers,
+                                                            timestamp);
+        Map<Long, StatementPeriod> result
+                = new HashMap<Long, StatementPeriod>();
+        for (Party customer : customers) {
+            long id = customer.getId();
+            result.put(id, new StatementPeriod(timestamp, open.get(id),
+                                               close.get(id)));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the opening balance act states for a collection of customers
+     * prior to the specified statement date.
+     * <p/>
+     * This is the bulk equivalent of
+     * {@link #getOpeningBalanceState(Party, Date)}. The latest opening
+     * balances are determined in the database, so only their states are read.
+     *
+     * @param customers     the customers
+     * @param statementDate the statement date
+     * @return the opening balance states, keyed on customer id. Customers
+     *         with no opening balance have no entry
+     * @throws ArchetypeServiceException for any archetype service error
+     */
+    public Map<Long, ActState> getOpeningBalanceStates(
+            Collection<Party> customers, Date statementDate) {
+        return getActStates("getOpeningBalances", OPENING_BALANCE, customers,
+                            statementDate);
+    }
+
+    /**
+     * Returns the closing balance act states for a collection of customers
+     * relative to a statement date and their opening balances prior to it.
+     * <p/>
+     * This is the bulk equivalent of
+     * {@link #getClosingBalanceState(Party, Date, Date)}, supplying each
+     * customer's opening balance timestamp. The closing balances are
+     * determined in the database, so only their states are read.
+     *
+     * @param customers     the customers
+     * @param statementDate the statement date
+     * @return the closing balance states, keyed on customer id. Customers
+     *         with no closing balance have no entry
+     * @throws ArchetypeServiceException for any archetype service error
+     */
+    public Map<Long, ActState> getClosingBalanceStates(
+            Collection<Party> customers, Date statementDate) {
+        return getActStates("getClosingBalances", CLOSING_BALANCE, customers,
+                            statementDate);
+    }
+
     /**
      * Determines if there is any account activity between the specified
      * timetamps for a customer.
@@ -431,19 +509,102 @@ class StatementActHelper {
         ObjectSetQueryIterator iter = new ObjectSetQueryIterator(service,
                                                                  query);
         if (iter.hasNext()) {
-            ObjectSet set = iter.next();
-            Date startTime = (Date) set.get("act.startTime");
-            BigDecimal amount = (BigDecimal) set.get("act.amount");
-            boolean credit = (Boolean) set.get("act.credit");
-            boolean printed = (Boolean) set.get("act.printed");
-            if (credit) {
-                amount = amount.negate();
-            }
-            return new ActState(startTime, amount, printed);
+            return getActState(iter.next());
         }
         return null;
     }
 
+    /**
+     * Returns the states of the acts selected by a named query, for a
+     * collection of customers.
+     * <p/>
+     * The named query returns the ids of the selected acts for each customer.
+     * Where it returns several for a customer, the first is used.
+     *
+     * @param name          the named query
+     * @param shortName     the act short name
+     * @param customers     the customers
+     * @param statementDate the statement date
+     * @return the act states, keyed on customer id
+     * @throws ArchetypeServiceException for any archetype service error
+     */
+    private Map<Long, ActState> getActStates(String name, String shortName,
+                                             Collection<Party> customers,
+                                             Date statementDate) {
+        Map<Long, ActState> result = new HashMap<Long, ActState>();
+        if (!customers.isEmpty()) {
+            List<Long> customerIds = new ArrayList<Long>();
+            for (Party customer : customers) {
+                customerIds.add(customer.getId());
+            }
+            NamedQuery acts = new NamedQuery(name, Arrays.asList("id", "customerId"));
+            acts.setParameter("customers", customerIds);
+            acts.setParameter("date", statementDate);
+            acts.setMaxResults(ArchetypeQuery.ALL_RESULTS);
+            Set<Long> seen = new HashSet<Long>();
+            List<Object> actIds = new ArrayList<Object>();
+            Iterator<ObjectSet> iter = new ObjectSetQueryIterator(service,
+                                                                  acts);
+            while (iter.hasNext()) {
+                ObjectSet set = iter.next();
+                if (seen.add(set.getLong("customerId"))) {
+                    actIds.add(set.getLong("id"));
+                }
+            }
+            if (!actIds.isEmpty()) {
+                ArchetypeQuery query = createStateQuery(shortName,
+                                                        actIds.toArray());
+                iter = new ObjectSetQueryIterator(service, query);
+                while (iter.hasNext()) {
+                    ObjectSet set = iter.next();
+                    long id = set.getReference("e.reference").getId();
+                    result.put(id, getActState(set));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Creates a query returning the state and customer of customer acts of a
+     * particular archetype.
+     *
+     * @param shortName the act short name
+     * @param ids       the act ids
+     * @return a new query
+     */
+    private ArchetypeQuery createStateQuery(String shortName, Object[] ids) {
+        ArchetypeQuery query = new ArchetypeQuery(
+                new ShortNameConstraint("act", shortName, false, false));
+        query.add(Constraints.join("customer").add(
+                Constraints.join("entity", "e")));
+        query.add(new NodeConstraint("act.id", RelationalOp.IN, ids));
+        query.add(new ObjectRefSelectConstraint("e"));
+        query.add(new NodeSelectConstraint("act.startTime"));
+        query.add(new NodeSelectConstraint("act.amount"));
+        query.add(new NodeSelectConstraint("act.credit"));
+        query.add(new NodeSelectConstraint("act.printed"));
+        query.setMaxResults(ArchetypeQuery.ALL_RESULTS);
+        return query;
+    }
+
+    /**
+     * Creates an act state from an object set.
+     *
+     * @param set the object set
+     * @return a new act state
+     */
+    private ActState getActState(ObjectSet set) {
+        Date startTime = (Date) set.get("act.startTime");
+        BigDecimal amount = (BigDecimal) set.get("act.amount");
+        boolean credit = (Boolean) set.get("act.credit");
+        boolean printed = (Boolean) set.get("act.printed");
+        if (credit) {
+            amount = amount.negate();
+        }
+        return new ActState(startTime, amount, printed);
+    }
+
     /**
      * Returns the state of the first
      * <tt>act.customerAccountClosingBalance</tt> for a customer, before the
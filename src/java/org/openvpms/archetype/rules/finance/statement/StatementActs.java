@@ -0,0 +1,301 @@
+/*
+ * Version: 1.0
+ *
+ * The contents of this file are subject to the OpenVPMS License Version
+ * 1.0 (the 'License'); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.openvpms.org/license/
+ *
+ * Software distributed under the License is distributed on an 'AS IS' basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * Copyright 2014 (C) OpenVPMS Ltd. All Rights Reserved.
+ */
+
+package org.openvpms.archetype.rules.finance.statement;
+
+import org.openvpms.archetype.rules.patient.PatientArchetypes;
+import org.openvpms.archetype.rules.product.ProductArchetypes;
+import org.openvpms.component.business.domain.im.act.Act;
+import org.openvpms.component.business.domain.im.act.ActRelationship;
+import org.openvpms.component.business.domain.im.archetype.descriptor.ArchetypeDescriptor;
+import org.openvpms.component.business.domain.im.common.IMObject;
+import org.openvpms.component.business.domain.im.common.IMObjectReference;
+import org.openvpms.component.business.service.archetype.ArchetypeServiceException;
+import org.openvpms.component.business.service.archetype.IArchetypeService;
+import org.openvpms.component.business.service.archetype.helper.ActBean;
+import org.openvpms.component.business.service.archetype.helper.TypeHelper;
+import org.openvpms.component.system.common.query.ArchetypeQuery;
+import org.openvpms.component.system.common.query.IMObjectQueryIterator;
+import org.openvpms.component.system.common.query.NodeConstraint;
+import org.openvpms.component.system.common.query.RelationalOp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import static org.openvpms.archetype.rules.finance.account.CustomerAccountArchetypes.COUNTER_ITEM_RELATIONSHIP;
+import static org.openvpms.archetype.rules.finance.account.CustomerAccountArchetypes.CREDIT_ITEM_RELATIONSHIP;
+import static org.openvpms.archetype.rules.finance.account.CustomerAccountArchetypes.INVOICE_ITEM_RELATIONSHIP;
+import static org.openvpms.archetype.rules.finance.account.CustomerAccountArchetypes.PAYMENT_ITEM_RELATIONSHIP;
+import static org.openvpms.archetype.rules.finance.account.CustomerAccountArchetypes.REFUND_ITEM_RELATIONSHIP;
+
+/**
+ * Streams statement acts together with their items, and the products and patients the items refer to.
+ * <p/>
+ * Acts are read from the underlying iterable a page at a time. For each page, the items, products and patients are
+ * loaded with one query per domain type, so the no. of queries is proportional to the no. of pages, rather than the
+ * no. of items. At most one page of acts and their related objects is held in memory at once.
+ *
+ * @author Tim Anderson
+ */
+public class StatementActs implements Iterable<StatementAct> {
+
+    /**
+     * The default page size.
+     */
+    public static final int DEFAULT_PAGE_SIZE = 50;
+
+    /**
+     * The acts.
+     */
+    private final Iterable<Act> acts;
+
+    /**
+     * The no. of acts to prefetch at a time.
+     */
+    private final int pageSize;
+
+    /**
+     * The archetype service.
+     */
+    private final IArchetypeService service;
+
+    /**
+     * The relationships between statement acts and their items.
+     */
+    private static final String[] ITEM_RELATIONSHIPS = {INVOICE_ITEM_RELATIONSHIP, COUNTER_ITEM_RELATIONSHIP,
+                                                        CREDIT_ITEM_RELATIONSHIP, PAYMENT_ITEM_RELATIONSHIP,
+                                                        REFUND_ITEM_RELATIONSHIP};
+
+    /**
+     * Orders acts on id.
+     */
+    private static final Comparator<Act> ID_COMPARATOR = new Comparator<Act>() {
+        public int compare(Act o1, Act o2) {
+            return Long.valueOf(o1.getId()).compareTo(o2.getId());
+        }
+    };
+
+
+    /**
+     * Constructs a {@link StatementActs}, using the default page size.
+     *
+     * @param acts    the acts
+     * @param service the archetype service
+     */
+    public StatementActs(Iterable<Act> acts, IArchetypeService service) {
+        this(acts, DEFAULT_PAGE_SIZE, service);
+    }
+
+    /**
+     * Constructs a {@link StatementActs}.
+     *
+     * @param acts     the acts
+     * @param pageSize the no. of acts to prefetch at a time
+     * @param service  the archetype service
+     */
+    public StatementActs(Iterable<Act> acts, int pageSize, IArchetypeService service) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("Argument 'pageSize' must be > 0");
+        }
+        this.acts = acts;
+        this.pageSize = pageSize;
+        this.service = service;
+    }
+
+    /**
+     * Returns an iterator over the statement acts.
+     *
+     * @return a new iterator
+     */
+    public Iterator<StatementAct> iterator() {
+        return new PrefetchIterator(acts.iterator());
+    }
+
+    /**
+     * Loads a page of acts, along with their items, products and patients.
+     *
+     * @param page the acts
+     * @return the statement acts
+     * @throws ArchetypeServiceException for any archetype service error
+     */
+    private List<StatementAct> load(List<Act> page) {
+        Set<IMObjectReference> itemRefs = new HashSet<IMObjectReference>();
+        for (Act act : page) {
+            for (ActRelationship relationship : act.getSourceActRelationships()) {
+                if (relationship.getTarget() != null && TypeHelper.isA(relationship, ITEM_RELATIONSHIPS)) {
+                    itemRefs.add(relationship.getTarget());
+                }
+            }
+        }
+        Map<IMObjectReference, IMObject> items = get(itemRefs);
+
+        Set<IMObjectReference> participants = new HashSet<IMObjectReference>();
+        for (IMObject item : items.values()) {
+            ActBean bean = new ActBean((Act) item, service);
+            IMObjectReference product = bean.getParticipantRef(ProductArchetypes.PRODUCT_PARTICIPATION);
+            if (product != null) {
+                participants.add(product);
+            }
+            IMObjectReference patient = bean.getParticipantRef(PatientArchetypes.PATIENT_PARTICIPATION);
+            if (patient != null) {
+                participants.add(patient);
+            }
+        }
+        Map<IMObjectReference, IMObject> objects = get(participants);
+
+        List<StatementAct> result = new ArrayList<StatementAct>();
+        for (Act act : page) {
+            List<Act> actItems = new ArrayList<Act>();
+            for (ActRelationship relationship : act.getSourceActRelationships()) {
+                IMObject item = items.get(relationship.getTarget());
+                if (item != null && TypeHelper.isA(relationship, ITEM_RELATIONSHIPS)) {
+                    actItems.add((Act) item);
+                }
+            }
+            Collections.sort(actItems, ID_COMPARATOR);
+            result.add(new StatementAct(act, actItems, objects, service));
+        }
+        return result;
+    }
+
+    /**
+     * Loads objects given their references.
+     * <p/>
+     * The archetype service cannot query archetypes of different domain types together, so the references are
+     * grouped by domain type, with one query issued per type. In practice this is one query each for acts,
+     * products and patients.
+     *
+     * @param references the object references
+     * @return the objects, keyed on reference
+     * @throws ArchetypeServiceException for any archetype service error
+     */
+    private Map<IMObjectReference, IMObject> get(Set<IMObjectReference> references) {
+        Map<IMObjectReference, IMObject> result = new HashMap<IMObjectReference, IMObject>();
+        Map<String, List<IMObjectReference>> byType = new HashMap<String, List<IMObjectReference>>();
+        for (IMObjectReference reference : references) {
+            String type = getDomainType(reference);
+            List<IMObjectReference> list = byType.get(type);
+            if (list == null) {
+                list = new ArrayList<IMObjectReference>();
+                byType.put(type, list);
+            }
+            list.add(reference);
+        }
+        for (List<IMObjectReference> list : byType.values()) {
+            Set<String> shortNames = new HashSet<String>();
+            Object[] ids = new Object[list.size()];
+            int i = 0;
+            for (IMObjectReference reference : list) {
+                shortNames.add(reference.getArchetypeId().getShortName());
+                ids[i++] = reference.getId();
+            }
+            ArchetypeQuery query = new ArchetypeQuery(shortNames.toArray(new String[shortNames.size()]), false,
+                                                      false);
+            query.add(new NodeConstraint("id", RelationalOp.IN, ids));
+            query.setMaxResults(ArchetypeQuery.ALL_RESULTS);
+            Iterator<IMObject> iterator = new IMObjectQueryIterator<IMObject>(service, query);
+            while (iterator.hasNext()) {
+                IMObject object = iterator.next();
+                result.put(object.getObjectReference(), object);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the persistent class name of the object that a reference refers to.
+     *
+     * @param reference the object reference
+     * @return the class name, or the archetype short name if the archetype isn't known
+     */
+    private String getDomainType(IMObjectReference reference) {
+        String shortName = reference.getArchetypeId().getShortName();
+        ArchetypeDescriptor descriptor = service.getArchetypeDescriptor(shortName);
+        return (descriptor != null) ? descriptor.getClassName() : shortName;
+    }
+
+    /**
+     * Iterator that prefetches a page of acts at a time.
+     */
+    private class PrefetchIterator implements Iterator<StatementAct> {
+
+        /**
+         * The underlying acts.
+         */
+        private final Iterator<Act> acts;
+
+        /**
+         * The current page.
+         */
+        private Iterator<StatementAct> page;
+
+
+        /**
+         * Constructs a {@link PrefetchIterator}.
+         *
+         * @param acts the underlying acts
+         */
+        public PrefetchIterator(Iterator<Act> acts) {
+            this.acts = acts;
+        }
+
+        /**
+         * Returns {@code true} if the iteration has more elements.
+         *
+         * @return {@code true} if the iterator has more elements
+         */
+        public boolean hasNext() {
+            if ((page == null || !page.hasNext()) && acts.hasNext()) {
+                List<Act> next = new ArrayList<Act>();
+                while (next.size() < pageSize && acts.hasNext()) {
+                    next.add(acts.next());
+                }
+                page = load(next).iterator();
+            }
+            return page != null && page.hasNext();
+        }
+
+        /**
+         * Returns the next element in the iteration.
+         *
+         * @return the next element in the iteration
+         * @throws NoSuchElementException if the iteration has no more elements
+         */
+        public StatementAct next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return page.next();
+        }
+
+        /**
+         * Not supported.
+         *
+         * @throws UnsupportedOperationException if invoked
+         */
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
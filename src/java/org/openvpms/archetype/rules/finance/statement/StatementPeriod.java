@@ -105,19 +105,26 @@ class StatementPeriod {
         statementTime = helper.getStatementTimestamp(statementDate);
         StatementActHelper.ActState open = helper.getOpeningBalanceState(
                 customer, statementTime);
-        if (open != null) {
-            openTime = open.getStartTime();
-            openingBalance = open.getAmount();
-        }
         StatementActHelper.ActState close = helper.getClosingBalanceState(
-                customer, statementTime, openTime);
-        if (close != null) {
-            closeTime = close.getStartTime();
-            printed = close.isPrinted();
-            statement = true;
-        } else {
-            closeTime = getTimestamp(2);
-        }
+                customer, statementTime,
+                (open != null) ? open.getStartTime() : null);
+        init(open, close);
+    }
+
+    /**
+     * Creates a new <tt>StatementPeriod</tt> from previously queried
+     * opening and closing balance states.
+     *
+     * @param statementTime the statement date timestamp
+     * @param open          the opening balance state. May be <tt>null</tt>
+     * @param close         the closing balance state. May be <tt>null</tt>
+     * @see StatementActHelper#getStatementPeriods
+     */
+    public StatementPeriod(Date statementTime,
+                           StatementActHelper.ActState open,
+                           StatementActHelper.ActState close) {
+        this.statementTime = statementTime;
+        init(open, close);
     }
 
     /**
@@ -194,6 +201,27 @@ class StatementPeriod {
         return printed;
     }
 
+    /**
+     * Initialises the period from the opening and closing balance states.
+     *
+     * @param open  the opening balance state. May be <tt>null</tt>
+     * @param close the closing balance state. May be <tt>null</tt>
+     */
+    private void init(StatementActHelper.ActState open,
+                      StatementActHelper.ActState close) {
+        if (open != null) {
+            openTime = open.getStartTime();
+            openingBalance = open.getAmount();
+        }
+        if (close != null) {
+            closeTime = close.getStartTime();
+            printed = close.isPrinted();
+            statement = true;
+        } else {
+            closeTime = getTimestamp(2);
+        }
+    }
+
     /**
      * Returns a timestamp relative to the statement timestamp.
      *
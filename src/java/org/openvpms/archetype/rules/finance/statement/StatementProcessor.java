@@ -36,6 +36,7 @@ import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
+import java.util.Set;
 
 import static org.openvpms.archetype.rules.finance.statement.StatementProcessorException.ErrorCode.InvalidStatementDate;
 
@@ -72,6 +73,11 @@ public class StatementProcessor extends AbstractProcessor<Party, Statement> {
      */
     private boolean reprint;
 
+    /**
+     * The ids of the customers with account activity, or {@code null} if all customers should be processed.
+     */
+    private Set<Long> activeCustomers;
+
 
     /**
      * Creates a new <tt>StatementProcessor</tt>.
@@ -110,6 +116,18 @@ public class StatementProcessor extends AbstractProcessor<Party, Statement> {
         this.reprint = reprint;
     }
 
+    /**
+     * Sets the ids of the customers with account activity, as determined by {@link AccountActivityQuery}.
+     * <p/>
+     * Customers not in the set are skipped, without querying their accounts. These have a zero balance and no
+     * account acts for the statement period, so would otherwise generate an empty statement.
+     *
+     * @param customers the customer ids, or {@code null} to process all customers
+     */
+    public void setActiveCustomers(Set<Long> customers) {
+        activeCustomers = customers;
+    }
+
     /**
      * Processes a customer.
      *
@@ -117,6 +135,9 @@ public class StatementProcessor extends AbstractProcessor<Party, Statement> {
      * @throws OpenVPMSException for any error
      */
     public void process(Party customer) {
+        if (activeCustomers != null && !activeCustomers.contains(customer.getId())) {
+            return;
+        }
         StatementPeriod period = new StatementPeriod(customer, statementDate,
                                                      actHelper);
         if (!period.isPrinted() || reprint) {
@@ -132,7 +153,7 @@ public class StatementProcessor extends AbstractProcessor<Party, Statement> {
             Statement statement = new Statement(customer, contacts,
                                                 statementDate,
                                                 open, close, acts,
-                                                period.isPrinted());
+                                                period.isPrinted(), service);
             notifyListeners(statement);
         }
     }
@@ -17,6 +17,7 @@
 package org.openvpms.archetype.rules.finance.tax;
 
 import org.openvpms.archetype.rules.math.MathRules;
+import org.openvpms.archetype.rules.product.ProductArchetypes;
 import org.openvpms.component.business.domain.im.common.IMObject;
 import org.openvpms.component.business.domain.im.common.IMObjectReference;
 import org.openvpms.component.business.domain.im.lookup.Lookup;
@@ -29,18 +30,24 @@ import org.openvpms.component.business.service.archetype.helper.IMObjectBean;
 import org.openvpms.component.business.service.lookup.ILookupService;
 import org.openvpms.component.system.common.query.ArchetypeQuery;
 import org.openvpms.component.system.common.query.CollectionNodeConstraint;
+import org.openvpms.component.system.common.query.NodeConstraint;
 import org.openvpms.component.system.common.query.NodeSelectConstraint;
 import org.openvpms.component.system.common.query.ObjectRefConstraint;
+import org.openvpms.component.system.common.query.ObjectRefSelectConstraint;
 import org.openvpms.component.system.common.query.ObjectSet;
 import org.openvpms.component.system.common.query.ObjectSetQueryIterator;
+import org.openvpms.component.system.common.query.RelationalOp;
 import org.openvpms.component.system.common.query.ShortNameConstraint;
 
 import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 
 /**
@@ -97,6 +104,50 @@ public class TaxRules {
         return getTaxRate(rates);
     }
 
+    /**
+     * Returns the tax rates of multiple products, expressed as percentages.
+     * <p/>
+     * This returns the same rates as {@link #getTaxRate(Product)}, but retrieves the product type tax rates in a
+     * single query.
+     *
+     * @param products the products
+     * @return the tax rates, keyed on product reference
+     * @throws ArchetypeServiceException for any archetype service error
+     */
+    public Map<IMObjectReference, BigDecimal> getTaxRates(Collection<Product> products) {
+        Map<IMObjectReference, BigDecimal> result = new HashMap<IMObjectReference, BigDecimal>();
+        Map<Product, List<IMObjectReference>> untaxed = new HashMap<Product, List<IMObjectReference>>();
+        Set<IMObjectReference> productTypes = new HashSet<IMObjectReference>();
+        for (Product product : products) {
+            EntityBean bean = new EntityBean(product, service);
+            List<Lookup> taxes = bean.getValues("taxes", Lookup.class);
+            if (!taxes.isEmpty()) {
+                result.put(product.getObjectReference(), getTaxRate(new HashSet<Lookup>(taxes)));
+            } else {
+                List<IMObjectReference> types = bean.getNodeSourceEntityRefs("type");
+                untaxed.put(product, types);
+                productTypes.addAll(types);
+            }
+        }
+        if (!untaxed.isEmpty()) {
+            Map<IMObjectReference, List<Lookup>> productTypeRates = getProductTypeTaxRates(productTypes);
+            for (Map.Entry<Product, List<IMObjectReference>> entry : untaxed.entrySet()) {
+                Collection<Lookup> taxes = new HashSet<Lookup>();
+                for (IMObjectReference productType : entry.getValue()) {
+                    List<Lookup> rates = productTypeRates.get(productType);
+                    if (rates != null) {
+                        taxes.addAll(rates);
+                    }
+                }
+                if (taxes.isEmpty()) {
+                    taxes = getPracticeTaxRates();
+                }
+                result.put(entry.getKey().getObjectReference(), getTaxRate(taxes));
+            }
+        }
+        return result;
+    }
+
     /**
      * Calculates the tax for an amount using the tax rates associated with
      * a product.
@@ -167,7 +218,7 @@ public class TaxRules {
      * @return the tax rate
      * @throws ArchetypeServiceException for any archetype service error
      */
-    protected BigDecimal getTaxRate(Collection<Lookup> taxRates) {
+    public BigDecimal getTaxRate(Collection<Lookup> taxRates) {
         BigDecimal result = BigDecimal.ZERO;
         for (IMObject taxRate : taxRates) {
             IMObjectBean taxBean = new IMObjectBean(taxRate, service);
@@ -195,6 +246,49 @@ public class TaxRules {
         return service;
     }
 
+    /**
+     * Returns the tax rates associated with a set of <em>entity.productType</em>s.
+     *
+     * @param productTypes the product type references
+     * @return the tax rates, keyed on product type reference. Product types with no tax rates are omitted
+     * @throws ArchetypeServiceException for any archetype service error
+     */
+    private Map<IMObjectReference, List<Lookup>> getProductTypeTaxRates(Set<IMObjectReference> productTypes) {
+        Map<IMObjectReference, List<Lookup>> result = new HashMap<IMObjectReference, List<Lookup>>();
+        productTypes.remove(null);
+        if (!productTypes.isEmpty()) {
+            Object[] ids = new Object[productTypes.size()];
+            int i = 0;
+            for (IMObjectReference productType : productTypes) {
+                ids[i++] = productType.getId();
+            }
+            ShortNameConstraint taxType = new ShortNameConstraint("l", TAX_TYPE, true, true);
+            ShortNameConstraint prodType = new ShortNameConstraint("productType", ProductArchetypes.PRODUCT_TYPE,
+                                                                   true, false);
+            prodType.add(new CollectionNodeConstraint("taxes", taxType));
+            ArchetypeQuery query = new ArchetypeQuery(prodType);
+            query.add(new ObjectRefSelectConstraint("productType"));
+            query.add(new NodeSelectConstraint("l", "code"));
+            query.add(new NodeConstraint("productType.id", RelationalOp.IN, ids));
+            query.setMaxResults(ArchetypeQuery.ALL_RESULTS);
+            ObjectSetQueryIterator iter = new ObjectSetQueryIterator(service, query);
+            while (iter.hasNext()) {
+                ObjectSet set = iter.next();
+                IMObjectReference productType = set.getReference("productType.reference");
+                Lookup lookup = lookups.getLookup(TAX_TYPE, set.getString("l.code"));
+                if (lookup != null) {
+                    List<Lookup> rates = result.get(productType);
+                    if (rates == null) {
+                        rates = new ArrayList<Lookup>();
+                        result.put(productType, rates);
+                    }
+                    rates.add(lookup);
+                }
+            }
+        }
+        return result;
+    }
+
     /**
      * Returns any tax rates associated with an <em>entity.productType</em>.
      *
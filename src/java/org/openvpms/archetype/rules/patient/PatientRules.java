@@ -40,16 +40,25 @@ import org.openvpms.component.system.common.query.ArchetypeQuery;
 import org.openvpms.component.system.common.query.Constraints;
 import org.openvpms.component.system.common.query.IMObjectQueryIterator;
 import org.openvpms.component.system.common.query.JoinConstraint;
+import org.openvpms.component.system.common.query.NamedQuery;
+import org.openvpms.component.system.common.query.NodeConstraint;
 import org.openvpms.component.system.common.query.NodeSelectConstraint;
 import org.openvpms.component.system.common.query.ObjectSet;
 import org.openvpms.component.system.common.query.ObjectSetQueryIterator;
 import org.openvpms.component.system.common.query.ParticipationConstraint;
+import org.openvpms.component.system.common.query.RelationalOp;
 
 import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
 
 import static org.openvpms.archetype.rules.patient.PatientArchetypes.PATIENT_WEIGHT;
@@ -558,6 +567,52 @@ public class PatientRules {
         return (iterator.hasNext()) ? iterator.next() : null;
     }
 
+    /**
+     * Returns the most recent <em>act.patientWeight</em> for each of a collection of patients.
+     * <p/>
+     * The most recent weights are determined in the database, so only those acts are loaded, using two queries
+     * rather than one per patient.
+     *
+     * @param patients the patients
+     * @return the most recent weight acts, keyed on patient reference. Patients with no weight have no entry
+     */
+    public Map<IMObjectReference, Act> getWeightActs(Collection<Party> patients) {
+        Map<IMObjectReference, Act> result = new HashMap<IMObjectReference, Act>();
+        if (!patients.isEmpty()) {
+            List<Long> patientIds = new ArrayList<Long>();
+            for (Party patient : patients) {
+                patientIds.add(patient.getId());
+            }
+            NamedQuery latest = new NamedQuery("getLatestWeights", Arrays.asList("id", "patientId"));
+            latest.setParameter("patients", patientIds);
+            latest.setMaxResults(ArchetypeQuery.ALL_RESULTS);
+            Set<Long> seen = new HashSet<Long>();
+            List<Object> actIds = new ArrayList<Object>();
+            Iterator<ObjectSet> sets = new ObjectSetQueryIterator(service, latest);
+            while (sets.hasNext()) {
+                ObjectSet set = sets.next();
+                // where weights have the same start time, the one with the highest id is returned first
+                if (seen.add(set.getLong("patientId"))) {
+                    actIds.add(set.getLong("id"));
+                }
+            }
+            if (!actIds.isEmpty()) {
+                ArchetypeQuery query = new ArchetypeQuery(PATIENT_WEIGHT, false, false);
+                query.add(new NodeConstraint("id", RelationalOp.IN, actIds.toArray()));
+                query.setMaxResults(ArchetypeQuery.ALL_RESULTS);
+                Iterator<Act> iterator = new IMObjectQueryIterator<Act>(service, query);
+                while (iterator.hasNext()) {
+                    Act act = iterator.next();
+                    IMObjectReference patient = new ActBean(act, service).getNodeParticipantRef("patient");
+                    if (patient != null) {
+                        result.put(patient, act);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
     /**
      * Returns the most recent active microchip number for a patient.
      *
@@ -733,4 +788,4 @@ public class PatientRules {
         return result.values();
     }
 
-}
\ No newline at end of file
+}
\ No newline at end of file
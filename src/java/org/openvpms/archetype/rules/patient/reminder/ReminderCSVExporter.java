@@ -17,13 +17,17 @@
 package org.openvpms.archetype.rules.patient.reminder;
 
 import au.com.bytecode.opencsv.CSVWriter;
+import org.openvpms.archetype.rules.doc.AbstractDocumentHandler;
+import org.openvpms.archetype.rules.doc.DocumentException;
 import org.openvpms.archetype.rules.doc.DocumentHandler;
 import org.openvpms.archetype.rules.doc.DocumentHandlers;
+import org.openvpms.archetype.rules.doc.DocumentOutputStream;
 import org.openvpms.archetype.rules.party.ContactArchetypes;
 import org.openvpms.archetype.rules.party.PartyRules;
 import org.openvpms.archetype.rules.patient.PatientRules;
 import org.openvpms.archetype.rules.practice.PracticeRules;
 import org.openvpms.component.business.domain.im.act.Act;
+import org.openvpms.component.business.domain.im.common.IMObjectReference;
 import org.openvpms.component.business.domain.im.document.Document;
 import org.openvpms.component.business.domain.im.party.Party;
 import org.openvpms.component.business.service.archetype.IArchetypeService;
@@ -33,10 +37,22 @@ import org.openvpms.component.business.service.archetype.helper.TypeHelper;
 import org.openvpms.component.business.service.lookup.ILookupService;
 
 import java.io.ByteArrayInputStream;
-import java.io.StringWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.openvpms.archetype.rules.doc.DocumentException.ErrorCode.WriteError;
 
 /**
  * Exports reminders to CSV.
@@ -93,6 +109,11 @@ public class ReminderCSVExporter implements ReminderExporter {
      */
     private static final String MIME_TYPE = "text/csv";
 
+    /**
+     * The no. of reminders to process at a time.
+     */
+    private static final int PAGE_SIZE = 500;
+
 
     /**
      * Constructs a {@link ReminderCSVExporter}.
@@ -116,26 +137,37 @@ public class ReminderCSVExporter implements ReminderExporter {
 
     /**
      * Exports reminders to CSV.
+     * <p/>
+     * Reminders are exported in pages, with the latest weights of the patients in each page retrieved in a single
+     * query. Where supported by the document handler, the CSV is encoded as it is written, rather than being
+     * buffered.
      *
      * @param reminders the reminders to export
      * @return the exported reminders
      */
     public Document export(List<ReminderEvent> reminders) {
-        char separator = getSeparator();
-        StringWriter writer = new StringWriter();
-        CSVWriter csv = new CSVWriter(writer, separator);
-        csv.writeNext(HEADER);
-        for (ReminderEvent event : reminders) {
-            if (event.getReminderType() != null && event.getCustomer() != null
-                && TypeHelper.isA(event.getContact(), ContactArchetypes.LOCATION) && event.getPatient() != null) {
-                export(event, csv);
-            }
-        }
         String name = "reminders-" + new java.sql.Date(System.currentTimeMillis()).toString() + ".csv";
-
         DocumentHandler handler = handlers.get(name, MIME_TYPE);
-        byte[] buffer = writer.getBuffer().toString().getBytes(Charset.forName("UTF-8"));
-        return handler.create(name, new ByteArrayInputStream(buffer), MIME_TYPE, buffer.length);
+        Document result;
+        try {
+            if (handler instanceof AbstractDocumentHandler) {
+                DocumentOutputStream stream = ((AbstractDocumentHandler) handler).create(name, MIME_TYPE);
+                try {
+                    export(reminders, stream);
+                } finally {
+                    stream.dispose();
+                }
+                result = stream.getDocument();
+            } else {
+                ByteArrayOutputStream stream = new ByteArrayOutputStream();
+                export(reminders, stream);
+                result = handler.create(name, new ByteArrayInputStream(stream.toByteArray()), MIME_TYPE,
+                                        stream.size());
+            }
+        } catch (IOException exception) {
+            throw new DocumentException(WriteError, exception, name);
+        }
+        return result;
     }
 
     /**
@@ -152,13 +184,54 @@ public class ReminderCSVExporter implements ReminderExporter {
         return separator;
     }
 
+    /**
+     * Exports reminders to a stream, closing it on completion.
+     *
+     * @param reminders the reminders to export
+     * @param stream    the stream to write to
+     * @throws IOException for any I/O error
+     */
+    private void export(List<ReminderEvent> reminders, OutputStream stream) throws IOException {
+        Writer writer = new OutputStreamWriter(stream, Charset.forName("UTF-8"));
+        CSVWriter csv = new CSVWriter(writer, getSeparator());
+        csv.writeNext(HEADER);
+        LookupNames names = new LookupNames();
+        List<ReminderEvent> page = new ArrayList<ReminderEvent>();
+        Iterator<ReminderEvent> iterator = reminders.iterator();
+        while (iterator.hasNext()) {
+            ReminderEvent event = iterator.next();
+            if (event.getReminderType() != null && event.getCustomer() != null
+                && TypeHelper.isA(event.getContact(), ContactArchetypes.LOCATION) && event.getPatient() != null) {
+                page.add(event);
+            }
+            if (page.size() == PAGE_SIZE || (!iterator.hasNext() && !page.isEmpty())) {
+                Set<Party> patients = new HashSet<Party>();
+                for (ReminderEvent reminder : page) {
+                    patients.add(reminder.getPatient());
+                }
+                Map<IMObjectReference, Act> weights = patientRules.getWeightActs(patients);
+                for (ReminderEvent reminder : page) {
+                    export(reminder, weights.get(reminder.getPatient().getObjectReference()), names, csv);
+                }
+                page.clear();
+            }
+        }
+        csv.flush();
+        if (csv.checkError()) {
+            throw new IOException("Failed to write reminders");
+        }
+        writer.close();
+    }
+
     /**
      * Exports a reminder.
      *
-     * @param event  the reminder event to export
-     * @param writer the writer to export to
+     * @param event      the reminder event to export
+     * @param lastWeight the patient's most recent weight act. May be {@code null}
+     * @param names      the lookup names
+     * @param writer     the writer to export to
      */
-    private void export(ReminderEvent event, CSVWriter writer) {
+    private void export(ReminderEvent event, Act lastWeight, LookupNames names, CSVWriter writer) {
         IMObjectBean customer = new IMObjectBean(event.getCustomer(), service);
         IMObjectBean location = new IMObjectBean(event.getContact(), service);
         IMObjectBean patient = new IMObjectBean(event.getPatient(), service);
@@ -166,23 +239,23 @@ public class ReminderCSVExporter implements ReminderExporter {
         ReminderType reminderType = event.getReminderType();
 
         String customerId = Long.toString(customer.getObject().getId());
-        String title = getLookup(customer, "title");
+        String title = names.get(customer, "title");
         String firstName = customer.getString("firstName");
         String initials = customer.getString("initials");
         String lastName = customer.getString("lastName");
         String companyName = customer.getString("companyName");
         String address = location.getString("address");
-        String suburb = getLookup(location, "suburb");
-        String state = getLookup(location, "state");
+        String suburb = names.get(location, "suburb");
+        String state = names.get(location, "state");
         String postCode = location.getString("postcode");
         String phone = partyRules.getTelephone(event.getCustomer());
         String sms = partyRules.getSMSTelephone(event.getCustomer());
         String email = partyRules.getEmailAddress(event.getCustomer());
         String patientId = Long.toString(event.getPatient().getId());
         String patientName = patient.getString("name");
-        String species = getLookup(patient, "species");
-        String breed = getLookup(patient, "breed");
-        String sex = getLookup(patient, "sex");
+        String species = names.get(patient, "species");
+        String breed = names.get(patient, "breed");
+        String sex = names.get(patient, "sex");
         String colour = patient.getString("colour");
         String dateOfBirth = getDate(patient.getDate("dateOfBirth"));
         String reminderTypeId = Long.toString(reminderType.getEntity().getId());
@@ -190,7 +263,6 @@ public class ReminderCSVExporter implements ReminderExporter {
         String dueDate = getDate(event.getReminder().getActivityEndTime());
         String reminderCount = reminder.getString("reminderCount");
         String lastSentDate = getDate(reminder.getDate("lastSent"));
-        Act lastWeight = patientRules.getWeightAct(event.getPatient());
         String weight = null;
         String weightUnits = null;
         String weightDate = null;
@@ -219,14 +291,44 @@ public class ReminderCSVExporter implements ReminderExporter {
     }
 
     /**
-     * Returns the name for a lookup node.
-     *
-     * @param bean the bean
-     * @param node the node
-     * @return the lookup name
+     * Caches lookup names, to avoid querying them for each reminder.
+     * <p/>
+     * The names of all lookups for a node are loaded the first time the node is accessed.
      */
-    private String getLookup(IMObjectBean bean, String node) {
-        return LookupHelper.getName(service, lookups, bean.getObject(), node);
+    private class LookupNames {
+
+        /**
+         * The lookup names, keyed on archetype short name and node name.
+         */
+        private final Map<String, Map<String, String>> names = new HashMap<String, Map<String, String>>();
+
+        /**
+         * Returns the name for a lookup node.
+         *
+         * @param bean the bean
+         * @param node the node
+         * @return the lookup name. May be {@code null}
+         */
+        public String get(IMObjectBean bean, String node) {
+            String code = bean.getString(node);
+            if (code == null) {
+                return null;
+            }
+            String shortName = bean.getObject().getArchetypeId().getShortName();
+            String key = shortName + "." + node;
+            Map<String, String> map = names.get(key);
+            if (map == null) {
+                map = new HashMap<String, String>(LookupHelper.getNames(service, lookups, shortName, node));
+                names.put(key, map);
+            }
+            String name = map.get(code);
+            if (name == null && !map.containsKey(code)) {
+                // the lookup may have been added since the names were loaded
+                name = LookupHelper.getName(service, lookups, bean.getObject(), node);
+                map.put(code, name);
+            }
+            return name;
+        }
     }
 
-}
\ No newline at end of file
+}
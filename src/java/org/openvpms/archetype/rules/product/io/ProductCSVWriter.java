@@ -17,30 +17,51 @@
 package org.openvpms.archetype.rules.product.io;
 
 import au.com.bytecode.opencsv.CSVWriter;
+import org.apache.commons.collections.Predicate;
 import org.apache.commons.lang.ObjectUtils;
 import org.apache.commons.lang.StringUtils;
+import org.openvpms.archetype.rules.doc.AbstractDocumentHandler;
+import org.openvpms.archetype.rules.doc.DocumentException;
 import org.openvpms.archetype.rules.doc.DocumentHandler;
 import org.openvpms.archetype.rules.doc.DocumentHandlers;
+import org.openvpms.archetype.rules.doc.DocumentOutputStream;
 import org.openvpms.archetype.rules.finance.tax.TaxRules;
 import org.openvpms.archetype.rules.math.MathRules;
 import org.openvpms.archetype.rules.product.PricingGroup;
 import org.openvpms.archetype.rules.product.ProductArchetypes;
 import org.openvpms.archetype.rules.product.ProductPriceRules;
+import org.openvpms.component.business.domain.im.common.EntityRelationship;
+import org.openvpms.component.business.domain.im.common.IMObjectReference;
 import org.openvpms.component.business.domain.im.document.Document;
 import org.openvpms.component.business.domain.im.product.Product;
 import org.openvpms.component.business.domain.im.product.ProductPrice;
 import org.openvpms.component.business.service.archetype.IArchetypeService;
+import org.openvpms.component.business.service.archetype.functor.IsActiveRelationship;
 import org.openvpms.component.business.service.archetype.helper.IMObjectBean;
+import org.openvpms.component.system.common.query.ArchetypeQuery;
+import org.openvpms.component.system.common.query.IMObjectQueryIterator;
+import org.openvpms.component.system.common.query.NodeConstraint;
+import org.openvpms.component.system.common.query.RelationalOp;
 
 import java.io.ByteArrayInputStream;
-import java.io.StringWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.math.BigDecimal;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+import static org.openvpms.archetype.rules.doc.DocumentException.ErrorCode.WriteError;
 import static org.openvpms.archetype.rules.product.io.AbstractCSVReader.MIME_TYPE;
 
 /**
@@ -85,6 +106,11 @@ public class ProductCSVWriter implements ProductWriter {
      */
     static final char SEPARATOR = ',';
 
+    /**
+     * The no. of products to prefetch linked products and tax rates for at a time.
+     */
+    private static final int PAGE_SIZE = 100;
+
     /**
      * The prices to write.
      */
@@ -154,6 +180,8 @@ public class ProductCSVWriter implements ProductWriter {
 
     /**
      * Writes product data to a document.
+     * <p/>
+     * Where supported by the document handler, the CSV is encoded as it is written, rather than being buffered.
      *
      * @param products            the products to write
      * @param prices              determines which prices to write
@@ -165,43 +193,113 @@ public class ProductCSVWriter implements ProductWriter {
      */
     private Document write(Iterator<Product> products, Prices prices, Date from, Date to, boolean includeLinkedPrices,
                            PricingGroup group) {
-        StringWriter writer = new StringWriter();
+        String name = "products-" + new java.sql.Date(System.currentTimeMillis()).toString() + ".csv";
+        DocumentHandler handler = handlers.get(name, MIME_TYPE);
+        Document result;
+        try {
+            if (handler instanceof AbstractDocumentHandler) {
+                DocumentOutputStream stream = ((AbstractDocumentHandler) handler).create(name, MIME_TYPE);
+                try {
+                    write(products, prices, from, to, includeLinkedPrices, group, stream);
+                } finally {
+                    stream.dispose();
+                }
+                result = stream.getDocument();
+            } else {
+                ByteArrayOutputStream stream = new ByteArrayOutputStream();
+                write(products, prices, from, to, includeLinkedPrices, group, stream);
+                result = handler.create(name, new ByteArrayInputStream(stream.toByteArray()), MIME_TYPE,
+                                        stream.size());
+            }
+        } catch (IOException exception) {
+            throw new DocumentException(WriteError, exception, name);
+        }
+        return result;
+    }
+
+    /**
+     * Writes product data to a stream, closing it on completion.
+     * <p/>
+     * Products are processed in pages, with the linked products and tax rates for each page retrieved in bulk.
+     *
+     * @param products            the products to write
+     * @param prices              determines which prices to write
+     * @param from                the price start date. May be {@code null}
+     * @param to                  the price end date. May be {@code null}
+     * @param includeLinkedPrices if {@code true} include prices linked from other products
+     * @param group               the pricing group
+     * @param stream              the stream to write to
+     * @throws IOException for any I/O error
+     */
+    private void write(Iterator<Product> products, Prices prices, Date from, Date to, boolean includeLinkedPrices,
+                       PricingGroup group, OutputStream stream) throws IOException {
+        Writer writer = new OutputStreamWriter(stream, Charset.forName("UTF-8"));
         CSVWriter csv = new CSVWriter(writer, SEPARATOR);
         csv.writeNext(HEADER);
+        Date now = new Date();
+        Predicate active;
+        if (prices == Prices.CURRENT) {
+            active = IsActiveRelationship.isActive(now, null);
+        } else if (prices == Prices.ALL) {
+            active = IsActiveRelationship.isActiveNow();
+        } else {
+            active = IsActiveRelationship.isActive(from, to);
+        }
+        List<Product> page = new ArrayList<Product>();
         while (products.hasNext()) {
-            write(products.next(), prices, from, to, includeLinkedPrices, group, csv);
+            page.add(products.next());
+            if (page.size() == PAGE_SIZE || !products.hasNext()) {
+                Map<IMObjectReference, BigDecimal> taxRates = taxRules.getTaxRates(page);
+                Map<IMObjectReference, List<Product>> linked;
+                if (includeLinkedPrices) {
+                    linked = getLinkedProducts(page, active);
+                } else {
+                    linked = Collections.emptyMap();
+                }
+                for (Product product : page) {
+                    IMObjectReference reference = product.getObjectReference();
+                    List<Product> linkedProducts = linked.get(reference);
+                    if (linkedProducts == null) {
+                        linkedProducts = Collections.emptyList();
+                    }
+                    write(product, prices, now, from, to, linkedProducts, group, taxRates.get(reference), csv);
+                }
+                page.clear();
+            }
         }
-        String name = "products-" + new java.sql.Date(System.currentTimeMillis()).toString() + ".csv";
-
-        DocumentHandler handler = handlers.get(name, MIME_TYPE);
-        byte[] buffer = writer.getBuffer().toString().getBytes(Charset.forName("UTF-8"));
-        return handler.create(name, new ByteArrayInputStream(buffer), MIME_TYPE, buffer.length);
+        csv.flush();
+        if (csv.checkError()) {
+            throw new IOException("Failed to write product data");
+        }
+        writer.close();
     }
 
     /**
      * Writes a product.
      *
-     * @param product             the product to write
-     * @param prices              the prices to write
-     * @param from                the from date. May be {@code null}
-     * @param to                  the to date. May be {@code null}
-     * @param includeLinkedPrices if {@code true} include prices linked from other products
-     * @param group               the pricing group. May be {@code null}
-     * @param writer              the writer to write to
+     * @param product        the product to write
+     * @param prices         the prices to write
+     * @param now            the current time, used when writing current prices
+     * @param from           the from date. May be {@code null}
+     * @param to             the to date. May be {@code null}
+     * @param linkedProducts the products linked from the product, to include fixed prices from
+     * @param group          the pricing group. May be {@code null}
+     * @param taxRate        the product tax rate
+     * @param writer         the writer to write to
      */
-    private void write(Product product, Prices prices, Date from, Date to, boolean includeLinkedPrices,
-                       PricingGroup group, CSVWriter writer) {
+    private void write(Product product, Prices prices, Date now, Date from, Date to, List<Product> linkedProducts,
+                       PricingGroup group, BigDecimal taxRate, CSVWriter writer) {
         IMObjectBean bean = new IMObjectBean(product);
 
         String productId = bean.getString("id");
         String name = bean.getString("name");
 
-        List<ProductPrice> fixedPrices = getPrices(product, ProductArchetypes.FIXED_PRICE, prices, from, to,
-                                                   includeLinkedPrices, group);
-        List<ProductPrice> unitPrices = getPrices(product, ProductArchetypes.UNIT_PRICE, prices, from, to,
-                                                  includeLinkedPrices, group);
+        List<ProductPrice> fixedPrices = getPrices(product, ProductArchetypes.FIXED_PRICE, prices, now, from, to,
+                                                   linkedProducts, group);
+        List<ProductPrice> unitPrices = getPrices(product, ProductArchetypes.UNIT_PRICE, prices, now, from, to,
+                                                  linkedProducts, group);
         String printedName = bean.getString("printedName");
-        String tax = taxRules.getTaxRate(product).toString();
+        String tax = taxRate.toString();
 
         int count = Math.max(fixedPrices.size(), unitPrices.size());
         if (count == 0) {
@@ -263,32 +361,109 @@ public class ProductCSVWriter implements ProductWriter {
     /**
      * Returns prices matching some criteria.
      *
-     * @param product             the product
-     * @param shortName           the price archetype short name
-     * @param prices              the prices to return
-     * @param from                the start date range, if prices is {@link Prices#RANGE}. May be {@code null}
-     * @param to                  the end date range, if prices is {@link Prices#RANGE}. May be {@code null}
-     * @param includeLinkedPrices if {@code true} include prices linked from other products
-     * @param group               the pricing group. May be {@code null}
+     * @param product        the product
+     * @param shortName      the price archetype short name
+     * @param prices         the prices to return
+     * @param now            the current time, if prices is {@link Prices#CURRENT}
+     * @param from           the start date range, if prices is {@link Prices#RANGE}. May be {@code null}
+     * @param to             the end date range, if prices is {@link Prices#RANGE}. May be {@code null}
+     * @param linkedProducts the products linked from the product, to include fixed prices from
+     * @param group          the pricing group. May be {@code null}
      * @return the matching prices
      */
-    private List<ProductPrice> getPrices(Product product, String shortName, Prices prices, Date from, Date to,
-                                         boolean includeLinkedPrices, PricingGroup group) {
-        List<ProductPrice> result = new ArrayList<ProductPrice>();
-        if (prices == Prices.CURRENT) {
-            List<ProductPrice> list = rules.getProductPrices(product, shortName, new Date(), null, includeLinkedPrices,
-                                                             group);
-            if (!list.isEmpty()) {
-                if (group.isAll()) {
-                    result.addAll(list);
-                } else {
-                    result.add(list.get(0));
-                }
+    private List<ProductPrice> getPrices(Product product, String shortName, Prices prices, Date now, Date from,
+                                         Date to, List<Product> linkedProducts, PricingGroup group) {
+        List<ProductPrice> result = new ArrayList<ProductPrice>(getPrices(product, shortName, prices, now, from, to,
+                                                                          group));
+        if (!linkedProducts.isEmpty() && ProductArchetypes.FIXED_PRICE.equals(shortName)) {
+            for (Product linked : linkedProducts) {
+                result.addAll(getPrices(linked, shortName, prices, now, from, to, group));
             }
+            result = rules.sort(result);
+        }
+        if (prices == Prices.CURRENT && !result.isEmpty() && !group.isAll()) {
+            result = result.subList(0, 1);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the prices of a product matching some criteria, excluding those of linked products.
+     *
+     * @param product   the product
+     * @param shortName the price archetype short name
+     * @param prices    the prices to return
+     * @param now       the current time, if prices is {@link Prices#CURRENT}
+     * @param from      the start date range, if prices is {@link Prices#RANGE}. May be {@code null}
+     * @param to        the end date range, if prices is {@link Prices#RANGE}. May be {@code null}
+     * @param group     the pricing group. May be {@code null}
+     * @return the matching prices
+     */
+    private List<ProductPrice> getPrices(Product product, String shortName, Prices prices, Date now, Date from,
+                                         Date to, PricingGroup group) {
+        List<ProductPrice> result;
+        if (prices == Prices.CURRENT) {
+            result = rules.getProductPrices(product, shortName, now, null, false, group);
         } else if (prices == Prices.ALL) {
-            result.addAll(rules.getProductPrices(product, shortName, includeLinkedPrices, group));
+            result = rules.getProductPrices(product, shortName, false, group);
         } else {
-            result.addAll(rules.getProductPrices(product, shortName, from, to, includeLinkedPrices, group));
+            result = rules.getProductPrices(product, shortName, from, to, false, group);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the products linked from a page of products, retrieving them in a single query.
+     *
+     * @param products the products
+     * @param active   the predicate to select active product links
+     * @return the linked products, keyed on the linking product reference
+     */
+    private Map<IMObjectReference, List<Product>> getLinkedProducts(List<Product> products, Predicate active) {
+        Map<IMObjectReference, List<IMObjectReference>> links = new HashMap<IMObjectReference,
+                List<IMObjectReference>>();
+        Set<IMObjectReference> targets = new HashSet<IMObjectReference>();
+        for (Product product : products) {
+            IMObjectBean bean = new IMObjectBean(product, service);
+            if (bean.hasNode("linked")) {
+                List<IMObjectReference> refs = new ArrayList<IMObjectReference>();
+                for (EntityRelationship relationship : bean.getValues("linked", active, EntityRelationship.class)) {
+                    if (relationship.getTarget() != null) {
+                        refs.add(relationship.getTarget());
+                    }
+                }
+                if (!refs.isEmpty()) {
+                    links.put(product.getObjectReference(), refs);
+                    targets.addAll(refs);
+                }
+            }
+        }
+        Map<IMObjectReference, List<Product>> result = new HashMap<IMObjectReference, List<Product>>();
+        if (!targets.isEmpty()) {
+            Object[] ids = new Object[targets.size()];
+            int i = 0;
+            for (IMObjectReference target : targets) {
+                ids[i++] = target.getId();
+            }
+            ArchetypeQuery query = new ArchetypeQuery("product.*", false, false);
+            query.add(new NodeConstraint("id", RelationalOp.IN, ids));
+            query.setMaxResults(ArchetypeQuery.ALL_RESULTS);
+            Map<IMObjectReference, Product> linked = new HashMap<IMObjectReference, Product>();
+            Iterator<Product> iterator = new IMObjectQueryIterator<Product>(service, query);
+            while (iterator.hasNext()) {
+                Product product = iterator.next();
+                linked.put(product.getObjectReference(), product);
+            }
+            for (Map.Entry<IMObjectReference, List<IMObjectReference>> entry : links.entrySet()) {
+                List<Product> list = new ArrayList<Product>();
+                for (IMObjectReference target : entry.getValue()) {
+                    Product product = linked.get(target);
+                    if (product != null) {
+                        list.add(product);
+                    }
+                }
+                result.put(entry.getKey(), list);
+            }
         }
         return result;
     }
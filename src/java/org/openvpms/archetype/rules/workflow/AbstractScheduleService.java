@@ -17,8 +17,10 @@
 package org.openvpms.archetype.rules.workflow;
 
 import net.sf.ehcache.Ehcache;
+import org.openvpms.archetype.rules.customer.CustomerArchetypes;
+import org.openvpms.archetype.rules.patient.PatientArchetypes;
+import org.openvpms.archetype.rules.user.UserArchetypes;
 import org.openvpms.archetype.rules.util.DateRules;
-import org.openvpms.archetype.rules.util.DateUnits;
 import org.openvpms.component.business.domain.im.act.Act;
 import org.openvpms.component.business.domain.im.common.Entity;
 import org.openvpms.component.business.domain.im.common.IMObject;
@@ -29,8 +31,11 @@ import org.openvpms.component.system.common.util.PropertySet;
 import org.springframework.beans.factory.DisposableBean;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 
 /**
@@ -65,6 +70,21 @@ public abstract class AbstractScheduleService implements ScheduleService, Dispos
      */
     private final IArchetypeServiceListener listener;
 
+    /**
+     * Listener for changes to objects whose names are cached by the event factory.
+     */
+    private final IArchetypeServiceListener nameListener;
+
+    /**
+     * The archetypes whose names are cached by the event factory.
+     */
+    private static final String[] NAMED_ARCHETYPES = {CustomerArchetypes.PERSON, CustomerArchetypes.OTC,
+                                                      PatientArchetypes.PATIENT, UserArchetypes.USER,
+                                                      ScheduleArchetypes.ORGANISATION_SCHEDULE,
+                                                      ScheduleArchetypes.ORGANISATION_WORKLIST,
+                                                      ScheduleArchetypes.APPOINTMENT_TYPE,
+                                                      ScheduleArchetypes.TASK_TYPE};
+
 
     /**
      * Constructs an {@link AbstractScheduleService}.
@@ -96,6 +116,21 @@ public abstract class AbstractScheduleService implements ScheduleService, Dispos
             }
         };
         service.addListener(eventShortName, listener);
+
+        nameListener = new AbstractArchetypeServiceListener() {
+            @Override
+            public void saved(IMObject object) {
+                getEventFactory().updateName(object);
+            }
+
+            @Override
+            public void removed(IMObject object) {
+                getEventFactory().removeName(object.getObjectReference());
+            }
+        };
+        for (String shortName : NAMED_ARCHETYPES) {
+            service.addListener(shortName, nameListener);
+        }
     }
 
     /**
@@ -107,8 +142,12 @@ public abstract class AbstractScheduleService implements ScheduleService, Dispos
      */
     @Override
     public void destroy() throws Exception {
-        cache.clear();
+        cache.destroy();
+        factory.clearNames();
         service.removeListener(eventShortName, listener);
+        for (String shortName : NAMED_ARCHETYPES) {
+            service.removeListener(shortName, nameListener);
+        }
     }
 
     /**
@@ -123,8 +162,25 @@ public abstract class AbstractScheduleService implements ScheduleService, Dispos
         return cache.getEvents(schedule, day);
     }
 
+    /**
+     * Returns all events for the specified schedule and day.
+     * <p/>
+     * If the events aren't cached and {@code stale} is {@code true}, the last known events will be returned if
+     * available, and the events reloaded in the background.
+     *
+     * @param schedule the schedule
+     * @param day      the day
+     * @param stale    if {@code true}, return the last known events rather than waiting for them to be loaded
+     * @return a list of events
+     */
+    public List<PropertySet> getEvents(Entity schedule, Date day, boolean stale) {
+        return cache.getEvents(schedule, day, stale);
+    }
+
     /**
      * Returns all events for the specified schedule, and time range.
+     * <p/>
+     * Days in the range that aren't cached are loaded using a single query.
      *
      * @param schedule the schedule
      * @param from     the from time
@@ -132,23 +188,76 @@ public abstract class AbstractScheduleService implements ScheduleService, Dispos
      * @return a list of events
      */
     public List<PropertySet> getEvents(Entity schedule, Date from, Date to) {
-        Date fromDay = DateRules.getDate(from);
-        Date toDay = DateRules.getDate(to);
-        List<PropertySet> results = new ArrayList<PropertySet>();
-        while (fromDay.compareTo(toDay) <= 0) {
-            for (PropertySet event : getEvents(schedule, fromDay)) {
-                Date startTime = event.getDate(ScheduleEvent.ACT_START_TIME);
-                Date endTime = event.getDate(ScheduleEvent.ACT_END_TIME);
-                if (DateRules.intersects(startTime, endTime, from, to)) {
-                    results.add(event);
-                } else if (DateRules.compareTo(startTime, to) >= 0) {
-                    break;
-                }
-            }
-            fromDay = DateRules.getDate(fromDay, 1, DateUnits.DAYS);
+        return getIntersecting(cache.getEvents(schedule, from, to), from, to);
+    }
+
+    /**
+     * Returns all events for the specified schedule and time range, if they are cached.
+     * <p/>
+     * This never reads from the database.
+     *
+     * @param schedule the schedule
+     * @param from     the from time
+     * @param to       the to time
+     * @return the events, or {@code null} if one or more days in the range aren't cached
+     */
+    public List<PropertySet> getCachedEvents(Entity schedule, Date from, Date to) {
+        Map<Date, List<PropertySet>> days = cache.getCachedEvents(schedule, from, to);
+        return (days != null) ? getIntersecting(days, from, to) : null;
+    }
+
+    /**
+     * Returns all events for the specified schedules, and time range.
+     * <p/>
+     * Schedule days that aren't cached are loaded using a single query.
+     *
+     * @param schedules the schedules
+     * @param from      the from time
+     * @param to        the to time
+     * @return the events, keyed on schedule, in the order the schedules were supplied
+     */
+    public Map<Entity, List<PropertySet>> getEvents(Collection<Entity> schedules, Date from, Date to) {
+        Map<Entity, List<PropertySet>> result = new LinkedHashMap<Entity, List<PropertySet>>();
+        for (Map.Entry<Entity, Map<Date, List<PropertySet>>> entry : cache.getEvents(schedules, from, to).entrySet()) {
+            result.put(entry.getKey(), getIntersecting(entry.getValue(), from, to));
         }
+        return result;
+    }
 
-        return results;
+    /**
+     * Returns the events added, updated or removed for the specified schedule and day, since a change sequence.
+     * <p/>
+     * This is intended for clients that poll a schedule day. The first call should supply a sequence of {@code -1};
+     * subsequent calls should supply the sequence returned by the prior call.
+     * <p/>
+     * If the changes cannot be determined, all events for the day are returned, and
+     * {@link ScheduleEventChanges#isReset()} returns {@code true}.
+     *
+     * @param schedule the schedule
+     * @param day      the day
+     * @param sequence the change sequence returned by the prior call, or {@code -1} to return all events
+     * @return the changes
+     */
+    public ScheduleEventChanges getChanges(Entity schedule, Date day, long sequence) {
+        return cache.getChanges(schedule, day, sequence);
+    }
+
+    /**
+     * Returns the approximate memory used by the cached events of each schedule.
+     *
+     * @return the approximate memory used, in bytes, keyed on schedule identifier
+     */
+    public Map<Long, Long> getCacheFootprint() {
+        return cache.getFootprint();
+    }
+
+    /**
+     * Sets the time to wait on another thread loading events, before falling back to the last known events.
+     *
+     * @param timeout the timeout, in milliseconds. If {@code <= 0}, wait indefinitely
+     */
+    public void setLoadTimeout(long timeout) {
+        cache.setLoadTimeout(timeout);
     }
 
     /**
@@ -194,4 +303,28 @@ public abstract class AbstractScheduleService implements ScheduleService, Dispos
         cache.clear();
     }
 
+    /**
+     * Returns the events from a set of schedule days that intersect a time range.
+     *
+     * @param days the events for each schedule day, in day order
+     * @param from the from time
+     * @param to   the to time
+     * @return the events intersecting the range
+     */
+    private List<PropertySet> getIntersecting(Map<Date, List<PropertySet>> days, Date from, Date to) {
+        List<PropertySet> results = new ArrayList<PropertySet>();
+        for (List<PropertySet> events : days.values()) {
+            for (PropertySet event : events) {
+                Date startTime = event.getDate(ScheduleEvent.ACT_START_TIME);
+                Date endTime = event.getDate(ScheduleEvent.ACT_END_TIME);
+                if (DateRules.intersects(startTime, endTime, from, to)) {
+                    results.add(event);
+                } else if (DateRules.compareTo(startTime, to) >= 0) {
+                    break;
+                }
+            }
+        }
+        return results;
+    }
+
 }
@@ -16,7 +16,6 @@
 
 package org.openvpms.archetype.rules.workflow;
 
-import org.openvpms.archetype.rules.util.DateRules;
 import org.openvpms.component.business.domain.im.common.Entity;
 import org.openvpms.component.business.domain.im.common.IMObjectReference;
 import org.openvpms.component.business.domain.im.common.Participation;
@@ -27,9 +26,11 @@ import org.openvpms.component.business.service.archetype.helper.LookupHelper;
 import org.openvpms.component.business.service.lookup.ILookupService;
 import org.openvpms.component.system.common.util.PropertySet;
 
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -106,14 +107,29 @@ class AppointmentFactory extends ScheduleEventFactory {
     }
 
     /**
-     * Creates a query to query events for a particular schedule and day.
+     * Returns the references of the objects whose names are required to assemble an event.
      *
-     * @param schedule the schedule
-     * @param day      the day
+     * @param source the source act
+     * @return the references. May contain {@code null}s
+     */
+    @Override
+    protected List<IMObjectReference> getReferences(ActBean source) {
+        List<IMObjectReference> result = super.getReferences(source);
+        result.add(source.getParticipantRef(ScheduleArchetypes.SCHEDULE_PARTICIPATION));
+        result.add(source.getNodeParticipantRef("appointmentType"));
+        return result;
+    }
+
+    /**
+     * Creates a query to query events for a set of schedules and date range.
+     *
+     * @param schedules the schedules
+     * @param from      the start of the range
+     * @param to        the end of the range
      * @return a new query
      */
     @Override
-    protected ScheduleEventQuery createQuery(Entity schedule, Date day) {
-        return new AppointmentQuery(schedule, DateRules.getDate(day), getEnd(day), getService());
+    protected ScheduleEventQuery createQuery(Collection<Entity> schedules, Date from, Date to) {
+        return new AppointmentQuery(schedules, from, to, getService());
     }
 }
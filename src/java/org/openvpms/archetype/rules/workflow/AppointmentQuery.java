@@ -21,6 +21,7 @@ import org.openvpms.component.business.domain.im.common.IMObjectReference;
 import org.openvpms.component.business.service.archetype.IArchetypeService;
 import org.openvpms.component.system.common.query.ObjectSet;
 
+import java.util.Collection;
 import java.util.Date;
 
 
@@ -43,6 +44,18 @@ class AppointmentQuery extends ScheduleEventQuery {
         super(schedule, from, to, ScheduleArchetypes.APPOINTMENT, service);
     }
 
+    /**
+     * Constructs an {@link AppointmentQuery} to query multiple schedules.
+     *
+     * @param schedules the schedules
+     * @param from      the 'from' start time
+     * @param to        the 'to' start time
+     * @param service   the archetype service
+     */
+    public AppointmentQuery(Collection<Entity> schedules, Date from, Date to, IArchetypeService service) {
+        super(schedules, from, to, ScheduleArchetypes.APPOINTMENT, service);
+    }
+
     /**
      * Returns the name of the named query to execute.
      *
@@ -0,0 +1,246 @@
+/*
+ * Version: 1.0
+ *
+ * The contents of this file are subject to the OpenVPMS License Version
+ * 1.0 (the 'License'); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.openvpms.org/license/
+ *
+ * Software distributed under the License is distributed on an 'AS IS' basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * Copyright 2014 (C) OpenVPMS Ltd. All Rights Reserved.
+ */
+
+package org.openvpms.archetype.rules.workflow;
+
+import org.apache.commons.collections4.map.LRUMap;
+import org.openvpms.component.business.domain.im.archetype.descriptor.ArchetypeDescriptor;
+import org.openvpms.component.business.domain.im.common.IMObject;
+import org.openvpms.component.business.domain.im.common.IMObjectReference;
+import org.openvpms.component.business.service.archetype.IArchetypeService;
+import org.openvpms.component.system.common.query.ArchetypeQuery;
+import org.openvpms.component.system.common.query.NodeConstraint;
+import org.openvpms.component.system.common.query.NodeSelectConstraint;
+import org.openvpms.component.system.common.query.ObjectRefSelectConstraint;
+import org.openvpms.component.system.common.query.ObjectSet;
+import org.openvpms.component.system.common.query.ObjectSetQueryIterator;
+import org.openvpms.component.system.common.query.RelationalOp;
+import org.openvpms.component.system.common.query.ShortNameConstraint;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Caches the names of entities referred to by schedule events, keyed on reference.
+ * <p/>
+ * Names that aren't cached are resolved in bulk, using one query per persistent class of the references being
+ * resolved. The query builder cannot query across persistent classes, so e.g. customers, clinicians and appointment
+ * types need to be resolved separately.
+ * <p/>
+ * The cache holds at most {@link #getMaxSize()} names, evicting the least recently used.
+ *
+ * @author Tim Anderson
+ */
+class EntityNameCache {
+
+    /**
+     * The archetype service.
+     */
+    private final IArchetypeService service;
+
+    /**
+     * The cached names.
+     */
+    private final Map<IMObjectReference, String> names;
+
+    /**
+     * The maximum no. of names to cache.
+     */
+    private final int maxSize;
+
+    /**
+     * The default maximum no. of names to cache.
+     */
+    public static final int DEFAULT_MAX_SIZE = 10000;
+
+
+    /**
+     * Constructs an {@link EntityNameCache}.
+     *
+     * @param service the archetype service
+     */
+    public EntityNameCache(IArchetypeService service) {
+        this(service, DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * Constructs an {@link EntityNameCache}.
+     *
+     * @param service the archetype service
+     * @param maxSize the maximum no. of names to cache
+     */
+    public EntityNameCache(IArchetypeService service, int maxSize) {
+        this.service = service;
+        this.maxSize = maxSize;
+        names = Collections.synchronizedMap(new LRUMap<IMObjectReference, String>(maxSize));
+    }
+
+    /**
+     * Returns the maximum no. of names that may be cached.
+     *
+     * @return the maximum no. of names
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Returns the name of an object, given its reference.
+     *
+     * @param reference the object reference. May be {@code null}
+     * @return the name or {@code null} if none exists
+     */
+    public String getName(IMObjectReference reference) {
+        String result = null;
+        if (reference != null) {
+            result = names.get(reference);
+            if (result == null) {
+                result = getNames(Collections.singletonList(reference)).get(reference);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the names of a collection of objects.
+     * <p/>
+     * Any names not already cached will be queried and cached.
+     *
+     * @param references the object references. These may contain {@code null}s, which will be ignored
+     * @return the names, keyed on reference. References to objects that don't exist will be excluded
+     */
+    public Map<IMObjectReference, String> getNames(Collection<IMObjectReference> references) {
+        Map<IMObjectReference, String> result = new HashMap<IMObjectReference, String>();
+        Map<String, List<IMObjectReference>> missing = new HashMap<String, List<IMObjectReference>>();
+        for (IMObjectReference reference : references) {
+            if (reference != null && !result.containsKey(reference)) {
+                String name = names.get(reference);
+                if (name != null) {
+                    result.put(reference, name);
+                } else {
+                    String className = getClassName(reference);
+                    List<IMObjectReference> list = missing.get(className);
+                    if (list == null) {
+                        list = new ArrayList<IMObjectReference>();
+                        missing.put(className, list);
+                    }
+                    list.add(reference);
+                }
+            }
+        }
+        for (List<IMObjectReference> list : missing.values()) {
+            query(list, result);
+        }
+        return result;
+    }
+
+    /**
+     * Adds a name to the cache.
+     *
+     * @param reference the object reference. May be {@code null}
+     * @param name      the object name. May be {@code null}
+     */
+    public void add(IMObjectReference reference, String name) {
+        if (reference != null && name != null) {
+            names.put(reference, name);
+        }
+    }
+
+    /**
+     * Updates the cached name of an object, if it is cached.
+     *
+     * @param object the object
+     */
+    public void update(IMObject object) {
+        IMObjectReference reference = object.getObjectReference();
+        synchronized (names) {
+            if (names.containsKey(reference)) {
+                if (object.getName() != null) {
+                    names.put(reference, object.getName());
+                } else {
+                    names.remove(reference);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the name of an object from the cache.
+     *
+     * @param reference the object reference
+     */
+    public void remove(IMObjectReference reference) {
+        names.remove(reference);
+    }
+
+    /**
+     * Clears the cache.
+     */
+    public void clear() {
+        names.clear();
+    }
+
+    /**
+     * Queries the names of objects sharing the same persistent class, adding them to the cache.
+     *
+     * @param references the object references
+     * @param result     the map to add the names to
+     */
+    private void query(List<IMObjectReference> references, Map<IMObjectReference, String> result) {
+        Set<String> shortNames = new HashSet<String>();
+        Object[] ids = new Object[references.size()];
+        int i = 0;
+        for (IMObjectReference reference : references) {
+            shortNames.add(reference.getArchetypeId().getShortName());
+            ids[i++] = reference.getId();
+        }
+        ShortNameConstraint constraint = new ShortNameConstraint("o", shortNames.toArray(new String[shortNames.size()]),
+                                                                 false, false);
+        ArchetypeQuery query = new ArchetypeQuery(constraint);
+        query.add(new ObjectRefSelectConstraint("o"));
+        query.add(new NodeSelectConstraint("o.name"));
+        query.add(new NodeConstraint("id", RelationalOp.IN, ids));
+        query.setMaxResults(ArchetypeQuery.ALL_RESULTS);
+        Iterator<ObjectSet> iterator = new ObjectSetQueryIterator(service, query);
+        while (iterator.hasNext()) {
+            ObjectSet set = iterator.next();
+            IMObjectReference reference = set.getReference("o.reference");
+            String name = set.getString("o.name");
+            add(reference, name);
+            result.put(reference, name);
+        }
+    }
+
+    /**
+     * Returns the persistent class name of the object that a reference refers to.
+     *
+     * @param reference the object reference
+     * @return the class name, or the archetype short name if the archetype isn't known
+     */
+    private String getClassName(IMObjectReference reference) {
+        String shortName = reference.getArchetypeId().getShortName();
+        ArchetypeDescriptor descriptor = service.getArchetypeDescriptor(shortName);
+        return (descriptor != null) ? descriptor.getClassName() : shortName;
+    }
+
+}
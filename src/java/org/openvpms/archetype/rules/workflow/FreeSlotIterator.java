@@ -17,9 +17,7 @@
 package org.openvpms.archetype.rules.workflow;
 
 import org.apache.commons.collections4.Predicate;
-import org.apache.commons.collections4.iterators.AbstractUntypedIteratorDecorator;
 import org.apache.commons.collections4.iterators.FilterIterator;
-import org.apache.commons.collections4.iterators.IteratorChain;
 import org.joda.time.DateTime;
 import org.joda.time.MutableDateTime;
 import org.joda.time.Period;
@@ -30,22 +28,32 @@ import org.openvpms.component.business.service.archetype.IArchetypeService;
 import org.openvpms.component.business.service.archetype.helper.IMObjectBean;
 import org.openvpms.component.system.common.query.ArchetypeQuery;
 import org.openvpms.component.system.common.query.Constraints;
-import org.openvpms.component.system.common.query.NamedQuery;
 import org.openvpms.component.system.common.query.NodeSelectConstraint;
 import org.openvpms.component.system.common.query.ObjectSet;
 import org.openvpms.component.system.common.query.ObjectSetQueryIterator;
+import org.openvpms.component.system.common.util.PropertySet;
 
 import java.util.ArrayDeque;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.Deque;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
 
 import static org.openvpms.component.system.common.query.Constraints.shortName;
 
 /**
  * An iterator over free slots for a schedule.
+ * <p/>
+ * Free slots are the gaps between the appointments intersecting the date range, ordered on start time. These are
+ * determined in a single pass over the appointments, which are either:
+ * <ul>
+ * <li>read from the {@link AppointmentService} cache, if every day in the date range is cached; or</li>
+ * <li>read from the database using a single query, ordered on start time</li>
+ * </ul>
  *
  * @author Tim Anderson
  */
@@ -68,14 +76,35 @@ class FreeSlotIterator implements Iterator<Slot> {
      */
     public FreeSlotIterator(Entity schedule, Date fromDate, Date toDate, Period fromTime, Period toTime,
                             IArchetypeService service) {
+        this(schedule, fromDate, toDate, fromTime, toTime, null, service);
+    }
+
+    /**
+     * Constructs an {@link FreeSlotIterator}.
+     *
+     * @param schedule     the schedule
+     * @param fromDate     the date to query from
+     * @param toDate       the date to query to
+     * @param fromTime     the time to query from. May be {@code null}
+     * @param toTime       the time to query to. May be {@code null}
+     * @param appointments the appointment service, used to read cached appointments. May be {@code null}
+     * @param service      the archetype service
+     */
+    public FreeSlotIterator(Entity schedule, Date fromDate, Date toDate, Period fromTime, Period toTime,
+                            AppointmentService appointments, IArchetypeService service) {
         IMObjectBean bean = new IMObjectBean(schedule, service);
 
         long scheduleStart = getScheduleTime(bean.getDate("startTime")); // the time that the schedule starts at
         long scheduleEnd = getScheduleTime(bean.getDate("endTime"));     // the time that the schedule ends at
 
-        Iterator<ObjectSet> queryIterator = createFreeSlotIterator(schedule, fromDate, toDate, service);
-        Iterator<Slot> slotIterator = createFreeSlotAdapter(queryIterator);
-        Iterator<Slot> first = createFirstLastFreeSlotIterator(slotIterator, schedule, fromDate, toDate, service);
+        Iterator<Appointment> busy = null;
+        if (appointments != null) {
+            busy = getCachedAppointments(schedule, fromDate, toDate, appointments);
+        }
+        if (busy == null) {
+            busy = getAppointments(schedule, fromDate, toDate, service);
+        }
+        Iterator<Slot> first = new GapIterator(schedule.getId(), busy, fromDate, toDate);
         if (scheduleStart != -1 || scheduleEnd != -1) {
             // filter free slots outside the schedule opening and closing times, and split those slots that span
             // multiple opening/closing times
@@ -123,146 +152,73 @@ class FreeSlotIterator implements Iterator<Slot> {
     }
 
     /**
-     * Creates an iterator to handle the first and last free slot.
-     * <p/>
-     * These cannot be determined by the findFreeSlots named query without using unions which are slow, so two other
-     * queries are issued to find:
-     * <ul>
-     * <li>the start time of the earliest appointment intersecting the start of the date range (before)</li>
-     * <li>the end time of the latest appointment intersecting the end of the date range (after)</li>
-     * </ul>
-     * If there is an appointment at the start, this is used to add a slot (fromDate, before).
-     * <p/>
-     * If there is an appointment at the end, this is used to add a slot (after, toDate).
-     * <p/>
-     * If there are no appointments, then a slot (fromDate, toDate) is added.
+     * Returns the cached appointments intersecting the date range, ordered on start time.
      *
-     * @param iterator the slot iterator
-     * @return an iterator that handles the first free slot in the date range
+     * @param schedule     the schedule
+     * @param fromDate     the start of the date range
+     * @param toDate       the end of the date range
+     * @param appointments the appointment service
+     * @return the appointments, or {@code null} if one or more days in the date range aren't cached
      */
-    private Iterator<Slot> createFirstLastFreeSlotIterator(Iterator<Slot> iterator, Entity schedule, Date fromDate,
-                                                           Date toDate, IArchetypeService service) {
-        IteratorChain<Slot> result = new IteratorChain<Slot>();
-        Date appointmentBefore = getAppointmentBefore(schedule, fromDate, toDate, service);
-        Date appointmentAfter = getAppointmentAfter(schedule, fromDate, toDate, service);
-        if (appointmentBefore != null || appointmentAfter != null) {
-            if (appointmentBefore != null) {
-                Slot slot = new Slot(schedule.getId(), fromDate, appointmentBefore);
-                result.addIterator(Arrays.asList(slot).iterator());
-            }
-            result.addIterator(iterator);
-            if (appointmentAfter != null) {
-                Slot slot = new Slot(schedule.getId(), appointmentAfter, toDate);
-                result.addIterator(Arrays.asList(slot).iterator());
-            }
-        } else {
-            // no appointments
-            Slot slot = new Slot(schedule.getId(), fromDate, toDate);
-            result.addIterator(Arrays.asList(slot).iterator());
+    private Iterator<Appointment> getCachedAppointments(Entity schedule, Date fromDate, Date toDate,
+                                                        AppointmentService appointments) {
+        // the last day that can contain an appointment starting before toDate
+        Date lastDay = new Date(toDate.getTime() - 1);
+        List<PropertySet> events = appointments.getCachedEvents(schedule, fromDate, lastDay);
+        if (events == null) {
+            return null;
         }
-        return result;
-    }
-
-    /**
-     * Creates an iterator that adapts {@link ObjectSet}s returned by the <em>findFreeSlots</em> query,
-     * to {@link Slot}s.
-     *
-     * @param queryIterator the query iterator to adapt
-     * @return the iterator adapter
-     */
-    private Iterator<Slot> createFreeSlotAdapter(final Iterator<ObjectSet> queryIterator) {
-        return new AbstractUntypedIteratorDecorator<ObjectSet, Slot>(queryIterator) {
-            @Override
-            public Slot next() {
-                ObjectSet set = getIterator().next();
-                return new Slot(set.getLong("scheduleId"), set.getDate("startTime"), set.getDate("endTime"));
-            }
-        };
-    }
-
-    /**
-     * Creates an iterator that uses the <em>findFreeSlots</em> named query, to find free slots.
-     *
-     * @param schedule the schedule
-     * @param fromDate the date to query from
-     * @param toDate   the date to query to
-     * @param service  the archetype service
-     * @return a new iterator over the free slots
-     */
-    private Iterator<ObjectSet> createFreeSlotIterator(Entity schedule, Date fromDate, Date toDate,
-                                                       IArchetypeService service) {
-        NamedQuery query = new NamedQuery("findFreeSlots", "scheduleId", "startTime", "endTime");
-        query.setParameter("from", fromDate);
-        query.setParameter("to", toDate);
-        query.setParameter("scheduleId", schedule.getId());
-        return new ObjectSetQueryIterator(service, query);
-    }
-
-    /**
-     * Returns the start time of the earliest appointment intersecting the start of the date range.
-     *
-     * @param schedule the schedule
-     * @param fromDate the start of the date range
-     * @param toDate   the end of the date range
-     * @param service  the archetype service
-     * @return the start time of the appointment at the start of the date range, or {@code null} if none exists
-     */
-    private Date getAppointmentBefore(Entity schedule, Date fromDate, Date toDate, IArchetypeService service) {
-        Date result = null;
-        ArchetypeQuery query = createAppointmentQuery(schedule, fromDate, toDate);
-        query.add(Constraints.sort("startTime"));
-        Iterator<ObjectSet> iterator = new ObjectSetQueryIterator(service, query);
-        if (iterator.hasNext()) {
-            ObjectSet set = iterator.next();
-            Date startTime = set.getDate("a.startTime");
-            if (DateRules.compareTo(startTime, fromDate) > 0) {
-                result = startTime;
+        List<Appointment> result = new ArrayList<Appointment>();
+        for (PropertySet event : events) {
+            Date startTime = event.getDate(ScheduleEvent.ACT_START_TIME);
+            Date endTime = event.getDate(ScheduleEvent.ACT_END_TIME);
+            if (DateRules.compareTo(startTime, toDate) < 0 && DateRules.compareTo(endTime, fromDate) > 0) {
+                result.add(new Appointment(startTime, endTime));
             }
         }
-        return result;
+        Collections.sort(result, Appointment.START_TIME_COMPARATOR);
+        return result.iterator();
     }
 
     /**
-     * Returns the end time of the latest appointment intersecting the end of the date range.
+     * Returns the appointments intersecting the date range, ordered on start time.
+     * <p/>
+     * The appointments are read from the database a page at a time, as the iterator is traversed.
      *
      * @param schedule the schedule
      * @param fromDate the start of the date range
      * @param toDate   the end of the date range
      * @param service  the archetype service
-     * @return the end time of the appointment after the date range, or {@code null} if none exists
+     * @return the appointments
      */
-    private Date getAppointmentAfter(Entity schedule, Date fromDate, Date toDate, IArchetypeService service) {
-        Date result = null;
-        ArchetypeQuery query = createAppointmentQuery(schedule, fromDate, toDate);
-        query.add(Constraints.sort("endTime", false));
-        Iterator<ObjectSet> iterator = new ObjectSetQueryIterator(service, query);
-        if (iterator.hasNext()) {
-            ObjectSet set = iterator.next();
-            Date endTime = set.getDate("a.endTime");
-            if (DateRules.compareTo(endTime, toDate) < 0) {
-                result = endTime;
-            }
-        }
-        return result;
-    }
-
-    /**
-     * Creates a query for the start and end times of an appointment falling in the specified date range.
-     *
-     * @param schedule the appointment schedule
-     * @param fromDate the date to query from
-     * @param toDate   the date to query to
-     * @return a new query
-     */
-    private ArchetypeQuery createAppointmentQuery(Entity schedule, Date fromDate, Date toDate) {
+    private Iterator<Appointment> getAppointments(Entity schedule, Date fromDate, Date toDate,
+                                                  IArchetypeService service) {
         ArchetypeQuery query = new ArchetypeQuery(shortName("a", ScheduleArchetypes.APPOINTMENT));
         query.add(new NodeSelectConstraint("a.startTime"));
         query.add(new NodeSelectConstraint("a.endTime"));
         query.add(Constraints.join("schedule").add(Constraints.eq("entity", schedule)));
-        query.add(Constraints.or(Constraints.between("startTime", fromDate, toDate),
-                                 Constraints.between("endTime", fromDate, toDate)));
-        query.setMaxResults(1);
-        return query;
+        query.add(Constraints.lt("startTime", toDate));
+        query.add(Constraints.gt("endTime", fromDate));
+        query.add(Constraints.sort("startTime"));
+        query.add(Constraints.sort("id"));
+        final Iterator<ObjectSet> iterator = new ObjectSetQueryIterator(service, query);
+        return new Iterator<Appointment>() {
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public Appointment next() {
+                ObjectSet set = iterator.next();
+                return new Appointment(set.getDate("a.startTime"), set.getDate("a.endTime"));
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
     }
 
     /**
@@ -285,6 +241,164 @@ class FreeSlotIterator implements Iterator<Slot> {
         return result;
     }
 
+    /**
+     * The start and end times of an appointment.
+     */
+    private static class Appointment {
+
+        /**
+         * Orders appointments on start time.
+         */
+        public static final Comparator<Appointment> START_TIME_COMPARATOR = new Comparator<Appointment>() {
+            @Override
+            public int compare(Appointment o1, Appointment o2) {
+                return DateRules.compareTo(o1.startTime, o2.startTime);
+            }
+        };
+
+        /**
+         * The appointment start time.
+         */
+        private final Date startTime;
+
+        /**
+         * The appointment end time.
+         */
+        private final Date endTime;
+
+        /**
+         * Constructs an {@link Appointment}.
+         *
+         * @param startTime the appointment start time
+         * @param endTime   the appointment end time
+         */
+        public Appointment(Date startTime, Date endTime) {
+            this.startTime = startTime;
+            this.endTime = endTime;
+        }
+    }
+
+    /**
+     * An iterator over the gaps between appointments, ordered on start time.
+     * <p/>
+     * The appointments must be ordered on start time. Overlapping appointments are merged, so a gap only occurs
+     * when an appointment starts after all prior appointments have ended.
+     * <p/>
+     * If there are no appointments, a single slot spanning the date range is returned.
+     */
+    private static class GapIterator implements Iterator<Slot> {
+
+        /**
+         * The schedule identifier.
+         */
+        private final long scheduleId;
+
+        /**
+         * The appointments, ordered on start time.
+         */
+        private final Iterator<Appointment> appointments;
+
+        /**
+         * The end of the date range.
+         */
+        private final Date toDate;
+
+        /**
+         * The time that the schedule is free from. This is the latest end time of the appointments processed so far,
+         * or the start of the date range, if there are none.
+         */
+        private Date freeFrom;
+
+        /**
+         * The next slot, or {@code null} if it hasn't been determined.
+         */
+        private Slot next;
+
+        /**
+         * Determines if the slot following the last appointment has been processed.
+         */
+        private boolean done;
+
+        /**
+         * Constructs a {@link GapIterator}.
+         *
+         * @param scheduleId   the schedule identifier
+         * @param appointments the appointments, ordered on start time
+         * @param fromDate     the start of the date range
+         * @param toDate       the end of the date range
+         */
+        public GapIterator(long scheduleId, Iterator<Appointment> appointments, Date fromDate, Date toDate) {
+            this.scheduleId = scheduleId;
+            this.appointments = appointments;
+            this.toDate = toDate;
+            freeFrom = fromDate;
+        }
+
+        /**
+         * Returns {@code true} if the iteration has more elements.
+         *
+         * @return {@code true} if the iteration has more elements
+         */
+        @Override
+        public boolean hasNext() {
+            while (next == null && !done) {
+                if (appointments.hasNext()) {
+                    Appointment appointment = appointments.next();
+                    if (DateRules.compareTo(appointment.startTime, freeFrom) > 0) {
+                        next = createSlot(freeFrom, appointment.startTime);
+                    }
+                    if (DateRules.compareTo(appointment.endTime, freeFrom) > 0) {
+                        freeFrom = appointment.endTime;
+                    }
+                } else {
+                    done = true;
+                    next = createSlot(freeFrom, toDate);
+                }
+            }
+            return next != null;
+        }
+
+        /**
+         * Returns the next element in the iteration.
+         *
+         * @return the next element in the iteration
+         * @throws NoSuchElementException if the iteration has no more elements
+         */
+        @Override
+        public Slot next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Slot result = next;
+            next = null;
+            return result;
+        }
+
+        /**
+         * Removes from the underlying collection the last element returned
+         * by this iterator (optional operation).
+         *
+         * @throws UnsupportedOperationException if invoked
+         */
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * Creates a slot, clamped to the end of the date range.
+         *
+         * @param startTime the slot start time
+         * @param endTime   the slot end time
+         * @return a new slot, or {@code null} if the slot is empty
+         */
+        private Slot createSlot(Date startTime, Date endTime) {
+            if (DateRules.compareTo(endTime, toDate) > 0) {
+                endTime = toDate;
+            }
+            return DateRules.compareTo(startTime, endTime) < 0 ? new Slot(scheduleId, startTime, endTime) : null;
+        }
+    }
 
     /**
      * An iterator that filters slots that fall outside a time range, and splits slots that overlap the time range.
@@ -21,30 +21,28 @@ import org.apache.commons.collections4.iterators.FilterIterator;
 import org.apache.commons.collections4.iterators.PeekingIterator;
 import org.openvpms.archetype.rules.util.DateRules;
 
-import java.util.ArrayList;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
 
 /**
  * An iterator that wraps one or more {@link FreeSlotIterator}s, returning the minimum dated slot from each,
  * on each call to {@link #next()}.
+ * <p/>
+ * The iterators are held in a priority queue ordered on the start time of their next slot, so each call to
+ * {@link #next()} is {@code O(log k)} for {@code k} iterators. Where slots have the same start time, they are
+ * returned in the order that their iterators were supplied.
  *
  * @author Tim Anderson
  */
 class FreeSlotIterators implements Iterator<Slot> {
 
     /**
-     * The free slot iterators.
+     * The free slot iterators that have slots remaining, ordered on the start time of their next slot.
      */
-    private List<PeekingIterator<Slot>> iterators;
-
-    /**
-     * The next iterator to use.
-     */
-    private Iterator<Slot> next;
+    private final PriorityQueue<Source> iterators;
 
 
     /**
@@ -53,11 +51,12 @@ class FreeSlotIterators implements Iterator<Slot> {
      * @param iterators the underlying iterators
      * @param predicate the predicate, used to filter slots
      */
-    public FreeSlotIterators(List<FreeSlotIterator> iterators, Predicate<Slot> predicate) {
-        this.iterators = new ArrayList<PeekingIterator<Slot>>();
-        for (FreeSlotIterator iterator : iterators) {
+    public FreeSlotIterators(List<? extends Iterator<Slot>> iterators, Predicate<Slot> predicate) {
+        this.iterators = new PriorityQueue<Source>(Math.max(1, iterators.size()));
+        int index = 0;
+        for (Iterator<Slot> iterator : iterators) {
             Iterator<Slot> filtered = new FilterIterator<Slot>(iterator, predicate);
-            this.iterators.add(new PeekingIterator<Slot>(filtered));
+            add(new Source(new PeekingIterator<Slot>(filtered), index++));
         }
     }
 
@@ -70,10 +69,7 @@ class FreeSlotIterators implements Iterator<Slot> {
      */
     @Override
     public boolean hasNext() {
-        if (next == null) {
-            getNext();
-        }
-        return next != null;
+        return !iterators.isEmpty();
     }
 
     /**
@@ -84,14 +80,12 @@ class FreeSlotIterators implements Iterator<Slot> {
      */
     @Override
     public Slot next() {
-        if (next == null) {
-            getNext();
-        }
-        if (next == null) {
+        Source source = iterators.poll();
+        if (source == null) {
             throw new NoSuchElementException();
         }
-        Slot slot = next.next();
-        next = null;
+        Slot slot = source.iterator.next();
+        add(source);
         return slot;
     }
 
@@ -107,23 +101,63 @@ class FreeSlotIterators implements Iterator<Slot> {
     }
 
     /**
-     * Gets the next iterator.
+     * Adds an iterator to the queue, if it has slots remaining.
+     *
+     * @param source the iterator
      */
-    private void getNext() {
-        next = null;
-        ListIterator<PeekingIterator<Slot>> listIterator = iterators.listIterator();
-        Date minDate = null;
-        while (listIterator.hasNext()) {
-            PeekingIterator<Slot> iterator = listIterator.next();
-            if (!iterator.hasNext()) {
-                listIterator.remove();
-            } else {
-                Slot slot = iterator.peek();
-                if (minDate == null || DateRules.compareTo(minDate, slot.getStartTime()) > 0) {
-                    minDate = slot.getStartTime();
-                    next = iterator;
-                }
+    private void add(Source source) {
+        if (source.iterator.hasNext()) {
+            source.startTime = source.iterator.peek().getStartTime();
+            iterators.add(source);
+        }
+    }
+
+    /**
+     * An iterator in the queue.
+     */
+    private static class Source implements Comparable<Source> {
+
+        /**
+         * The iterator.
+         */
+        private final PeekingIterator<Slot> iterator;
+
+        /**
+         * The position of the iterator in the list supplied at construction, used to order slots with the same
+         * start time.
+         */
+        private final int index;
+
+        /**
+         * The start time of the next slot.
+         */
+        private Date startTime;
+
+        /**
+         * Constructs a {@link Source}.
+         *
+         * @param iterator the iterator
+         * @param index    the position of the iterator in the list supplied at construction
+         */
+        public Source(PeekingIterator<Slot> iterator, int index) {
+            this.iterator = iterator;
+            this.index = index;
+        }
+
+        /**
+         * Orders iterators on the start time of their next slot, and then on their position.
+         *
+         * @param other the iterator to compare with
+         * @return a negative integer, zero, or a positive integer as this is less than, equal to, or greater than
+         *         {@code other}
+         */
+        @Override
+        public int compareTo(Source other) {
+            int result = DateRules.compareTo(startTime, other.startTime);
+            if (result == 0) {
+                result = (index < other.index) ? -1 : ((index == other.index) ? 0 : 1);
             }
+            return result;
         }
     }
 
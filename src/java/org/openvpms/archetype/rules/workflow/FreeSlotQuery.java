@@ -23,15 +23,31 @@ import org.joda.time.Period;
 import org.openvpms.archetype.rules.util.DateUnits;
 import org.openvpms.component.business.domain.im.common.Entity;
 import org.openvpms.component.business.service.archetype.IArchetypeService;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 
 /**
  * Queries free appointment slots.
+ * <p/>
+ * The free slots for each schedule are determined from its appointments in a single pass. If an
+ * {@link AppointmentService} is supplied, and every day in the query range is cached, the cached appointments are
+ * used. Otherwise, the appointments are read using a single query per schedule.
+ * <p/>
+ * The slots of each schedule are merged in start time order.
+ * <p/>
+ * If an executor is {@link #setExecutor(ExecutorService) supplied}, and multiple schedules are being queried, the slots
+ * of each schedule are read concurrently, in batches. Batches are only read as the slots are consumed, so the caller
+ * can stop iterating once it has enough slots without incurring the cost of reading the remainder. Callers that stop
+ * early should invoke {@link #cancel()} to cancel outstanding reads.
+ * <p/>
+ * Concurrent reads use the caller's authentication, but not its session or transaction. If the caller is in a
+ * transaction, the slots are read sequentially so that they reflect its changes.
  *
  * @author Tim Anderson
  */
@@ -42,6 +58,11 @@ public class FreeSlotQuery {
      */
     private final IArchetypeService service;
 
+    /**
+     * The appointment service, used to read cached appointments. May be {@code null}.
+     */
+    private final AppointmentService appointments;
+
     /**
      * The date to query from.
      */
@@ -72,13 +93,34 @@ public class FreeSlotQuery {
      */
     private long minSlotSize = -1;
 
+    /**
+     * The executor used to read the slots of multiple schedules concurrently. May be {@code null}.
+     */
+    private ExecutorService executor;
+
+    /**
+     * The iterators reading slots concurrently, for the last query.
+     */
+    private final List<PrefetchSlotIterator> prefetching = new ArrayList<PrefetchSlotIterator>();
+
     /**
      * Constructs a {@link FreeSlotQuery}.
      *
      * @param service the archetype service
      */
     public FreeSlotQuery(IArchetypeService service) {
+        this(service, null);
+    }
+
+    /**
+     * Constructs a {@link FreeSlotQuery}.
+     *
+     * @param service      the archetype service
+     * @param appointments the appointment service, used to read cached appointments. May be {@code null}
+     */
+    public FreeSlotQuery(IArchetypeService service, AppointmentService appointments) {
         this.service = service;
+        this.appointments = appointments;
     }
 
     /**
@@ -151,23 +193,58 @@ public class FreeSlotQuery {
         }
     }
 
+    /**
+     * Sets the executor used to read the slots of multiple schedules concurrently.
+     * <p/>
+     * The executor should have a bounded number of threads, as a task may be submitted for each schedule.
+     * It is not shut down by the query.
+     *
+     * @param executor the executor, or {@code null} to read the slots of each schedule sequentially
+     */
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
     /**
      * Queries available slots.
      *
      * @return an iterator over the available slots
      */
     public Iterator<Slot> query() {
+        cancel();
         if (fromDate != null && toDate != null && schedules.length > 0) {
             Predicate<Slot> predicate = getPredicate();
-            List<FreeSlotIterator> list = new ArrayList<FreeSlotIterator>();
+            boolean parallel = executor != null && schedules.length > 1
+                               && !TransactionSynchronizationManager.isActualTransactionActive();
+            List<Iterator<Slot>> list = new ArrayList<Iterator<Slot>>();
             for (Entity schedule : schedules) {
-                list.add(new FreeSlotIterator(schedule, fromDate, toDate, fromTime, toTime, service));
+                Iterator<Slot> iterator = new FreeSlotIterator(schedule, fromDate, toDate, fromTime, toTime,
+                                                               appointments, service);
+                if (parallel) {
+                    PrefetchSlotIterator prefetch = new PrefetchSlotIterator(iterator, executor);
+                    prefetching.add(prefetch);
+                    iterator = prefetch;
+                }
+                list.add(iterator);
             }
             return new FreeSlotIterators(list, predicate);
         }
         return Collections.<Slot>emptyList().iterator();
     }
 
+    /**
+     * Cancels any outstanding concurrent reads for the last query.
+     * <p/>
+     * This should be invoked if the caller stops iterating before the query's slots are exhausted. The iterator
+     * returned by the query should not be used after this.
+     */
+    public void cancel() {
+        for (PrefetchSlotIterator iterator : prefetching) {
+            iterator.close();
+        }
+        prefetching.clear();
+    }
+
     private Predicate<Slot> getPredicate() {
         List<Predicate<Slot>> predicates = new ArrayList<Predicate<Slot>>();
         if (minSlotSize > 0) {
@@ -0,0 +1,219 @@
+/*
+ * Version: 1.0
+ *
+ * The contents of this file are subject to the OpenVPMS License Version
+ * 1.0 (the 'License'); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.openvpms.org/license/
+ *
+ * Software distributed under the License is distributed on an 'AS IS' basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * Copyright 2014 (C) OpenVPMS Ltd. All Rights Reserved.
+ */
+
+package org.openvpms.archetype.rules.workflow;
+
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * An iterator that reads slots from an underlying iterator in batches, using an {@code ExecutorService}.
+ * <p/>
+ * The first batch is requested on construction, and each subsequent batch is requested when the prior one is
+ * returned to the caller, so that the next batch is read while the caller processes the current one.
+ * <p/>
+ * At most one batch is outstanding at any time, so the underlying iterator is only accessed by one thread at a time.
+ * If the caller stops iterating, no further batches are requested, and the outstanding batch can be cancelled via
+ * {@link #close()}.
+ * <p/>
+ * Batches are read with the authentication of the thread that constructed the iterator. They are read outside of
+ * that thread's session and transaction, so this should only be used when the caller isn't in a transaction.
+ *
+ * @author Tim Anderson
+ */
+class PrefetchSlotIterator implements Iterator<Slot> {
+
+    /**
+     * The underlying iterator.
+     */
+    private final Iterator<Slot> iterator;
+
+    /**
+     * The executor service.
+     */
+    private final ExecutorService executor;
+
+    /**
+     * The maximum no. of slots to read in each batch.
+     */
+    private final int batchSize;
+
+    /**
+     * The outstanding batch, or {@code null} if there are no more slots to read.
+     */
+    private Future<List<Slot>> pending;
+
+    /**
+     * The current batch.
+     */
+    private Iterator<Slot> current = Collections.<Slot>emptyList().iterator();
+
+    /**
+     * The authentication to read batches with.
+     */
+    private final Authentication authentication;
+
+    /**
+     * The default batch size.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 50;
+
+
+    /**
+     * Constructs a {@link PrefetchSlotIterator}.
+     *
+     * @param iterator the underlying iterator
+     * @param executor the executor service
+     */
+    public PrefetchSlotIterator(Iterator<Slot> iterator, ExecutorService executor) {
+        this(iterator, executor, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Constructs a {@link PrefetchSlotIterator}.
+     *
+     * @param iterator  the underlying iterator
+     * @param executor  the executor service
+     * @param batchSize the maximum no. of slots to read in each batch
+     */
+    public PrefetchSlotIterator(Iterator<Slot> iterator, ExecutorService executor, int batchSize) {
+        this.iterator = iterator;
+        this.executor = executor;
+        this.batchSize = batchSize;
+        authentication = SecurityContextHolder.getContext().getAuthentication();
+        pending = submit();
+    }
+
+    /**
+     * Returns {@code true} if the iteration has more elements.
+     *
+     * @return {@code true} if the iteration has more elements
+     */
+    @Override
+    public boolean hasNext() {
+        while (!current.hasNext() && pending != null) {
+            List<Slot> batch = get(pending);
+            // a short batch indicates that the underlying iterator is exhausted
+            pending = (batch.size() == batchSize) ? submit() : null;
+            current = batch.iterator();
+        }
+        return current.hasNext();
+    }
+
+    /**
+     * Returns the next element in the iteration.
+     *
+     * @return the next element in the iteration
+     * @throws NoSuchElementException if the iteration has no more elements
+     */
+    @Override
+    public Slot next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return current.next();
+    }
+
+    /**
+     * Removes from the underlying collection the last element returned
+     * by this iterator (optional operation).
+     *
+     * @throws UnsupportedOperationException if invoked
+     */
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Stops iteration, cancelling the outstanding batch, if any.
+     * <p/>
+     * A batch that is being read is allowed to complete, but its slots are discarded.
+     */
+    public void close() {
+        if (pending != null) {
+            pending.cancel(false);
+            pending = null;
+        }
+        current = Collections.<Slot>emptyList().iterator();
+    }
+
+    /**
+     * Submits a task to read the next batch of slots.
+     *
+     * @return the batch
+     */
+    private Future<List<Slot>> submit() {
+        return executor.submit(new Callable<List<Slot>>() {
+            @Override
+            public List<Slot> call() throws Exception {
+                SecurityContext previous = SecurityContextHolder.getContext();
+                SecurityContext context = SecurityContextHolder.createEmptyContext();
+                context.setAuthentication(authentication);
+                SecurityContextHolder.setContext(context);
+                try {
+                    List<Slot> result = new ArrayList<Slot>();
+                    while (result.size() < batchSize && iterator.hasNext()) {
+                        result.add(iterator.next());
+                    }
+                    return result;
+                } finally {
+                    if (previous.getAuthentication() != null) {
+                        SecurityContextHolder.setContext(previous);
+                    } else {
+                        SecurityContextHolder.clearContext();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Waits for a batch of slots to be read.
+     *
+     * @param future the batch
+     * @return the slots
+     * @throws IllegalStateException if the batch couldn't be read, or the thread was interrupted
+     */
+    private List<Slot> get(Future<List<Slot>> future) {
+        try {
+            return future.get();
+        } catch (ExecutionException exception) {
+            Throwable cause = exception.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException("Failed to read free slots", cause);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted reading free slots", exception);
+        }
+    }
+
+}
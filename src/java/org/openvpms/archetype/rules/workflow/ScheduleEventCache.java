@@ -19,10 +19,11 @@ package org.openvpms.archetype.rules.workflow;
 import net.sf.ehcache.CacheException;
 import net.sf.ehcache.Ehcache;
 import net.sf.ehcache.Element;
-import net.sf.ehcache.constructs.blocking.BlockingCache;
-import net.sf.ehcache.constructs.blocking.LockTimeoutException;
 import org.apache.commons.collections.map.ReferenceMap;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.openvpms.archetype.rules.util.DateRules;
+import org.openvpms.archetype.rules.util.DateUnits;
 import org.openvpms.component.business.domain.im.act.Act;
 import org.openvpms.component.business.domain.im.common.Entity;
 import org.openvpms.component.business.domain.im.common.IMObjectReference;
@@ -30,13 +31,27 @@ import org.openvpms.component.system.common.query.ObjectSet;
 import org.openvpms.component.system.common.util.PropertySet;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The {@link ScheduleEventCache} caches events for schedules.
@@ -47,6 +62,20 @@ import java.util.Map;
  * {@link #addEvent(Act)} and {@link #removeEvent(Act)}. This will check versions to ensure that the latest version
  * of the event is used.
  * <p/>
+ * Each schedule day is loaded by at most one thread at a time. Other threads requesting the same day share the
+ * in-flight load rather than issuing their own query. Threads waiting on another thread's load for longer than the
+ * {@link #setLoadTimeout load timeout} are returned the last known version of the day, if one is still available.
+ * Callers may also request stale data explicitly via {@link #getEvents(Entity, Date, boolean)}; in this case, the
+ * last known version of the day is returned immediately, and the day is reloaded in the background.
+ * <p/>
+ * Each change to the events of a schedule is assigned a sequence number, which increases monotonically. Clients polling
+ * a schedule day can use {@link #getChanges(Entity, Date, long)} to retrieve only those events added, updated or
+ * removed since the sequence they last received.
+ * <p/>
+ * Events are held as {@link ScheduleEventRecord} instances, to reduce the memory used by the cache. Callers are
+ * returned modifiable copies. The approximate memory used by each schedule can be determined using
+ * {@link #getFootprint()}.
+ * <p/>
  * NOTE: as the cache can be updated from multiple threads, there is a very small possibility that an event deletion
  * could be received before the event addition. In this case, the deletion will be ignored and the addition will be
  * cached. A workaround for this is to enable timeToLive on the underlying Ehcache.
@@ -62,13 +91,34 @@ class ScheduleEventCache {
     /**
      * The underlying cache. This is used to cache {@link ScheduleDay} instances.
      */
-    private final BlockingCache cache;
+    private final Ehcache cache;
 
     /**
      * The query factory.
      */
     private final ScheduleEventFactory factory;
 
+    /**
+     * The schedule days currently being loaded, keyed on cache key.
+     */
+    private final ConcurrentMap<Key, Load> loading = new ConcurrentHashMap<Key, Load>();
+
+    /**
+     * The executor used to reload schedule days in the background, when stale days are returned.
+     */
+    private final ExecutorService executor;
+
+    /**
+     * The time to wait on another thread loading a schedule day, in milliseconds.
+     */
+    private volatile long loadTimeout = DEFAULT_LOAD_TIMEOUT;
+
+    /**
+     * The change sequence. This is seeded with the current time so that sequences issued prior to the cache being
+     * cleared or recreated are older than those issued subsequently.
+     */
+    private final AtomicLong sequence = new AtomicLong(System.currentTimeMillis());
+
     /**
      * A map of schedule ids to {@link Schedule} instances. Schedule instances can be reclaimed by the garbage
      * collector when no {@link ScheduleDay} references them.
@@ -85,6 +135,21 @@ class ScheduleEventCache {
      */
     private final ReferenceMap events = new ReferenceMap(ReferenceMap.HARD, ReferenceMap.WEAK);
 
+    /**
+     * The default time to wait on another thread loading a schedule day, in milliseconds.
+     */
+    public static final long DEFAULT_LOAD_TIMEOUT = 30000;
+
+    /**
+     * The maximum no. of threads used to reload schedule days in the background.
+     */
+    private static final int MAX_RELOAD_THREADS = 2;
+
+    /**
+     * The logger.
+     */
+    private static final Log log = LogFactory.getLog(ScheduleEventCache.class);
+
     /**
      * Constructs a {@link ScheduleEventCache}.
      *
@@ -92,8 +157,28 @@ class ScheduleEventCache {
      * @param factory the event query factory
      */
     public ScheduleEventCache(Ehcache cache, ScheduleEventFactory factory) {
-        this.cache = new BlockingCache(cache);
+        this.cache = cache;
         this.factory = factory;
+        executor = Executors.newFixedThreadPool(MAX_RELOAD_THREADS, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ScheduleEventCache-reload");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Sets the time to wait on another thread loading a schedule day, before falling back to the last known
+     * version of the day.
+     * <p/>
+     * If there is no last known version when the timeout expires, a {@link CacheException} is thrown.
+     *
+     * @param timeout the timeout, in milliseconds. If {@code <= 0}, wait indefinitely
+     */
+    public void setLoadTimeout(long timeout) {
+        loadTimeout = timeout;
     }
 
     /**
@@ -107,36 +192,181 @@ class ScheduleEventCache {
      * @return all events on the specified day for the schedule
      */
     public List<PropertySet> getEvents(Entity schedule, Date day) {
+        return getEvents(schedule, day, false);
+    }
+
+    /**
+     * Returns all events for a schedule on the given day.
+     * <p/>
+     * If the events are not cached, and {@code stale} is {@code true}, the last known version of the events will be
+     * returned if it is available, and the events will be reloaded in the background.
+     *
+     * @param schedule the schedule
+     * @param day      the day
+     * @param stale    if {@code true}, return the last known version of the events rather than waiting on a load
+     * @return all events on the specified day for the schedule
+     */
+    public List<PropertySet> getEvents(Entity schedule, Date day, boolean stale) {
         ScheduleDay result;
-        day = DateRules.getDate(day);
-        Key key = new Key(schedule.getId(), day);
-        try {
-            // if null will lock here
-            Element element = cache.get(key);
+        Key key = new Key(schedule.getId(), DateRules.getDate(day));
+        Element element = cache.get(key);
+        if (element != null) {
+            result = (ScheduleDay) element.getObjectValue();
+        } else {
+            Load load = new Load(getLastKnown(key));
+            Load existing = loading.putIfAbsent(key, load);
+            if (existing == null) {
+                // this thread is responsible for loading the day
+                if (stale && load.getPrevious() != null) {
+                    reload(schedule, key, load);
+                    result = load.getPrevious();
+                } else {
+                    result = load(schedule, key, load);
+                }
+            } else if (stale && existing.getPrevious() != null) {
+                result = existing.getPrevious();
+            } else {
+                result = await(key, existing);
+            }
+        }
+        return result.getEvents();
+    }
+
+    /**
+     * Returns all events for a schedule for each day in a date range.
+     * <p/>
+     * Any days not already cached are read in from the database using a single query, and cached.
+     *
+     * @param schedule the schedule
+     * @param from     the start of the range
+     * @param to       the end of the range
+     * @return the events for each day in the range, keyed and ordered on day
+     */
+    public Map<Date, List<PropertySet>> getEvents(Entity schedule, Date from, Date to) {
+        return getEvents(Collections.singletonList(schedule), from, to).get(schedule);
+    }
+
+    /**
+     * Returns all events for a schedule for each day in a date range, if every day in the range is cached.
+     * <p/>
+     * Unlike {@link #getEvents(Entity, Date, Date)}, this never reads from the database.
+     *
+     * @param schedule the schedule
+     * @param from     the start of the range
+     * @param to       the end of the range
+     * @return the events for each day in the range, keyed and ordered on day, or {@code null} if one or more days
+     *         aren't cached
+     */
+    public Map<Date, List<PropertySet>> getCachedEvents(Entity schedule, Date from, Date to) {
+        Map<Date, List<PropertySet>> result = new LinkedHashMap<Date, List<PropertySet>>();
+        Date day = DateRules.getDate(from);
+        Date end = DateRules.getDate(to);
+        while (day.compareTo(end) <= 0) {
+            Element element = cache.get(new Key(schedule.getId(), day));
             if (element == null) {
-                // Value not cached, so query
+                return null;
+            }
+            result.put(day, ((ScheduleDay) element.getObjectValue()).getEvents());
+            day = DateRules.getDate(day, 1, DateUnits.DAYS);
+        }
+        return result;
+    }
 
-                result = new ScheduleDay(getSchedule(schedule.getId()), day);
-                // NOTE: ScheduleDay can be now updated via addEvent and removeEvent
+    /**
+     * Returns all events for a set of schedules for each day in a date range.
+     * <p/>
+     * Any schedule days not already cached or being loaded by other threads are read in from the database using a
+     * single query, and cached.
+     *
+     * @param schedules the schedules
+     * @param from      the start of the range
+     * @param to        the end of the range
+     * @return the events for each schedule and day in the range, keyed on schedule, and day. The schedules are
+     *         returned in the order they were supplied
+     */
+    public Map<Entity, Map<Date, List<PropertySet>>> getEvents(Collection<Entity> schedules, Date from, Date to) {
+        Map<Long, Entity> byId = new HashMap<Long, Entity>();
+        for (Entity schedule : schedules) {
+            byId.put(schedule.getId(), schedule);
+        }
+        Map<Key, ScheduleDay> days = new HashMap<Key, ScheduleDay>();
+        Map<Key, Load> claimed = new LinkedHashMap<Key, Load>(); // days this thread is responsible for loading
+        Map<Key, Load> pending = new LinkedHashMap<Key, Load>(); // days being loaded by other threads
+        Date start = DateRules.getDate(from);
+        Date end = DateRules.getDate(to);
+        for (long scheduleId : byId.keySet()) {
+            Date day = start;
+            while (day.compareTo(end) <= 0) {
+                Key key = new Key(scheduleId, day);
+                Element element = cache.get(key);
+                if (element != null) {
+                    days.put(key, (ScheduleDay) element.getObjectValue());
+                } else {
+                    Load load = new Load(getLastKnown(key));
+                    Load existing = loading.putIfAbsent(key, load);
+                    if (existing == null) {
+                        claimed.put(key, load);
+                    } else {
+                        pending.put(key, existing);
+                    }
+                }
+                day = DateRules.getDate(day, 1, DateUnits.DAYS);
+            }
+        }
+        if (!claimed.isEmpty()) {
+            load(byId, claimed, days);
+        }
+        // no locks are held whilst waiting, so threads loading overlapping schedules and ranges cannot deadlock
+        for (Map.Entry<Key, Load> entry : pending.entrySet()) {
+            days.put(entry.getKey(), await(entry.getKey(), entry.getValue()));
+        }
 
-                List<PropertySet> sets = factory.getEvents(schedule, day);
-                List<Event> events = addEvents(sets);
-                result.setEvents(events);
-                element = new Element(key, result);
-                cache.put(element);
-            } else {
-                result = (ScheduleDay) element.getObjectValue();
+        Map<Entity, Map<Date, List<PropertySet>>> result = new LinkedHashMap<Entity, Map<Date, List<PropertySet>>>();
+        for (Entity schedule : schedules) {
+            Map<Date, List<PropertySet>> events = new LinkedHashMap<Date, List<PropertySet>>();
+            Date day = start;
+            while (day.compareTo(end) <= 0) {
+                events.put(day, days.get(new Key(schedule.getId(), day)).getEvents());
+                day = DateRules.getDate(day, 1, DateUnits.DAYS);
             }
-        } catch (LockTimeoutException exception) {
-            // do not release the lock, as it was not acquired
-            String message = "Timeout waiting on another thread to fetch object for cache entry \"" + key + "\".";
-            throw new LockTimeoutException(message, exception);
-        } catch (final Throwable throwable) {
-            // Could not fetch - ditch the entry from the cache and rethrow.
-            cache.put(new Element(key, null));  // releases the lock
-            throw new CacheException("Could not fetch object for cache entry with key \"" + key + "\".", throwable);
+            result.put(schedule, events);
         }
-        return result.getEvents();
+        return result;
+    }
+
+    /**
+     * Returns the changes to the events for a schedule on the given day, since the specified change sequence.
+     * <p/>
+     * If the changes cannot be determined, either because the day wasn't cached at the specified sequence, or
+     * too many changes have been made to the schedule since, then a reset containing all of the events for the day
+     * is returned.
+     *
+     * @param schedule the schedule
+     * @param day      the day
+     * @param sequence the sequence returned by the last call for the schedule day, or {@code -1} to return all events
+     * @return the changes since {@code sequence}
+     */
+    public ScheduleEventChanges getChanges(Entity schedule, Date day, long sequence) {
+        ScheduleEventChanges result = null;
+        Key key = new Key(schedule.getId(), DateRules.getDate(day));
+        long current = this.sequence.get();
+        if (sequence >= 0 && sequence <= current) {
+            Element element = cache.get(key);
+            if (element != null) {
+                // the changes can only be determined if the day has been cached since the sequence was issued.
+                // If it was evicted, its events may have been reclaimed, and their removal not recorded
+                ScheduleDay scheduleDay = (ScheduleDay) element.getObjectValue();
+                if (scheduleDay.getSequence() <= sequence) {
+                    result = scheduleDay.getSchedule().getChanges(key.day, sequence);
+                }
+            }
+        }
+        if (result == null) {
+            List<PropertySet> events = getEvents(schedule, key.day);
+            result = new ScheduleEventChanges(current, true, events, Collections.<PropertySet>emptyList(),
+                                              Collections.<IMObjectReference>emptyList());
+        }
+        return result;
     }
 
     /**
@@ -163,6 +393,41 @@ class ScheduleEventCache {
         }
     }
 
+    /**
+     * Returns the approximate memory used by the cached events of each schedule.
+     * <p/>
+     * Events spanning multiple days are only counted once.
+     *
+     * @return the approximate memory used, in bytes, keyed on schedule identifier
+     */
+    public Map<Long, Long> getFootprint() {
+        Map<Long, Long> result = new HashMap<Long, Long>();
+        Map<Long, Set<Long>> counted = new HashMap<Long, Set<Long>>();
+        for (Object key : cache.getKeys()) {
+            Element element = cache.getQuiet(key);
+            if (element != null) {
+                ScheduleDay day = (ScheduleDay) element.getObjectValue();
+                long id = day.getSchedule().getId();
+                Set<Long> events = counted.get(id);
+                if (events == null) {
+                    events = new HashSet<Long>();
+                    counted.put(id, events);
+                }
+                Long size = result.get(id);
+                result.put(id, (size != null ? size : 0) + day.getSize(events));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Destroys the cache, stopping any background reloads.
+     */
+    public void destroy() {
+        executor.shutdownNow();
+        clear();
+    }
+
     /**
      * Clears the cache.
      */
@@ -206,13 +471,189 @@ class ScheduleEventCache {
         synchronized (schedules) {
             result = schedules.get(id);
             if (result == null) {
-                result = new Schedule(id);
+                result = new Schedule(id, sequence);
                 schedules.put(id, result);
             }
         }
         return result;
     }
 
+    /**
+     * Loads the events for a schedule day, and caches them.
+     *
+     * @param schedule the schedule
+     * @param key      the cache key
+     * @param load     the load, registered by the current thread
+     * @return the schedule day
+     * @throws CacheException if the day cannot be loaded
+     */
+    private ScheduleDay load(Entity schedule, Key key, Load load) {
+        try {
+            ScheduleDay result;
+            Element element = cache.get(key);
+            if (element != null) {
+                // loaded by another thread since the cache was last checked
+                result = (ScheduleDay) element.getObjectValue();
+            } else {
+                result = new ScheduleDay(getSchedule(key.scheduleId), key.day);
+                // NOTE: ScheduleDay can be now updated via addEvent and removeEvent
+
+                List<PropertySet> sets = factory.getEvents(schedule, key.day);
+                List<Event> events = addEvents(sets);
+                result.setEvents(events);
+                cache.put(new Element(key, result));
+            }
+            load.set(result);
+            return result;
+        } catch (Throwable throwable) {
+            load.setException(throwable);
+            throw new CacheException("Could not fetch object for cache entry with key \"" + key + "\".", throwable);
+        } finally {
+            loading.remove(key, load);
+        }
+    }
+
+    /**
+     * Loads the events for the schedule days corresponding to the supplied keys, using a single query, and caches
+     * them.
+     *
+     * @param schedules the schedules, keyed on id
+     * @param claimed   the loads registered by the current thread, keyed on the cache key of the day to load
+     * @param days      the schedule days, keyed on cache key. The loaded days are added to this
+     * @throws CacheException if the days cannot be loaded
+     */
+    private void load(Map<Long, Entity> schedules, Map<Key, Load> claimed, Map<Key, ScheduleDay> days) {
+        Map<Key, ScheduleDay> loaded = new HashMap<Key, ScheduleDay>();
+        try {
+            Map<Long, Entity> load = new HashMap<Long, Entity>();
+            Date from = null;
+            Date to = null;
+            for (Key key : claimed.keySet()) {
+                Element element = cache.get(key);
+                if (element != null) {
+                    // loaded by another thread since the cache was last checked
+                    loaded.put(key, (ScheduleDay) element.getObjectValue());
+                } else {
+                    loaded.put(key, new ScheduleDay(getSchedule(key.scheduleId), key.day));
+                    load.put(key.scheduleId, schedules.get(key.scheduleId));
+                    if (from == null || key.day.compareTo(from) < 0) {
+                        from = key.day;
+                    }
+                    if (to == null || key.day.compareTo(to) > 0) {
+                        to = key.day;
+                    }
+                }
+            }
+            if (!load.isEmpty()) {
+                Map<Long, List<Event>> events = new HashMap<Long, List<Event>>();
+                for (Event event : addEvents(factory.getEvents(load.values(), from, factory.getEnd(to)))) {
+                    List<Event> list = events.get(event.getScheduleId());
+                    if (list == null) {
+                        list = new ArrayList<Event>();
+                        events.put(event.getScheduleId(), list);
+                    }
+                    list.add(event);
+                }
+                for (Map.Entry<Key, ScheduleDay> entry : loaded.entrySet()) {
+                    Key key = entry.getKey();
+                    ScheduleDay day = entry.getValue();
+                    if (!day.isLoaded()) {
+                        List<Event> list = events.get(key.scheduleId);
+                        // only registers those events that intersect the day
+                        day.setEvents(list != null ? list : Collections.<Event>emptyList());
+                        cache.put(new Element(key, day));
+                    }
+                }
+            }
+            for (Map.Entry<Key, Load> entry : claimed.entrySet()) {
+                Key key = entry.getKey();
+                ScheduleDay day = loaded.get(key);
+                entry.getValue().set(day);
+                days.put(key, day);
+            }
+        } catch (Throwable throwable) {
+            for (Load load : claimed.values()) {
+                load.setException(throwable);
+            }
+            throw new CacheException("Could not fetch objects for schedules " + schedules.keySet(), throwable);
+        } finally {
+            for (Map.Entry<Key, Load> entry : claimed.entrySet()) {
+                loading.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Reloads a schedule day in the background.
+     *
+     * @param schedule the schedule
+     * @param key      the cache key
+     * @param load     the load, registered by the current thread
+     */
+    private void reload(final Entity schedule, final Key key, final Load load) {
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        load(schedule, key, load);
+                    } catch (Throwable exception) {
+                        log.warn("Failed to reload cache entry with key \"" + key + "\"", exception);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException exception) {
+            // the cache has been destroyed. Release the load so that subsequent requests can retry it.
+            load.set(load.getPrevious());
+            loading.remove(key, load);
+        }
+    }
+
+    /**
+     * Waits on another thread to load a schedule day.
+     * <p/>
+     * If the load doesn't complete within the {@link #setLoadTimeout load timeout}, the last known version of the
+     * day will be returned if it is available.
+     *
+     * @param key  the cache key
+     * @param load the load
+     * @return the schedule day
+     * @throws CacheException if the load fails or times out with no last known version, or the thread is interrupted
+     */
+    private ScheduleDay await(Key key, Load load) {
+        ScheduleDay result;
+        try {
+            result = load.get(loadTimeout);
+            if (result == null) {
+                result = load.getPrevious();
+                if (result != null) {
+                    log.warn("Timeout waiting on another thread to fetch object for cache entry \"" + key
+                             + "\". Using last known version");
+                } else {
+                    throw new CacheException("Timeout waiting on another thread to fetch object for cache entry \""
+                                             + key + "\".");
+                }
+            }
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new CacheException("Interrupted waiting on another thread to fetch object for cache entry \""
+                                     + key + "\".", exception);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the last known version of a schedule day, if it is loaded and hasn't been garbage collected.
+     *
+     * @param key the cache key
+     * @return the last known version of the schedule day, or {@code null} if it isn't available
+     */
+    private ScheduleDay getLastKnown(Key key) {
+        Schedule schedule = schedules.get(key.scheduleId);
+        ScheduleDay day = (schedule != null) ? schedule.getDay(key.day) : null;
+        return (day != null && day.isLoaded()) ? day : null;
+    }
+
     /**
      * Creates {@link Event} instances for the supplied {@link PropertySet}s.
      * <p/>
@@ -326,6 +767,92 @@ class ScheduleEventCache {
         }
     }
 
+    /**
+     * Tracks the loading of a schedule day, so that threads requesting the same day can share a single load.
+     */
+    private static class Load {
+
+        /**
+         * Latch released when the load completes.
+         */
+        private final CountDownLatch latch = new CountDownLatch(1);
+
+        /**
+         * The last known version of the day. May be {@code null}.
+         */
+        private final ScheduleDay previous;
+
+        /**
+         * The loaded day.
+         */
+        private volatile ScheduleDay day;
+
+        /**
+         * The exception, if the load failed.
+         */
+        private volatile Throwable exception;
+
+        /**
+         * Constructs a {@link Load}.
+         *
+         * @param previous the last known version of the day. May be {@code null}
+         */
+        public Load(ScheduleDay previous) {
+            this.previous = previous;
+        }
+
+        /**
+         * Returns the last known version of the day.
+         *
+         * @return the last known version of the day. May be {@code null}
+         */
+        public ScheduleDay getPrevious() {
+            return previous;
+        }
+
+        /**
+         * Completes the load.
+         *
+         * @param day the loaded day
+         */
+        public void set(ScheduleDay day) {
+            this.day = day;
+            latch.countDown();
+        }
+
+        /**
+         * Completes the load with an exception.
+         *
+         * @param exception the cause of the failure
+         */
+        public void setException(Throwable exception) {
+            this.exception = exception;
+            latch.countDown();
+        }
+
+        /**
+         * Waits for the load to complete.
+         *
+         * @param timeout the time to wait, in milliseconds. If {@code <= 0}, wait indefinitely
+         * @return the loaded day, or {@code null} if the load didn't complete in time
+         * @throws InterruptedException if the thread is interrupted
+         * @throws CacheException       if the load failed
+         */
+        public ScheduleDay get(long timeout) throws InterruptedException {
+            if (timeout > 0) {
+                if (!latch.await(timeout, TimeUnit.MILLISECONDS)) {
+                    return null;
+                }
+            } else {
+                latch.await();
+            }
+            if (exception != null) {
+                throw new CacheException("Failed to load schedule day", exception);
+            }
+            return day;
+        }
+    }
+
     /**
      * Tracks {@link ScheduleDay} instances held by the underlying cache.
      * <p/>
@@ -346,13 +873,43 @@ class ScheduleEventCache {
          */
         private long id;
 
+        /**
+         * The change sequence, shared by all schedules.
+         */
+        private final AtomicLong sequence;
+
+        /**
+         * The most recent changes to the schedule's events, in the order they were made.
+         */
+        private final LinkedList<EventChange> changes = new LinkedList<EventChange>();
+
+        /**
+         * The sequence of the most recent change discarded from {@link #changes}. Changes since an earlier sequence
+         * cannot be determined.
+         */
+        private long truncated;
+
+        /**
+         * The sequence of the most recent change to the schedule.
+         */
+        private long last;
+
+        /**
+         * The maximum no. of changes to retain.
+         */
+        private static final int MAX_CHANGES = 1000;
+
         /**
          * Constructs an {@link Schedule}.
          *
-         * @param id the schedule identifier
+         * @param id       the schedule identifier
+         * @param sequence the change sequence
          */
-        public Schedule(long id) {
+        public Schedule(long id, AtomicLong sequence) {
             this.id = id;
+            this.sequence = sequence;
+            truncated = sequence.get();
+            last = truncated;
         }
 
         /**
@@ -375,12 +932,25 @@ class ScheduleEventCache {
             }
         }
 
+        /**
+         * Returns a {@link ScheduleDay}, if it hasn't been garbage collected.
+         *
+         * @param day the day
+         * @return the schedule day, or {@code null} if none is found
+         */
+        public ScheduleDay getDay(Date day) {
+            synchronized (days) {
+                return (ScheduleDay) days.get(day);
+            }
+        }
+
         /**
          * Adds an event.
          *
          * @param event the event to add
          */
         public void addEvent(Event event) {
+            log(event, true);
             synchronized (days) {
                 for (Object value : days.values()) {
                     ScheduleDay day = (ScheduleDay) value;
@@ -397,6 +967,7 @@ class ScheduleEventCache {
          * @param event the event to remove
          */
         public void removeEvent(Event event) {
+            log(event, false);
             Object[] values;
             synchronized (days) {
                 values = days.values().toArray();
@@ -409,6 +980,135 @@ class ScheduleEventCache {
             }
         }
 
+        /**
+         * Returns the current change sequence.
+         *
+         * @return the current change sequence
+         */
+        public long getSequence() {
+            return sequence.get();
+        }
+
+        /**
+         * Returns the changes to the events on a day, since the specified sequence.
+         * <p/>
+         * An event that was removed from the day and subsequently added is reported as updated. An event that was
+         * added and subsequently removed is not reported.
+         *
+         * @param day   the day
+         * @param since the sequence
+         * @return the changes, or {@code null} if they cannot be determined
+         */
+        public ScheduleEventChanges getChanges(Date day, long since) {
+            List<EventChange> list = new ArrayList<EventChange>();
+            long current;
+            synchronized (changes) {
+                if (since < truncated) {
+                    return null;
+                }
+                current = Math.max(last, since);
+                if (since < last) {
+                    // changes are ordered on sequence, so walk back to the first change after since
+                    Iterator<EventChange> iterator = changes.descendingIterator();
+                    while (iterator.hasNext()) {
+                        EventChange change = iterator.next();
+                        if (change.sequence <= since) {
+                            break;
+                        }
+                        list.add(change);
+                    }
+                    Collections.reverse(list);
+                }
+            }
+            Set<Long> existing = new HashSet<Long>();  // events on the day at since
+            Map<Long, EventChange> latest = new LinkedHashMap<Long, EventChange>();
+            for (EventChange change : list) {
+                if (Event.intersects(change.event, day)) {
+                    if (!latest.containsKey(change.id) && !change.add) {
+                        // the first change is a removal, so the event was present at since
+                        existing.add(change.id);
+                    }
+                    latest.put(change.id, change);
+                }
+            }
+            List<PropertySet> added = new ArrayList<PropertySet>();
+            List<PropertySet> updated = new ArrayList<PropertySet>();
+            List<IMObjectReference> removed = new ArrayList<IMObjectReference>();
+            for (EventChange change : latest.values()) {
+                boolean exists = existing.contains(change.id);
+                if (change.add) {
+                    ObjectSet event = change.event.toObjectSet();  // shallow copy
+                    if (exists) {
+                        updated.add(event);
+                    } else {
+                        added.add(event);
+                    }
+                } else if (exists) {
+                    removed.add(change.event.getReference(ScheduleEvent.ACT_REFERENCE));
+                }
+            }
+            Collections.sort(added, EventComparator.INSTANCE);
+            Collections.sort(updated, EventComparator.INSTANCE);
+            return new ScheduleEventChanges(current, false, added, updated, removed);
+        }
+
+        /**
+         * Records a change to an event.
+         *
+         * @param event the event
+         * @param add   if {@code true}, the event was added, otherwise it was removed
+         */
+        private void log(Event event, boolean add) {
+            synchronized (changes) {
+                last = sequence.incrementAndGet();
+                changes.add(new EventChange(last, event.getId(), event.getEvent(), add));
+                if (changes.size() > MAX_CHANGES) {
+                    truncated = changes.removeFirst().sequence;
+                }
+            }
+        }
+
+    }
+
+    /**
+     * A change to an event, recorded by {@link Schedule}.
+     */
+    private static class EventChange {
+
+        /**
+         * The change sequence.
+         */
+        private final long sequence;
+
+        /**
+         * The event identifier.
+         */
+        private final long id;
+
+        /**
+         * The event, as at the change.
+         */
+        private final ScheduleEventRecord event;
+
+        /**
+         * If {@code true}, the event was added, otherwise it was removed.
+         */
+        private final boolean add;
+
+        /**
+         * Constructs an {@link EventChange}.
+         *
+         * @param sequence the change sequence
+         * @param id       the event identifier
+         * @param event    the event, as at the change
+         * @param add      if {@code true}, the event was added, otherwise it was removed
+         */
+        public EventChange(long sequence, long id, ScheduleEventRecord event, boolean add) {
+            this.sequence = sequence;
+            this.id = id;
+            this.event = event;
+            this.add = add;
+        }
     }
 
     private static class ScheduleDay {
@@ -437,6 +1137,21 @@ class ScheduleEventCache {
          */
         private final Schedule schedule;
 
+        /**
+         * The change sequence when the day was created. Changes to the schedule after this are reflected in the day.
+         */
+        private final long sequence;
+
+        /**
+         * The approximate size of a day, including its map, cache key and cache element, in bytes.
+         */
+        private static final int SIZE = 160;
+
+        /**
+         * The approximate size of each map entry, including its key and {@link EventHandle}, in bytes.
+         */
+        private static final int HANDLE_SIZE = 72;
+
         /**
          * Constructs an {@link ScheduleDay}.
          *
@@ -446,9 +1161,28 @@ class ScheduleEventCache {
         public ScheduleDay(Schedule schedule, Date day) {
             this.day = day;
             this.schedule = schedule;
+            sequence = schedule.getSequence();
             schedule.add(this);
         }
 
+        /**
+         * Returns the owning schedule.
+         *
+         * @return the schedule
+         */
+        public Schedule getSchedule() {
+            return schedule;
+        }
+
+        /**
+         * Returns the change sequence when the day was created.
+         *
+         * @return the change sequence
+         */
+        public long getSequence() {
+            return sequence;
+        }
+
         /**
          * Returns the schedule day.
          *
@@ -458,6 +1192,15 @@ class ScheduleEventCache {
             return day;
         }
 
+        /**
+         * Determines if the events have been registered.
+         *
+         * @return {@code true} if the events have been registered
+         */
+        public synchronized boolean isLoaded() {
+            return map != null;
+        }
+
         /**
          * Registers events.
          * <p/>
@@ -487,6 +1230,27 @@ class ScheduleEventCache {
             }
         }
 
+        /**
+         * Returns the approximate memory used by the day, in bytes.
+         *
+         * @param counted the identifiers of events that have already been counted. Events not in this set are
+         *                counted and added to it
+         * @return the approximate memory used, in bytes
+         */
+        public synchronized long getSize(Set<Long> counted) {
+            long result = SIZE;
+            if (map != null) {
+                result += map.size() * HANDLE_SIZE;
+                for (EventHandle handle : map.values()) {
+                    Event event = handle.event;
+                    if (counted.add(event.getId())) {
+                        result += event.getSize();
+                    }
+                }
+            }
+            return result;
+        }
+
         /**
          * Returns a shallow copy of the events.
          * <p/>
@@ -503,9 +1267,9 @@ class ScheduleEventCache {
             List<PropertySet> result = new ArrayList<PropertySet>();
             for (Iterator<EventHandle> iterator = map.values().iterator(); iterator.hasNext(); ) {
                 EventHandle handle = iterator.next();
-                PropertySet event = handle.getEvent(id, day);
+                ScheduleEventRecord event = handle.getEvent(id, day);
                 if (event != null) {
-                    result.add(new ObjectSet(event)); // shallow copy
+                    result.add(event.toObjectSet()); // shallow copy
                 } else {
                     // handle is out of date
                     iterator.remove();
@@ -568,7 +1332,7 @@ class ScheduleEventCache {
         /**
          * The event.
          */
-        private PropertySet event;
+        private ScheduleEventRecord event;
 
         /**
          * The event identifier.
@@ -598,12 +1362,26 @@ class ScheduleEventCache {
                                                 ScheduleEvent.PATIENT_PARTICIPATION_VERSION,
                                                 ScheduleEvent.CLINICIAN_PARTICIPATION_VERSION};
 
+        /**
+         * The approximate size of an event, excluding its properties, in bytes.
+         */
+        private static final int SIZE = 40;
+
         /**
          * Constructs an {@link Event}.
          *
          * @param event the event properties
          */
         public Event(PropertySet event) {
+            this(new ScheduleEventRecord(event));
+        }
+
+        /**
+         * Constructs an {@link Event}.
+         *
+         * @param event the event record
+         */
+        public Event(ScheduleEventRecord event) {
             id = event.getReference(ScheduleEvent.ACT_REFERENCE).getId();
             setEvent(event, event.getLong(ScheduleEvent.ACT_VERSION));
         }
@@ -638,7 +1416,7 @@ class ScheduleEventCache {
                 }
             }
             if (update) {
-                setEvent(event, otherVersion);
+                setEvent(new ScheduleEventRecord(event), otherVersion);
             }
             return update;
         }
@@ -657,10 +1435,19 @@ class ScheduleEventCache {
          *
          * @return the event
          */
-        public synchronized PropertySet getEvent() {
+        public synchronized ScheduleEventRecord getEvent() {
             return event;
         }
 
+        /**
+         * Returns the approximate memory used by the event, in bytes.
+         *
+         * @return the approximate memory used, in bytes
+         */
+        public synchronized long getSize() {
+            return SIZE + event.getSize();
+        }
+
         /**
          * Determine if the event falls on the specified day.
          *
@@ -668,6 +1455,17 @@ class ScheduleEventCache {
          * @return {@code true} if the event falls on te specified day
          */
         public synchronized boolean intersects(Date day) {
+            return intersects(event, day);
+        }
+
+        /**
+         * Determine if an event falls on the specified day.
+         *
+         * @param event the event
+         * @param day   the day
+         * @return {@code true} if the event falls on the specified day
+         */
+        public static boolean intersects(ScheduleEventRecord event, Date day) {
             Date startTime = DateRules.getDate(event.getDate(ScheduleEvent.ACT_START_TIME));
             Date endTime = DateRules.getDate(event.getDate(ScheduleEvent.ACT_END_TIME));
             return DateRules.between(day, startTime, endTime);
@@ -703,8 +1501,8 @@ class ScheduleEventCache {
          * @param handle     the event handle, used for quick determination of event applicability
          * @return the event, or {@code null} if the event no longer applies
          */
-        public synchronized PropertySet getEvent(long scheduleId, Date day, EventHandle handle) {
-            PropertySet result;
+        public synchronized ScheduleEventRecord getEvent(long scheduleId, Date day, EventHandle handle) {
+            ScheduleEventRecord result;
             if (modCount == handle.getModCount()) {
                 result = event;
             } else if (isFor(scheduleId, day)) {
@@ -754,7 +1552,7 @@ class ScheduleEventCache {
          * @param event   the event
          * @param version the event version
          */
-        private void setEvent(PropertySet event, long version) {
+        private void setEvent(ScheduleEventRecord event, long version) {
             this.event = event;
             this.version = version;
             this.scheduleId = event.getReference(ScheduleEvent.SCHEDULE_REFERENCE).getId();
@@ -805,7 +1603,7 @@ class ScheduleEventCache {
          * @param day        the day the event is expected to be for
          * @return the event, or {@code null} if the event is not for the expected schedule and day
          */
-        public PropertySet getEvent(long scheduleId, Date day) {
+        public ScheduleEventRecord getEvent(long scheduleId, Date day) {
             return event.getEvent(scheduleId, day, this);
         }
 
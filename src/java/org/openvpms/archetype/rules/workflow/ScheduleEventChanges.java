@@ -0,0 +1,139 @@
+/*
+ * Version: 1.0
+ *
+ * The contents of this file are subject to the OpenVPMS License Version
+ * 1.0 (the 'License'); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.openvpms.org/license/
+ *
+ * Software distributed under the License is distributed on an 'AS IS' basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * Copyright 2014 (C) OpenVPMS Ltd. All Rights Reserved.
+ */
+
+package org.openvpms.archetype.rules.workflow;
+
+import org.openvpms.component.business.domain.im.common.IMObjectReference;
+import org.openvpms.component.system.common.util.PropertySet;
+
+import java.util.List;
+
+/**
+ * The changes to the events of a schedule day, since a particular change sequence.
+ * <p/>
+ * If the changes cannot be determined (e.g. the day has been evicted from the cache since the sequence was issued),
+ * a reset is returned. In this case, {@link #getAdded()} returns all of the events for the day, and any events
+ * previously held by the caller should be discarded.
+ *
+ * @author Tim Anderson
+ * @see AbstractScheduleService#getChanges
+ */
+public class ScheduleEventChanges {
+
+    /**
+     * The change sequence that the changes are current to.
+     */
+    private final long sequence;
+
+    /**
+     * Determines if the changes represent all of the events for the day.
+     */
+    private final boolean reset;
+
+    /**
+     * The added events.
+     */
+    private final List<PropertySet> added;
+
+    /**
+     * The updated events.
+     */
+    private final List<PropertySet> updated;
+
+    /**
+     * The references of the removed events.
+     */
+    private final List<IMObjectReference> removed;
+
+
+    /**
+     * Constructs a {@link ScheduleEventChanges}.
+     *
+     * @param sequence the change sequence that the changes are current to
+     * @param reset    if {@code true}, {@code added} contains all of the events for the day
+     * @param added    the added events
+     * @param updated  the updated events
+     * @param removed  the references of the removed events
+     */
+    public ScheduleEventChanges(long sequence, boolean reset, List<PropertySet> added, List<PropertySet> updated,
+                                List<IMObjectReference> removed) {
+        this.sequence = sequence;
+        this.reset = reset;
+        this.added = added;
+        this.updated = updated;
+        this.removed = removed;
+    }
+
+    /**
+     * Returns the change sequence that the changes are current to.
+     * <p/>
+     * This should be supplied in the next request for changes.
+     *
+     * @return the change sequence
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Determines if the changes represent all of the events for the day, rather than the changes since the
+     * requested sequence.
+     *
+     * @return {@code true} if any events previously held by the caller should be replaced by {@link #getAdded()}
+     */
+    public boolean isReset() {
+        return reset;
+    }
+
+    /**
+     * Returns the events added to the day.
+     *
+     * @return the added events, ordered on start time
+     */
+    public List<PropertySet> getAdded() {
+        return added;
+    }
+
+    /**
+     * Returns the events on the day that have been updated.
+     *
+     * @return the updated events, ordered on start time
+     */
+    public List<PropertySet> getUpdated() {
+        return updated;
+    }
+
+    /**
+     * Returns the references of events removed from the day.
+     * <p/>
+     * This includes events that have been moved to another day or schedule.
+     *
+     * @return the removed event references
+     */
+    public List<IMObjectReference> getRemoved() {
+        return removed;
+    }
+
+    /**
+     * Determines if there are no changes.
+     *
+     * @return {@code true} if this isn't a reset, and there are no added, updated or removed events
+     */
+    public boolean isEmpty() {
+        return !reset && added.isEmpty() && updated.isEmpty() && removed.isEmpty();
+    }
+
+}
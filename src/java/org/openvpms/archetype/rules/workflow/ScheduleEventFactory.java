@@ -19,26 +19,25 @@ package org.openvpms.archetype.rules.workflow;
 import org.openvpms.archetype.rules.customer.CustomerArchetypes;
 import org.openvpms.archetype.rules.patient.PatientArchetypes;
 import org.openvpms.archetype.rules.user.UserArchetypes;
+import org.openvpms.archetype.rules.util.DateRules;
 import org.openvpms.component.business.domain.im.act.Act;
 import org.openvpms.component.business.domain.im.common.Entity;
+import org.openvpms.component.business.domain.im.common.IMObject;
 import org.openvpms.component.business.domain.im.common.IMObjectReference;
 import org.openvpms.component.business.domain.im.common.Participation;
 import org.openvpms.component.business.service.archetype.IArchetypeService;
 import org.openvpms.component.business.service.archetype.helper.ActBean;
 import org.openvpms.component.business.service.archetype.helper.LookupHelper;
 import org.openvpms.component.business.service.lookup.ILookupService;
-import org.openvpms.component.system.common.query.ArchetypeQuery;
 import org.openvpms.component.system.common.query.IPage;
-import org.openvpms.component.system.common.query.NodeSelectConstraint;
-import org.openvpms.component.system.common.query.ObjectRefConstraint;
 import org.openvpms.component.system.common.query.ObjectSet;
-import org.openvpms.component.system.common.query.ObjectSetQueryIterator;
 import org.openvpms.component.system.common.util.PropertySet;
 
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -66,6 +65,11 @@ abstract class ScheduleEventFactory {
      */
     private final Map<String, String> statusNames;
 
+    /**
+     * Cache of customer, patient, clinician, schedule and schedule type names.
+     */
+    private final EntityNameCache names;
+
 
     /**
      * Constructs a {@link ScheduleEventFactory}.
@@ -77,6 +81,7 @@ abstract class ScheduleEventFactory {
     public ScheduleEventFactory(String eventShortName, IArchetypeService service, ILookupService lookupService) {
         this.service = service;
         statusNames = LookupHelper.getNames(service, lookupService, eventShortName, "status");
+        names = new EntityNameCache(service);
     }
 
     /**
@@ -87,8 +92,39 @@ abstract class ScheduleEventFactory {
      * @return all events on the specified day for the schedule
      */
     public List<PropertySet> getEvents(Entity schedule, Date day) {
-        ScheduleEventQuery query = createQuery(schedule, day);
+        return getEvents(schedule, DateRules.getDate(day), getEnd(day));
+    }
+
+    /**
+     * Returns all events for a schedule that intersect the specified date range.
+     * <p/>
+     * This uses a single query, regardless of the number of days in the range.
+     *
+     * @param schedule the schedule
+     * @param from     the start of the range
+     * @param to       the end of the range
+     * @return all events that intersect the range, ordered on start time
+     */
+    public List<PropertySet> getEvents(Entity schedule, Date from, Date to) {
+        return getEvents(Collections.singletonList(schedule), from, to);
+    }
+
+    /**
+     * Returns all events for a set of schedules that intersect the specified date range.
+     * <p/>
+     * This uses a single query, regardless of the number of schedules or days in the range.
+     *
+     * @param schedules the schedules
+     * @param from      the start of the range
+     * @param to        the end of the range
+     * @return all events that intersect the range, ordered on start time
+     */
+    public List<PropertySet> getEvents(Collection<Entity> schedules, Date from, Date to) {
+        ScheduleEventQuery query = createQuery(schedules, from, to);
         IPage<ObjectSet> page = query.query();
+        for (ObjectSet set : page.getResults()) {
+            addNames(set);
+        }
         return new ArrayList<PropertySet>(page.getResults());
     }
 
@@ -101,10 +137,36 @@ abstract class ScheduleEventFactory {
     public PropertySet createEvent(Act act) {
         ObjectSet set = new ObjectSet();
         ActBean bean = new ActBean(act, service);
+        names.getNames(getReferences(bean)); // resolve any uncached names in bulk
         assemble(set, bean);
         return set;
     }
 
+    /**
+     * Updates the cached name of an object, if it is cached.
+     *
+     * @param object the object
+     */
+    public void updateName(IMObject object) {
+        names.update(object);
+    }
+
+    /**
+     * Removes the cached name of an object.
+     *
+     * @param reference the object reference
+     */
+    public void removeName(IMObjectReference reference) {
+        names.remove(reference);
+    }
+
+    /**
+     * Clears the cached names.
+     */
+    public void clearNames() {
+        names.clear();
+    }
+
     /**
      * Assembles a {@link PropertySet PropertySet} from a source act.
      *
@@ -146,13 +208,30 @@ abstract class ScheduleEventFactory {
     }
 
     /**
-     * Creates a query to query events for a particular schedule and day.
+     * Returns the references of the objects whose names are required to assemble an event.
+     * <p/>
+     * These are resolved in bulk prior to {@link #assemble(PropertySet, ActBean)} being invoked.
      *
-     * @param schedule the schedule
-     * @param day      the day
+     * @param source the source act
+     * @return the references. May contain {@code null}s
+     */
+    protected List<IMObjectReference> getReferences(ActBean source) {
+        List<IMObjectReference> result = new ArrayList<IMObjectReference>();
+        result.add(source.getParticipantRef(CustomerArchetypes.CUSTOMER_PARTICIPATION));
+        result.add(source.getParticipantRef(PatientArchetypes.PATIENT_PARTICIPATION));
+        result.add(source.getParticipantRef(UserArchetypes.CLINICIAN_PARTICIPATION));
+        return result;
+    }
+
+    /**
+     * Creates a query to query events for a set of schedules and date range.
+     *
+     * @param schedules the schedules
+     * @param from      the start of the range
+     * @param to        the end of the range
      * @return a new query
      */
-    protected abstract ScheduleEventQuery createQuery(Entity schedule, Date day);
+    protected abstract ScheduleEventQuery createQuery(Collection<Entity> schedules, Date from, Date to);
 
     /**
      * Returns the archetype service.
@@ -170,18 +249,22 @@ abstract class ScheduleEventFactory {
      * @return the name or {@code null} if none exists
      */
     protected String getName(IMObjectReference reference) {
-        if (reference != null) {
-            ObjectRefConstraint constraint = new ObjectRefConstraint("o", reference);
-            ArchetypeQuery query = new ArchetypeQuery(constraint);
-            query.add(new NodeSelectConstraint("o.name"));
-            query.setMaxResults(1);
-            Iterator<ObjectSet> iter = new ObjectSetQueryIterator(service, query);
-            if (iter.hasNext()) {
-                ObjectSet set = iter.next();
-                return set.getString("o.name");
-            }
-        }
-        return null;
+        return names.getName(reference);
+    }
+
+    /**
+     * Caches the customer, patient, clinician, schedule and schedule type names of an event.
+     *
+     * @param event the event
+     */
+    protected void addNames(PropertySet event) {
+        names.add(event.getReference(ScheduleEvent.CUSTOMER_REFERENCE), event.getString(ScheduleEvent.CUSTOMER_NAME));
+        names.add(event.getReference(ScheduleEvent.PATIENT_REFERENCE), event.getString(ScheduleEvent.PATIENT_NAME));
+        names.add(event.getReference(ScheduleEvent.CLINICIAN_REFERENCE),
+                  event.getString(ScheduleEvent.CLINICIAN_NAME));
+        names.add(event.getReference(ScheduleEvent.SCHEDULE_REFERENCE), event.getString(ScheduleEvent.SCHEDULE_NAME));
+        names.add(event.getReference(ScheduleEvent.SCHEDULE_TYPE_REFERENCE),
+                  event.getString(ScheduleEvent.SCHEDULE_TYPE_NAME));
     }
 
 
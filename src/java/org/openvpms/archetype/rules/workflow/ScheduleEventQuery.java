@@ -36,7 +36,9 @@ import org.openvpms.component.system.common.query.ObjectSet;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -54,9 +56,9 @@ abstract class ScheduleEventQuery {
     private final IArchetypeService service;
 
     /**
-     * The schedule.
+     * The schedules, keyed on id.
      */
-    private Entity schedule;
+    private final Map<Long, Entity> schedules = new LinkedHashMap<Long, Entity>();
 
     /**
      * The 'from' start time.
@@ -89,7 +91,23 @@ abstract class ScheduleEventQuery {
      * @param service        the archetype service
      */
     public ScheduleEventQuery(Entity schedule, Date from, Date to, String eventShortName, IArchetypeService service) {
-        this.schedule = schedule;
+        this(Collections.singletonList(schedule), from, to, eventShortName, service);
+    }
+
+    /**
+     * Constructs a {@link ScheduleEventQuery} to query the events of multiple schedules.
+     *
+     * @param schedules      the schedules
+     * @param from           the 'from' start time
+     * @param to             the 'to' start time
+     * @param eventShortName the event archetype short name
+     * @param service        the archetype service
+     */
+    public ScheduleEventQuery(Collection<Entity> schedules, Date from, Date to, String eventShortName,
+                              IArchetypeService service) {
+        for (Entity schedule : schedules) {
+            this.schedules.put(schedule.getId(), schedule);
+        }
         this.from = from;
         this.to = to;
         this.service = service;
@@ -160,6 +178,18 @@ abstract class ScheduleEventQuery {
      */
     protected abstract String getQueryName();
 
+    /**
+     * Returns the name of the named query to execute when querying multiple schedules.
+     * <p/>
+     * This query restricts schedules to those in the {@code :scheduleIds} list, and must return the schedule
+     * identifier as an additional column, named <em>schedule.id</em>.
+     *
+     * @return the name of the named query
+     */
+    protected String getMultipleScheduleQueryName() {
+        return getQueryName() + "-schedules";
+    }
+
     /**
      * Returns the archetype short name of the schedule type.
      *
@@ -188,9 +218,16 @@ abstract class ScheduleEventQuery {
                                                  "entity.archetypeId",
                                                  "entity.id", "entity.linkId",
                                                  "entity.name");
-        NamedQuery query = new NamedQuery(getQueryName(), names);
-
-        query.setParameter("scheduleId", schedule.getId());
+        NamedQuery query;
+        if (schedules.size() == 1) {
+            query = new NamedQuery(getQueryName(), names);
+            query.setParameter("scheduleId", schedules.keySet().iterator().next());
+        } else {
+            List<String> multiple = new ArrayList<String>(names);
+            multiple.add("schedule.id");
+            query = new NamedQuery(getMultipleScheduleQueryName(), multiple);
+            query.setParameter("scheduleIds", new ArrayList<Long>(schedules.keySet()));
+        }
         query.setParameter("from", from);
         query.setParameter("to", to);
         query.setMaxResults(IArchetypeQuery.ALL_RESULTS);
@@ -206,6 +243,7 @@ abstract class ScheduleEventQuery {
      */
     protected ObjectSet createEvent(IMObjectReference actRef, ObjectSet set) {
         ObjectSet result = new ObjectSet();
+        Entity schedule = getSchedule(set);
         String status = set.getString(ScheduleEvent.ACT_STATUS);
         String reason = set.getString(ScheduleEvent.ACT_REASON);
 
@@ -231,6 +269,19 @@ abstract class ScheduleEventQuery {
         return result;
     }
 
+    /**
+     * Helper to return the schedule that an event belongs to.
+     *
+     * @param set the source set
+     * @return the schedule
+     */
+    private Entity getSchedule(ObjectSet set) {
+        if (set.exists("schedule.id")) {
+            return schedules.get(set.getLong("schedule.id"));
+        }
+        return schedules.values().iterator().next();
+    }
+
     /**
      * Helper to return the act reference from a set.
      *
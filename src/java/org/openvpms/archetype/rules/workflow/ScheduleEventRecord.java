@@ -0,0 +1,313 @@
+/*
+ * Version: 1.0
+ *
+ * The contents of this file are subject to the OpenVPMS License Version
+ * 1.0 (the 'License'); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.openvpms.org/license/
+ *
+ * Software distributed under the License is distributed on an 'AS IS' basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * Copyright 2014 (C) OpenVPMS Ltd. All Rights Reserved.
+ */
+
+package org.openvpms.archetype.rules.workflow;
+
+import org.openvpms.component.business.domain.im.common.IMObjectReference;
+import org.openvpms.component.system.common.query.ObjectSet;
+import org.openvpms.component.system.common.util.PropertySet;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A compact, immutable representation of a schedule event, used by {@link ScheduleEventCache}.
+ * <p/>
+ * Properties with {@link ScheduleEvent} keys are stored in fixed slots rather than a map. Properties with other keys
+ * (e.g. act details) are held in a small overflow array.
+ * <p/>
+ * Status, reason, schedule, schedule type and clinician names are interned, as these are shared by many events.
+ * <p/>
+ * Records are not {@link PropertySet}s, as {@link ObjectSet} allocates a map per instance. Instances cannot be
+ * modified. Use {@link #toObjectSet()} to obtain a modifiable copy.
+ *
+ * @author Tim Anderson
+ */
+final class ScheduleEventRecord {
+
+    /**
+     * The property values, indexed on the position of their key in {@link #KEYS}.
+     */
+    private final Object[] values = new Object[KEYS.length];
+
+    /**
+     * Bitmask of the slots that have been populated.
+     */
+    private final int present;
+
+    /**
+     * The keys of properties that don't have a slot. May be {@code null}.
+     */
+    private final String[] otherKeys;
+
+    /**
+     * The values of properties that don't have a slot. May be {@code null}.
+     */
+    private final Object[] otherValues;
+
+    /**
+     * The keys that have slots.
+     */
+    private static final String[] KEYS = {
+            ScheduleEvent.ACT_REFERENCE, ScheduleEvent.ACT_VERSION, ScheduleEvent.ACT_START_TIME,
+            ScheduleEvent.ACT_END_TIME, ScheduleEvent.ACT_STATUS, ScheduleEvent.ACT_STATUS_NAME,
+            ScheduleEvent.ACT_REASON, ScheduleEvent.ACT_REASON_NAME, ScheduleEvent.ACT_DESCRIPTION,
+            ScheduleEvent.SCHEDULE_REFERENCE, ScheduleEvent.SCHEDULE_NAME, ScheduleEvent.SCHEDULE_PARTICIPATION_VERSION,
+            ScheduleEvent.SCHEDULE_TYPE_REFERENCE, ScheduleEvent.SCHEDULE_TYPE_NAME,
+            ScheduleEvent.CUSTOMER_REFERENCE, ScheduleEvent.CUSTOMER_NAME, ScheduleEvent.CUSTOMER_PARTICIPATION_VERSION,
+            ScheduleEvent.PATIENT_REFERENCE, ScheduleEvent.PATIENT_NAME, ScheduleEvent.PATIENT_PARTICIPATION_VERSION,
+            ScheduleEvent.CLINICIAN_REFERENCE, ScheduleEvent.CLINICIAN_NAME,
+            ScheduleEvent.CLINICIAN_PARTICIPATION_VERSION, ScheduleEvent.ARRIVAL_TIME,
+            ScheduleEvent.CONSULT_START_TIME};
+
+    /**
+     * The keys whose string values are interned.
+     */
+    private static final String[] INTERNED = {
+            ScheduleEvent.ACT_STATUS, ScheduleEvent.ACT_STATUS_NAME, ScheduleEvent.ACT_REASON,
+            ScheduleEvent.ACT_REASON_NAME, ScheduleEvent.SCHEDULE_NAME, ScheduleEvent.SCHEDULE_TYPE_NAME,
+            ScheduleEvent.CLINICIAN_NAME};
+
+    /**
+     * The slot indexes, keyed on key.
+     */
+    private static final Map<String, Integer> SLOTS = new HashMap<String, Integer>();
+
+    /**
+     * Bitmask of the slots whose string values are interned.
+     */
+    private static final int INTERNED_SLOTS;
+
+    /**
+     * The approximate size of an object header, in bytes.
+     */
+    private static final int HEADER_SIZE = 16;
+
+    /**
+     * The approximate size of an object reference, in bytes.
+     */
+    private static final int REFERENCE_SIZE = 4;
+
+    static {
+        for (int i = 0; i < KEYS.length; ++i) {
+            SLOTS.put(KEYS[i], i);
+        }
+        int mask = 0;
+        for (String key : INTERNED) {
+            mask |= 1 << SLOTS.get(key);
+        }
+        INTERNED_SLOTS = mask;
+    }
+
+    /**
+     * Constructs a {@link ScheduleEventRecord}.
+     *
+     * @param event the event to copy
+     */
+    public ScheduleEventRecord(PropertySet event) {
+        int mask = 0;
+        int others = 0;
+        Set<String> names = event.getNames();
+        for (String name : names) {
+            Integer slot = SLOTS.get(name);
+            if (slot != null) {
+                Object value = event.get(name);
+                if (value instanceof String && (INTERNED_SLOTS & (1 << slot)) != 0) {
+                    value = ((String) value).intern();
+                }
+                values[slot] = value;
+                mask |= 1 << slot;
+            } else {
+                ++others;
+            }
+        }
+        present = mask;
+        if (others != 0) {
+            otherKeys = new String[others];
+            otherValues = new Object[others];
+            int i = 0;
+            for (String name : names) {
+                if (!SLOTS.containsKey(name)) {
+                    otherKeys[i] = name;
+                    otherValues[i] = event.get(name);
+                    ++i;
+                }
+            }
+        } else {
+            otherKeys = null;
+            otherValues = null;
+        }
+    }
+
+    /**
+     * Returns the property names.
+     *
+     * @return the property names
+     */
+    public Set<String> getNames() {
+        Set<String> result = new LinkedHashSet<String>();
+        for (int i = 0; i < KEYS.length; ++i) {
+            if ((present & (1 << i)) != 0) {
+                result.add(KEYS[i]);
+            }
+        }
+        if (otherKeys != null) {
+            Collections.addAll(result, otherKeys);
+        }
+        return result;
+    }
+
+    /**
+     * Determines if a property exists.
+     *
+     * @param name the property name
+     * @return {@code true} if the property exists
+     */
+    public boolean exists(String name) {
+        Integer slot = SLOTS.get(name);
+        if (slot != null) {
+            return (present & (1 << slot)) != 0;
+        }
+        return indexOf(name) != -1;
+    }
+
+    /**
+     * Returns the value of a property.
+     *
+     * @param name the property name
+     * @return the value. May be {@code null}
+     */
+    public Object get(String name) {
+        Integer slot = SLOTS.get(name);
+        if (slot != null) {
+            return values[slot];
+        }
+        int index = indexOf(name);
+        return (index != -1) ? otherValues[index] : null;
+    }
+
+    /**
+     * Returns the value of a property as a long.
+     *
+     * @param name the property name
+     * @return the value, or {@code 0} if the property doesn't exist or isn't numeric
+     */
+    public long getLong(String name) {
+        Object value = get(name);
+        return (value instanceof Number) ? ((Number) value).longValue() : 0;
+    }
+
+    /**
+     * Returns the value of a date property.
+     *
+     * @param name the property name
+     * @return the value. May be {@code null}
+     */
+    public Date getDate(String name) {
+        return (Date) get(name);
+    }
+
+    /**
+     * Returns the value of a reference property.
+     *
+     * @param name the property name
+     * @return the value. May be {@code null}
+     */
+    public IMObjectReference getReference(String name) {
+        return (IMObjectReference) get(name);
+    }
+
+    /**
+     * Returns a modifiable copy of the record.
+     *
+     * @return a new set containing the record's properties
+     */
+    public ObjectSet toObjectSet() {
+        ObjectSet result = new ObjectSet();
+        for (int i = 0; i < KEYS.length; ++i) {
+            if ((present & (1 << i)) != 0) {
+                result.set(KEYS[i], values[i]);
+            }
+        }
+        if (otherKeys != null) {
+            for (int i = 0; i < otherKeys.length; ++i) {
+                result.set(otherKeys[i], otherValues[i]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the approximate size of the record, in bytes.
+     * <p/>
+     * This includes the slot arrays and any non-interned strings, but excludes dates and references, which are
+     * shared with the source of the record.
+     *
+     * @return the approximate size, in bytes
+     */
+    public long getSize() {
+        long result = HEADER_SIZE + REFERENCE_SIZE * 3 + 4;             // the record
+        result += HEADER_SIZE + REFERENCE_SIZE * values.length;         // the slots
+        for (int i = 0; i < values.length; ++i) {
+            if (values[i] instanceof String && (INTERNED_SLOTS & (1 << i)) == 0) {
+                result += getSize((String) values[i]);
+            } else if (values[i] instanceof Long) {
+                result += HEADER_SIZE + 8;
+            }
+        }
+        if (otherKeys != null) {
+            result += 2 * (HEADER_SIZE + REFERENCE_SIZE * otherKeys.length);
+            for (Object value : otherValues) {
+                if (value instanceof String) {
+                    result += getSize((String) value);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the index of a property without a slot.
+     *
+     * @param name the property name
+     * @return the index of the property, or {@code -1} if it doesn't exist
+     */
+    private int indexOf(String name) {
+        if (otherKeys != null) {
+            for (int i = 0; i < otherKeys.length; ++i) {
+                if (otherKeys[i].equals(name)) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the approximate size of a string, in bytes.
+     *
+     * @param value the string
+     * @return the approximate size, in bytes
+     */
+    private static long getSize(String value) {
+        return HEADER_SIZE * 2 + 8 + 2 * value.length();
+    }
+
+}
@@ -16,7 +16,6 @@
 
 package org.openvpms.archetype.rules.workflow;
 
-import org.openvpms.archetype.rules.util.DateRules;
 import org.openvpms.component.business.domain.im.common.Entity;
 import org.openvpms.component.business.domain.im.common.IMObjectReference;
 import org.openvpms.component.business.domain.im.common.Participation;
@@ -25,7 +24,9 @@ import org.openvpms.component.business.service.archetype.helper.ActBean;
 import org.openvpms.component.business.service.lookup.ILookupService;
 import org.openvpms.component.system.common.util.PropertySet;
 
+import java.util.Collection;
 import java.util.Date;
+import java.util.List;
 
 /**
  * A factory for tasks.
@@ -74,14 +75,29 @@ class TaskFactory extends ScheduleEventFactory {
     }
 
     /**
-     * Creates a query to query events for a particular schedule and day.
+     * Returns the references of the objects whose names are required to assemble an event.
      *
-     * @param schedule the schedule
-     * @param day      the day
+     * @param source the source act
+     * @return the references. May contain {@code null}s
+     */
+    @Override
+    protected List<IMObjectReference> getReferences(ActBean source) {
+        List<IMObjectReference> result = super.getReferences(source);
+        result.add(source.getParticipantRef(ScheduleArchetypes.WORKLIST_PARTICIPATION));
+        result.add(source.getNodeParticipantRef("taskType"));
+        return result;
+    }
+
+    /**
+     * Creates a query to query events for a set of schedules and date range.
+     *
+     * @param schedules the schedules
+     * @param from      the start of the range
+     * @param to        the end of the range
      * @return a new query
      */
     @Override
-    protected ScheduleEventQuery createQuery(Entity schedule, Date day) {
-        return new TaskQuery(schedule, DateRules.getDate(day), getEnd(day), getService());
+    protected ScheduleEventQuery createQuery(Collection<Entity> schedules, Date from, Date to) {
+        return new TaskQuery(schedules, from, to, getService());
     }
 }
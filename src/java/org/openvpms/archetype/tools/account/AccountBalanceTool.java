@@ -29,6 +29,7 @@ import org.openvpms.archetype.rules.customer.CustomerArchetypes;
 import org.openvpms.archetype.rules.finance.account.BalanceCalculator;
 import org.openvpms.archetype.rules.finance.account.CustomerAccountRuleException;
 import org.openvpms.archetype.rules.finance.account.CustomerBalanceGenerator;
+import org.openvpms.archetype.rules.finance.account.CustomerBalanceUpdater;
 import org.openvpms.component.business.domain.im.act.FinancialAct;
 import org.openvpms.component.business.domain.im.party.Party;
 import org.openvpms.component.business.service.archetype.IArchetypeService;
@@ -39,15 +40,28 @@ import org.openvpms.component.system.common.query.ArchetypeQuery;
 import org.openvpms.component.system.common.query.IMObjectQueryIterator;
 import org.openvpms.component.system.common.query.NodeConstraint;
 import org.openvpms.component.system.common.query.NodeSortConstraint;
+import org.openvpms.component.system.common.query.RelationalOp;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.support.ClassPathXmlApplicationContext;
 import org.springframework.context.support.FileSystemXmlApplicationContext;
+import org.springframework.transaction.PlatformTransactionManager;
 
 import java.io.File;
 import java.math.BigDecimal;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
@@ -58,6 +72,7 @@ import java.util.Iterator;
  * don't contain account balance information</li>
  * <li>acccunt balance information must be regenerated for one or more
  * customers</li>
+ * <li>balance snapshots must be created for customers whose acts pre-date them</li>
  * </ul>
  * This must be run with rules disabled.
  *
@@ -71,6 +86,12 @@ public class AccountBalanceTool {
      */
     private final IArchetypeService service;
 
+    /**
+     * The transaction manager, used to generate each customer's balance in a single transaction. May be
+     * {@code null}
+     */
+    private final PlatformTransactionManager transactionManager;
+
     /**
      * Determines if the generator should fail on error.
      */
@@ -79,7 +100,22 @@ public class AccountBalanceTool {
     /**
      * The no. of errors encountered.
      */
-    private int errors = 0;
+    private final AtomicInteger errors = new AtomicInteger();
+
+    /**
+     * The no. of acts processed by generation.
+     */
+    private final AtomicLong acts = new AtomicLong();
+
+    /**
+     * The no. of threads to generate balances with.
+     */
+    private int threads = 1;
+
+    /**
+     * Used to stop generation threads, if generation fails.
+     */
+    private volatile boolean stop;
 
     /**
      * The logger.
@@ -107,12 +143,28 @@ public class AccountBalanceTool {
      *                               service
      */
     public AccountBalanceTool(IArchetypeService service) {
+        this(service, null);
+    }
+
+    /**
+     * Constructs a new <tt>AccountBalanceTool</tt>.
+     * <p/>
+     * Each customer's balance is generated in a single transaction, so that a failure leaves the customer's acts
+     * unchanged.
+     *
+     * @param service            the archetype service
+     * @param transactionManager the transaction manager. May be {@code null}
+     * @throws IllegalStateException if rules are enabled on the archetype
+     *                               service
+     */
+    public AccountBalanceTool(IArchetypeService service, PlatformTransactionManager transactionManager) {
         if (service instanceof IArchetypeRuleService) {
             throw new IllegalStateException(
                     "Rules must be disabled to run "
                     + AccountBalanceTool.class.getName());
         }
         this.service = service;
+        this.transactionManager = transactionManager;
     }
 
     /**
@@ -122,8 +174,12 @@ public class AccountBalanceTool {
      * @param name the customer name. May be <tt>null</tt>
      */
     public void generate(String name) {
-        ArchetypeQuery query = createNameQuery(name);
-        generate(query);
+        if (threads > 1) {
+            generate(name, threads);
+        } else {
+            ArchetypeQuery query = createNameQuery(name);
+            generate(query);
+        }
     }
 
     /**
@@ -149,12 +205,46 @@ public class AccountBalanceTool {
         BigDecimal oldBalance = calc.getBalance(customer);
         Generator generator = new Generator(customer);
         BigDecimal balance = generator.generate();
+        acts.addAndGet(generator.getProcessed());
         log.info("\tProcessed " + generator.getModified() + " of "
                  + generator.getProcessed() + " acts");
         log.info("\tUpdated account balance from " + oldBalance + " to "
                  + balance);
     }
 
+    /**
+     * Updates the balance snapshots for all customers matching the specified name.
+     * <p/>
+     * This backfills snapshots for customers whose acts were posted before snapshots were introduced, so that
+     * balance lookups don't fall back to querying their acts. Account balances themselves are not changed.
+     *
+     * @param name the customer name. May be <tt>null</tt>
+     */
+    public void snapshot(String name) {
+        ArchetypeQuery query = createNameQuery(name);
+        snapshot(query);
+    }
+
+    /**
+     * Updates the balance snapshot for the customer with the specified id.
+     *
+     * @param id the customer identifier
+     */
+    public void snapshot(long id) {
+        ArchetypeQuery query = createIdQuery(id);
+        snapshot(query);
+    }
+
+    /**
+     * Updates the balance snapshot for the specified customer.
+     *
+     * @param customer the customer
+     */
+    public void snapshot(Party customer) {
+        log.info("Updating balance snapshot for " + customer.getName() + ", ID=" + customer.getId());
+        new CustomerBalanceUpdater(service).updateSnapshot(customer);
+    }
+
     /**
      * Determines if generation should fail when an error occurs.
      * Defaults to <tt>true</tt>.
@@ -165,11 +255,23 @@ public class AccountBalanceTool {
         this.failOnError = failOnError;
     }
 
+    /**
+     * Sets the no. of threads to generate balances with, when generating by customer name.
+     * <p/>
+     * When greater than {@code 1}, the customers are partitioned on id range, and each partition is generated by
+     * a separate thread. Defaults to {@code 1}.
+     *
+     * @param threads the no. of threads
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
     /**
      * Checks the account balance for all customers matching the specified name.
      *
      * @param name the customer name. May be <tt>null</tt>
-     * @return <tt>true</tt> if the account balance is correct,
+     * @return <tt>true</tt> if the account balance and balance snapshot are correct,
      *         otherwise <tt>false</tt>
      */
     public boolean check(String name) {
@@ -181,7 +283,7 @@ public class AccountBalanceTool {
      * Checks the account balance for the customer with the specified id.
      *
      * @param id the customer identifier
-     * @return <tt>true</tt> if the account balance is correct,
+     * @return <tt>true</tt> if the account balance and balance snapshot are correct,
      *         otherwise <tt>false</tt>
      */
     public boolean check(long id) {
@@ -193,13 +295,14 @@ public class AccountBalanceTool {
      * Checks the account balance for the specified customer.
      *
      * @param customer the customer
-     * @return <tt>true</tt> if the account balance is correct,
+     * @return <tt>true</tt> if the account balance and balance snapshot are correct,
      *         otherwise <tt>false</tt>
      */
     public boolean check(Party customer) {
         log.info("Checking account balance for " + customer.getName()
                  + ", ID=" + customer.getId());
         BalanceCalculator calc = new BalanceCalculator(service);
+        calc.setSnapshotMode(BalanceCalculator.SnapshotMode.IGNORE);
         boolean result = false;
         try {
             BigDecimal expected = calc.getDefinitiveBalance(customer);
@@ -210,6 +313,11 @@ public class AccountBalanceTool {
                           + customer.getName() + ", ID=" + customer.getId()
                           + ": expected balance=" + expected
                           + ", actual balance=" + actual);
+            } else if (!calc.verifySnapshot(customer)) {
+                log.error("Failed to check account balance for "
+                          + customer.getName() + ", ID=" + customer.getId()
+                          + ": the balance snapshot is out of date");
+                result = false;
             }
         } catch (CustomerAccountRuleException exception) {
             // thrown when an opening or closing balance doesn't match
@@ -237,6 +345,7 @@ public class AccountBalanceTool {
                 long id = config.getLong("id");
                 boolean generate = config.getBoolean("generate");
                 boolean check = config.getBoolean("check");
+                boolean snapshot = config.getBoolean("snapshot");
 
                 ApplicationContext context;
                 if (!new File(contextPath).exists()) {
@@ -246,15 +355,25 @@ public class AccountBalanceTool {
                 }
                 IArchetypeService service = (IArchetypeService) context.getBean(
                         "archetypeService");
-                AccountBalanceTool tool = new AccountBalanceTool(service);
+                PlatformTransactionManager transactionManager
+                        = (PlatformTransactionManager) context.getBean("txnManager");
+                AccountBalanceTool tool = new AccountBalanceTool(service, transactionManager);
                 if (check) {
                     if (id == -1) {
                         tool.check(name);
                     } else {
                         tool.check(id);
                     }
+                } else if (snapshot) {
+                    tool.setFailOnError(config.getBoolean("failOnError"));
+                    if (id == -1) {
+                        tool.snapshot(name);
+                    } else {
+                        tool.snapshot(id);
+                    }
                 } else if (generate) {
                     tool.setFailOnError(config.getBoolean("failOnError"));
+                    tool.setThreads(config.getInt("threads"));
                     if (id == -1) {
                         tool.generate(name);
                     } else {
@@ -276,11 +395,96 @@ public class AccountBalanceTool {
      * @param query the query
      */
     private void generate(ArchetypeQuery query) {
+        long start = System.currentTimeMillis();
+        acts.set(0);
+        int count = generateCustomers(query);
+        logGenerated(count, start);
+    }
+
+    /**
+     * Generates account balances for all customers matching the specified name, using multiple threads.
+     * <p/>
+     * The customers are partitioned on id range, with each thread generating balances for one partition.
+     * Partitions are collected as they complete, so that the first failure stops the remaining partitions.
+     *
+     * @param name    the customer name. May be {@code null}
+     * @param threads the no. of threads
+     */
+    private void generate(final String name, int threads) {
+        long start = System.currentTimeMillis();
+        acts.set(0);
+        long minId = getId(name, true);
+        long maxId = getId(name, false);
+        int count = 0;
+        stop = false;
+        if (minId != -1) {
+            long size = (maxId - minId) / threads + 1;
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            CompletionService<Integer> completion = new ExecutorCompletionService<Integer>(executor);
+            List<Future<Integer>> partitions = new ArrayList<Future<Integer>>();
+            for (long from = minId; from <= maxId; from += size) {
+                final long lower = from;
+                final long upper = Math.min(from + size - 1, maxId);
+                log.info("Generating account balances for customers with IDs " + lower + " to " + upper);
+                partitions.add(completion.submit(new Callable<Integer>() {
+                    public Integer call() throws Exception {
+                        ArchetypeQuery query = createNameQuery(name);
+                        query.add(new NodeConstraint("id", RelationalOp.GTE, lower));
+                        query.add(new NodeConstraint("id", RelationalOp.LTE, upper));
+                        return generateCustomers(query);
+                    }
+                }));
+            }
+            executor.shutdown();
+            try {
+                for (int i = 0; i < partitions.size(); ++i) {
+                    count += completion.take().get();
+                }
+            } catch (ExecutionException exception) {
+                cancel(partitions);
+                Throwable cause = exception.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IllegalStateException("Failed to generate account balances", cause);
+            } catch (InterruptedException exception) {
+                cancel(partitions);
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted generating account balances", exception);
+            }
+        }
+        logGenerated(count, start);
+    }
+
+    /**
+     * Stops generation of partitions.
+     * <p/>
+     * Partitions that haven't started are cancelled. Those that are running stop once the customer being processed
+     * has been generated.
+     *
+     * @param partitions the partitions
+     */
+    private void cancel(List<Future<Integer>> partitions) {
+        stop = true;
+        for (Future<Integer> partition : partitions) {
+            partition.cancel(false);
+        }
+    }
+
+    /**
+     * Generates account balances for all customers matching the specified query.
+     *
+     * @param query the query
+     * @return the no. of customers generated
+     */
+    private int generateCustomers(ArchetypeQuery query) {
         Collection<String> nodes = Arrays.asList("name");
         Iterator<Party> iterator
                 = new IMObjectQueryIterator<Party>(service, query, nodes);
         int count = 0;
-        while (iterator.hasNext()) {
+        while (!stop && iterator.hasNext()) {
             Party customer = iterator.next();
             try {
                 generate(customer);
@@ -289,14 +493,60 @@ public class AccountBalanceTool {
                 if (failOnError) {
                     throw exception;
                 } else {
-                    ++errors;
+                    errors.incrementAndGet();
                     log.error("Failed to generate account balance for "
                               + customer.getName(), exception);
                 }
             }
         }
-        log.info("Generated account balances for " + count + " customers");
-        if (errors != 0) {
+        return count;
+    }
+
+    /**
+     * Logs the no. of customers generated, and the throughput.
+     *
+     * @param count the no. of customers generated
+     * @param start the time when generation started, in milliseconds
+     */
+    private void logGenerated(int count, long start) {
+        long elapsed = Math.max(System.currentTimeMillis() - start, 1);
+        long processed = acts.get();
+        log.info("Generated account balances for " + count + " customers, processing " + processed + " acts in "
+                 + elapsed / 1000.0 + "s");
+        log.info("Throughput: " + (count * 1000L / elapsed) + " customers/s, " + (processed * 1000L / elapsed)
+                 + " acts/s");
+        if (errors.get() != 0) {
+            log.warn("There were " + errors + " errors");
+        } else {
+            log.info("There were no errors");
+        }
+    }
+
+    /**
+     * Updates balance snapshots for all customers matching the specified query.
+     *
+     * @param query the query
+     */
+    private void snapshot(ArchetypeQuery query) {
+        Collection<String> nodes = Arrays.asList("name");
+        Iterator<Party> iterator = new IMObjectQueryIterator<Party>(service, query, nodes);
+        int count = 0;
+        while (iterator.hasNext()) {
+            Party customer = iterator.next();
+            try {
+                snapshot(customer);
+                ++count;
+            } catch (OpenVPMSException exception) {
+                if (failOnError) {
+                    throw exception;
+                } else {
+                    errors.incrementAndGet();
+                    log.error("Failed to update balance snapshot for " + customer.getName(), exception);
+                }
+            }
+        }
+        log.info("Updated balance snapshots for " + count + " customers");
+        if (errors.get() != 0) {
             log.warn("There were " + errors + " errors");
         } else {
             log.info("There were no errors");
@@ -326,21 +576,21 @@ public class AccountBalanceTool {
                     if (failOnError) {
                         return result;
                     } else {
-                        ++errors;
+                        errors.incrementAndGet();
                     }
                 }
             } catch (OpenVPMSException exception) {
                 if (failOnError) {
                     throw exception;
                 } else {
-                    ++errors;
+                    errors.incrementAndGet();
                     log.error("Failed to check account balance for "
                               + customer.getName(), exception);
                 }
             }
         }
         log.info("Checked account balances for " + count + " customers");
-        if (errors != 0) {
+        if (errors.get() != 0) {
             log.warn("There were " + errors + " errors");
         } else {
             log.info("There were no errors");
@@ -366,6 +616,24 @@ public class AccountBalanceTool {
         return query;
     }
 
+    /**
+     * Returns the lowest or highest identifier of the customers matching the specified name.
+     *
+     * @param name   the customer name. May be {@code null}
+     * @param lowest if {@code true}, return the lowest identifier, else return the highest
+     * @return the identifier, or {@code -1} if there are no matching customers
+     */
+    private long getId(String name, boolean lowest) {
+        ArchetypeQuery query = new ArchetypeQuery(SHORT_NAMES, true, false);
+        if (!StringUtils.isEmpty(name)) {
+            query.add(new NodeConstraint("name", name));
+        }
+        query.add(new NodeSortConstraint("id", lowest));
+        query.setMaxResults(1);
+        Iterator<Party> iterator = new IMObjectQueryIterator<Party>(service, query, Arrays.asList("name"));
+        return iterator.hasNext() ? iterator.next().getId() : -1;
+    }
+
     /**
      * Creates a query on customer id.
      *
@@ -399,12 +667,19 @@ public class AccountBalanceTool {
         parser.registerParameter(new Switch("generate").setShortFlag('g')
                                          .setLongFlag("generate").setDefault("false")
                                          .setHelp("Generate account balances."));
+        parser.registerParameter(new Switch("snapshot").setShortFlag('s')
+                                         .setLongFlag("snapshot").setDefault("false")
+                                         .setHelp("Generate balance snapshots, without changing account balances."));
         parser.registerParameter(new FlaggedOption("failOnError")
                                          .setShortFlag('e')
                                          .setLongFlag("failOnError")
                                          .setDefault("false")
                                          .setStringParser(BooleanStringParser.getParser())
                                          .setHelp("Fail on error"));
+        parser.registerParameter(new FlaggedOption("threads").setShortFlag('t')
+                                         .setLongFlag("threads")
+                                         .setStringParser(JSAP.INTEGER_PARSER).setDefault("1")
+                                         .setHelp("The no. of threads to generate account balances with."));
         parser.registerParameter(new FlaggedOption("context")
                                          .setLongFlag("context")
                                          .setDefault(APPLICATION_CONTEXT)
@@ -434,7 +709,7 @@ public class AccountBalanceTool {
          * @param customer the customer
          */
         public Generator(Party customer) {
-            super(customer, service);
+            super(customer, service, transactionManager);
         }
 
         /**
@@ -0,0 +1,274 @@
+/*
+ * Version: 1.0
+ *
+ * The contents of this file are subject to the OpenVPMS License Version
+ * 1.0 (the 'License'); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.openvpms.org/license/
+ *
+ * Software distributed under the License is distributed on an 'AS IS' basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * Copyright 2014 (C) OpenVPMS Ltd. All Rights Reserved.
+ */
+
+package org.openvpms.archetype.rules.doc;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+import org.openvpms.archetype.test.ArchetypeServiceTest;
+import org.openvpms.component.business.domain.im.document.Document;
+import org.openvpms.component.business.service.archetype.helper.IMObjectBean;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+/**
+ * Tests the {@link DefaultDocumentHandler} class.
+ *
+ * @author Tim Anderson
+ */
+public class DefaultDocumentHandlerTestCase extends ArchetypeServiceTest {
+
+    /**
+     * Verifies that content compressed in memory can be read back.
+     *
+     * @throws IOException for any I/O error
+     */
+    @Test
+    public void testCreate() throws IOException {
+        DefaultDocumentHandler handler = new DefaultDocumentHandler(DocumentArchetypes.DEFAULT_DOCUMENT,
+                                                                    getArchetypeService());
+        checkCreate(handler, 1000);
+    }
+
+    /**
+     * Verifies that content spooled to a temporary file during compression can be read back.
+     *
+     * @throws IOException for any I/O error
+     */
+    @Test
+    public void testCreateWithSpooling() throws IOException {
+        DefaultDocumentHandler handler = new DefaultDocumentHandler(DocumentArchetypes.DEFAULT_DOCUMENT,
+                                                                    getArchetypeService());
+        handler.setSpoolThreshold(100);
+        checkCreate(handler, 100000);
+    }
+
+    /**
+     * Verifies that a {@link DocumentException} is thrown if the stream size doesn't match that expected.
+     */
+    @Test
+    public void testCreateWithIncorrectSize() {
+        DefaultDocumentHandler handler = new DefaultDocumentHandler(DocumentArchetypes.DEFAULT_DOCUMENT,
+                                                                    getArchetypeService());
+        handler.setSpoolThreshold(100);
+        byte[] content = createContent(1000);
+        try {
+            handler.create("test.dat", new ByteArrayInputStream(content), "application/octet-stream", 2000);
+            fail("Expected create() to fail");
+        } catch (DocumentException expected) {
+            assertEquals(DocumentException.ErrorCode.ReadError, expected.getErrorCode());
+        }
+    }
+
+    /**
+     * Verifies that content with an already compressed mime type is stored rather than deflated, and that other
+     * content is deflated.
+     *
+     * @throws IOException for any I/O error
+     */
+    @Test
+    public void testCodecForMimeType() throws IOException {
+        DefaultDocumentHandler handler = new DefaultDocumentHandler(DocumentArchetypes.DEFAULT_DOCUMENT,
+                                                                    getArchetypeService());
+        byte[] content = createContent(1000);
+
+        Document image = handler.create("test.jpg", new ByteArrayInputStream(content), "image/jpeg", 1000);
+        assertEquals(StoreCodec.NAME, new IMObjectBean(image).getString(DocumentRules.CODEC));
+        assertArrayEquals(content, image.getContents());
+        checkContent(handler, image, content);
+
+        Document text = handler.create("test.txt", new ByteArrayInputStream(content), "text/plain", 1000);
+        assertEquals(DeflateCodec.NAME, new IMObjectBean(text).getString(DocumentRules.CODEC));
+        assertTrue(text.getContents().length < content.length);
+        checkContent(handler, text, content);
+    }
+
+    /**
+     * Verifies that documents that don't record a codec are treated as being deflated.
+     *
+     * @throws IOException for any I/O error
+     */
+    @Test
+    public void testDocumentWithNoCodec() throws IOException {
+        DefaultDocumentHandler handler = new DefaultDocumentHandler(DocumentArchetypes.DEFAULT_DOCUMENT,
+                                                                    getArchetypeService());
+        byte[] content = createContent(1000);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DeflaterOutputStream output = new DeflaterOutputStream(bytes);
+        output.write(content);
+        output.close();
+        CRC32 checksum = new CRC32();
+        checksum.update(content);
+
+        Document document = handler.create("test.dat", bytes.toByteArray(), "application/octet-stream",
+                                           content.length, checksum.getValue());
+        assertNull(new IMObjectBean(document).getString(DocumentRules.CODEC));
+        checkContent(handler, document, content);
+    }
+
+    /**
+     * Verifies that custom codecs can be registered.
+     *
+     * @throws IOException for any I/O error
+     */
+    @Test
+    public void testCustomCodecs() throws IOException {
+        DefaultDocumentHandler handler = new DefaultDocumentHandler(DocumentArchetypes.DEFAULT_DOCUMENT,
+                                                                    getArchetypeService());
+        DocumentCodecs codecs = new DocumentCodecs(new DeflateCodec(Deflater.BEST_SPEED));
+        codecs.addCodec("text/*", new StoreCodec());
+        handler.setCodecs(codecs);
+        byte[] content = createContent(1000);
+
+        Document text = handler.create("test.csv", new ByteArrayInputStream(content), "text/csv", 1000);
+        assertEquals(StoreCodec.NAME, new IMObjectBean(text).getString(DocumentRules.CODEC));
+        checkContent(handler, text, content);
+
+        Document other = handler.create("test.dat", new ByteArrayInputStream(content), "application/octet-stream",
+                                        1000);
+        assertEquals(DeflateCodec.NAME, new IMObjectBean(other).getString(DocumentRules.CODEC));
+        checkContent(handler, other, content);
+    }
+
+    /**
+     * Verifies that a {@link DocumentException} is thrown if a document was encoded with an unsupported codec.
+     */
+    @Test
+    public void testUnsupportedCodec() {
+        DefaultDocumentHandler handler = new DefaultDocumentHandler(DocumentArchetypes.DEFAULT_DOCUMENT,
+                                                                    getArchetypeService());
+        byte[] content = createContent(1000);
+        Document document = handler.create("test.dat", new ByteArrayInputStream(content), "application/octet-stream",
+                                           1000);
+        new IMObjectBean(document).setValue(DocumentRules.CODEC, "foo");
+        try {
+            handler.getContent(document);
+            fail("Expected getContent() to fail");
+        } catch (DocumentException expected) {
+            assertEquals(DocumentException.ErrorCode.UnsupportedCodec, expected.getErrorCode());
+        }
+    }
+
+    /**
+     * Verifies that a stream returned by {@link DefaultDocumentHandler#create(String, String)} cannot be written to
+     * once it has been closed or disposed.
+     *
+     * @throws IOException for any I/O error
+     */
+    @Test
+    public void testWriteAfterCloseOrDispose() throws IOException {
+        DefaultDocumentHandler handler = new DefaultDocumentHandler(DocumentArchetypes.DEFAULT_DOCUMENT,
+                                                                    getArchetypeService());
+        byte[] content = createContent(1000);
+
+        DocumentOutputStream closed = handler.create("test.dat", "application/octet-stream");
+        closed.write(content);
+        closed.close();
+        Document document = closed.getDocument();
+        assertNotNull(document);
+        checkWriteFails(closed);
+
+        // closing again has no effect
+        closed.close();
+        assertEquals(document, closed.getDocument());
+        checkContent(handler, document, content);
+
+        DocumentOutputStream disposed = handler.create("test.dat", "application/octet-stream");
+        disposed.write(content);
+        disposed.dispose();
+        checkWriteFails(disposed);
+        disposed.close();
+        assertNull(disposed.getDocument());
+    }
+
+    /**
+     * Verifies that writing to a stream fails with an {@link IOException}.
+     *
+     * @param stream the stream
+     */
+    private void checkWriteFails(DocumentOutputStream stream) {
+        try {
+            stream.write(1);
+            fail("Expected write() to fail");
+        } catch (IOException expected) {
+            // expected
+        }
+    }
+
+    /**
+     * Creates a document with random content, and verifies it can be read back.
+     *
+     * @param handler the document handler
+     * @param size    the content size
+     * @throws IOException for any I/O error
+     */
+    private void checkCreate(DocumentHandler handler, int size) throws IOException {
+        byte[] content = createContent(size);
+        Document document = handler.create("test.dat", new ByteArrayInputStream(content), "application/octet-stream",
+                                           size);
+        assertEquals(size, document.getDocSize());
+        CRC32 checksum = new CRC32();
+        checksum.update(content);
+        assertEquals(checksum.getValue(), document.getChecksum());
+        checkContent(handler, document, content);
+    }
+
+    /**
+     * Verifies that the content of a document matches that expected.
+     *
+     * @param handler  the document handler
+     * @param document the document
+     * @param expected the expected content
+     * @throws IOException for any I/O error
+     */
+    private void checkContent(DocumentHandler handler, Document document, byte[] expected) throws IOException {
+        InputStream stream = handler.getContent(document);
+        byte[] read = IOUtils.toByteArray(stream);
+        stream.close();
+        assertArrayEquals(expected, read);
+    }
+
+    /**
+     * Creates random content, with some repetition so that it compresses.
+     *
+     * @param size the content size
+     * @return the content
+     */
+    private byte[] createContent(int size) {
+        byte[] result = new byte[size];
+        Random random = new Random();
+        for (int i = 0; i < size; ++i) {
+            result[i] = (byte) random.nextInt(16);
+        }
+        return result;
+    }
+
+}
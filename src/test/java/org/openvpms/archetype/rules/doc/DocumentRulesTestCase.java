@@ -26,7 +26,10 @@ import org.openvpms.component.business.domain.im.document.Document;
 import org.openvpms.component.business.domain.im.party.Party;
 import org.openvpms.component.business.domain.im.security.User;
 import org.openvpms.component.business.service.archetype.helper.ActBean;
+import org.openvpms.component.business.service.archetype.helper.IMObjectBean;
 
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -35,6 +38,7 @@ import java.util.zip.CRC32;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 
@@ -192,6 +196,85 @@ public class DocumentRulesTestCase extends ArchetypeServiceTest {
         assertTrue(rules.isDuplicate(act, document2));
     }
 
+    /**
+     * Verifies that documents with identical content are shared when the document handler is content addressed,
+     * and that they are only removed by {@link DocumentRules#removeDocument}, or queued for removal by
+     * {@link DocumentRules#addDocument}, when no longer referenced.
+     */
+    @Test
+    public void testSharedDocuments() {
+        DefaultDocumentHandler handler = new DefaultDocumentHandler(DocumentArchetypes.DEFAULT_DOCUMENT,
+                                                                    getArchetypeService());
+        handler.setContentAddressed(true);
+        DocumentRules rules = new DocumentRules(getArchetypeService());
+        String name = "test" + System.currentTimeMillis() + ".txt";
+        byte[] content = name.getBytes();
+
+        Document document1 = handler.create(name, new ByteArrayInputStream(content), "text/plain", content.length);
+        DocumentAct act1 = createDocumentAct();
+        save(rules.addDocument(act1, document1));
+        checkReferences(document1, 1);
+
+        // create a document with the same content. The existing document should be returned
+        Document document2 = handler.create(name, new ByteArrayInputStream(content), "text/plain", content.length);
+        assertEquals(document1.getObjectReference(), document2.getObjectReference());
+        DocumentAct act2 = createDocumentAct();
+        save(rules.addDocument(act2, document2));
+        checkReferences(document1, 2);
+
+        // re-adding the same document to an act shouldn't change its reference count
+        save(rules.addDocument(act2, document2));
+        checkReferences(document1, 2);
+
+        // different content should result in a new document
+        byte[] other = (name + "2").getBytes();
+        Document document3 = handler.create(name, new ByteArrayInputStream(other), "text/plain", other.length);
+        assertTrue(document3.isNew());
+
+        // removing the first act's document should only decrement the reference count
+        assertFalse(rules.removeDocument(act1));
+        checkReferences(document1, 1);
+
+        // replacing the second act's document without versioning should queue the document for removal, as no
+        // other act refers to it
+        List<IMObject> remove = new ArrayList<IMObject>();
+        save(rules.addDocument(act2, document3, false, remove));
+        assertEquals(1, remove.size());
+        assertEquals(document1, remove.get(0));
+        checkReferences(document1, 1);
+        checkReferences(document3, 1);
+        remove(document1);
+        assertNull(get(document1.getObjectReference()));
+
+        // replacing a document on an act that doesn't support versions should decrement its count
+        DocumentAct act3 = createDocumentAct("act.patientDocumentForm");
+        save(rules.addDocument(act3, document3));
+        checkReferences(document3, 2);
+        Document document4 = handler.create(name, new ByteArrayInputStream(content), "text/plain", content.length);
+        save(rules.addDocument(act3, document4));
+        checkReferences(document3, 1);
+    }
+
+    /**
+     * Verifies that {@link DocumentRules#addDocument} doesn't remove or reference count documents that weren't
+     * created by a content addressed document handler.
+     */
+    @Test
+    public void testUnsharedDocuments() {
+        DocumentRules rules = new DocumentRules(getArchetypeService());
+        Document document1 = createDocument();
+        Document document2 = createDocument();
+        DocumentAct act = createDocumentAct();
+        save(rules.addDocument(act, document1));
+        checkReferences(document1, 0);
+
+        List<IMObject> remove = new ArrayList<IMObject>();
+        save(rules.addDocument(act, document2, false, remove));
+        assertTrue(remove.isEmpty());
+        checkReferences(document1, 0);
+        checkReferences(document2, 0);
+    }
+
     /**
      * Verifies that versioning works for a patient document act.
      *
@@ -260,6 +343,41 @@ public class DocumentRulesTestCase extends ArchetypeServiceTest {
         return version;
     }
 
+    /**
+     * Creates a new <em>act.patientDocumentAttachment</em> for a new patient.
+     *
+     * @return a new act
+     */
+    private DocumentAct createDocumentAct() {
+        return createDocumentAct("act.patientDocumentAttachment");
+    }
+
+    /**
+     * Creates a new patient document act for a new patient.
+     *
+     * @param shortName the act archetype short name
+     * @return a new act
+     */
+    private DocumentAct createDocumentAct(String shortName) {
+        DocumentAct act = (DocumentAct) create(shortName);
+        ActBean bean = new ActBean(act);
+        bean.addParticipation("participation.patient", TestHelper.createPatient());
+        return act;
+    }
+
+    /**
+     * Verifies that a document has the expected reference count.
+     *
+     * @param document the document
+     * @param expected the expected reference count
+     */
+    private void checkReferences(Document document, int expected) {
+        IMObject saved = get(document.getObjectReference());
+        assertNotNull(saved);
+        IMObjectBean bean = new IMObjectBean(saved);
+        assertEquals(expected, bean.getInt(DocumentRules.REFERENCES));
+    }
+
     /**
      * Helper to create a document.
      *
@@ -44,8 +44,10 @@ import org.openvpms.component.business.service.archetype.helper.TypeHelper;
 import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
 import static java.math.BigDecimal.ZERO;
 import static org.junit.Assert.assertEquals;
@@ -314,6 +316,62 @@ public class CustomerAccountRulesTestCase extends AbstractCustomerAccountTest {
         checkAllocation(payment2, invoice);
     }
 
+    /**
+     * Verifies that the customer balance snapshot is maintained as acts are saved, and that
+     * {@link BalanceCalculator#verifySnapshot(Party)} detects when it is out of date.
+     */
+    @Test
+    public void testBalanceSnapshot() {
+        Party customer = getCustomer();
+        BalanceCalculator calculator = new BalanceCalculator(getArchetypeService());
+        calculator.setSnapshotMode(BalanceCalculator.SnapshotMode.USE);
+        assertNull(calculator.getSnapshot(customer));
+        assertTrue(calculator.verifySnapshot(customer));
+
+        Date startTime1 = getDate("2013-01-01");
+        Date startTime2 = getDate("2013-02-01");
+        save(createChargesInvoice(new BigDecimal(100), startTime1));
+        save(createChargesInvoice(new BigDecimal(50), startTime2));
+        checkSnapshot(customer, new BigDecimal(150), ZERO, startTime1);
+
+        // pay off the first invoice, and part of the second
+        save(createPayment(new BigDecimal(120)));
+        checkSnapshot(customer, new BigDecimal(30), ZERO, startTime2);
+        checkEquals(ZERO, calculator.getOverdueBalance(customer, startTime2));
+
+        // overpay
+        save(createPayment(new BigDecimal(50)));
+        checkSnapshot(customer, new BigDecimal(-20), new BigDecimal(-20), null);
+        checkEquals(ZERO, calculator.getOverdueBalance(customer, new Date()));
+
+        // change the snapshot, and verify it is detected
+        CustomerBalanceSnapshot snapshot = calculator.getSnapshot(customer);
+        snapshot.update(new BigDecimal(10), ZERO, null);
+        snapshot.save();
+        checkEquals(new BigDecimal(10), calculator.getBalance(customer));
+        assertFalse(calculator.verifySnapshot(customer));
+
+        calculator.setSnapshotMode(BalanceCalculator.SnapshotMode.VERIFY);
+        checkEquals(new BigDecimal(-20), calculator.getBalance(customer));
+        calculator.setSnapshotMode(BalanceCalculator.SnapshotMode.IGNORE);
+        checkEquals(new BigDecimal(-20), calculator.getBalance(customer));
+
+        // now correct it
+        new CustomerBalanceUpdater(getArchetypeService()).updateSnapshot(customer);
+        checkSnapshot(customer, new BigDecimal(-20), new BigDecimal(-20), null);
+
+        // simulate concurrent transactions creating a second snapshot, and verify it is removed on update
+        Act duplicate = (Act) create(CustomerAccountArchetypes.BALANCE_SNAPSHOT);
+        ActBean bean = new ActBean(duplicate);
+        bean.addNodeParticipation("customer", customer);
+        save(duplicate);
+        assertEquals(2, calculator.getSnapshots(customer.getObjectReference()).size());
+
+        save(createChargesInvoice(new BigDecimal(20), startTime2));
+        assertEquals(1, calculator.getSnapshots(customer.getObjectReference()).size());
+        checkSnapshot(customer, ZERO, ZERO, null);
+    }
+
     /**
      * Tests the {@link CustomerAccountRules#getBalance(Party, BigDecimal,
      * boolean)} method.
@@ -447,6 +505,48 @@ public class CustomerAccountRulesTestCase extends AbstractCustomerAccountTest {
         checkEquals(amount, overdue);
     }
 
+    /**
+     * Tests the {@link CustomerAccountRules#getOverdueBalances(Collection, Date, Date)} method.
+     */
+    @Test
+    public void testGetOverdueBalances() {
+        CustomerAccountRules rules = getRules();
+        Date startTime = getDate("2007-01-01");
+        Date overdueDate = getDate("2007-01-02");
+        Date statementDate = getDate("2007-02-01");
+
+        // customer1 has an unpaid invoice
+        Party customer1 = TestHelper.createCustomer();
+        setCustomer(customer1);
+        save(createChargesInvoice(new BigDecimal(100), startTime));
+
+        // customer2 has an invoice paid in part prior to the statement date, and in part after it
+        Party customer2 = TestHelper.createCustomer();
+        setCustomer(customer2);
+        save(createChargesInvoice(new BigDecimal(50), startTime));
+        save(createPayment(new BigDecimal(10), getDate("2007-01-15")));
+        save(createPayment(new BigDecimal(20), getDate("2007-02-05")));
+
+        // customer3 has no acts
+        Party customer3 = TestHelper.createCustomer();
+
+        List<Long> ids = Arrays.asList(customer1.getId(), customer2.getId(), customer3.getId());
+        Map<Long, BigDecimal> overdue = rules.getOverdueBalances(ids, statementDate, overdueDate);
+        assertEquals(ids, new ArrayList<Long>(overdue.keySet()));
+        checkEquals(new BigDecimal(100), overdue.get(customer1.getId()));
+        checkEquals(ZERO, overdue.get(customer3.getId()));
+
+        // verify the bulk balances match those calculated for each customer
+        checkEquals(rules.getOverdueBalance(customer1, statementDate, overdueDate), overdue.get(customer1.getId()));
+        checkEquals(rules.getOverdueBalance(customer2, statementDate, overdueDate), overdue.get(customer2.getId()));
+        checkEquals(rules.getOverdueBalance(customer3, statementDate, overdueDate), overdue.get(customer3.getId()));
+
+        // nothing is overdue prior to the invoices
+        overdue = rules.getOverdueBalances(ids, statementDate, startTime);
+        checkEquals(ZERO, overdue.get(customer1.getId()));
+        checkEquals(ZERO, overdue.get(customer2.getId()));
+    }
+
     /**
      * Tests the {@link CustomerAccountRules#getCreditBalance(Party)} method.
      */
@@ -1204,6 +1304,28 @@ public class CustomerAccountRulesTestCase extends AbstractCustomerAccountTest {
         checkEquals(amount, rules.getDefinitiveBalance(customer));
     }
 
+    /**
+     * Verifies that a customer's balance snapshot matches that expected, and that calculated from their acts.
+     *
+     * @param customer      the customer
+     * @param balance       the expected balance
+     * @param creditBalance the expected credit balance
+     * @param oldestDebit   the expected start time of the oldest unallocated debit. May be {@code null}
+     */
+    private void checkSnapshot(Party customer, BigDecimal balance, BigDecimal creditBalance, Date oldestDebit) {
+        BalanceCalculator calculator = new BalanceCalculator(getArchetypeService());
+        CustomerBalanceSnapshot snapshot = calculator.getSnapshot(customer.getObjectReference());
+        assertNotNull(snapshot);
+        checkEquals(balance, snapshot.getBalance());
+        checkEquals(creditBalance, snapshot.getCreditBalance());
+        if (oldestDebit == null) {
+            assertNull(snapshot.getOldestDebit());
+        } else {
+            assertEquals(0, oldestDebit.compareTo(snapshot.getOldestDebit()));
+        }
+        assertTrue(calculator.verifySnapshot(customer));
+    }
+
     /**
      * Verifies the total amount allocated to an act matches that of the
      * amounts from the associated
@@ -40,6 +40,7 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.openvpms.archetype.rules.finance.account.CustomerAccountArchetypes.BALANCE_PARTICIPATION;
+import static org.openvpms.archetype.test.TestHelper.getDate;
 
 /**
  * Tests the {@link CustomerBalanceGenerator} class.
@@ -189,6 +190,37 @@ public class CustomerBalanceGeneratorTestCase extends AbstractCustomerAccountTes
         assertTrue(opening2.isCredit());
     }
 
+    /**
+     * Verifies that regenerating balances produces the same allocations each time.
+     */
+    @Test
+    public void testRegenerate() {
+        Party customer = getCustomer();
+        List<FinancialAct> invoice1 = createChargesInvoice(new Money(10), getDate("2013-01-01"));
+        FinancialAct payment1 = createPayment(new Money(15), getDate("2013-01-02"));
+        List<FinancialAct> invoice2 = createChargesInvoice(new Money(20), getDate("2013-01-03"));
+        FinancialAct payment2 = createPayment(new Money(25), getDate("2013-01-04"));
+        List<FinancialAct> invoice3 = createChargesInvoice(new Money(30), getDate("2013-01-05"));
+        save(invoice1);
+        save(payment1);
+        save(invoice2);
+        save(payment2);
+        save(invoice3);
+
+        for (int i = 0; i < 3; ++i) {
+            CustomerBalanceGenerator generator = new CustomerBalanceGenerator(customer, getArchetypeService());
+            checkEquals(new BigDecimal(20), generator.generate());
+            assertEquals(5, generator.getProcessed());
+            assertTrue(checkBalance(customer));
+
+            checkEquals(new BigDecimal(10), get(invoice1.get(0)).getAllocatedAmount());
+            checkEquals(new BigDecimal(15), get(payment1).getAllocatedAmount());
+            checkEquals(new BigDecimal(20), get(invoice2.get(0)).getAllocatedAmount());
+            checkEquals(new BigDecimal(25), get(payment2).getAllocatedAmount());
+            checkEquals(new BigDecimal(10), get(invoice3.get(0)).getAllocatedAmount());
+        }
+    }
+
     /**
      * Sets up the test case.
      */
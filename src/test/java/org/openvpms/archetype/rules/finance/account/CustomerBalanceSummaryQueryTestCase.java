@@ -44,6 +44,7 @@ import java.util.Set;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.openvpms.archetype.test.TestHelper.getDate;
@@ -445,6 +446,109 @@ public class CustomerBalanceSummaryQueryTestCase extends AbstractCustomerAccount
         checkEquals(cust2Balance, cust2Set.getBigDecimal(CustomerBalanceSummaryQuery.BALANCE));
     }
 
+    /**
+     * Verifies that the {@link CustomerBalanceSummaryQuery.Engine#SET_BASED} engine returns the same results as the
+     * {@link CustomerBalanceSummaryQuery.Engine#PER_CUSTOMER} engine.
+     */
+    @Test
+    public void testSetBasedEngine() {
+        Party customer1 = getCustomer();
+        Party customer2 = TestHelper.createCustomer();
+        Party customer3 = TestHelper.createCustomer();
+        long id = System.currentTimeMillis();
+        setName(customer1, id);
+        setName(customer2, id);
+        setName(customer3, id);
+
+        Date startTime1 = getDate("2007-01-01");
+        Date startTime2 = getDate("2007-02-01");
+        Date paymentTime = getDate("2007-01-15");
+
+        // customer1 has 2 invoices and a payment
+        save(createChargesInvoice(new Money(100), customer1, startTime1));
+        save(createChargesInvoice(new Money(20), customer1, startTime2));
+        FinancialAct payment = createPayment(new Money(50), customer1);
+        payment.setActivityStartTime(paymentTime);
+        payment.setStatus(ActStatus.POSTED);
+        save(payment);
+
+        // customer2 has an invoice, and customer3 has no acts
+        save(createChargesInvoice(new Money(10), customer2, startTime1));
+
+        Date now = new Date();
+        CustomerBalanceSummaryQuery query1 = new CustomerBalanceSummaryQuery(
+                now, null, customer1.getName(), customer1.getName(), getArchetypeService(), getLookupService(),
+                getRules());
+        CustomerBalanceSummaryQuery query2 = new CustomerBalanceSummaryQuery(
+                now, null, customer1.getName(), customer1.getName(), getArchetypeService(), getLookupService(),
+                getRules());
+        query2.setEngine(CustomerBalanceSummaryQuery.Engine.SET_BASED);
+        Map<IMObjectReference, ObjectSet> expected = getSets(query1);
+        Map<IMObjectReference, ObjectSet> actual = getSets(query2);
+        assertEquals(2, expected.size());
+        checkSets(expected, actual);
+
+        ObjectSet set1 = actual.get(customer1.getObjectReference());
+        assertEquals(startTime2, set1.getDate(CustomerBalanceSummaryQuery.LAST_INVOICE_DATE));
+        checkEquals(new Money(20), set1.getBigDecimal(CustomerBalanceSummaryQuery.LAST_INVOICE_AMOUNT));
+        assertEquals(paymentTime, set1.getDate(CustomerBalanceSummaryQuery.LAST_PAYMENT_DATE));
+        checkEquals(new Money(50), set1.getBigDecimal(CustomerBalanceSummaryQuery.LAST_PAYMENT_AMOUNT));
+        checkEquals(new Money(70), set1.getBigDecimal(CustomerBalanceSummaryQuery.BALANCE));
+
+        ObjectSet set2 = actual.get(customer2.getObjectReference());
+        assertNull(set2.get(CustomerBalanceSummaryQuery.LAST_PAYMENT_DATE));
+        assertNull(set2.get(CustomerBalanceSummaryQuery.LAST_PAYMENT_AMOUNT));
+        assertEquals(startTime1, set2.getDate(CustomerBalanceSummaryQuery.LAST_INVOICE_DATE));
+    }
+
+    /**
+     * Verifies that the {@link CustomerBalanceSummaryQuery.Engine#DATABASE} engine returns the same results as the
+     * {@link CustomerBalanceSummaryQuery.Engine#PER_CUSTOMER} engine.
+     */
+    @Test
+    public void testDatabaseEngine() {
+        Lookup accountType = createAccountType(30, DateUnits.DAYS);
+
+        // customer1 has a 30 day account type, customer2 has no account type, customer3 has a credit balance
+        Party customer1 = getCustomer();
+        Party customer2 = TestHelper.createCustomer();
+        Party customer3 = TestHelper.createCustomer();
+        customer1.addClassification(accountType);
+        long id = System.currentTimeMillis();
+        setName(customer1, id);
+        setName(customer2, id);
+        setName(customer3, id);
+
+        Date startTime1 = getDate("2007-01-01");
+        Date startTime2 = getDate("2007-02-20");
+        Date now = getDate("2007-03-10");
+
+        save(createChargesInvoice(new Money(100), customer1, startTime1));
+        save(createChargesInvoice(new Money(20), customer1, startTime2));
+        FinancialAct payment = createPayment(new Money(50), customer1);
+        payment.setActivityStartTime(startTime2);
+        payment.setStatus(ActStatus.POSTED);
+        save(payment);
+
+        save(createChargesInvoice(new Money(10), customer2, startTime1));
+        List<FinancialAct> unbilled = createChargesInvoice(new Money(15), customer2, startTime2);
+        unbilled.get(0).setStatus(ActStatus.COMPLETED);
+        save(unbilled);
+
+        FinancialAct credit = createPayment(new Money(40), customer3);
+        credit.setActivityStartTime(startTime1);
+        credit.setStatus(ActStatus.POSTED);
+        save(credit);
+
+        String name = customer1.getName();
+        checkEngines(3, now, true, 0, 0, false, null, name);
+        checkEngines(2, now, false, 0, 0, false, null, name);
+        checkEngines(2, now, false, 30, 0, false, null, name);
+        checkEngines(0, now, false, 0, 30, false, null, name);
+        checkEngines(1, now, false, 0, 0, false, accountType, name);
+        checkEngines(2, now, true, 0, 0, true, null, name);
+    }
+
     /**
      * Checks the no. of summaries for a query.
      *
@@ -498,6 +602,54 @@ public class CustomerBalanceSummaryQueryTestCase extends AbstractCustomerAccount
         return result;
     }
 
+    /**
+     * Verifies that the {@link CustomerBalanceSummaryQuery.Engine#DATABASE} engine returns the same results as the
+     * {@link CustomerBalanceSummaryQuery.Engine#PER_CUSTOMER} engine.
+     *
+     * @param expected      the expected no. of results
+     * @param date          the date
+     * @param nonOverdue    if {@code true}, include non-overdue accounts
+     * @param overdueFrom   the overdue-from date
+     * @param overdueTo     the overdue-to date
+     * @param excludeCredit if {@code true} exclude accounts with credit balances
+     * @param accountType   the account type. May be {@code null}
+     * @param name          the customer name
+     */
+    private void checkEngines(int expected, Date date, boolean nonOverdue, int overdueFrom, int overdueTo,
+                              boolean excludeCredit, Lookup accountType, String name) {
+        CustomerBalanceSummaryQuery query1 = new CustomerBalanceSummaryQuery(
+                date, nonOverdue, overdueFrom, overdueTo, excludeCredit, accountType, name, name, Location.ALL,
+                getArchetypeService(), getLookupService(), getRules());
+        CustomerBalanceSummaryQuery query2 = new CustomerBalanceSummaryQuery(
+                date, nonOverdue, overdueFrom, overdueTo, excludeCredit, accountType, name, name, Location.ALL,
+                getArchetypeService(), getLookupService(), getRules());
+        query2.setEngine(CustomerBalanceSummaryQuery.Engine.DATABASE);
+        Map<IMObjectReference, ObjectSet> sets = getSets(query1);
+        assertEquals(expected, sets.size());
+        checkSets(sets, getSets(query2));
+    }
+
+    /**
+     * Verifies that two sets of balances are the same.
+     *
+     * @param expected the expected balances
+     * @param actual   the actual balances
+     */
+    private void checkSets(Map<IMObjectReference, ObjectSet> expected, Map<IMObjectReference, ObjectSet> actual) {
+        assertEquals(expected.keySet(), actual.keySet());
+        for (Map.Entry<IMObjectReference, ObjectSet> entry : expected.entrySet()) {
+            ObjectSet set = actual.get(entry.getKey());
+            for (String name : entry.getValue().getNames()) {
+                Object value = entry.getValue().get(name);
+                if (value instanceof BigDecimal) {
+                    checkEquals((BigDecimal) value, set.getBigDecimal(name));
+                } else {
+                    assertEquals(name, value, set.get(name));
+                }
+            }
+        }
+    }
+
     /**
      * Verifies that customers appear in the query results.
      *
@@ -0,0 +1,102 @@
+/*
+ * Version: 1.0
+ *
+ * The contents of this file are subject to the OpenVPMS License Version
+ * 1.0 (the 'License'); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.openvpms.org/license/
+ *
+ * Software distributed under the License is distributed on an 'AS IS' basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * Copyright 2014 (C) OpenVPMS Ltd. All Rights Reserved.
+ */
+
+package org.openvpms.archetype.rules.finance.account;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.Test;
+import org.openvpms.archetype.test.TestHelper;
+import org.openvpms.component.business.domain.im.act.FinancialAct;
+import org.openvpms.component.business.domain.im.party.Party;
+import org.springframework.test.context.ContextConfiguration;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.math.BigDecimal.ZERO;
+
+/**
+ * Measures the time taken by {@link CustomerBalanceUpdater#updateBalance(FinancialAct)} to allocate credits to
+ * debits, for increasing numbers of persistent unallocated acts.
+ * <p/>
+ * This is the path taken by the customer account rules when an act is posted: the unallocated acts are queried, and
+ * only those whose allocation changes are loaded and saved.
+ * <p/>
+ * This is not run as part of the build. Run it explicitly via {@code mvn test -Dtest=CustomerBalanceUpdaterBenchmark}.
+ *
+ * @author Tim Anderson
+ */
+@ContextConfiguration(locations = "/application-context.xml", inheritLocations = false)
+public class CustomerBalanceUpdaterBenchmark extends AbstractCustomerAccountTest {
+
+    /**
+     * The logger.
+     */
+    private static final Log log = LogFactory.getLog(CustomerBalanceUpdaterBenchmark.class);
+
+
+    /**
+     * Times allocation for 10, 1,000 and 50,000 unallocated acts.
+     */
+    @Test
+    public void benchmark() {
+        allocate(10);
+        allocate(1000);
+        allocate(50000);
+    }
+
+    /**
+     * Saves equal numbers of unallocated debits and credits, with the credits following the debits, and times the
+     * update of the balance when the last credit is posted.
+     * <p/>
+     * Each credit is allocated to exactly one debit, so all acts are fully allocated on completion.
+     * <p/>
+     * The acts are saved without the customer account rules, so that they remain unallocated until the update.
+     *
+     * @param count the total no. of acts. Must be even
+     */
+    private void allocate(int count) {
+        Party customer = TestHelper.createCustomer();
+        setCustomer(customer);
+        BigDecimal amount = BigDecimal.TEN;
+        CustomerBalanceUpdater updater = new CustomerBalanceUpdater(getArchetypeService());
+        FinancialAct last = null;
+        List<FinancialAct> acts = new ArrayList<FinancialAct>();
+        for (int i = 0; i < count; ++i) {
+            last = (i < count / 2) ? createDebitAdjust(amount) : createCreditAdjust(amount);
+            updater.addToBalance(last);
+            acts.add(last);
+            if (acts.size() == 1000) {
+                save(acts);
+                acts.clear();
+            }
+        }
+        if (!acts.isEmpty()) {
+            save(acts);
+        }
+
+        long start = System.currentTimeMillis();
+        updater.updateBalance(last);
+        long elapsed = System.currentTimeMillis() - start;
+        BalanceCalculator calculator = new BalanceCalculator(getArchetypeService());
+        calculator.setSnapshotMode(BalanceCalculator.SnapshotMode.IGNORE);
+        checkEquals(ZERO, calculator.getBalance(customer));
+        log.info("Allocated " + count + " acts in " + elapsed + "ms");
+    }
+
+}
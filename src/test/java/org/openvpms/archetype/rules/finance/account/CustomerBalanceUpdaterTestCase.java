@@ -0,0 +1,129 @@
+/*
+ * Version: 1.0
+ *
+ * The contents of this file are subject to the OpenVPMS License Version
+ * 1.0 (the 'License'); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.openvpms.org/license/
+ *
+ * Software distributed under the License is distributed on an 'AS IS' basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * Copyright 2015 (C) OpenVPMS Ltd. All Rights Reserved.
+ */
+
+package org.openvpms.archetype.rules.finance.account;
+
+import org.junit.Test;
+import org.openvpms.component.business.domain.im.act.ActRelationship;
+import org.openvpms.component.business.domain.im.act.FinancialAct;
+import org.openvpms.component.business.domain.im.common.IMObjectReference;
+import org.openvpms.component.business.domain.im.party.Party;
+import org.openvpms.component.business.service.archetype.helper.ActBean;
+
+import java.math.BigDecimal;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static java.math.BigDecimal.ZERO;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.openvpms.archetype.test.TestHelper.getDate;
+
+/**
+ * Tests the {@link CustomerBalanceUpdater} class, when invoked by the customer account rules.
+ *
+ * @author Tim Anderson
+ */
+public class CustomerBalanceUpdaterTestCase extends AbstractCustomerAccountTest {
+
+    /**
+     * Verifies that posting payments allocates them to the oldest invoices first, and that only the acts whose
+     * allocation changes are saved.
+     */
+    @Test
+    public void testUpdateBalance() {
+        Party customer = getCustomer();
+        BigDecimal hundred = new BigDecimal(100);
+        BigDecimal seventy = new BigDecimal(70);
+        BigDecimal sixty = new BigDecimal(60);
+        BigDecimal fifty = new BigDecimal(50);
+        BigDecimal forty = new BigDecimal(40);
+        BigDecimal thirty = new BigDecimal(30);
+        BigDecimal twenty = new BigDecimal(20);
+
+        List<FinancialAct> invoice1Acts = createChargesInvoice(hundred, getDate("2015-01-01"));
+        List<FinancialAct> invoice2Acts = createChargesInvoice(fifty, getDate("2015-01-02"));
+        save(invoice1Acts);
+        save(invoice2Acts);
+        FinancialAct invoice1 = checkAllocation(invoice1Acts.get(0), ZERO);
+        FinancialAct invoice2 = checkAllocation(invoice2Acts.get(0), ZERO);
+
+        // pay $60. This is allocated to the first invoice. The second invoice is not saved
+        FinancialAct payment1 = createPayment(sixty);
+        save(payment1);
+        invoice1 = checkAllocation(invoice1, sixty, payment1);
+        payment1 = checkAllocation(payment1, sixty, invoice1);
+        invoice2 = checkUnchanged(invoice2);
+        checkEquals(new BigDecimal(90), getRules().getBalance(customer));
+
+        // pay $70. This pays off the first invoice, and $30 of the second
+        FinancialAct payment2 = createPayment(seventy);
+        save(payment2);
+        invoice1 = checkAllocation(invoice1, hundred, payment1, payment2);
+        invoice2 = checkAllocation(invoice2, thirty, payment2);
+        payment1 = checkUnchanged(payment1);
+        payment2 = checkAllocation(payment2, seventy, invoice1, invoice2);
+        checkEquals(twenty, getRules().getBalance(customer));
+
+        // overpay by $20. Only the second invoice and the payment are saved
+        FinancialAct payment3 = createPayment(forty);
+        save(payment3);
+        invoice2 = checkAllocation(invoice2, fifty, payment2, payment3);
+        checkAllocation(payment3, twenty, invoice2);
+        checkUnchanged(invoice1);
+        checkUnchanged(payment1);
+        checkUnchanged(payment2);
+        checkEquals(twenty.negate(), getRules().getBalance(customer));
+    }
+
+    /**
+     * Verifies an act has the expected allocated amount and allocation relationships.
+     *
+     * @param act       the act
+     * @param allocated the expected allocated amount
+     * @param acts      the acts the act is expected to be allocated to or from
+     * @return the reloaded act
+     */
+    private FinancialAct checkAllocation(FinancialAct act, BigDecimal allocated, FinancialAct... acts) {
+        FinancialAct reloaded = get(act);
+        checkEquals(allocated, reloaded.getAllocatedAmount());
+        ActBean bean = new ActBean(reloaded);
+        List<ActRelationship> allocations = bean.getValues("allocation", ActRelationship.class);
+        assertEquals(acts.length, allocations.size());
+        Set<IMObjectReference> related = new HashSet<IMObjectReference>();
+        for (ActRelationship allocation : allocations) {
+            related.add(act.isCredit() ? allocation.getSource() : allocation.getTarget());
+        }
+        for (FinancialAct expected : acts) {
+            assertTrue(related.contains(expected.getObjectReference()));
+        }
+        return reloaded;
+    }
+
+    /**
+     * Verifies that an act hasn't been saved since it was last loaded.
+     *
+     * @param act the act
+     * @return the reloaded act
+     */
+    private FinancialAct checkUnchanged(FinancialAct act) {
+        FinancialAct reloaded = get(act);
+        assertEquals(act.getVersion(), reloaded.getVersion());
+        return reloaded;
+    }
+
+}
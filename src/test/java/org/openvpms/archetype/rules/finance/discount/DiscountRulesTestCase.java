@@ -291,6 +291,38 @@ public class DiscountRulesTestCase extends ArchetypeServiceTest {
         checkCalculateCostDiscount(now, customer2, patient, product, new BigDecimal("3.06"));
     }
 
+    /**
+     * Verifies that discounts are calculated correctly when a {@link DiscountCache} is used, and that the cache
+     * reflects changes to customers and discounts.
+     */
+    @Test
+    public void testDiscountCache() {
+        DiscountCache cache = new DiscountCache(getArchetypeService());
+        try {
+            rules = new DiscountRules(getArchetypeService(), getLookupService(), cache);
+            Party customer = createCustomer();
+            Product product = createProductWithDiscounts(ProductArchetypes.MEDICATION, discount10);
+            Party patient = createPatient();
+            Date now = new Date();
+
+            // no discount, as the customer has none
+            checkCalculatePercentageDiscount(now, customer, patient, product, BigDecimal.ZERO);
+
+            // add the discount to the customer. The cached discounts for the customer should be discarded
+            addDiscount(customer, discount10, null);
+            checkCalculatePercentageDiscount(now, customer, patient, product, new BigDecimal("0.10"));
+            checkCalculatePercentageDiscount(now, customer, patient, product, new BigDecimal("0.10"));
+
+            // change the discount rate. All cached discounts should be discarded
+            IMObjectBean bean = new IMObjectBean(discount10);
+            bean.setValue("rate", new BigDecimal("20"));
+            bean.save();
+            checkCalculatePercentageDiscount(now, customer, patient, product, new BigDecimal("0.20"));
+        } finally {
+            cache.dispose();
+        }
+    }
+
     /**
      * Tests the {@link DiscountRules#calculateDiscount} method when the intersection of customer, patient, and product
      * discounts result in no discount.
@@ -0,0 +1,195 @@
+/*
+ * Version: 1.0
+ *
+ * The contents of this file are subject to the OpenVPMS License Version
+ * 1.0 (the 'License'); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.openvpms.org/license/
+ *
+ * Software distributed under the License is distributed on an 'AS IS' basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * Copyright 2014 (C) OpenVPMS Ltd. All Rights Reserved.
+ */
+
+package org.openvpms.archetype.rules.finance.invoice;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openvpms.archetype.rules.finance.discount.DiscountRules;
+import org.openvpms.archetype.rules.practice.PracticeArchetypes;
+import org.openvpms.archetype.test.ArchetypeServiceTest;
+import org.openvpms.archetype.test.TestHelper;
+import org.openvpms.component.business.domain.im.common.Entity;
+import org.openvpms.component.business.domain.im.lookup.Lookup;
+import org.openvpms.component.business.domain.im.party.Party;
+import org.openvpms.component.business.domain.im.product.Product;
+import org.openvpms.component.business.service.archetype.helper.EntityBean;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.openvpms.archetype.rules.finance.discount.DiscountTestHelper.createDiscount;
+import static org.openvpms.archetype.rules.product.ProductPriceTestHelper.createFixedPrice;
+import static org.openvpms.archetype.rules.product.ProductPriceTestHelper.createUnitPrice;
+
+
+/**
+ * Tests the {@link ChargePricer} class.
+ *
+ * @author Tim Anderson
+ */
+public class ChargePricerTestCase extends ArchetypeServiceTest {
+
+    /**
+     * The practice.
+     */
+    private Party practice;
+
+    /**
+     * 10% tax type.
+     */
+    private Lookup taxType;
+
+    /**
+     * 10% discount.
+     */
+    private Entity discount;
+
+
+    /**
+     * Sets up the test case.
+     */
+    @Before
+    public void setUp() {
+        // set up practice with 10% tax rate
+        practice = (Party) create(PracticeArchetypes.PRACTICE);
+        taxType = TestHelper.createTaxType(BigDecimal.TEN);
+        practice.addClassification(taxType);
+
+        discount = createDiscount(BigDecimal.TEN, true, DiscountRules.PERCENTAGE);
+    }
+
+    /**
+     * Tests the {@link ChargePricer#price(List)} method.
+     */
+    @Test
+    public void testPrice() {
+        Party customer = createCustomer(discount);
+        Party patient = TestHelper.createPatient(customer);
+        Product product1 = createProduct("10.00", "2.00", discount);
+        Product product2 = createProduct(null, "1.00");
+        Date now = new Date();
+
+        ChargeLine line1 = new ChargeLine(product1, BigDecimal.valueOf(2), now);
+        ChargeLine line2 = new ChargeLine(product2, BigDecimal.valueOf(3), now);
+        ChargeLine line3 = new ChargeLine(product1, BigDecimal.ONE, now);
+
+        ChargePricer pricer = new ChargePricer(customer, patient, practice, null, getArchetypeService(),
+                                               getLookupService());
+        List<PricedChargeLine> lines = pricer.price(Arrays.asList(line1, line2, line3));
+        assertEquals(3, lines.size());
+
+        // 10.00 + 2 * 2.00, less 10%
+        checkLine(lines.get(0), line1, "10.00", "2.00", "1.40", "1.145", "12.60");
+
+        // 3 * 1.00, no discount
+        checkLine(lines.get(1), line2, "0.00", "1.00", "0.00", "0.273", "3.00");
+        assertNull(lines.get(1).getFixedPrice());
+
+        // 10.00 + 2.00, less 10%
+        checkLine(lines.get(2), line3, "10.00", "2.00", "1.20", "0.982", "10.80");
+
+        // verify the discount is the same as that calculated by DiscountRules
+        DiscountRules rules = new DiscountRules(getArchetypeService(), getLookupService());
+        BigDecimal expected = rules.calculateDiscount(now, practice, customer, patient, product1, BigDecimal.ZERO,
+                                                      BigDecimal.ZERO, new BigDecimal("10.00"),
+                                                      new BigDecimal("2.00"), BigDecimal.valueOf(2),
+                                                      BigDecimal.valueOf(100), BigDecimal.valueOf(100));
+        checkEquals(expected, lines.get(0).getDiscount());
+    }
+
+    /**
+     * Verifies that no tax is charged to a customer that has a tax exemption.
+     */
+    @Test
+    public void testPriceForCustomerWithTaxExemption() {
+        Party customer = createCustomer(discount);
+        customer.addClassification(taxType);
+        Product product = createProduct("10.00", "2.00", discount);
+
+        ChargeLine line = new ChargeLine(product, BigDecimal.ONE, new Date());
+        ChargePricer pricer = new ChargePricer(customer, null, practice, null, getArchetypeService(),
+                                               getLookupService());
+        PricedChargeLine priced = pricer.price(line);
+        checkLine(priced, line, "10.00", "2.00", "1.20", "0.00", "10.80");
+        checkEquals(BigDecimal.ZERO, priced.getTaxRate());
+    }
+
+    /**
+     * Verifies a priced line matches that expected.
+     *
+     * @param priced     the priced line
+     * @param line       the expected line
+     * @param fixedPrice the expected fixed price
+     * @param unitPrice  the expected unit price
+     * @param discount   the expected discount
+     * @param tax        the expected tax
+     * @param total      the expected total
+     */
+    private void checkLine(PricedChargeLine priced, ChargeLine line, String fixedPrice, String unitPrice,
+                           String discount, String tax, String total) {
+        assertSame(line, priced.getLine());
+        checkEquals(new BigDecimal(fixedPrice), priced.getFixedAmount());
+        checkEquals(new BigDecimal(unitPrice), priced.getUnitAmount());
+        checkEquals(new BigDecimal(discount), priced.getDiscount());
+        checkEquals(new BigDecimal(tax), priced.getTax());
+        checkEquals(new BigDecimal(total), priced.getTotal());
+    }
+
+    /**
+     * Creates and saves a customer with discounts.
+     *
+     * @param discounts the discounts
+     * @return a new customer
+     */
+    private Party createCustomer(Entity... discounts) {
+        Party customer = TestHelper.createCustomer();
+        EntityBean bean = new EntityBean(customer);
+        for (Entity discount : discounts) {
+            bean.addRelationship("entityRelationship.discountCustomer", discount);
+        }
+        bean.save();
+        return customer;
+    }
+
+    /**
+     * Creates and saves a product with prices and discounts.
+     *
+     * @param fixedPrice the fixed price. May be {@code null}
+     * @param unitPrice  the unit price
+     * @param discounts  the discounts
+     * @return a new product
+     */
+    private Product createProduct(String fixedPrice, String unitPrice, Entity... discounts) {
+        Product product = TestHelper.createProduct();
+        if (fixedPrice != null) {
+            product.addProductPrice(createFixedPrice(fixedPrice, "0", "0", "100", (Date) null, null, true));
+        }
+        product.addProductPrice(createUnitPrice(unitPrice, "0", "0", "100", (Date) null, null));
+        EntityBean bean = new EntityBean(product);
+        for (Entity discount : discounts) {
+            bean.addRelationship("entityRelationship.discountProduct", discount);
+        }
+        bean.save();
+        return product;
+    }
+
+}
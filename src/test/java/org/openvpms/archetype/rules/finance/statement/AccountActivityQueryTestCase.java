@@ -0,0 +1,103 @@
+/*
+ * Version: 1.0
+ *
+ * The contents of this file are subject to the OpenVPMS License Version
+ * 1.0 (the 'License'); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.openvpms.org/license/
+ *
+ * Software distributed under the License is distributed on an 'AS IS' basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * Copyright 2014 (C) OpenVPMS Ltd. All Rights Reserved.
+ */
+
+package org.openvpms.archetype.rules.finance.statement;
+
+import org.junit.Test;
+import org.openvpms.archetype.test.TestHelper;
+import org.openvpms.component.business.domain.im.party.Party;
+
+import java.math.BigDecimal;
+import java.util.Date;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the {@link AccountActivityQuery} class.
+ *
+ * @author Tim Anderson
+ */
+public class AccountActivityQueryTestCase extends AbstractStatementTest {
+
+    /**
+     * Verifies that customers are only returned if they have a non-zero opening balance, or account acts in the
+     * statement period.
+     */
+    @Test
+    public void testQuery() {
+        BigDecimal amount = new BigDecimal(100);
+        Party idle = TestHelper.createCustomer();
+        Party owing = TestHelper.createCustomer();
+        Party paid = getCustomer();
+        save(createChargesInvoice(amount, owing, getDatetime("2007-01-01 10:00:00")));
+        save(createChargesInvoice(amount, getDatetime("2007-01-01 10:00:00")));
+        save(createPayment(amount, getDatetime("2007-01-01 11:00:00")));
+
+        Date statementDate1 = getDate("2007-01-01");
+        Set<Long> active = query(statementDate1);
+        assertFalse(active.contains(idle.getId()));
+        assertTrue(active.contains(owing.getId()));
+        assertTrue(active.contains(paid.getId()));
+
+        // run end-of-period, and verify the customers with statements are still returned for the statement date
+        EndOfPeriodProcessor processor = new EndOfPeriodProcessor(statementDate1, true, getPractice(),
+                                                                  getArchetypeService(), getLookupService(),
+                                                                  accountRules);
+        processor.setActiveCustomers(active);
+        processor.process(idle);
+        processor.process(owing);
+        processor.process(paid);
+        assertEquals(0, getActs(idle, statementDate1).size());
+        assertEquals(2, getActs(owing, statementDate1).size());
+        assertEquals(3, getActs(paid, statementDate1).size());
+
+        active = query(statementDate1);
+        assertFalse(active.contains(idle.getId()));
+        assertTrue(active.contains(owing.getId()));
+        assertTrue(active.contains(paid.getId()));
+
+        // for the next statement date, the customer with a zero balance and no new acts should be excluded
+        Date statementDate2 = getDate("2007-01-02");
+        active = query(statementDate2);
+        assertFalse(active.contains(idle.getId()));
+        assertTrue(active.contains(owing.getId()));
+        assertFalse(active.contains(paid.getId()));
+
+        // until they have an act in the period
+        save(createChargesInvoice(amount, getDatetime("2007-01-02 10:00:00")));
+        active = query(statementDate2);
+        assertTrue(active.contains(paid.getId()));
+
+        // acts after the statement date should be ignored
+        save(createChargesInvoice(amount, idle, getDatetime("2007-01-03 10:00:00")));
+        active = query(statementDate2);
+        assertFalse(active.contains(idle.getId()));
+    }
+
+    /**
+     * Queries the active customers for a statement date.
+     *
+     * @param statementDate the statement date
+     * @return the ids of the active customers
+     */
+    private Set<Long> query(Date statementDate) {
+        return new AccountActivityQuery(statementDate, getArchetypeService()).query();
+    }
+
+}
@@ -0,0 +1,185 @@
+/*
+ * Version: 1.0
+ *
+ * The contents of this file are subject to the OpenVPMS License Version
+ * 1.0 (the 'License'); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.openvpms.org/license/
+ *
+ * Software distributed under the License is distributed on an 'AS IS' basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * Copyright 2014 (C) OpenVPMS Ltd. All Rights Reserved.
+ */
+
+package org.openvpms.archetype.rules.finance.statement;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openvpms.archetype.test.TestHelper;
+import org.openvpms.component.business.domain.im.common.IMObjectReference;
+import org.openvpms.component.business.domain.im.party.Party;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.openvpms.archetype.rules.finance.statement.EndOfPeriodStatistics.Stage.LOAD;
+
+/**
+ * Tests the {@link EndOfPeriodBatchProcessor} class.
+ *
+ * @author Tim Anderson
+ */
+public class EndOfPeriodBatchProcessorTestCase extends AbstractStatementTest {
+
+    /**
+     * The executor.
+     */
+    private ExecutorService executor;
+
+
+    /**
+     * Sets up the test case.
+     */
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(2);
+    }
+
+    /**
+     * Cleans up after the test case.
+     */
+    @After
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Verifies that end-of-period is performed for customers across multiple batches.
+     */
+    @Test
+    public void testProcess() {
+        Date statementDate = getDate("2007-01-01");
+        List<Party> customers = new ArrayList<Party>();
+        List<IMObjectReference> references = new ArrayList<IMObjectReference>();
+        for (int i = 0; i < 5; ++i) {
+            Party customer = TestHelper.createCustomer();
+            if (i != 2) {
+                save(createChargesInvoice(new BigDecimal(100), customer, getDatetime("2007-01-01 10:00:00")));
+            }
+            customers.add(customer);
+            references.add(customer.getObjectReference());
+        }
+
+        EndOfPeriodBatchProcessor processor = createProcessor(references, statementDate);
+        processor.setBatchSize(2);
+        processor.process();
+
+        assertEquals(5, processor.getProcessed());
+        assertTrue(processor.getFailures().isEmpty());
+        assertEquals(customers.get(4).getId(), processor.getLastId());
+        assertEquals(3, processor.getStatistics().getCount(LOAD));
+
+        StatementRules rules = new StatementRules(getPractice(), getArchetypeService(), getLookupService(),
+                                                  accountRules);
+        for (int i = 0; i < customers.size(); ++i) {
+            Party customer = customers.get(i);
+            if (i != 2) {
+                assertTrue(rules.hasStatement(customer, statementDate));
+                assertEquals(2, getActs(customer, statementDate).size());
+            } else {
+                assertFalse(rules.hasStatement(customer, statementDate));
+            }
+        }
+
+        // verify that reprocessing the customers doesn't generate more acts
+        processor = createProcessor(references, statementDate);
+        processor.process();
+        assertEquals(5, processor.getProcessed());
+        for (int i = 0; i < customers.size(); ++i) {
+            if (i != 2) {
+                assertEquals(2, getActs(customers.get(i), statementDate).size());
+            }
+        }
+    }
+
+    /**
+     * Verifies that batches are processed with the caller's authentication, and that it isn't retained by the
+     * executor threads.
+     *
+     * @throws Exception for any error
+     */
+    @Test
+    public void testAuthentication() throws Exception {
+        List<IMObjectReference> references = new ArrayList<IMObjectReference>();
+        for (int i = 0; i < 3; ++i) {
+            references.add(TestHelper.createCustomer().getObjectReference());
+        }
+        final List<Authentication> authentications
+                = Collections.synchronizedList(new ArrayList<Authentication>());
+        Authentication authentication = new UsernamePasswordAuthenticationToken("user", "password");
+        SecurityContextHolder.getContext().setAuthentication(authentication);
+        try {
+            EndOfPeriodBatchProcessor processor = new EndOfPeriodBatchProcessor(
+                    references.iterator(), getDate("2007-01-01"), true, getPractice(), getArchetypeService(),
+                    getLookupService(), accountRules, applicationContext.getBean(PlatformTransactionManager.class),
+                    executor) {
+                @Override
+                protected EndOfPeriodProcessor createProcessor() {
+                    authentications.add(SecurityContextHolder.getContext().getAuthentication());
+                    return super.createProcessor();
+                }
+            };
+            processor.setBatchSize(1);
+            processor.process();
+            assertEquals(3, processor.getProcessed());
+        } finally {
+            SecurityContextHolder.clearContext();
+        }
+
+        assertEquals(3, authentications.size());
+        for (Authentication batch : authentications) {
+            assertSame(authentication, batch);
+        }
+        for (int i = 0; i < 2; ++i) {
+            Authentication retained = executor.submit(new Callable<Authentication>() {
+                public Authentication call() {
+                    return SecurityContextHolder.getContext().getAuthentication();
+                }
+            }).get();
+            assertNull(retained);
+        }
+    }
+
+    /**
+     * Creates a new processor.
+     *
+     * @param customers     the customers to process
+     * @param statementDate the statement date
+     * @return a new processor
+     */
+    private EndOfPeriodBatchProcessor createProcessor(List<IMObjectReference> customers, Date statementDate) {
+        return new EndOfPeriodBatchProcessor(customers.iterator(), statementDate, true, getPractice(),
+                                             getArchetypeService(), getLookupService(), accountRules,
+                                             applicationContext.getBean(PlatformTransactionManager.class), executor);
+    }
+
+}
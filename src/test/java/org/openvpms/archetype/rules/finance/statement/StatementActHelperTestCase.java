@@ -0,0 +1,127 @@
+/*
+ * Version: 1.0
+ *
+ * The contents of this file are subject to the OpenVPMS License Version
+ * 1.0 (the 'License'); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.openvpms.org/license/
+ *
+ * Software distributed under the License is distributed on an 'AS IS' basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * Copyright 2014 (C) OpenVPMS Ltd. All Rights Reserved.
+ */
+
+package org.openvpms.archetype.rules.finance.statement;
+
+import org.junit.Test;
+import org.openvpms.archetype.test.TestHelper;
+import org.openvpms.component.business.domain.im.party.Party;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the {@link StatementActHelper} class.
+ *
+ * @author Tim Anderson
+ */
+public class StatementActHelperTestCase extends AbstractStatementTest {
+
+    /**
+     * Verifies that {@link StatementActHelper#getStatementPeriods} returns the same periods as those constructed for
+     * individual customers.
+     */
+    @Test
+    public void testGetStatementPeriods() {
+        StatementActHelper helper = new StatementActHelper(getArchetypeService());
+        BigDecimal amount = new BigDecimal(100);
+        Party idle = TestHelper.createCustomer();
+        Party customer1 = TestHelper.createCustomer();
+        Party customer2 = TestHelper.createCustomer();
+        List<Party> customers = Arrays.asList(idle, customer1, customer2);
+        save(createChargesInvoice(amount, customer1, getDatetime("2007-01-01 10:00:00")));
+        save(createChargesInvoice(amount, customer2, getDatetime("2007-01-01 10:00:00")));
+        save(createChargesInvoice(amount, customer2, getDatetime("2007-01-02 10:00:00")));
+
+        Date statementDate1 = getDate("2007-01-01");
+        Date statementDate2 = getDate("2007-01-02");
+        Date statementDate3 = getDate("2007-01-03");
+        checkPeriods(customers, statementDate1, helper);
+
+        // run end-of-period for the first two statement dates, in bulk
+        EndOfPeriodProcessor processor1 = createProcessor(statementDate1);
+        processor1.process(customers);
+        EndOfPeriodProcessor processor2 = createProcessor(statementDate2);
+        processor2.process(customers);
+
+        Map<Long, StatementPeriod> periods = helper.getStatementPeriods(customers, statementDate1);
+        assertFalse(periods.get(idle.getId()).hasStatement());
+        assertTrue(periods.get(customer1.getId()).hasStatement());
+        assertTrue(periods.get(customer2.getId()).hasStatement());
+
+        periods = helper.getStatementPeriods(customers, statementDate2);
+        assertFalse(periods.get(idle.getId()).hasStatement());
+        assertTrue(periods.get(customer1.getId()).hasStatement());
+        assertTrue(periods.get(customer2.getId()).hasStatement());
+        checkEquals(amount, periods.get(customer1.getId()).getOpeningBalance());
+        checkEquals(amount, periods.get(customer2.getId()).getOpeningBalance());
+
+        // verify the periods match those determined for each customer, for each statement date
+        checkPeriods(customers, statementDate1, helper);
+        checkPeriods(customers, statementDate2, helper);
+        checkPeriods(customers, statementDate3, helper);
+
+        // verify the acts generated by processing the customers in bulk
+        assertEquals(2, getActs(customer1, statementDate1).size());
+        assertEquals(2, getActs(customer1, statementDate2).size());
+        assertEquals(3, getActs(customer2, statementDate2).size());
+    }
+
+    /**
+     * Verifies that statement periods determined in bulk match those constructed for individual customers.
+     *
+     * @param customers     the customers
+     * @param statementDate the statement date
+     * @param helper        the statement act helper
+     */
+    private void checkPeriods(List<Party> customers, Date statementDate, StatementActHelper helper) {
+        Map<Long, StatementPeriod> periods = helper.getStatementPeriods(new ArrayList<Party>(customers),
+                                                                        statementDate);
+        assertEquals(customers.size(), periods.size());
+        for (Party customer : customers) {
+            StatementPeriod expected = new StatementPeriod(customer, statementDate, helper);
+            StatementPeriod actual = periods.get(customer.getId());
+            assertNotNull(actual);
+            assertEquals(expected.getStatementTimestamp(), actual.getStatementTimestamp());
+            assertEquals(expected.hasStatement(), actual.hasStatement());
+            assertEquals(expected.getOpeningBalanceTimestamp(), actual.getOpeningBalanceTimestamp());
+            checkEquals(expected.getOpeningBalance(), actual.getOpeningBalance());
+            assertEquals(expected.getClosingBalanceTimestamp(), actual.getClosingBalanceTimestamp());
+            assertEquals(expected.isPrinted(), actual.isPrinted());
+        }
+    }
+
+    /**
+     * Creates a new end-of-period processor.
+     *
+     * @param statementDate the statement date
+     * @return a new processor
+     */
+    private EndOfPeriodProcessor createProcessor(Date statementDate) {
+        return new EndOfPeriodProcessor(statementDate, true, getPractice(), getArchetypeService(), getLookupService(),
+                                        accountRules);
+    }
+
+}
@@ -0,0 +1,92 @@
+/*
+ * Version: 1.0
+ *
+ * The contents of this file are subject to the OpenVPMS License Version
+ * 1.0 (the 'License'); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.openvpms.org/license/
+ *
+ * Software distributed under the License is distributed on an 'AS IS' basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * Copyright 2014 (C) OpenVPMS Ltd. All Rights Reserved.
+ */
+
+package org.openvpms.archetype.rules.finance.statement;
+
+import org.junit.Test;
+import org.openvpms.component.business.domain.im.act.Act;
+import org.openvpms.component.business.domain.im.act.FinancialAct;
+import org.openvpms.component.business.domain.im.party.Party;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import static org.openvpms.archetype.rules.finance.account.CustomerAccountArchetypes.PAYMENT_CASH;
+
+/**
+ * Tests the {@link StatementActs} class.
+ *
+ * @author Tim Anderson
+ */
+public class StatementActsTestCase extends AbstractStatementTest {
+
+    /**
+     * Verifies that acts are returned with their items, products and patients, across multiple pages.
+     */
+    @Test
+    public void testIterate() {
+        BigDecimal amount = new BigDecimal(100);
+        Party customer = getCustomer();
+        List<List<FinancialAct>> invoices = new ArrayList<List<FinancialAct>>();
+        for (int i = 0; i < 3; ++i) {
+            List<FinancialAct> invoice = createChargesInvoice(amount, getDatetime("2007-01-01 1" + i + ":00:00"));
+            save(invoice);
+            invoices.add(invoice);
+        }
+        FinancialAct payment = createPayment(amount, getDatetime("2007-01-01 14:00:00"));
+        save(payment);
+
+        Date statementDate = getDate("2007-01-01");
+        List<Act> acts = getActs(customer, statementDate);
+        assertEquals(4, acts.size());
+
+        Iterator<StatementAct> iterator = new StatementActs(acts, 3, getArchetypeService()).iterator();
+        for (List<FinancialAct> invoice : invoices) {
+            StatementAct act = iterator.next();
+            assertEquals(invoice.get(0), act.getAct());
+            assertEquals(1, act.getItems().size());
+            Act item = act.getItems().get(0);
+            assertEquals(invoice.get(1), item);
+            assertEquals(getProduct(), act.getProduct(item));
+            assertEquals(getPatient(), act.getPatient(item));
+        }
+
+        StatementAct act = iterator.next();
+        assertEquals(payment, act.getAct());
+        assertEquals(1, act.getItems().size());
+        Act item = act.getItems().get(0);
+        assertEquals(PAYMENT_CASH, item.getArchetypeId().getShortName());
+        assertNull(act.getProduct(item));
+        assertNull(act.getPatient(item));
+
+        assertFalse(iterator.hasNext());
+        try {
+            iterator.next();
+            fail("Expected NoSuchElementException");
+        } catch (NoSuchElementException expected) {
+            // do nothing
+        }
+    }
+
+}
@@ -22,6 +22,7 @@ import org.openvpms.archetype.test.ArchetypeServiceTest;
 import org.openvpms.archetype.test.TestHelper;
 import org.openvpms.component.business.domain.im.common.Entity;
 import org.openvpms.component.business.domain.im.common.EntityRelationship;
+import org.openvpms.component.business.domain.im.common.IMObjectReference;
 import org.openvpms.component.business.domain.im.lookup.Lookup;
 import org.openvpms.component.business.domain.im.party.Party;
 import org.openvpms.component.business.domain.im.product.Product;
@@ -29,7 +30,10 @@ import org.openvpms.component.business.service.archetype.helper.EntityBean;
 import org.openvpms.component.business.service.archetype.helper.IMObjectBean;
 
 import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Map;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
@@ -69,6 +73,25 @@ public class TaxRulesTestCase extends ArchetypeServiceTest {
                 rules.getTaxRate(productType10Tax)) == 0);
     }
 
+    /**
+     * Tests the {@link TaxRules#getTaxRates} method.
+     */
+    @Test
+    public void testGetTaxRates() {
+        Product productNoTax = createProduct();
+        Product product10Tax = createProductWithTax();
+        Product productType10Tax1 = createProductWithProductTypeTax();
+        Product productType10Tax2 = createProductWithProductTypeTax();
+
+        Map<IMObjectReference, BigDecimal> rates = rules.getTaxRates(
+                Arrays.asList(productNoTax, product10Tax, productType10Tax1, productType10Tax2));
+        assertEquals(4, rates.size());
+        checkEquals(BigDecimal.ZERO, rates.get(productNoTax.getObjectReference()));
+        checkEquals(BigDecimal.TEN, rates.get(product10Tax.getObjectReference()));
+        checkEquals(BigDecimal.TEN, rates.get(productType10Tax1.getObjectReference()));
+        checkEquals(BigDecimal.TEN, rates.get(productType10Tax2.getObjectReference()));
+    }
+
     /**
      * Tests the {@link TaxRules#calculateTax(BigDecimal, Product, boolean)}
      * method.
@@ -25,6 +25,7 @@ import org.openvpms.archetype.test.TestHelper;
 import org.openvpms.component.business.domain.im.act.Act;
 import org.openvpms.component.business.domain.im.common.EntityIdentity;
 import org.openvpms.component.business.domain.im.common.EntityRelationship;
+import org.openvpms.component.business.domain.im.common.IMObjectReference;
 import org.openvpms.component.business.domain.im.party.Party;
 import org.openvpms.component.business.service.archetype.helper.ActBean;
 import org.openvpms.component.business.service.archetype.helper.EntityBean;
@@ -33,7 +34,11 @@ import org.openvpms.component.business.service.archetype.helper.IMObjectBeanFact
 import org.springframework.beans.factory.annotation.Autowired;
 
 import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.Map;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
@@ -181,6 +186,29 @@ public class PatientRulesTestCase extends ArchetypeServiceTest {
         assertEquals("13 Pounds", rules.getPatientWeight(patient));
     }
 
+    /**
+     * Tests the {@link PatientRules#getWeightActs(Collection)} method.
+     */
+    @Test
+    public void testGetWeightActs() {
+        Party patient1 = TestHelper.createPatient();
+        Party patient2 = TestHelper.createPatient();
+        Party patient3 = TestHelper.createPatient();
+        PatientTestHelper.createWeight(patient1, getDate("2006-12-22"), new BigDecimal("5.0"), WeightUnits.KILOGRAMS);
+        Act weight1 = PatientTestHelper.createWeight(patient1, getDate("2007-02-25"), new BigDecimal("13"),
+                                                     WeightUnits.POUNDS);
+        Act weight2 = PatientTestHelper.createWeight(patient2, getDate("2007-01-01"), BigDecimal.TEN,
+                                                     WeightUnits.KILOGRAMS);
+
+        Map<IMObjectReference, Act> weights = rules.getWeightActs(Arrays.asList(patient1, patient2, patient3));
+        assertEquals(2, weights.size());
+        assertEquals(weight1, weights.get(patient1.getObjectReference()));
+        assertEquals(weight2, weights.get(patient2.getObjectReference()));
+        assertNull(weights.get(patient3.getObjectReference()));
+
+        assertTrue(rules.getWeightActs(Collections.<Party>emptyList()).isEmpty());
+    }
+
     /**
      * Tests the {@link PatientRules#setInactive(Party)} method.
      */
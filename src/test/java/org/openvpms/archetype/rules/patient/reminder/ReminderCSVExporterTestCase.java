@@ -41,6 +41,7 @@ import org.openvpms.component.business.service.lookup.ILookupService;
 
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
@@ -122,6 +123,45 @@ public class ReminderCSVExporterTestCase extends ArchetypeServiceTest {
         checkExport(customer, true);
     }
 
+    /**
+     * Verifies that each patient's most recent weight is exported when multiple reminders are exported.
+     *
+     * @throws IOException for any I/O error
+     */
+    @Test
+    public void testExportMultipleReminders() throws IOException {
+        Party customer = createCustomer("Foo", "F", "Bar", null);
+        Contact address = TestHelper.createLocationContact("Twenty Second Avenue", "SAWTELL",
+                                                           "Sawtell", "NSW", "New South Wales", "2452");
+        customer.addContact(address);
+        save(customer);
+        Party patient1 = createPatient(customer);
+        Party patient2 = createPatient(customer);
+        Party patient3 = createPatient(customer);
+        PatientTestHelper.createWeight(patient1, TestHelper.getDate("2014-01-01"), ONE, KILOGRAMS);
+        PatientTestHelper.createWeight(patient1, TestHelper.getDate("2015-01-01"), TEN, KILOGRAMS);
+        PatientTestHelper.createWeight(patient2, TestHelper.getDate("2014-06-01"), ONE, KILOGRAMS);
+
+        Entity reminderType = ReminderTestHelper.createReminderType();
+        List<ReminderEvent> events = new ArrayList<ReminderEvent>();
+        for (Party patient : Arrays.asList(patient1, patient2, patient3)) {
+            Act reminder = ReminderTestHelper.createReminder(patient, reminderType);
+            events.add(createReminderEvent(customer, address, patient, reminderType, reminder));
+        }
+
+        Document document = exporter.export(events);
+        List<String[]> lines = readCSV(document);
+        assertEquals(4, lines.size());
+        checkWeight(lines.get(1), patient1, "10", "KILOGRAMS", "2015-01-01");
+        checkWeight(lines.get(2), patient2, "1", "KILOGRAMS", "2014-06-01");
+        checkWeight(lines.get(3), patient3, null, null, null);
+        for (int i = 1; i < lines.size(); ++i) {
+            assertEquals("Sawtell", lines.get(i)[7]);
+            assertEquals("Canine", lines.get(i)[15]);
+            assertEquals("Kelpie", lines.get(i)[16]);
+        }
+    }
+
     /**
      * Checks export.
      *
@@ -184,6 +224,23 @@ public class ReminderCSVExporterTestCase extends ArchetypeServiceTest {
         assertArrayEquals(expected, lines.get(1));
     }
 
+    /**
+     * Verifies the patient and weight columns of an exported line match those expected.
+     *
+     * @param line    the exported line
+     * @param patient the expected patient
+     * @param weight  the expected weight. May be {@code null}
+     * @param units   the expected weight units. May be {@code null}
+     * @param date    the expected weight date. May be {@code null}
+     */
+    private void checkWeight(String[] line, Party patient, String weight, String units, String date) {
+        assertEquals(getId(patient), line[13]);
+        // the CSV reader returns empty strings for null values
+        assertEquals(weight != null ? weight : "", line[25]);
+        assertEquals(units != null ? units : "", line[26]);
+        assertEquals(date != null ? date : "", line[27]);
+    }
+
     /**
      * Creates a new {@code EXPORT} reminder event.
      *
@@ -23,6 +23,7 @@ import org.openvpms.archetype.rules.doc.DocumentHandler;
 import org.openvpms.archetype.rules.doc.DocumentHandlers;
 import org.openvpms.archetype.rules.finance.tax.TaxRules;
 import org.openvpms.archetype.rules.product.PricingGroup;
+import org.openvpms.archetype.rules.product.ProductArchetypes;
 import org.openvpms.archetype.rules.product.ProductPriceRules;
 import org.openvpms.archetype.rules.util.DateRules;
 import org.openvpms.archetype.rules.util.DateUnits;
@@ -32,6 +33,7 @@ import org.openvpms.component.business.domain.im.lookup.Lookup;
 import org.openvpms.component.business.domain.im.party.Party;
 import org.openvpms.component.business.domain.im.product.Product;
 import org.openvpms.component.business.domain.im.product.ProductPrice;
+import org.openvpms.component.business.service.archetype.helper.EntityBean;
 import org.openvpms.component.business.service.archetype.helper.IMObjectBean;
 import org.openvpms.component.business.service.lookup.ILookupService;
 import org.openvpms.component.system.common.jxpath.DateFunctions;
@@ -41,6 +43,7 @@ import java.io.IOException;
 import java.io.StringWriter;
 import java.math.BigDecimal;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
@@ -388,6 +391,43 @@ public class ProductCSVWriterReaderTestCase extends AbstractProductIOTest {
         checkPrice(data.getFixedPrices().get(1), fixed1A);
     }
 
+    /**
+     * Verifies that products spanning multiple pages are written, including fixed prices linked from a template.
+     */
+    @Test
+    public void testWriteMultiplePagesWithLinkedPrices() {
+        Product template = (Product) create(ProductArchetypes.PRICE_TEMPLATE);
+        template.setName("XPriceTemplate-" + System.currentTimeMillis());
+        ProductPrice linkedFixedPrice = createFixedPrice("2.0", "1.0", "100", "10", monthsMinus21, null, true);
+        template.addProductPrice(linkedFixedPrice);
+        save(template);
+
+        List<Product> list = new ArrayList<Product>();
+        for (int i = 0; i < 150; ++i) {
+            Product p = createProduct("Product " + i, null);
+            EntityBean bean = new EntityBean(p);
+            bean.addNodeRelationship("linked", template);
+            save(p, template);
+            list.add(p);
+        }
+
+        ProductCSVWriter writer = new ProductCSVWriter(getArchetypeService(), rules, taxRules, handlers);
+        Document document = writer.write(list.iterator(), false, true, PricingGroup.ALL);
+
+        ProductCSVReader reader = new ProductCSVReader(handlers, getLookupService());
+        reader.setDateFormats(Arrays.asList(ProductCSVReader.YEAR_MONTH_DAY_FORMATS));
+        ProductDataSet products = reader.read(document);
+        assertEquals(list.size(), products.getData().size());
+        assertEquals(0, products.getErrors().size());
+        for (int i = 0; i < list.size(); ++i) {
+            ProductData data = products.getData().get(i);
+            checkProduct(data, list.get(i));
+            assertEquals(1, data.getFixedPrices().size());
+            checkPrice(data.getFixedPrices().get(0), linkedFixedPrice);
+            assertEquals(0, data.getUnitPrices().size());
+        }
+    }
+
     /**
      * Verifies that the correct date formats are detected in the input document.
      */
@@ -32,10 +32,13 @@ import org.openvpms.component.business.service.archetype.helper.ActBean;
 import org.openvpms.component.system.common.util.PropertySet;
 import org.springframework.beans.factory.DisposableBean;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
@@ -47,6 +50,7 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.openvpms.archetype.test.TestHelper.getDate;
 
 /**
@@ -59,7 +63,7 @@ public abstract class AbstractScheduleServiceTest extends ArchetypeServiceTest {
     /**
      * The schedule service.
      */
-    private ScheduleService service;
+    private AbstractScheduleService service;
 
     /**
      * Cleans up after the test.
@@ -226,6 +230,167 @@ public abstract class AbstractScheduleServiceTest extends ArchetypeServiceTest {
         assertEquals(clinician2.getObjectReference(), events.get(0).getReference(ScheduleEvent.CLINICIAN_REFERENCE));
     }
 
+    /**
+     * Tests the {@link AbstractScheduleService#getEvents(Collection, Date, Date)} method.
+     */
+    @Test
+    public void testGetEventsForMultipleSchedules() {
+        Date date1 = getDate("2013-11-01");
+        Date date2 = getDate("2013-11-02");
+
+        Entity schedule1 = createSchedule();
+        Entity schedule2 = createSchedule(); // not queried, but its id falls between those that are
+        Entity schedule3 = createSchedule();
+        Party patient = TestHelper.createPatient();
+
+        Act event1 = createEvent(schedule1, date1, patient);
+        Act event2 = createEvent(schedule2, date1, patient);
+        Act event3 = createEvent(schedule3, date2, patient);
+
+        service = createScheduleService(30);
+        Date to = getDate("2013-11-03");
+        Map<Entity, List<PropertySet>> events = service.getEvents(Arrays.asList(schedule3, schedule1), date1, to);
+        assertEquals(2, events.size());
+        assertEquals(Arrays.asList(schedule3, schedule1), new ArrayList<Entity>(events.keySet()));
+        checkEvents(events.get(schedule1), event1);
+        checkEvents(events.get(schedule3), event3);
+
+        // verify the days have been cached correctly
+        assertEquals(1, service.getEvents(schedule1, date1).size());
+        assertEquals(0, service.getEvents(schedule1, date2).size());
+        assertEquals(0, service.getEvents(schedule3, date1).size());
+        assertEquals(1, service.getEvents(schedule3, date2).size());
+        checkEvents(service.getEvents(schedule2, date1, to), event2);
+    }
+
+    /**
+     * Verifies that requesting stale events for a day that has never been loaded loads the events.
+     */
+    @Test
+    public void testGetStaleEventsForUncachedDay() {
+        Date date = getDate("2013-11-01");
+        Entity schedule = createSchedule();
+        Act event = createEvent(schedule, date, TestHelper.createPatient());
+
+        service = createScheduleService(30);
+        checkEvents(service.getEvents(schedule, date, true), event);
+        checkEvents(service.getEvents(schedule, date, false), event);
+    }
+
+    /**
+     * Verifies that when a patient is renamed, the new name is picked up when an event is next saved.
+     */
+    @Test
+    public void testChangePatientName() {
+        Date date = getDate("2013-11-01");
+
+        Entity schedule = createSchedule();
+        Party patient = TestHelper.createPatient();
+
+        service = createScheduleService(30);
+        service.getEvents(schedule, date);
+
+        Act event = createEvent(schedule, date, patient);
+        List<PropertySet> events = service.getEvents(schedule, date);
+        assertEquals(1, events.size());
+        assertEquals(patient.getName(), events.get(0).getString(ScheduleEvent.PATIENT_NAME));
+
+        patient.setName("Z" + patient.getName());
+        save(patient);
+        save(event);
+
+        events = service.getEvents(schedule, date);
+        assertEquals(1, events.size());
+        assertEquals(patient.getName(), events.get(0).getString(ScheduleEvent.PATIENT_NAME));
+    }
+
+    /**
+     * Verifies that the memory used by the cache is reported for each cached schedule, and that events returned by
+     * the service can be modified without affecting those cached.
+     */
+    @Test
+    public void testCacheFootprint() {
+        Date date = getDate("2013-11-01");
+        Entity schedule1 = createSchedule();
+        Entity schedule2 = createSchedule();
+        Party patient = TestHelper.createPatient();
+        createEvent(schedule1, date, patient);
+
+        AbstractScheduleService scheduleService = createScheduleService(30);
+        service = scheduleService;
+        List<PropertySet> events = service.getEvents(schedule1, date);
+        assertEquals(0, service.getEvents(schedule2, date).size());
+
+        Map<Long, Long> footprint = scheduleService.getCacheFootprint();
+        assertEquals(2, footprint.size());
+        long size1 = footprint.get(schedule1.getId());
+        long size2 = footprint.get(schedule2.getId());
+        assertTrue(size2 > 0);
+        assertTrue(size1 > size2);
+
+        assertEquals(1, events.size());
+        events.get(0).set(ScheduleEvent.PATIENT_NAME, "foo");
+        events = service.getEvents(schedule1, date);
+        assertEquals(patient.getName(), events.get(0).getString(ScheduleEvent.PATIENT_NAME));
+    }
+
+    /**
+     * Tests the {@link AbstractScheduleService#getChanges(Entity, Date, long)} method.
+     */
+    @Test
+    public void testGetChanges() {
+        Date date = getDate("2013-11-01");
+        Entity schedule1 = createSchedule();
+        Entity schedule2 = createSchedule();
+        Party patient = TestHelper.createPatient();
+        Act event1 = createEvent(schedule1, date, patient);
+
+        service = createScheduleService(30);
+        ScheduleEventChanges changes = service.getChanges(schedule1, date, -1);
+        assertTrue(changes.isReset());
+        checkEvents(changes.getAdded(), event1);
+
+        // verify nothing is returned if nothing has changed
+        long sequence = changes.getSequence();
+        changes = service.getChanges(schedule1, date, sequence);
+        assertTrue(changes.isEmpty());
+        assertEquals(sequence, changes.getSequence());
+
+        // add an event, and update the existing one
+        Act event2 = createEvent(schedule1, date, patient);
+        save(event1);
+        changes = service.getChanges(schedule1, date, sequence);
+        assertFalse(changes.isReset());
+        assertTrue(changes.getSequence() > sequence);
+        checkEvents(changes.getAdded(), event2);
+        checkEvents(changes.getUpdated(), event1);
+        assertTrue(changes.getRemoved().isEmpty());
+
+        // move an event to another schedule, and remove the other
+        sequence = changes.getSequence();
+        setSchedule(event2, schedule2);
+        save(event2);
+        remove(event1);
+        changes = service.getChanges(schedule1, date, sequence);
+        assertFalse(changes.isReset());
+        assertTrue(changes.getAdded().isEmpty());
+        assertTrue(changes.getUpdated().isEmpty());
+        assertEquals(Arrays.asList(event2.getObjectReference(), event1.getObjectReference()), changes.getRemoved());
+
+        // verify an event added and removed since the last sequence isn't returned
+        sequence = changes.getSequence();
+        Act event3 = createEvent(schedule1, date, patient);
+        remove(event3);
+        changes = service.getChanges(schedule1, date, sequence);
+        assertTrue(changes.isEmpty());
+        assertEquals(0, service.getEvents(schedule1, date).size());
+
+        // verify all events are returned for a day that wasn't cached at the sequence
+        changes = service.getChanges(schedule2, date, sequence);
+        assertTrue(changes.isReset());
+        checkEvents(changes.getAdded(), event2);
+    }
+
     /**
      * Reads a schedule for two separate dates in two threads, whilst changing an event's schedule in a third.
      * <p/>
@@ -270,7 +435,7 @@ public abstract class AbstractScheduleServiceTest extends ArchetypeServiceTest {
      * @param scheduleCacheSize the maximum number of schedule days to cache
      * @return the new service
      */
-    protected abstract ScheduleService createScheduleService(int scheduleCacheSize);
+    protected abstract AbstractScheduleService createScheduleService(int scheduleCacheSize);
 
     /**
      * Creates a new schedule.
@@ -322,6 +487,19 @@ public abstract class AbstractScheduleServiceTest extends ArchetypeServiceTest {
         return result;
     }
 
+    /**
+     * Verifies that a list of events matches the expected acts, in order.
+     *
+     * @param events   the events
+     * @param expected the expected acts
+     */
+    protected void checkEvents(List<PropertySet> events, Act... expected) {
+        assertEquals(expected.length, events.size());
+        for (int i = 0; i < expected.length; ++i) {
+            assertEquals(expected[i].getObjectReference(), events.get(i).getReference(ScheduleEvent.ACT_REFERENCE));
+        }
+    }
+
     /**
      * Helper to runs tasks concurrently.
      *
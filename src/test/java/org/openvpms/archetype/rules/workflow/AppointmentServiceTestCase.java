@@ -341,6 +341,34 @@ public class AppointmentServiceTestCase extends AbstractScheduleServiceTest {
         assertTrue(results.isEmpty());
     }
 
+    /**
+     * Verifies that events loaded for a date range are split into the correct days, and that subsequent reads of
+     * individual days return the same events.
+     */
+    @Test
+    public void testGetEventsForRange() {
+        Date date1 = getDate("2008-01-01");
+        Date date2 = getDate("2008-01-02");
+        Date date3 = getDate("2008-01-03");
+        Act appointment1 = createAppointment(date1);
+        Act appointment2 = createAppointment(date3);
+        Date startTime = DateRules.getDate(date1, 12, DateUnits.HOURS);
+        Date endTime = DateRules.getDate(date2, 1, DateUnits.HOURS);
+        Act appointment3 = createAppointment(startTime, endTime, schedule, createPatient(), true);
+
+        service = createScheduleService(30);
+        List<PropertySet> results = service.getEvents(schedule, date1, DateRules.getDate(date3, 1, DateUnits.DAYS));
+        assertEquals(4, results.size()); // appointment3 is returned for each day it spans
+        assertEquals(appointment1.getObjectReference(), results.get(0).getReference(ScheduleEvent.ACT_REFERENCE));
+        assertEquals(appointment3.getObjectReference(), results.get(1).getReference(ScheduleEvent.ACT_REFERENCE));
+        assertEquals(appointment3.getObjectReference(), results.get(2).getReference(ScheduleEvent.ACT_REFERENCE));
+        assertEquals(appointment2.getObjectReference(), results.get(3).getReference(ScheduleEvent.ACT_REFERENCE));
+
+        assertEquals(2, service.getEvents(schedule, date1).size());
+        assertEquals(1, service.getEvents(schedule, date2).size());
+        assertEquals(1, service.getEvents(schedule, date3).size());
+    }
+
     /**
      * Tests repeatedly reading the same sets of events for a cache size smaller than the number of dates read.
      */
@@ -27,13 +27,18 @@ import org.openvpms.component.business.domain.im.act.Act;
 import org.openvpms.component.business.domain.im.common.Entity;
 import org.openvpms.component.business.domain.im.party.Party;
 import org.openvpms.component.business.service.archetype.helper.IMObjectBean;
+import org.openvpms.component.business.service.lookup.ILookupService;
 
 import java.sql.Time;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.openvpms.archetype.rules.workflow.ScheduleTestHelper.createAppointment;
 import static org.openvpms.archetype.test.TestHelper.getDate;
@@ -346,6 +351,94 @@ public class FreeSlotQueryTestCase extends ArchetypeServiceTest {
         assertFalse(query.hasNext());
     }
 
+    /**
+     * Verifies that free slots for multiple schedules are returned in the correct order when the schedules are
+     * read concurrently.
+     */
+    @Test
+    public void testFindFreeSlotsForMultipleSchedulesInParallel() {
+        Party schedule1 = createSchedule(null, null);
+        Party schedule2 = createSchedule(null, null);
+        Party schedule3 = createSchedule(null, null);
+        Act act1 = createAppointment(getDatetime("2014-01-01 09:00:00"), getDatetime("2014-01-01 09:15:00"), schedule1);
+        Act act2 = createAppointment(getDatetime("2014-01-01 10:00:00"), getDatetime("2014-01-01 10:15:00"), schedule1);
+        Act act3 = createAppointment(getDatetime("2014-01-01 09:00:00"), getDatetime("2014-01-01 09:30:00"), schedule2);
+        Act act4 = createAppointment(getDatetime("2014-01-01 09:45:00"), getDatetime("2014-01-01 10:30:00"), schedule2);
+        Act act5 = createAppointment(getDatetime("2014-01-01 00:00:00"), getDatetime("2014-01-01 12:00:00"), schedule3);
+        save(act1, act2, act3, act4, act5);
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            FreeSlotQuery query = createQuery("2014-01-01", "2014-01-02", schedule1, schedule2, schedule3);
+            query.setExecutor(executor);
+            Iterator<Slot> iterator = query.query();
+            checkSlot(iterator, schedule1, "2014-01-01 00:00:00", "2014-01-01 09:00:00");
+            checkSlot(iterator, schedule2, "2014-01-01 00:00:00", "2014-01-01 09:00:00");
+            checkSlot(iterator, schedule1, "2014-01-01 09:15:00", "2014-01-01 10:00:00");
+            checkSlot(iterator, schedule2, "2014-01-01 09:30:00", "2014-01-01 09:45:00");
+            checkSlot(iterator, schedule1, "2014-01-01 10:15:00", "2014-01-02 00:00:00");
+            checkSlot(iterator, schedule2, "2014-01-01 10:30:00", "2014-01-02 00:00:00");
+            checkSlot(iterator, schedule3, "2014-01-01 12:00:00", "2014-01-02 00:00:00");
+            assertFalse(iterator.hasNext());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Verifies that no free slots are returned if an appointment spans the date range.
+     */
+    @Test
+    public void testAppointmentSpanningDateRange() {
+        Party schedule = createSchedule(null, null);
+        Act act = createAppointment(getDatetime("2013-12-31 09:00:00"), getDatetime("2014-01-03 09:00:00"), schedule);
+        save(act);
+
+        Iterator<Slot> query = createIterator("2014-01-01", "2014-01-02", schedule);
+        assertFalse(query.hasNext());
+    }
+
+    /**
+     * Verifies that free slots are determined correctly when the appointments are cached.
+     *
+     * @throws Exception for any error
+     */
+    @Test
+    public void testFindFreeSlotsForCachedAppointments() throws Exception {
+        Party schedule1 = createSchedule(null, null);
+        Party schedule2 = createSchedule(null, null);
+        Act act1 = createAppointment(getDatetime("2013-12-31 09:00:00"), getDatetime("2014-01-01 08:00:00"), schedule1);
+        Act act2 = createAppointment(getDatetime("2014-01-01 09:00:00"), getDatetime("2014-01-01 09:30:00"), schedule1);
+        Act act3 = createAppointment(getDatetime("2014-01-01 09:15:00"), getDatetime("2014-01-01 10:00:00"), schedule1);
+        Act act4 = createAppointment(getDatetime("2014-01-01 09:00:00"), getDatetime("2014-01-01 09:30:00"), schedule2);
+        save(act1, act2, act3, act4);
+
+        AppointmentService appointments = new AppointmentService(getArchetypeService(),
+                                                                 applicationContext.getBean(ILookupService.class),
+                                                                 ScheduleTestHelper.createCache(30));
+        try {
+            // cache the appointments for schedule1. Those for schedule2 will be queried
+            appointments.getEvents(schedule1, getDate("2014-01-01"));
+            assertNotNull(appointments.getCachedEvents(schedule1, getDate("2014-01-01"),
+                                                       getDatetime("2014-01-01 23:59:59")));
+            assertNull(appointments.getCachedEvents(schedule2, getDate("2014-01-01"),
+                                                    getDatetime("2014-01-01 23:59:59")));
+
+            FreeSlotQuery query = new FreeSlotQuery(getArchetypeService(), appointments);
+            query.setFromDate(getDate("2014-01-01"));
+            query.setToDate(getDate("2014-01-02"));
+            query.setSchedules(schedule1, schedule2);
+            Iterator<Slot> iterator = query.query();
+            checkSlot(iterator, schedule2, "2014-01-01 00:00:00", "2014-01-01 09:00:00");
+            checkSlot(iterator, schedule1, "2014-01-01 08:00:00", "2014-01-01 09:00:00");
+            checkSlot(iterator, schedule2, "2014-01-01 09:30:00", "2014-01-02 00:00:00");
+            checkSlot(iterator, schedule1, "2014-01-01 10:00:00", "2014-01-02 00:00:00");
+            assertFalse(iterator.hasNext());
+        } finally {
+            appointments.destroy();
+        }
+    }
+
     /**
      * Creates a new query.
      *
@@ -0,0 +1,247 @@
+/*
+ * Version: 1.0
+ *
+ * The contents of this file are subject to the OpenVPMS License Version
+ * 1.0 (the 'License'); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.openvpms.org/license/
+ *
+ * Software distributed under the License is distributed on an 'AS IS' basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * Copyright 2014 (C) OpenVPMS Ltd. All Rights Reserved.
+ */
+
+package org.openvpms.archetype.rules.workflow;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests the {@link PrefetchSlotIterator} class.
+ *
+ * @author Tim Anderson
+ */
+public class PrefetchSlotIteratorTestCase {
+
+    /**
+     * The executor.
+     */
+    private RecordingExecutor executor;
+
+
+    /**
+     * Sets up the test case.
+     */
+    @Before
+    public void setUp() {
+        executor = new RecordingExecutor();
+    }
+
+    /**
+     * Cleans up after the test case.
+     */
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Verifies that all slots are returned, reading them in batches.
+     */
+    @Test
+    public void testIterate() {
+        Slots slots = new Slots(5, -1);
+        Iterator<Slot> iterator = new PrefetchSlotIterator(slots, executor, 2);
+        for (int i = 0; i < 5; ++i) {
+            assertTrue(iterator.hasNext());
+            assertEquals(i, iterator.next().getSchedule());
+        }
+        assertFalse(iterator.hasNext());
+        assertEquals(3, executor.getFutures().size());
+    }
+
+    /**
+     * Verifies that when iteration stops early, closing the iterator cancels the outstanding batch, and no further
+     * batches are read.
+     *
+     * @throws Exception for any error
+     */
+    @Test
+    public void testClose() throws Exception {
+        Slots slots = new Slots(100, 2);
+        PrefetchSlotIterator iterator = new PrefetchSlotIterator(slots, executor, 2);
+        assertTrue(iterator.hasNext());
+        iterator.next();
+
+        // the second batch has been submitted, and is blocked reading the underlying iterator
+        List<Future<?>> futures = executor.getFutures();
+        assertEquals(2, futures.size());
+        assertTrue(slots.awaitBlocked());
+        iterator.close();
+        assertTrue(futures.get(1).isCancelled());
+        assertFalse(iterator.hasNext());
+        try {
+            iterator.next();
+            fail("Expected NoSuchElementException");
+        } catch (NoSuchElementException expected) {
+            // expected
+        }
+
+        slots.release();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(2, executor.getFutures().size());
+        assertTrue(slots.getRead() <= 4);
+    }
+
+    /**
+     * An iterator over dummy slots, that can block after a number of slots have been read.
+     */
+    private static class Slots implements Iterator<Slot> {
+
+        /**
+         * The no. of slots to return.
+         */
+        private final int count;
+
+        /**
+         * The no. of slots to read before blocking, or {@code -1} if reads shouldn't block.
+         */
+        private final int blockAfter;
+
+        /**
+         * The no. of slots read.
+         */
+        private final AtomicInteger read = new AtomicInteger();
+
+        /**
+         * Signalled when a read blocks.
+         */
+        private final CountDownLatch blocked = new CountDownLatch(1);
+
+        /**
+         * Signalled to release blocked reads.
+         */
+        private final CountDownLatch released = new CountDownLatch(1);
+
+        /**
+         * Constructs a {@link Slots}.
+         *
+         * @param count      the no. of slots to return
+         * @param blockAfter the no. of slots to read before blocking, or {@code -1} if reads shouldn't block
+         */
+        public Slots(int count, int blockAfter) {
+            this.count = count;
+            this.blockAfter = blockAfter;
+        }
+
+        public boolean hasNext() {
+            if (read.get() == blockAfter) {
+                blocked.countDown();
+                try {
+                    released.await();
+                } catch (InterruptedException exception) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return read.get() < count;
+        }
+
+        public Slot next() {
+            if (read.get() >= count) {
+                throw new NoSuchElementException();
+            }
+            int index = read.getAndIncrement();
+            Date date = new Date(index * 60000L);
+            return new Slot(index, date, date);
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * Waits for a read to block.
+         *
+         * @return {@code true} if a read blocked
+         * @throws InterruptedException if interrupted
+         */
+        public boolean awaitBlocked() throws InterruptedException {
+            return blocked.await(10, TimeUnit.SECONDS);
+        }
+
+        /**
+         * Releases blocked reads.
+         */
+        public void release() {
+            released.countDown();
+        }
+
+        /**
+         * Returns the no. of slots read.
+         *
+         * @return the no. of slots read
+         */
+        public int getRead() {
+            return read.get();
+        }
+    }
+
+    /**
+     * A single threaded executor that records the futures of the tasks submitted to it.
+     */
+    private static class RecordingExecutor extends ThreadPoolExecutor {
+
+        /**
+         * The futures.
+         */
+        private final List<Future<?>> futures = Collections.synchronizedList(new ArrayList<Future<?>>());
+
+        /**
+         * Constructs a {@link RecordingExecutor}.
+         */
+        public RecordingExecutor() {
+            super(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+        }
+
+        /**
+         * Returns the futures of the tasks submitted.
+         *
+         * @return the futures
+         */
+        public List<Future<?>> getFutures() {
+            return new ArrayList<Future<?>>(futures);
+        }
+
+        @Override
+        protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable) {
+            RunnableFuture<T> future = super.newTaskFor(callable);
+            futures.add(future);
+            return future;
+        }
+    }
+}
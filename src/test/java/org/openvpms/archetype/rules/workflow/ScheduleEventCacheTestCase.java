@@ -0,0 +1,388 @@
+/*
+ * Version: 1.0
+ *
+ * The contents of this file are subject to the OpenVPMS License Version
+ * 1.0 (the 'License'); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.openvpms.org/license/
+ *
+ * Software distributed under the License is distributed on an 'AS IS' basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * Copyright 2014 (C) OpenVPMS Ltd. All Rights Reserved.
+ */
+
+package org.openvpms.archetype.rules.workflow;
+
+import net.sf.ehcache.CacheException;
+import net.sf.ehcache.Ehcache;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openvpms.archetype.rules.util.DateRules;
+import org.openvpms.archetype.rules.util.DateUnits;
+import org.openvpms.archetype.test.ArchetypeServiceTest;
+import org.openvpms.component.business.domain.im.act.Act;
+import org.openvpms.component.business.domain.im.common.Entity;
+import org.openvpms.component.business.domain.im.party.Party;
+import org.openvpms.component.system.common.util.PropertySet;
+
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests the {@link ScheduleEventCache} class.
+ *
+ * @author Tim Anderson
+ */
+public class ScheduleEventCacheTestCase extends ArchetypeServiceTest {
+
+    /**
+     * The underlying cache.
+     */
+    private Ehcache ehcache;
+
+    /**
+     * The event factory.
+     */
+    private TestFactory factory;
+
+    /**
+     * The cache.
+     */
+    private ScheduleEventCache cache;
+
+    /**
+     * The executor used to run concurrent loads.
+     */
+    private ExecutorService executor;
+
+    /**
+     * The schedule.
+     */
+    private Party schedule;
+
+    /**
+     * The day to load.
+     */
+    private Date day;
+
+
+    /**
+     * Sets up the test case.
+     */
+    @Before
+    public void setUp() {
+        ehcache = ScheduleTestHelper.createCache(30);
+        factory = new TestFactory();
+        cache = new ScheduleEventCache(ehcache, factory);
+        executor = Executors.newCachedThreadPool();
+        schedule = ScheduleTestHelper.createSchedule();
+        day = DateRules.getToday();
+    }
+
+    /**
+     * Cleans up after the test case.
+     */
+    @After
+    public void tearDown() {
+        factory.release();
+        executor.shutdownNow();
+        cache.destroy();
+    }
+
+    /**
+     * Verifies that when multiple threads request the same day concurrently, the day is only queried once.
+     *
+     * @throws Exception for any error
+     */
+    @Test
+    public void testConcurrentLoad() throws Exception {
+        Act appointment = createAppointment(day);
+        factory.block();
+
+        Future<List<PropertySet>> first = getEvents();
+        assertTrue(factory.awaitBlocked());
+        Future<List<PropertySet>> second = getEvents();
+
+        // the second load should wait on the first
+        Thread.sleep(500);
+        assertFalse(second.isDone());
+        factory.release();
+
+        checkEvents(first.get(10, TimeUnit.SECONDS), appointment);
+        checkEvents(second.get(10, TimeUnit.SECONDS), appointment);
+        assertEquals(1, factory.getQueries());
+
+        // subsequent requests should be served from the cache
+        checkEvents(cache.getEvents(schedule, day), appointment);
+        assertEquals(1, factory.getQueries());
+    }
+
+    /**
+     * Verifies that when a thread times out waiting on another to load a day, and there is no last known version of
+     * the day, a {@link CacheException} is thrown.
+     *
+     * @throws Exception for any error
+     */
+    @Test
+    public void testLoadTimeoutWithNoLastKnown() throws Exception {
+        Act appointment = createAppointment(day);
+        cache.setLoadTimeout(100);
+        factory.block();
+
+        Future<List<PropertySet>> first = getEvents();
+        assertTrue(factory.awaitBlocked());
+        Future<List<PropertySet>> second = getEvents();
+        checkCacheException(second);
+
+        factory.release();
+        checkEvents(first.get(10, TimeUnit.SECONDS), appointment);
+        assertEquals(1, factory.getQueries());
+    }
+
+    /**
+     * Verifies that when a thread times out waiting on another to load a day, it is returned the last known version
+     * of the day, if one is available.
+     *
+     * @throws Exception for any error
+     */
+    @Test
+    public void testLoadTimeoutWithLastKnown() throws Exception {
+        Act appointment1 = createAppointment(day);
+        List<PropertySet> events = cache.getEvents(schedule, day);
+        checkEvents(events, appointment1);
+        assertEquals(1, factory.getQueries());
+
+        // evict the day, and add an appointment that is only visible once the day is reloaded
+        ehcache.removeAll();
+        Act appointment2 = createAppointment(day);
+
+        cache.setLoadTimeout(100);
+        factory.block();
+        Future<List<PropertySet>> first = getEvents();
+        assertTrue(factory.awaitBlocked());
+        Future<List<PropertySet>> second = getEvents();
+
+        // the second load should time out, and get the last known version
+        checkEvents(second.get(10, TimeUnit.SECONDS), appointment1);
+        assertFalse(first.isDone());
+
+        factory.release();
+        checkEvents(first.get(10, TimeUnit.SECONDS), appointment1, appointment2);
+        assertEquals(2, factory.getQueries());
+    }
+
+    /**
+     * Verifies that when a load fails, threads waiting on it are notified of the failure, events added during the
+     * load aren't lost, and the day is loaded again on the next request.
+     *
+     * @throws Exception for any error
+     */
+    @Test
+    public void testLoadFailure() throws Exception {
+        Act appointment1 = createAppointment(day);
+        factory.fail(new IllegalStateException("Simulated query failure"));
+        factory.block();
+
+        Future<List<PropertySet>> first = getEvents();
+        assertTrue(factory.awaitBlocked());
+        Future<List<PropertySet>> second = getEvents();
+
+        // add an event while the load is in progress
+        Act appointment2 = createAppointment(day);
+        cache.addEvent(appointment2);
+
+        factory.release();
+        checkCacheException(first);
+        checkCacheException(second);
+        assertEquals(0, ehcache.getSize());
+
+        // the next request should reload the day
+        int queries = factory.getQueries();
+        factory.fail(null);
+        checkEvents(cache.getEvents(schedule, day), appointment1, appointment2);
+        assertEquals(queries + 1, factory.getQueries());
+    }
+
+    /**
+     * Creates and saves an appointment for the schedule.
+     *
+     * @param day the day
+     * @return a new appointment
+     */
+    private Act createAppointment(Date day) {
+        Date startTime = DateRules.getDate(day, 9, DateUnits.HOURS);
+        Date endTime = DateRules.getDate(startTime, 15, DateUnits.MINUTES);
+        Act appointment = ScheduleTestHelper.createAppointment(startTime, endTime, schedule);
+        save(appointment);
+        return appointment;
+    }
+
+    /**
+     * Requests the events for the day in a separate thread.
+     *
+     * @return the future result
+     */
+    private Future<List<PropertySet>> getEvents() {
+        return executor.submit(new Callable<List<PropertySet>>() {
+            public List<PropertySet> call() throws Exception {
+                return cache.getEvents(schedule, day);
+            }
+        });
+    }
+
+    /**
+     * Verifies that events match those expected.
+     *
+     * @param events   the events
+     * @param expected the expected appointments
+     */
+    private void checkEvents(List<PropertySet> events, Act... expected) {
+        assertEquals(expected.length, events.size());
+        Set<Object> references = new HashSet<Object>();
+        for (PropertySet event : events) {
+            references.add(event.getReference(ScheduleEvent.ACT_REFERENCE));
+        }
+        for (Act act : expected) {
+            assertTrue(references.contains(act.getObjectReference()));
+        }
+    }
+
+    /**
+     * Verifies that a request failed with a {@link CacheException}.
+     *
+     * @param future the request
+     * @throws Exception for any error
+     */
+    private void checkCacheException(Future<List<PropertySet>> future) throws Exception {
+        try {
+            future.get(10, TimeUnit.SECONDS);
+            fail("Expected CacheException");
+        } catch (ExecutionException exception) {
+            assertTrue(exception.getCause() instanceof CacheException);
+        }
+    }
+
+    /**
+     * An {@link AppointmentFactory} that counts queries, and can block or fail them.
+     */
+    private class TestFactory extends AppointmentFactory {
+
+        /**
+         * The no. of queries.
+         */
+        private final AtomicInteger queries = new AtomicInteger();
+
+        /**
+         * Signalled when a query blocks.
+         */
+        private volatile CountDownLatch blocked;
+
+        /**
+         * Signalled to release blocked queries.
+         */
+        private volatile CountDownLatch released;
+
+        /**
+         * The exception to throw when querying, or {@code null} if queries should succeed.
+         */
+        private volatile RuntimeException failure;
+
+        /**
+         * Constructs a {@link TestFactory}.
+         */
+        public TestFactory() {
+            super(getArchetypeService(), getLookupService());
+        }
+
+        /**
+         * Returns the events for a schedule on the given day.
+         *
+         * @param schedule the schedule
+         * @param day      the day
+         * @return the events
+         */
+        @Override
+        public List<PropertySet> getEvents(Entity schedule, Date day) {
+            queries.incrementAndGet();
+            CountDownLatch latch = released;
+            if (latch != null) {
+                blocked.countDown();
+                try {
+                    latch.await();
+                } catch (InterruptedException exception) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return super.getEvents(schedule, day);
+        }
+
+        /**
+         * Blocks subsequent queries until {@link #release()} is invoked.
+         */
+        public void block() {
+            blocked = new CountDownLatch(1);
+            released = new CountDownLatch(1);
+        }
+
+        /**
+         * Waits for a query to block.
+         *
+         * @return {@code true} if a query blocked
+         * @throws InterruptedException if interrupted
+         */
+        public boolean awaitBlocked() throws InterruptedException {
+            return blocked.await(10, TimeUnit.SECONDS);
+        }
+
+        /**
+         * Releases blocked queries. Subsequent queries won't block.
+         */
+        public void release() {
+            CountDownLatch latch = released;
+            released = null;
+            if (latch != null) {
+                latch.countDown();
+            }
+        }
+
+        /**
+         * Sets the exception to throw when querying.
+         *
+         * @param exception the exception, or {@code null} if queries should succeed
+         */
+        public void fail(RuntimeException exception) {
+            failure = exception;
+        }
+
+        /**
+         * Returns the no. of queries.
+         *
+         * @return the no. of queries
+         */
+        public int getQueries() {
+            return queries.get();
+        }
+    }
+}
@@ -19,18 +19,26 @@ package org.openvpms.archetype.tools.account;
 import org.junit.Before;
 import org.junit.Test;
 import org.openvpms.archetype.rules.finance.account.AbstractCustomerAccountTest;
+import org.openvpms.archetype.rules.finance.account.BalanceCalculator;
 import org.openvpms.archetype.rules.finance.account.CustomerAccountRules;
+import org.openvpms.archetype.rules.finance.account.CustomerBalanceSnapshot;
+import org.openvpms.archetype.test.TestHelper;
 import org.openvpms.component.business.domain.im.act.FinancialAct;
 import org.openvpms.component.business.domain.im.datatypes.quantity.Money;
 import org.openvpms.component.business.domain.im.party.Party;
 import org.openvpms.component.business.service.archetype.IArchetypeService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.test.context.ContextConfiguration;
+import org.springframework.transaction.PlatformTransactionManager;
 
 import java.math.BigDecimal;
 
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 
 /**
@@ -99,13 +107,93 @@ public class AccountBalanceToolTestCase extends AbstractCustomerAccountTest {
         assertTrue(tool.check(name));
     }
 
+    /**
+     * Tests generation using multiple threads.
+     */
+    @Test
+    public void testGenerateWithMultipleThreads() {
+        String lastName = "Z" + System.currentTimeMillis();
+        Party[] customers = new Party[5];
+        for (int i = 0; i < customers.length; ++i) {
+            customers[i] = TestHelper.createCustomer("Foo", lastName, true);
+            setCustomer(customers[i]);
+            save(createInitialBalance(new Money(10 * (i + 1))));
+            save(createBadDebt(new Money(5)));
+        }
+        String name = lastName + "*";
+        assertFalse(tool.check(name));
+
+        tool.setThreads(3);
+        tool.generate(name);
+        for (int i = 0; i < customers.length; ++i) {
+            checkEquals(new BigDecimal(10 * (i + 1) - 5), rules.getBalance(customers[i]));
+        }
+        assertTrue(tool.check(name));
+    }
+
+    /**
+     * Verifies that when generating with multiple threads, a failure in the last partition is propagated.
+     */
+    @Test
+    public void testPartitionFailure() {
+        String lastName = "Z" + System.currentTimeMillis();
+        Party[] customers = new Party[6];
+        for (int i = 0; i < customers.length; ++i) {
+            customers[i] = TestHelper.createCustomer("Foo", lastName, true);
+            setCustomer(customers[i]);
+            save(createInitialBalance(new Money(10)));
+        }
+        final Party failed = customers[customers.length - 1];
+        final IllegalStateException failure = new IllegalStateException("Generation failed");
+        AccountBalanceTool tool = new AccountBalanceTool(getArchetypeService(),
+                                                         applicationContext.getBean(PlatformTransactionManager.class)) {
+            @Override
+            public void generate(Party customer) {
+                if (customer.getId() == failed.getId()) {
+                    throw failure;
+                }
+                super.generate(customer);
+            }
+        };
+        tool.setFailOnError(true);
+        tool.setThreads(3);
+        try {
+            tool.generate(lastName + "*");
+            fail("Expected generation to fail");
+        } catch (IllegalStateException exception) {
+            assertSame(failure, exception);
+        }
+    }
+
+    /**
+     * Verifies that balance snapshots can be generated for customers that don't have them.
+     */
+    @Test
+    public void testSnapshot() {
+        Party customer = getCustomer();
+        long id = customer.getId();
+        save(createInitialBalance(new Money(100)));
+        tool.generate(id);
+
+        // remove the snapshot, to simulate a customer whose acts pre-date snapshots
+        BalanceCalculator calculator = new BalanceCalculator(getArchetypeService());
+        remove(calculator.getSnapshot(customer).getAct());
+        assertNull(calculator.getSnapshot(customer));
+
+        tool.snapshot(id);
+        CustomerBalanceSnapshot snapshot = calculator.getSnapshot(customer);
+        assertNotNull(snapshot);
+        checkEquals(new BigDecimal(100), snapshot.getBalance());
+        assertTrue(tool.check(id));
+    }
+
     /**
      * Sets up the test case.
      */
     @Before
     public void onSetUp() {
         IArchetypeService service = getArchetypeService();
-        tool = new AccountBalanceTool(service);
+        tool = new AccountBalanceTool(service, applicationContext.getBean(PlatformTransactionManager.class));
     }
 
 }